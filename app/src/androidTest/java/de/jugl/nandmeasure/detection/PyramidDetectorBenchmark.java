@@ -0,0 +1,92 @@
+package de.jugl.nandmeasure.detection;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.Mat;
+
+import java.util.List;
+import java.util.Locale;
+
+import de.jugl.nandmeasure.util.MatProcessor;
+import de.jugl.nandmeasure.util.PipelineBenchmark;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares searching a large marker coarse to fine with searching it at full resolution only, at preview
+ * sizes where the marker is large enough for the pyramid to kick in. Results are logged.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PyramidDetectorBenchmark {
+
+    private static final String TAG = "PyramidDetectorBenchmark";
+
+    private static final int[][] SIZES = { { 1280, 720 }, { 1920, 1080 } };
+
+    private static final int FRAMES = 4;
+
+    /**
+     * Largest difference in pixels allowed between the marker radius found coarse to fine and the one found
+     * at full resolution. The edge is refined at full resolution, but with a threshold of its own.
+     */
+    private static final double MAX_RADIUS_DIFFERENCE = .5d;
+
+    @BeforeClass
+    public static void loadOpenCv() {
+        assertTrue(OpenCVLoader.initDebug());
+    }
+
+    @Test
+    public void pyramid_isFasterThanFullResolution() {
+        for (int[] size : SIZES) {
+            int width = size[0], height = size[1];
+            List<Mat> frames = PipelineBenchmark.createBenchmarkFrames(width, height, FRAMES);
+            double[] full = new double[3 * FRAMES], pyramid = new double[3 * FRAMES];
+
+            long fullTime = measure(frames, width, height, 0, full);
+            long pyramidTime = measure(frames, width, height, PyramidDetector.MAX_LEVEL, pyramid);
+
+            for (Mat frame : frames) {
+                frame.release();
+            }
+
+            Log.i(TAG, String.format(Locale.ENGLISH, "%dx%d: full resolution %.2f ms, pyramid %.2f ms (%.1fx)",
+                    width, height, fullTime / 1e6, pyramidTime / 1e6, (double) fullTime / pyramidTime));
+
+            for (int i = 0; i < FRAMES; i++) {
+                assertFalse("Full resolution missed frame " + i, Double.isNaN(full[3 * i]));
+                assertFalse("Pyramid missed frame " + i, Double.isNaN(pyramid[3 * i]));
+                assertEquals(full[3 * i] / 2d, pyramid[3 * i] / 2d, MAX_RADIUS_DIFFERENCE);
+            }
+
+            assertTrue(width + "x" + height, pyramidTime < fullTime);
+        }
+    }
+
+    /**
+     * @param frames Benchmark frames
+     * @param width Frame width
+     * @param height Frame height
+     * @param maxLevel Highest pyramid level to use
+     * @param detections Array to write the markers found to
+     * @return Median time per frame in nanoseconds
+     */
+    private static long measure(List<Mat> frames, int width, int height, int maxLevel, double[] detections) {
+        MatProcessor processor = new MatProcessor();
+        PyramidDetector detector = new PyramidDetector(processor, false);
+        detector.setMaxLevel(maxLevel);
+
+        long time = PipelineBenchmark.measureDetector(detector, frames, width, height, detections);
+
+        detector.release();
+        processor.release();
+
+        return time;
+    }
+
+}
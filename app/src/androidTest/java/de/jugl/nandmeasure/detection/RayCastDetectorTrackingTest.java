@@ -0,0 +1,215 @@
+package de.jugl.nandmeasure.detection;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.List;
+import java.util.Locale;
+
+import de.jugl.nandmeasure.util.MatProcessor;
+import de.jugl.nandmeasure.util.PipelineBenchmark;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tracks the marker of the benchmark frames with rays and compares it to the marker the fallback detector
+ * finds on its own, through the same harness the engines are benchmarked with. Also tracks a drawn disc and
+ * checks that frames the rays can't explain are handed to the fallback detector.
+ */
+@RunWith(AndroidJUnit4.class)
+public class RayCastDetectorTrackingTest {
+
+    private static final String TAG = "RayCastDetectorTrackingTest";
+
+    private static final int WIDTH = 640, HEIGHT = 480, FRAMES = 8;
+
+    /**
+     * Largest difference in pixels allowed between the radii and between the centers found with and without
+     * rays.
+     */
+    private static final double MAX_DEVIATION = .5d;
+
+    /**
+     * Size of the frames the disc is drawn into, radius of the disc and amount of frames it is tracked in.
+     */
+    private static final int DISC_WIDTH = 320, DISC_HEIGHT = 240, DISC_RADIUS = 40, DISC_FRAMES = 8;
+
+    /**
+     * Largest difference in pixels allowed between the radius and center of the tracked disc and the ones it
+     * was drawn with.
+     */
+    private static final double MAX_DISC_ERROR = 1d;
+
+    @BeforeClass
+    public static void loadOpenCv() {
+        assertTrue(OpenCVLoader.initDebug());
+    }
+
+    @Test
+    public void rays_agreeWithFallbackOnBenchmarkFrames() {
+        List<Mat> frames = PipelineBenchmark.createBenchmarkFrames(WIDTH, HEIGHT, FRAMES);
+        double[] fallback = new double[3 * FRAMES], rays = new double[3 * FRAMES];
+
+        MatProcessor processor = new MatProcessor();
+        processor.setThresholdType(MatProcessor.ThresholdType.OTSU_TEMPORAL);
+
+        CircleDetector fallbackDetector = new PyramidDetector(processor, false);
+        long fallbackTime = PipelineBenchmark.measureDetector(fallbackDetector, frames, WIDTH, HEIGHT, fallback);
+        fallbackDetector.release();
+
+        RayCastDetector rayDetector = new RayCastDetector(new PyramidDetector(processor, false), RayCastDetector.DEFAULT_RAY_COUNT);
+        long rayTime = PipelineBenchmark.measureDetector(rayDetector, frames, WIDTH, HEIGHT, rays);
+
+        // The harness resets the detector, so the frames are searched once more to count who found the marker.
+        long rayFrames = countRayFrames(rayDetector, frames);
+
+        rayDetector.release();
+        processor.release();
+
+        for (Mat frame : frames) {
+            frame.release();
+        }
+
+        Log.i(TAG, String.format(Locale.ENGLISH, "Fallback %.2f ms/frame, rays %.2f ms/frame, %d of %d frames tracked by rays",
+                fallbackTime / 1e6, rayTime / 1e6, rayFrames, FRAMES));
+
+        assertTrue(rayFrames > 0);
+
+        for (int i = 0; i < FRAMES; i++) {
+            assertFalse("Fallback missed frame " + i, Double.isNaN(fallback[3 * i]));
+            assertFalse("Rays missed frame " + i, Double.isNaN(rays[3 * i]));
+
+            double dx = rays[3 * i + 1] - fallback[3 * i + 1], dy = rays[3 * i + 2] - fallback[3 * i + 2];
+
+            assertEquals("Radius in frame " + i, fallback[3 * i] / 2d, rays[3 * i] / 2d, MAX_DEVIATION);
+            assertEquals("Center in frame " + i, 0d, Math.sqrt(dx * dx + dy * dy), MAX_DEVIATION);
+        }
+    }
+
+    @Test
+    public void rays_trackMovingDisc() {
+        MatProcessor processor = new MatProcessor();
+        processor.setThresholdType(MatProcessor.ThresholdType.OTSU_TEMPORAL);
+
+        RayCastDetector detector = new RayCastDetector(new PyramidDetector(processor, false), RayCastDetector.DEFAULT_RAY_COUNT);
+        Detection detection = new Detection();
+        Mat frame = new Mat(DISC_HEIGHT, DISC_WIDTH, CvType.CV_8UC1);
+
+        for (int i = 0; i < DISC_FRAMES; i++) {
+            // Moves a pixel per frame, well within the reach of the rays.
+            double cx = DISC_WIDTH / 2d + i, cy = DISC_HEIGHT / 2d - i;
+
+            drawDisc(frame, cx, cy);
+            assertTrue("Missed frame " + i, detector.detect(frame, -1d, null, detection));
+
+            double dx = detection.getCenterX() - cx, dy = detection.getCenterY() - cy;
+
+            assertEquals("Radius in frame " + i, DISC_RADIUS, detection.getDiameter() / 2d, MAX_DISC_ERROR);
+            assertEquals("Center in frame " + i, 0d, Math.sqrt(dx * dx + dy * dy), MAX_DISC_ERROR);
+        }
+
+        // Only the first frame has no previous marker to cast the rays from.
+        assertEquals(1, detector.getFallbackFrames());
+        assertEquals(DISC_FRAMES - 1, detector.getRayFrames());
+
+        detector.release();
+        processor.release();
+        frame.release();
+    }
+
+    @Test
+    public void rays_handOverFramesTheyCantExplain() {
+        MatProcessor processor = new MatProcessor();
+        processor.setThresholdType(MatProcessor.ThresholdType.OTSU_TEMPORAL);
+
+        RayCastDetector detector = new RayCastDetector(new PyramidDetector(processor, false), RayCastDetector.DEFAULT_RAY_COUNT);
+        Detection detection = new Detection();
+        Mat frame = new Mat(DISC_HEIGHT, DISC_WIDTH, CvType.CV_8UC1);
+        double cx = DISC_WIDTH / 2d, cy = DISC_HEIGHT / 2d;
+
+        drawDisc(frame, cx, cy);
+        assertTrue(detector.detect(frame, -1d, null, detection));
+        drawDisc(frame, cx, cy);
+        assertTrue(detector.detect(frame, -1d, null, detection));
+        assertEquals(1, detector.getRayFrames());
+
+        // A square in place of the disc has edges on every ray, but they don't fit an ellipse.
+        frame.setTo(new Scalar(220));
+        Imgproc.rectangle(frame, new Point(cx - DISC_RADIUS, cy - DISC_RADIUS), new Point(cx + DISC_RADIUS, cy + DISC_RADIUS),
+                new Scalar(30), Imgproc.FILLED);
+        detector.detect(frame, -1d, null, detection);
+        assertEquals(1, detector.getRayFrames());
+
+        // A disc which jumped beyond the reach of the rays is searched for from scratch.
+        detector.reset();
+        drawDisc(frame, cx, cy);
+        assertTrue(detector.detect(frame, -1d, null, detection));
+
+        cx -= 2 * DISC_RADIUS;
+        drawDisc(frame, cx, cy);
+        assertTrue(detector.detect(frame, -1d, null, detection));
+        assertEquals(0, detector.getRayFrames());
+        assertEquals(2, detector.getFallbackFrames());
+
+        double dx = detection.getCenterX() - cx, dy = detection.getCenterY() - cy;
+
+        assertEquals(DISC_RADIUS, detection.getDiameter() / 2d, MAX_DISC_ERROR);
+        assertEquals(0d, Math.sqrt(dx * dx + dy * dy), MAX_DISC_ERROR);
+
+        detector.release();
+        processor.release();
+        frame.release();
+    }
+
+    /**
+     * @param detector Ray detector
+     * @param frames Benchmark frames
+     * @return Amount of frames the marker was tracked by rays in
+     */
+    private static long countRayFrames(RayCastDetector detector, List<Mat> frames) {
+        Rect markerArea = PipelineBenchmark.getMarkerArea(WIDTH, HEIGHT);
+        Detection detection = new Detection();
+        Mat frame = new Mat();
+
+        detector.reset();
+
+        for (Mat nv21 : frames) {
+            Mat roi = nv21.submat(markerArea);
+            roi.copyTo(frame);
+            roi.release();
+
+            detector.detect(frame, -1d, null, detection);
+        }
+
+        long rayFrames = detector.getRayFrames();
+
+        detector.reset();
+        frame.release();
+
+        return rayFrames;
+    }
+
+    /**
+     * Draws a dark disc onto a bright background, replacing the whole frame.
+     *
+     * @param frame Grayscale frame
+     * @param cx Horizontal disc center
+     * @param cy Vertical disc center
+     */
+    private static void drawDisc(Mat frame, double cx, double cy) {
+        frame.setTo(new Scalar(220));
+        Imgproc.circle(frame, new Point(cx, cy), DISC_RADIUS, new Scalar(30), Imgproc.FILLED);
+    }
+
+}
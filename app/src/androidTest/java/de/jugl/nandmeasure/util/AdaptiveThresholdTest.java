@@ -0,0 +1,148 @@
+package de.jugl.nandmeasure.util;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.RotatedRect;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Searches whole frames lit steeply from the right for the marker. A single global threshold can't tell the
+ * dim background on the left from the marker, the adaptive threshold can. Also compares the adaptive
+ * threshold to window means computed in plain Java.
+ */
+@RunWith(AndroidJUnit4.class)
+public class AdaptiveThresholdTest {
+
+    private static final int[][] SIZES = { { 640, 480 }, { 1280, 720 } };
+
+    private static final int[] SEEDS = { 42, 43, 44 };
+
+    /**
+     * Light falling onto the left frame border, relative to the right border.
+     */
+    private static final float MIN_LIGHT = .1f;
+
+    /**
+     * Largest difference in pixels allowed between the radius and center of a candidate and the ones the
+     * marker was drawn with. Contours trace the bright pixels around the marker, which adds up to a pixel.
+     */
+    private static final double MAX_DEVIATION = 1.5d;
+
+    /**
+     * Size of the frame the adaptive threshold is compared to window means on. Small, since the means are
+     * computed in plain Java.
+     */
+    private static final int SMALL_WIDTH = 320, SMALL_HEIGHT = 240;
+
+    @BeforeClass
+    public static void loadOpenCv() {
+        assertTrue(OpenCVLoader.initDebug());
+    }
+
+    @Test
+    public void adaptive_findsMarkerWhereOtsuFails() {
+        for (int[] size : SIZES) {
+            for (int seed : SEEDS) {
+                String frame = size[0] + "x" + size[1] + ", seed " + seed;
+
+                assertFalse(frame, findsMarker(size[0], size[1], seed, MatProcessor.ThresholdType.OTSU));
+                assertTrue(frame, findsMarker(size[0], size[1], seed, MatProcessor.ThresholdType.ADAPTIVE));
+            }
+        }
+    }
+
+    @Test
+    public void adaptive_matchesWindowMeans() {
+        Mat frame = PipelineBenchmark.createSyntheticFrame(SMALL_WIDTH, SMALL_HEIGHT, 42, MIN_LIGHT);
+        Mat gray = frame.submat(0, SMALL_HEIGHT, 0, SMALL_WIDTH);
+        byte[] pixels = new byte[SMALL_WIDTH * SMALL_HEIGHT], binarized = new byte[pixels.length];
+
+        MatProcessor processor = new MatProcessor();
+        MatProcessor.Params params = MatProcessor.Params.DEFAULTS.withBlurKernelLength(0)
+                .withThresholdType(MatProcessor.ThresholdType.ADAPTIVE);
+
+        gray.get(0, 0, pixels);
+        processor.setParams(params);
+        processor.preprocess(gray);
+        gray.get(0, 0, binarized);
+
+        processor.release();
+        gray.release();
+        frame.release();
+
+        int radius = Math.max(1, Math.round(params.getAdaptiveWindow() * SMALL_HEIGHT) / 2);
+        int offset = params.getAdaptiveOffset();
+
+        // Sums of all pixels above and left of every position.
+        long[][] sums = new long[SMALL_HEIGHT + 1][SMALL_WIDTH + 1];
+
+        for (int y = 0; y < SMALL_HEIGHT; y++) {
+            for (int x = 0; x < SMALL_WIDTH; x++) {
+                sums[y + 1][x + 1] = sums[y][x + 1] + sums[y + 1][x] - sums[y][x] + (pixels[y * SMALL_WIDTH + x] & 0xFF);
+            }
+        }
+
+        for (int y = 0; y < SMALL_HEIGHT; y++) {
+            for (int x = 0; x < SMALL_WIDTH; x++) {
+                int top = Math.max(0, y - radius), bottom = Math.min(SMALL_HEIGHT, y + radius + 1);
+                int left = Math.max(0, x - radius), right = Math.min(SMALL_WIDTH, x + radius + 1);
+                long sum = sums[bottom][right] - sums[bottom][left] - sums[top][right] + sums[top][left];
+                int area = (bottom - top) * (right - left);
+
+                boolean bright = (long) ((pixels[y * SMALL_WIDTH + x] & 0xFF) + offset) * area > sum;
+                assertEquals(x + ", " + y, bright ? 255 : 0, binarized[y * SMALL_WIDTH + x] & 0xFF);
+            }
+        }
+    }
+
+    /**
+     * @param width Frame width
+     * @param height Frame height
+     * @param seed Seed of the noise
+     * @param type Threshold type
+     * @return <code>true</code> if one of the candidates in the whole unevenly lit frame is the marker,
+     * <code>false</code> otherwise
+     */
+    private static boolean findsMarker(int width, int height, int seed, MatProcessor.ThresholdType type) {
+        Mat frame = PipelineBenchmark.createSyntheticFrame(width, height, seed, MIN_LIGHT);
+        Mat gray = frame.submat(0, height, 0, width);
+        double radius = PipelineBenchmark.getMarkerRadius(PipelineBenchmark.getMarkerArea(width, height));
+
+        MatProcessor processor = new MatProcessor();
+        List<MatOfPoint> contours = new ArrayList<>();
+        boolean found = false;
+
+        processor.setThresholdType(type);
+        processor.preprocess(gray);
+        processor.findContoursForEllipseFit(contours, gray);
+
+        for (MatOfPoint contour : contours) {
+            RotatedRect ellipse = Imgproc.fitEllipse(processor.toFloatContour(contour));
+            double dx = ellipse.center.x - width / 2d, dy = ellipse.center.y - height / 2d;
+
+            if (Math.abs(CvUtil.getDiameterFromEllipse(ellipse) / 2d - radius) <= MAX_DEVIATION &&
+                Math.sqrt(dx * dx + dy * dy) <= MAX_DEVIATION) {
+                found = true;
+            }
+        }
+
+        MatProcessor.releaseContours(contours);
+        processor.release();
+        gray.release();
+        frame.release();
+
+        return found;
+    }
+
+}
@@ -0,0 +1,165 @@
+package de.jugl.nandmeasure.util;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures how the cost of candidate extraction scales with the amount of contours in the image: the single
+ * pass filter of {@link MatProcessor#findCircleContours(List, Mat)}, the component path, and the iterator
+ * loop with one OpenCV call per check and contour which MatProcessor used before. Results are logged.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CandidateFilterBenchmark {
+
+    private static final String TAG = "CandidateFilterBenchmark";
+
+    private static final int WIDTH = 1280, HEIGHT = 720;
+
+    private static final int[] BLOB_COUNTS = { 10, 100, 1000, 4000 };
+
+    private static final int WARMUP_RUNS = 2, MEASURED_RUNS = 7;
+
+    @BeforeClass
+    public static void loadOpenCv() {
+        assertTrue(OpenCVLoader.initDebug());
+    }
+
+    @Test
+    public void filterCost_byContourCount() {
+        MatProcessor contourProcessor = new MatProcessor();
+        MatProcessor componentProcessor = new MatProcessor();
+        MatProcessor.Params params = contourProcessor.getParams();
+        List<MatOfPoint> contours = new ArrayList<>();
+        Mat hierarchy = new Mat();
+
+        componentProcessor.setCandidateExtraction(MatProcessor.CandidateExtraction.COMPONENTS);
+
+        for (int blobCount : BLOB_COUNTS) {
+            Mat image = createClutteredImage(WIDTH, HEIGHT, blobCount);
+            long[] singlePass = new long[MEASURED_RUNS], components = new long[MEASURED_RUNS], perCheck = new long[MEASURED_RUNS];
+            int singlePassKept = 0, perCheckKept = 0;
+
+            for (int i = 0; i < WARMUP_RUNS + MEASURED_RUNS; i++) {
+                long start = System.nanoTime();
+                contourProcessor.findCircleContours(contours, image);
+                long singlePassTime = System.nanoTime() - start;
+
+                singlePassKept = contours.size();
+                MatProcessor.releaseContours(contours);
+
+                start = System.nanoTime();
+                componentProcessor.findCircleContours(contours, image);
+                long componentTime = System.nanoTime() - start;
+
+                MatProcessor.releaseContours(contours);
+
+                start = System.nanoTime();
+                Imgproc.findContours(image, contours, hierarchy, Imgproc.RETR_LIST, Imgproc.CHAIN_APPROX_SIMPLE);
+                filterPerCheck(contours, params.getMinContourArea(), params.getCircleAspectThreshold());
+                long perCheckTime = System.nanoTime() - start;
+
+                perCheckKept = contours.size();
+                MatProcessor.releaseContours(contours);
+
+                if (i >= WARMUP_RUNS) {
+                    singlePass[i - WARMUP_RUNS] = singlePassTime;
+                    components[i - WARMUP_RUNS] = componentTime;
+                    perCheck[i - WARMUP_RUNS] = perCheckTime;
+                }
+            }
+
+            image.release();
+
+            // Same candidates, only found faster.
+            assertEquals(blobCount + " blobs", perCheckKept, singlePassKept);
+
+            Log.i(TAG, String.format(Locale.ENGLISH, "%d blobs: single pass %.2f ms, components %.2f ms, per check %.2f ms",
+                    blobCount, PipelineBenchmark.median(singlePass) / 1e6, PipelineBenchmark.median(components) / 1e6,
+                    PipelineBenchmark.median(perCheck) / 1e6));
+        }
+
+        hierarchy.release();
+        contourProcessor.release();
+        componentProcessor.release();
+    }
+
+    /**
+     * Creates a binarized image with dark blobs of alternating shape scattered on a white background, the
+     * kind of clutter a cheap print or a textured surface produces. Every other blob is a circle which
+     * passes the circle filter, the others are elongated and get rejected.
+     *
+     * @param width Image width
+     * @param height Image height
+     * @param blobCount Amount of blobs
+     * @return Binarized image
+     */
+    private static Mat createClutteredImage(int width, int height, int blobCount) {
+        Mat image = new Mat(height, width, CvType.CV_8UC1, new Scalar(255));
+        int columns = (int) Math.ceil(Math.sqrt(blobCount * (double) width / height));
+        int rows = (blobCount + columns - 1) / columns;
+        double cellWidth = (double) width / columns, cellHeight = (double) height / rows;
+        int radius = (int) Math.max(1, Math.min(cellWidth, cellHeight) / 3);
+
+        for (int i = 0; i < blobCount; i++) {
+            Point center = new Point((i % columns + .5) * cellWidth, (i / columns + .5) * cellHeight);
+
+            if (i % 2 == 0) {
+                Imgproc.circle(image, center, radius, new Scalar(0), Imgproc.FILLED);
+            } else {
+                Imgproc.ellipse(image, center, new Size(radius, radius / 3 + 1), 0, 0, 360, new Scalar(0), Imgproc.FILLED);
+            }
+        }
+
+        return image;
+    }
+
+    /**
+     * The filter MatProcessor used before the single pass: one OpenCV call per check and contour, and one
+     * list removal per rejected contour.
+     *
+     * @param contours List of contours
+     * @param minArea Minimum oriented area
+     * @param aspectThreshold Maximum deviation of the aspect ratio of a bounding box from 1
+     */
+    private static void filterPerCheck(List<MatOfPoint> contours, int minArea, float aspectThreshold) {
+        Iterator<MatOfPoint> iterator = contours.iterator();
+
+        while (iterator.hasNext()) {
+            MatOfPoint contour = iterator.next();
+
+            if (Imgproc.contourArea(contour, true) < minArea) {
+                contour.release();
+                iterator.remove();
+                continue;
+            }
+
+            Rect rect = Imgproc.boundingRect(contour);
+
+            if (Math.abs((float) rect.width / rect.height - 1f) > aspectThreshold) {
+                contour.release();
+                iterator.remove();
+            }
+        }
+    }
+
+}
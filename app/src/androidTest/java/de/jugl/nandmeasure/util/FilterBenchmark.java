@@ -0,0 +1,145 @@
+package de.jugl.nandmeasure.util;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+import java.util.List;
+import java.util.Locale;
+
+import de.jugl.nandmeasure.detection.CircleDetector;
+import de.jugl.nandmeasure.detection.PyramidDetector;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the blur filters: how long preprocessing the marker area takes with each of them at preview
+ * sizes, and how well the guided filter keeps the marker edge compared to the bilateral filter. Results are
+ * logged.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FilterBenchmark {
+
+    private static final String TAG = "FilterBenchmark";
+
+    private static final int[][] SIZES = { { 640, 480 }, { 1280, 720 }, { 1920, 1080 } };
+
+    private static final MatProcessor.FilterType[] FILTERS = {
+            MatProcessor.FilterType.BILATERAL, MatProcessor.FilterType.GAUSSIAN,
+            MatProcessor.FilterType.BOX, MatProcessor.FilterType.GUIDED
+    };
+
+    private static final int WARMUP_RUNS = 2, MEASURED_RUNS = 7;
+
+    /**
+     * Size and amount of the frames the edge quality is checked on.
+     */
+    private static final int EDGE_WIDTH = 1280, EDGE_HEIGHT = 720, EDGE_FRAMES = 8;
+
+    /**
+     * Largest amount of pixels the radius found with the guided filter may be further off than the one
+     * found with the bilateral filter.
+     */
+    private static final double MAX_EXTRA_RADIUS_ERROR = .25d;
+
+    @BeforeClass
+    public static void loadOpenCv() {
+        assertTrue(OpenCVLoader.initDebug());
+    }
+
+    @Test
+    public void filterTime_byPreviewSize() {
+        for (int[] size : SIZES) {
+            int width = size[0], height = size[1];
+            Mat template = PipelineBenchmark.createSyntheticFrame(width, height);
+            Mat frame = template.clone();
+            Rect markerArea = PipelineBenchmark.getMarkerArea(width, height);
+
+            // Copying a frame of the same size into the frame matrix keeps this view valid.
+            Mat roi = frame.submat(markerArea);
+            StringBuilder line = new StringBuilder(String.format(Locale.ENGLISH, "%dx%d:", width, height));
+
+            for (MatProcessor.FilterType filter : FILTERS) {
+                MatProcessor processor = new MatProcessor();
+                long[] times = new long[MEASURED_RUNS];
+
+                processor.setBlurFilter(filter);
+
+                for (int i = 0; i < WARMUP_RUNS + MEASURED_RUNS; i++) {
+                    // Preprocessing works in place, so every run needs a fresh copy. Copying isn't measured.
+                    template.copyTo(frame);
+
+                    long start = System.nanoTime();
+                    processor.preprocess(roi);
+                    long time = System.nanoTime() - start;
+
+                    if (i >= WARMUP_RUNS) {
+                        times[i - WARMUP_RUNS] = time;
+                    }
+                }
+
+                line.append(String.format(Locale.ENGLISH, " %s %.2f ms", filter, PipelineBenchmark.median(times) / 1e6));
+                processor.release();
+            }
+
+            Log.i(TAG, line.toString());
+
+            roi.release();
+            template.release();
+            frame.release();
+        }
+    }
+
+    @Test
+    public void guidedFilter_keepsEdgeLikeBilateral() {
+        List<Mat> frames = PipelineBenchmark.createBenchmarkFrames(EDGE_WIDTH, EDGE_HEIGHT, EDGE_FRAMES);
+
+        double bilateralError = measureRadiusError(MatProcessor.FilterType.BILATERAL, frames);
+        double guidedError = measureRadiusError(MatProcessor.FilterType.GUIDED, frames);
+
+        for (Mat frame : frames) {
+            frame.release();
+        }
+
+        Log.i(TAG, String.format(Locale.ENGLISH, "Largest radius error: bilateral %.2f px, guided %.2f px",
+                bilateralError, guidedError));
+
+        assertTrue(guidedError <= bilateralError + MAX_EXTRA_RADIUS_ERROR);
+    }
+
+    /**
+     * Detects the marker in every benchmark frame with a blur filter and compares its radius to the radius
+     * it was drawn with.
+     *
+     * @param filter Blur filter
+     * @param frames Benchmark frames
+     * @return Largest radius error in pixels
+     */
+    private static double measureRadiusError(MatProcessor.FilterType filter, List<Mat> frames) {
+        MatProcessor processor = new MatProcessor();
+        CircleDetector detector = new PyramidDetector(processor, false);
+        double[] detections = new double[3 * frames.size()];
+        double radius = PipelineBenchmark.getMarkerRadius(PipelineBenchmark.getMarkerArea(EDGE_WIDTH, EDGE_HEIGHT));
+        double maxError = 0d;
+
+        processor.setBlurFilter(filter);
+        PipelineBenchmark.measureDetector(detector, frames, EDGE_WIDTH, EDGE_HEIGHT, detections);
+
+        detector.release();
+        processor.release();
+
+        for (int i = 0; i < frames.size(); i++) {
+            assertFalse(filter + " missed frame " + i, Double.isNaN(detections[3 * i]));
+            maxError = Math.max(maxError, Math.abs(detections[3 * i] / 2d - radius));
+        }
+
+        return maxError;
+    }
+
+}
@@ -0,0 +1,91 @@
+package de.jugl.nandmeasure.util;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.core.RotatedRect;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the marker contours of the component path to the ones of the contour path on binarized discs.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MatProcessorComponentTest {
+
+    private static final int SIZE = 400;
+
+    private static final int[] RADII = { 20, 57, 100, 150 };
+
+    /**
+     * Largest difference in pixels allowed between the radii and between the centers of the ellipses
+     * fitted to both contours. Tracing the blob itself instead of the bright pixels around it is off by
+     * about a whole pixel.
+     */
+    private static final double MAX_DEVIATION = .25d;
+
+    @BeforeClass
+    public static void loadOpenCv() {
+        assertTrue(OpenCVLoader.initDebug());
+    }
+
+    @Test
+    public void componentContour_matchesContourPath() {
+        for (int radius : RADII) {
+            // Off the pixel grid, so the disc isn't perfectly symmetric. Coordinates have 4 fractional bits.
+            Point center = new Point((SIZE / 2d + .3d) * 16d, (SIZE / 2d - .4d) * 16d);
+            Mat image = new Mat(SIZE, SIZE, CvType.CV_8UC1, new Scalar(255));
+            Imgproc.circle(image, center, radius * 16, new Scalar(0), Imgproc.FILLED, Imgproc.LINE_8, 4);
+
+            RotatedRect contour = fitMarker(image, MatProcessor.CandidateExtraction.CONTOURS);
+            RotatedRect component = fitMarker(image, MatProcessor.CandidateExtraction.COMPONENTS);
+
+            assertNotNull(contour);
+            assertNotNull(component);
+
+            double radiusDifference = (CvUtil.getDiameterFromEllipse(component) - CvUtil.getDiameterFromEllipse(contour)) / 2d;
+            double dx = component.center.x - contour.center.x, dy = component.center.y - contour.center.y;
+
+            assertEquals("Radius " + radius, 0d, radiusDifference, MAX_DEVIATION);
+            assertEquals("Center of radius " + radius, 0d, Math.sqrt(dx * dx + dy * dy), MAX_DEVIATION);
+
+            image.release();
+        }
+    }
+
+    /**
+     * @param image Binarized image with a single dark disc
+     * @param extraction Candidate extraction
+     * @return Ellipse fitted to the only candidate, or <code>null</code> if there are none or several
+     */
+    private static RotatedRect fitMarker(Mat image, MatProcessor.CandidateExtraction extraction) {
+        MatProcessor processor = new MatProcessor();
+        List<MatOfPoint> contours = new ArrayList<>();
+        RotatedRect ellipse = null;
+
+        processor.setCandidateExtraction(extraction);
+        processor.findContoursForEllipseFit(contours, image);
+
+        if (contours.size() == 1) {
+            ellipse = Imgproc.fitEllipse(processor.toFloatContour(contours.get(0)));
+        }
+
+        MatProcessor.releaseContours(contours);
+        processor.release();
+
+        return ellipse;
+    }
+
+}
@@ -0,0 +1,103 @@
+package de.jugl.nandmeasure.util;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares preprocessing in parallel tiles to preprocessing on a single thread, for a whole image and for
+ * the marker area as a submatrix of the camera frame, which is how the measurement activities use it.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MatProcessorTilingTest {
+
+    private static final int WIDTH = 640, HEIGHT = 480;
+
+    private static final int THREADS = 4;
+
+    private static final int BLUR_KERNEL_LENGTH = 5;
+
+    @BeforeClass
+    public static void loadOpenCv() {
+        assertTrue(OpenCVLoader.initDebug());
+    }
+
+    @Test
+    public void unfiltered_matchesSingleThreadExactly() {
+        for (MatProcessor.ThresholdType type : MatProcessor.ThresholdType.values()) {
+            MatProcessor.Params params = MatProcessor.Params.DEFAULTS.withBlurKernelLength(0).withThresholdType(type);
+
+            assertEquals(type + " on whole image", 0, countDifferingPixels(params, false));
+            assertEquals(type + " on submatrix", 0, countDifferingPixels(params, true));
+        }
+    }
+
+    @Test
+    public void filtered_matchesSingleThreadExactly() {
+        for (MatProcessor.FilterType filter : MatProcessor.FilterType.values()) {
+            for (MatProcessor.ThresholdType type : MatProcessor.ThresholdType.values()) {
+                MatProcessor.Params params = MatProcessor.Params.DEFAULTS.withBlurKernelLength(BLUR_KERNEL_LENGTH)
+                        .withBlurFilter(filter).withThresholdType(type);
+
+                assertEquals(filter + ", " + type + " on whole image", 0, countDifferingPixels(params, false));
+                assertEquals(filter + ", " + type + " on submatrix", 0, countDifferingPixels(params, true));
+            }
+        }
+    }
+
+    /**
+     * @param params Preprocessing parameters
+     * @param submatrix <code>true</code> to preprocess the marker area of a frame, <code>false</code> to
+     *                  preprocess a whole image of its own
+     * @return Amount of pixels which differ between the serial and the tiled result
+     */
+    private static int countDifferingPixels(MatProcessor.Params params, boolean submatrix) {
+        Mat serial = preprocess(params, 1, submatrix);
+        Mat tiled = preprocess(params, THREADS, submatrix);
+        Mat diff = new Mat();
+
+        Core.absdiff(serial, tiled, diff);
+        int differing = Core.countNonZero(diff);
+
+        serial.release();
+        tiled.release();
+        diff.release();
+
+        return differing;
+    }
+
+    /**
+     * @param params Preprocessing parameters
+     * @param threads Amount of threads
+     * @param submatrix <code>true</code> to preprocess the marker area of a frame, <code>false</code> to
+     *                  preprocess a whole image of its own
+     * @return Binarized image, as a matrix of its own
+     */
+    private static Mat preprocess(MatProcessor.Params params, int threads, boolean submatrix) {
+        Mat frame = PipelineBenchmark.createSyntheticFrame(WIDTH, HEIGHT);
+        Mat gray = frame.submat(0, HEIGHT, 0, WIDTH);
+        Mat image = submatrix ? gray.submat(PipelineBenchmark.getMarkerArea(WIDTH, HEIGHT)) : gray.clone();
+        Mat result = new Mat();
+
+        MatProcessor processor = new MatProcessor();
+        processor.setParams(params);
+        processor.setParallelism(threads);
+        processor.preprocess(image);
+        image.copyTo(result);
+
+        processor.release();
+        image.release();
+        gray.release();
+        frame.release();
+
+        return result;
+    }
+
+}
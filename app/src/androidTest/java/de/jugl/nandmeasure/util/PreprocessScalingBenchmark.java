@@ -0,0 +1,97 @@
+package de.jugl.nandmeasure.util;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures how preprocessing a near full frame region of interest scales with the amount of threads it is
+ * spread across, from one up to the amount of processors. Results are logged.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PreprocessScalingBenchmark {
+
+    private static final String TAG = "PreprocessScalingBenchmark";
+
+    private static final int WIDTH = 1920, HEIGHT = 1080;
+
+    /**
+     * Border left around the region of interest, so it is still a submatrix of the frame.
+     */
+    private static final int MARGIN = 16;
+
+    private static final int WARMUP_RUNS = 2, MEASURED_RUNS = 7;
+
+    @BeforeClass
+    public static void loadOpenCv() {
+        assertTrue(OpenCVLoader.initDebug());
+    }
+
+    @Test
+    public void preprocessTime_byThreadCount() {
+        Mat template = PipelineBenchmark.createSyntheticFrame(WIDTH, HEIGHT);
+        Mat frame = template.clone();
+        Mat serial = new Mat();
+        Mat diff = new Mat();
+        Rect roi = new Rect(MARGIN, MARGIN, WIDTH - 2 * MARGIN, HEIGHT - 2 * MARGIN);
+
+        // Copying a frame of the same size into the frame matrix keeps this view valid.
+        Mat image = frame.submat(roi);
+
+        int processors = Runtime.getRuntime().availableProcessors();
+        long serialTime = 0;
+
+        for (int threads = 1; threads <= processors; threads++) {
+            MatProcessor processor = new MatProcessor();
+            processor.setParallelism(threads);
+
+            long[] times = new long[MEASURED_RUNS];
+
+            for (int i = 0; i < WARMUP_RUNS + MEASURED_RUNS; i++) {
+                // Preprocessing works in place, so every run needs a fresh copy. Copying isn't measured.
+                template.copyTo(frame);
+
+                long start = System.nanoTime();
+                processor.preprocess(image);
+                long time = System.nanoTime() - start;
+
+                if (i >= WARMUP_RUNS) {
+                    times[i - WARMUP_RUNS] = time;
+                }
+            }
+
+            long time = PipelineBenchmark.median(times);
+
+            if (threads == 1) {
+                image.copyTo(serial);
+                serialTime = time;
+            } else {
+                Core.absdiff(serial, image, diff);
+                assertEquals(threads + " threads", 0, Core.countNonZero(diff));
+            }
+
+            Log.i(TAG, String.format(Locale.ENGLISH, "%dx%d, %d threads: %.2f ms (%.1fx)",
+                    roi.width, roi.height, threads, time / 1e6, (double) serialTime / time));
+
+            processor.release();
+        }
+
+        image.release();
+        template.release();
+        frame.release();
+        serial.release();
+        diff.release();
+    }
+
+}
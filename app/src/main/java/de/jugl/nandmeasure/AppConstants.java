@@ -19,6 +19,120 @@ public class AppConstants {
      */
     public static final String KEY_CAO_CALIBRATION_PROFILE_COUNT = "caoCalibCount";
 
+    /**
+     * Name of the preference file holding per-device camera profiles.
+     */
+    public static final String PREFS_CAMERA_PROFILE = "cameraProfile";
+
+    /**
+     * @param cameraId Camera ID
+     * @return Preference key for the build fingerprint the preview profile was measured on
+     */
+    public static String getFingerprintKeyForPreviewProfile(String cameraId) {
+        return "preview:" + cameraId + ":fingerprint";
+    }
+
+    /**
+     * @param cameraId Camera ID
+     * @return Preference key for the frame time budget the preview profile was chosen for
+     */
+    public static String getBudgetKeyForPreviewProfile(String cameraId) {
+        return "preview:" + cameraId + ":budget";
+    }
+
+    /**
+     * @param cameraId Camera ID
+     * @return Preference key for the maximum preview width the preview profile was chosen for
+     */
+    public static String getMaxWidthKeyForPreviewProfile(String cameraId) {
+        return "preview:" + cameraId + ":maxWidth";
+    }
+
+    /**
+     * @param cameraId Camera ID
+     * @return Preference key for the maximum preview height the preview profile was chosen for
+     */
+    public static String getMaxHeightKeyForPreviewProfile(String cameraId) {
+        return "preview:" + cameraId + ":maxHeight";
+    }
+
+    /**
+     * @param cameraId Camera ID
+     * @return Preference key for the preview width
+     */
+    public static String getWidthKeyForPreviewProfile(String cameraId) {
+        return "preview:" + cameraId + ":width";
+    }
+
+    /**
+     * @param cameraId Camera ID
+     * @return Preference key for the preview height
+     */
+    public static String getHeightKeyForPreviewProfile(String cameraId) {
+        return "preview:" + cameraId + ":height";
+    }
+
+    /**
+     * @param cameraId Camera ID
+     * @return Preference key for the lower bound of the preview frame rate range
+     */
+    public static String getMinFpsKeyForPreviewProfile(String cameraId) {
+        return "preview:" + cameraId + ":minFps";
+    }
+
+    /**
+     * @param cameraId Camera ID
+     * @return Preference key for the upper bound of the preview frame rate range
+     */
+    public static String getMaxFpsKeyForPreviewProfile(String cameraId) {
+        return "preview:" + cameraId + ":maxFps";
+    }
+
+    /**
+     * @param cameraId Camera ID
+     * @return Preference key for the measured processing time per frame
+     */
+    public static String getFrameTimeKeyForPreviewProfile(String cameraId) {
+        return "preview:" + cameraId + ":frameTime";
+    }
+
+    /**
+     * Preference key for the build fingerprint the marker detector engine was chosen on. Stored in
+     * {@link #PREFS_CAMERA_PROFILE}.
+     */
+    public static final String KEY_DETECTOR_FINGERPRINT = "detector:fingerprint";
+
+    /**
+     * Preference key for the name of the chosen marker detector engine.
+     */
+    public static final String KEY_DETECTOR_ENGINE = "detector:engine";
+
+    /**
+     * Preference key for the measured detection time per frame of the chosen engine.
+     */
+    public static final String KEY_DETECTOR_FRAME_TIME = "detector:frameTime";
+
+    /**
+     * Name of the preference file holding cached camera characteristics.
+     */
+    public static final String PREFS_CAMERA_INFO = "cameraInfo";
+
+    /**
+     * @param cameraKey Key the camera is cached under
+     * @return Preference key for the build fingerprint the camera characteristics were queried on
+     */
+    public static String getFingerprintKeyForCameraInfo(String cameraKey) {
+        return "info:" + cameraKey + ":fingerprint";
+    }
+
+    /**
+     * @param cameraKey Key the camera is cached under
+     * @return Preference key for the serialized camera characteristics
+     */
+    public static String getDataKeyForCameraInfo(String cameraKey) {
+        return "info:" + cameraKey + ":data";
+    }
+
     /**
      * @param id Calibration profile ID
      * @return Preference key for the marker radius in pixels
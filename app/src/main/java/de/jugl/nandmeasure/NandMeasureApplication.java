@@ -0,0 +1,91 @@
+package de.jugl.nandmeasure;
+
+import android.app.Application;
+import android.util.Log;
+
+import org.opencv.android.OpenCVLoader;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import de.jugl.nandmeasure.util.PipelineBenchmark;
+
+/**
+ * Application which loads the OpenCV native libraries once per process on a background thread, instead of
+ * every camera activity loading them on the UI thread when it resumes. Optionally, the detection pipeline is
+ * warmed up right after, so the first measurement doesn't start with a latency spike.
+ */
+public class NandMeasureApplication extends Application {
+
+    /**
+     * Debugging tag.
+     */
+    private static final String TAG = "NandMeasureApplication";
+
+    /**
+     * Loads OpenCV and warms up the pipeline. Yields <code>true</code> if OpenCV is ready to use.
+     */
+    private FutureTask<Boolean> mOpenCvInit;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        final boolean warmUp = this.getResources().getBoolean(R.bool.config_warm_up_pipeline);
+
+        this.mOpenCvInit = new FutureTask<>(new Callable<Boolean>() {
+
+            @Override
+            public Boolean call() {
+                long start = System.nanoTime();
+
+                if (!OpenCVLoader.initDebug()) {
+                    return false;
+                }
+
+                long loaded = System.nanoTime();
+
+                if (warmUp) {
+                    PipelineBenchmark.warmUp();
+                }
+
+                Log.d(TAG, String.format("OpenCV loaded in %.2f ms, warm-up took %.2f ms",
+                        (loaded - start) / 1e6, (System.nanoTime() - loaded) / 1e6));
+
+                return true;
+            }
+
+        });
+
+        new Thread(this.mOpenCvInit, "OpenCvInit").start();
+    }
+
+    /**
+     * @return Future yielding <code>true</code> once OpenCV is ready to use, <code>false</code> if it
+     * couldn't be loaded
+     */
+    public Future<Boolean> getOpenCvInit() {
+        return this.mOpenCvInit;
+    }
+
+    /**
+     * Waits for OpenCV to be loaded. Returns right away if it already is.
+     *
+     * @return <code>true</code> if OpenCV is ready to use, <code>false</code> otherwise
+     */
+    public boolean awaitOpenCv() {
+        try {
+            return this.mOpenCvInit.get();
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Interrupted while waiting for OpenCV.", e);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "OpenCV initialization failed.", e);
+        }
+
+        return false;
+    }
+
+}
@@ -12,28 +12,197 @@ import android.view.Window;
 import android.view.WindowManager;
 
 import org.opencv.android.CameraBridgeViewBase;
-import org.opencv.android.OpenCVLoader;
 import org.opencv.core.Mat;
 import org.opencv.core.Point;
+import org.opencv.core.Rect;
 import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 
+import de.jugl.nandmeasure.NandMeasureApplication;
+import de.jugl.nandmeasure.camera.CpuTimeMeter;
+import de.jugl.nandmeasure.camera.FrameRecorder;
+import de.jugl.nandmeasure.camera.FrameScheduler;
+import de.jugl.nandmeasure.camera.FrameSource;
+import de.jugl.nandmeasure.camera.PreviewProfile;
+import de.jugl.nandmeasure.detection.CircleDetector;
+import de.jugl.nandmeasure.detection.DetectorEngine;
+import de.jugl.nandmeasure.detection.DetectorProfile;
+import de.jugl.nandmeasure.detection.PyramidDetector;
+import de.jugl.nandmeasure.detection.RayCastDetector;
+import de.jugl.nandmeasure.camera.ReplayFrameSource;
 import de.jugl.nandmeasure.util.CvUtil;
+import de.jugl.nandmeasure.util.MatProcessor;
 import de.jugl.nandmeasure.R;
+import de.jugl.nandmeasure.view.AndCamera2View;
 
 public abstract class BaseCvCameraActivity extends AppCompatActivity implements CameraBridgeViewBase.CvCameraViewListener2 {
 
     private static final String TAG = "BaseCvCameraActivity";
 
+    /**
+     * Extra field for the path of a frame recording to play back instead of using the camera.
+     */
+    public static final String EXTRA_REPLAY_FILE = "replayFile";
+
+    /**
+     * Extra field to play back a frame recording at the speed it was recorded at. Otherwise frames are
+     * played back as fast as possible.
+     */
+    public static final String EXTRA_REPLAY_REALTIME = "replayRealtime";
+
+    /**
+     * Extra field for the path of a file to record all camera frames to.
+     */
+    public static final String EXTRA_RECORD_FILE = "recordFile";
+
+    /**
+     * Extra field for the time budget per frame in milliseconds the preview size and frame rate are chosen
+     * for. Defaults to {@link PreviewProfile#DEFAULT_FRAME_BUDGET}.
+     */
+    public static final String EXTRA_FRAME_BUDGET = "frameBudget";
+
+    /**
+     * Extra field to drop the cached preview and detector profiles and benchmark the detection pipeline again.
+     */
+    public static final String EXTRA_RERUN_BENCHMARK = "rerunBenchmark";
+
+    /**
+     * Extra field to turn off frame throttling while no measurement is running. On by default.
+     */
+    public static final String EXTRA_IDLE_THROTTLING = "idleThrottling";
+
+    /**
+     * Extra field to extract marker candidates from connected components instead of contours. See
+     * {@link MatProcessor.CandidateExtraction#COMPONENTS}.
+     */
+    public static final String EXTRA_COMPONENT_DETECTION = "componentDetection";
+
+    /**
+     * Extra field to turn off coarse-to-fine detection of big markers, see {@link PyramidDetector}. On by
+     * default.
+     */
+    public static final String EXTRA_PYRAMID_DETECTION = "pyramidDetection";
+
+    /**
+     * Extra field for the amount of threads large images are preprocessed on. Defaults to the amount of
+     * cores, 1 preprocesses on the frame thread only.
+     */
+    public static final String EXTRA_PREPROCESSING_THREADS = "preprocessingThreads";
+
+    /**
+     * Extra field to binarize with an adaptive threshold instead of Otsu's method, for scenes with uneven
+     * lighting. See {@link MatProcessor.ThresholdType#ADAPTIVE}.
+     */
+    public static final String EXTRA_ADAPTIVE_THRESHOLD = "adaptiveThreshold";
+
+    /**
+     * Extra field for the name of the {@link DetectorEngine} to search markers with. By default, the engine
+     * is chosen per device, see {@link DetectorProfile}.
+     */
+    public static final String EXTRA_DETECTOR_ENGINE = "detectorEngine";
+
+    /**
+     * Extra field for the amount of rays a found marker is tracked with in the following frames, see
+     * {@link RayCastDetector}. Defaults to {@link RayCastDetector#DEFAULT_RAY_COUNT}, 0 searches every frame
+     * from scratch.
+     */
+    public static final String EXTRA_RAY_COUNT = "rayCount";
+
+    /**
+     * Only every n-th frame is processed while no measurement is running.
+     */
+    private static final int IDLE_FRAME_INTERVAL = 3;
+
     /**
      * {@link CameraBridgeViewBase} bound to this activity.
      */
     private CameraBridgeViewBase mOpenCvCameraView;
 
+    /**
+     * Source of the frames handed to this activity. Either the camera view or a replayed recording.
+     */
+    private FrameSource mFrameSource;
+
+    /**
+     * Measures the CPU time spent in {@link #onCameraFrame(CameraBridgeViewBase.CvCameraViewFrame)}.
+     */
+    private CpuTimeMeter mCpuTimeMeter;
+
+    /**
+     * <code>true</code> if frames are throttled while no measurement is running, <code>false</code> otherwise.
+     */
+    private boolean mIdleThrottling;
+
+    /**
+     * <code>true</code> if frames are recorded to a file, <code>false</code> otherwise.
+     */
+    private boolean mRecording;
+
+    /**
+     * <code>true</code> if marker candidates are extracted from connected components, <code>false</code>
+     * if they are extracted from contours.
+     */
+    private boolean mComponentDetection;
+
+    /**
+     * <code>true</code> if big markers are searched in a reduced image first, <code>false</code> if the
+     * full resolution is always searched.
+     */
+    private boolean mPyramidDetection;
+
+    /**
+     * Amount of threads large images are preprocessed on.
+     */
+    private int mPreprocessingThreads;
+
+    /**
+     * <code>true</code> if images are binarized with an adaptive threshold, <code>false</code> if the
+     * activity chooses.
+     */
+    private boolean mAdaptiveThreshold;
+
+    /**
+     * Engine markers are searched with, or <code>null</code> to use the one chosen for this device.
+     */
+    private DetectorEngine mDetectorEngine;
+
+    /**
+     * Amount of rays markers are tracked with, or 0 if they aren't tracked.
+     */
+    private int mRayCount;
+
+    /**
+     * <code>true</code> if no measurement is running, <code>false</code> otherwise.
+     */
+    private boolean mIdle = true;
+
+    /**
+     * <code>true</code> between {@link #onResume()} and {@link #onPause()}, <code>false</code> otherwise.
+     */
+    private boolean mResumed;
+
+    /**
+     * Frame scheduling policy chosen by the activity for measurements, and the one used while idle.
+     */
+    private FrameScheduler mActiveFrameScheduler, mIdleFrameScheduler;
+
+    /**
+     * CPU time and frame count of {@link #mCpuTimeMeter} and the time at which the current idle
+     * phase started.
+     */
+    private long mIdleStartCpuTime, mIdleStartFrames, mIdleStartTime;
+
+    /**
+     * Totals over all completed idle phases: CPU time spent, frames processed, frames skipped and
+     * wall time in nanoseconds.
+     */
+    private long mIdleCpuTime, mIdleFrames, mIdleSkippedFrames, mIdleTime;
+
     /**
      * Left margin of debug information in the camera view in pixels.
      */
@@ -138,14 +307,62 @@ public abstract class BaseCvCameraActivity extends AppCompatActivity implements
         );
 
         this.setTheme(R.style.AppTheme_CvFullscreen);
-        this.setContentView(R.layout.activity_cv);
+
+        // Prefer the Camera2 view which doesn't need to copy every frame. Devices with legacy Camera2 support
+        // only emulate it on top of the old camera API, so they stick to the old view.
+        if (AndCamera2View.isSupported(this)) {
+            this.setContentView(R.layout.activity_cv_camera2);
+        } else {
+            this.setContentView(R.layout.activity_cv);
+        }
 
         // Start OpenCV camera view.
         this.mOpenCvCameraView = this.findViewById(R.id.cv_camera_view);
-        this.mOpenCvCameraView.setVisibility(SurfaceView.VISIBLE);
-        this.mOpenCvCameraView.setCvCameraViewListener(this);
         this.mOpenCvCameraView.setCameraPermissionGranted();
 
+        String replayFile = this.getIntent().getStringExtra(EXTRA_REPLAY_FILE);
+        String recordFile = this.getIntent().getStringExtra(EXTRA_RECORD_FILE);
+
+        // Replayed frames aren't drawn, so the camera view stays hidden in that case.
+        if (replayFile != null) {
+            Log.d(TAG, "Replaying frames from " + replayFile);
+            this.mFrameSource = new ReplayFrameSource(new File(replayFile), this.getIntent().getBooleanExtra(EXTRA_REPLAY_REALTIME, false));
+        } else {
+            this.mOpenCvCameraView.setVisibility(SurfaceView.VISIBLE);
+            this.mFrameSource = (FrameSource) this.mOpenCvCameraView;
+        }
+
+        if (this.getIntent().getBooleanExtra(EXTRA_RERUN_BENCHMARK, false)) {
+            PreviewProfile.invalidate(this);
+            DetectorProfile.invalidate(this);
+        }
+
+        this.mFrameSource.setFrameBudget(this.getIntent().getFloatExtra(EXTRA_FRAME_BUDGET, PreviewProfile.DEFAULT_FRAME_BUDGET));
+
+        this.mIdleThrottling = this.getIntent().getBooleanExtra(EXTRA_IDLE_THROTTLING, true);
+        this.mComponentDetection = this.getIntent().getBooleanExtra(EXTRA_COMPONENT_DETECTION, false);
+        this.mPyramidDetection = this.getIntent().getBooleanExtra(EXTRA_PYRAMID_DETECTION, true);
+        this.mPreprocessingThreads = this.getIntent().getIntExtra(EXTRA_PREPROCESSING_THREADS, Runtime.getRuntime().availableProcessors());
+        this.mAdaptiveThreshold = this.getIntent().getBooleanExtra(EXTRA_ADAPTIVE_THRESHOLD, false);
+
+        this.mRayCount = this.getIntent().getIntExtra(EXTRA_RAY_COUNT, RayCastDetector.DEFAULT_RAY_COUNT);
+
+        String detectorEngine = this.getIntent().getStringExtra(EXTRA_DETECTOR_ENGINE);
+
+        if (detectorEngine != null) {
+            this.mDetectorEngine = DetectorEngine.valueOf(detectorEngine);
+        }
+
+        this.mCpuTimeMeter = new CpuTimeMeter(this);
+
+        if (recordFile != null) {
+            Log.d(TAG, "Recording frames to " + recordFile);
+            this.mFrameSource.setCvCameraViewListener(new FrameRecorder(new File(recordFile), this.mCpuTimeMeter, this.mFrameSource));
+            this.mRecording = true;
+        } else {
+            this.mFrameSource.setCvCameraViewListener(this.mCpuTimeMeter);
+        }
+
         this.mDebugInfoLines = new ArrayList<>();
     }
 
@@ -190,8 +407,18 @@ public abstract class BaseCvCameraActivity extends AppCompatActivity implements
     protected void onPause() {
         super.onPause();
 
-        if (this.mOpenCvCameraView != null) {
-            this.mOpenCvCameraView.disableView();
+        this.mResumed = false;
+
+        if (this.mFrameSource != null) {
+            this.mFrameSource.disableView();
+        }
+
+        this.logIdleSavings();
+
+        if (this.mFrameSource instanceof ReplayFrameSource) {
+            ReplayFrameSource replay = (ReplayFrameSource) this.mFrameSource;
+
+            Log.d(TAG, String.format("Replayed %d frames, %.2f fps", replay.getDeliveredFrameCount(), replay.getProcessingFramesPerSecond()));
         }
     }
 
@@ -199,11 +426,49 @@ public abstract class BaseCvCameraActivity extends AppCompatActivity implements
     protected void onResume() {
         super.onResume();
 
-        if (!OpenCVLoader.initDebug()) {
+        this.mResumed = true;
+
+        final NandMeasureApplication app = (NandMeasureApplication) this.getApplication();
+
+        if (app.getOpenCvInit().isDone()) {
+            this.onOpenCvInitialized(app.awaitOpenCv());
+            return;
+        }
+
+        // OpenCV is still being loaded. Wait for it off the UI thread.
+        new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                final boolean initialized = app.awaitOpenCv();
+
+                runOnUiThread(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        // The activity might have been paused in the meantime.
+                        if (mResumed) {
+                            onOpenCvInitialized(initialized);
+                        }
+                    }
+
+                });
+            }
+
+        }, "OpenCvWait").start();
+    }
+
+    /**
+     * Starts delivering frames once OpenCV has been loaded.
+     *
+     * @param initialized <code>true</code> if OpenCV is ready to use, <code>false</code> otherwise
+     */
+    private void onOpenCvInitialized(boolean initialized) {
+        if (!initialized) {
             Log.e(TAG, "OpenCV failed to load. Exiting.");
             this.finish();
         } else {
-            this.mOpenCvCameraView.enableView();
+            this.mFrameSource.enableView();
         }
     }
 
@@ -211,8 +476,8 @@ public abstract class BaseCvCameraActivity extends AppCompatActivity implements
     protected void onDestroy() {
         super.onDestroy();
 
-        if (this.mOpenCvCameraView != null) {
-            this.mOpenCvCameraView.disableView();
+        if (this.mFrameSource != null) {
+            this.mFrameSource.disableView();
         }
     }
 
@@ -333,6 +598,53 @@ public abstract class BaseCvCameraActivity extends AppCompatActivity implements
         Imgproc.rectangle(m, this.mProgressTl, this.mProgressFgBr, CvUtil.RGB_WHITE, Imgproc.FILLED);
     }
 
+    /**
+     * Creates an image processor configured by the extras this activity was started with.
+     *
+     * @param thresholdType Threshold type to use, unless this activity was started with an adaptive threshold
+     * @return Image processor
+     */
+    protected MatProcessor createMatProcessor(MatProcessor.ThresholdType thresholdType) {
+        MatProcessor processor = new MatProcessor();
+        processor.setThresholdType(this.mAdaptiveThreshold ? MatProcessor.ThresholdType.ADAPTIVE : thresholdType);
+
+        if (this.mComponentDetection) {
+            processor.setCandidateExtraction(MatProcessor.CandidateExtraction.COMPONENTS);
+        }
+
+        // Only images with enough rows are actually split up, small selections stay on the frame thread.
+        processor.setParallelism(this.mPreprocessingThreads);
+
+        return processor;
+    }
+
+    /**
+     * Creates a marker detector configured by the extras this activity was started with. Unless an engine
+     * was passed in, the one chosen for this device is used. The engines are benchmarked in the background on
+     * first use, and contour detection is used until that has finished. Once a marker is found, it is tracked
+     * by rays unless that was turned off.
+     *
+     * @param processor Image processor whose parameters are used for the detection
+     * @param circlesOnly <code>true</code> to only consider candidates whose bounding boxes are approximately
+     *                    square, <code>false</code> otherwise
+     * @return Marker detector
+     */
+    protected CircleDetector createCircleDetector(MatProcessor processor, boolean circlesOnly) {
+        // Not kept in the field, so the benchmark result is picked up by the next detector.
+        DetectorEngine engine = this.mDetectorEngine != null ? this.mDetectorEngine : DetectorProfile.loadOrBenchmark(this).getEngine();
+        CircleDetector detector = engine.create(processor, circlesOnly);
+
+        if (!this.mPyramidDetection && detector instanceof PyramidDetector) {
+            ((PyramidDetector) detector).setMaxLevel(0);
+        }
+
+        if (this.mRayCount > 0) {
+            detector = new RayCastDetector(detector, this.mRayCount);
+        }
+
+        return detector;
+    }
+
     /**
      * Alias for <code>if (m != null) m.release();</code>.
      *
@@ -367,6 +679,135 @@ public abstract class BaseCvCameraActivity extends AppCompatActivity implements
         return mPreviewSize;
     }
 
+    /**
+     * @return Focal length of the camera in millimeters, or 0 if unknown
+     */
+    protected double getFocalLength() {
+        return this.mFrameSource.getFocalLength();
+    }
+
+    /**
+     * Sets the policy deciding which camera frames are handed to {@link #onCameraFrame(CameraBridgeViewBase.CvCameraViewFrame)}
+     * while a measurement is running. While idle, frames are throttled instead (see {@link #setIdle(boolean)}).
+     *
+     * @param scheduler Frame scheduling policy
+     */
+    protected synchronized void setFrameScheduler(FrameScheduler scheduler) {
+        this.mActiveFrameScheduler = scheduler;
+        this.applyFrameScheduler();
+    }
+
+    /**
+     * Tells the activity whether a measurement is running. While idle, only every
+     * {@value #IDLE_FRAME_INTERVAL}th frame is processed and drawn, unless throttling has been turned
+     * off. Full rate is back from the next frame on once a measurement starts. Can be called on every
+     * frame, nothing happens if the state didn't change.
+     *
+     * @param idle <code>true</code> if no measurement is running, <code>false</code> otherwise
+     */
+    protected synchronized void setIdle(boolean idle) {
+        if (this.mIdle == idle) {
+            return;
+        }
+
+        if (idle) {
+            this.startIdlePhase();
+        } else {
+            this.endIdlePhase();
+        }
+
+        this.mIdle = idle;
+        this.applyFrameScheduler();
+    }
+
+    /**
+     * Hands the frame scheduling policy matching the current state to the frame source.
+     */
+    private void applyFrameScheduler() {
+        if (this.mIdle && this.mIdleThrottling) {
+            if (this.mIdleFrameScheduler == null) {
+                this.startIdlePhase();
+            }
+
+            this.mFrameSource.setFrameScheduler(this.mIdleFrameScheduler);
+        } else if (this.mActiveFrameScheduler != null) {
+            this.mFrameSource.setFrameScheduler(this.mActiveFrameScheduler);
+        }
+    }
+
+    /**
+     * Starts accounting for an idle phase.
+     */
+    private void startIdlePhase() {
+        this.mIdleFrameScheduler = new FrameScheduler.Decimating(IDLE_FRAME_INTERVAL);
+        this.mIdleStartCpuTime = this.mCpuTimeMeter.getCpuTime();
+        this.mIdleStartFrames = this.mCpuTimeMeter.getFrameCount();
+        this.mIdleStartTime = System.nanoTime();
+    }
+
+    /**
+     * Adds the current idle phase to the totals.
+     */
+    private void endIdlePhase() {
+        if (this.mIdleFrameScheduler == null) {
+            return;
+        }
+
+        this.mIdleCpuTime += this.mCpuTimeMeter.getCpuTime() - this.mIdleStartCpuTime;
+        this.mIdleFrames += this.mCpuTimeMeter.getFrameCount() - this.mIdleStartFrames;
+        this.mIdleSkippedFrames += this.mIdleFrameScheduler.getDroppedFrameCount();
+        this.mIdleTime += System.nanoTime() - this.mIdleStartTime;
+        this.mIdleFrameScheduler = null;
+    }
+
+    /**
+     * Logs an estimate of the CPU time idle throttling saved per minute spent idle. Skipped frames are
+     * assumed to cost as much as the idle frames which were processed.
+     */
+    private synchronized void logIdleSavings() {
+        if (this.mIdle) {
+            this.endIdlePhase();
+        }
+
+        if (this.mIdleFrames != 0 && this.mIdleTime != 0) {
+            double savedCpuTime = (double) this.mIdleCpuTime / this.mIdleFrames * this.mIdleSkippedFrames;
+            double idleMinutes = this.mIdleTime / 60e9;
+
+            Log.d(TAG, String.format(Locale.ENGLISH, "Idle throttling skipped %d of %d frames, saving %.0f ms CPU time per minute",
+                    this.mIdleSkippedFrames, this.mIdleSkippedFrames + this.mIdleFrames, savedCpuTime / 1e6 / idleMinutes));
+        }
+
+        this.mIdleCpuTime = this.mIdleFrames = this.mIdleSkippedFrames = this.mIdleTime = 0;
+
+        // Keep accounting if the activity resumes idle.
+        if (this.mIdle && this.mIdleThrottling) {
+            this.startIdlePhase();
+            this.mFrameSource.setFrameScheduler(this.mIdleFrameScheduler);
+        }
+    }
+
+    /**
+     * Sets how frames are converted before they are handed to
+     * {@link #onCameraFrame(CameraBridgeViewBase.CvCameraViewFrame)}. See
+     * {@link FrameSource#setDisplayMode(FrameSource.DisplayMode)}.
+     *
+     * @param mode Display mode
+     */
+    protected void setDisplayMode(FrameSource.DisplayMode mode) {
+        this.mFrameSource.setDisplayMode(mode);
+    }
+
+    /**
+     * Publishes the region of the frame the activity currently works on. Cameras may then skip copying
+     * the rest of the frame at full resolution. See {@link FrameSource#setAcquisitionRoi(Rect)}. Ignored
+     * while recording, since the recording would otherwise contain stale pixels outside the region.
+     *
+     * @param roi Region of interest, or <code>null</code> if whole frames are needed
+     */
+    protected void setAcquisitionRoi(Rect roi) {
+        this.mFrameSource.setAcquisitionRoi(this.mRecording ? null : roi);
+    }
+
     /**
      * @return {@link CameraBridgeViewBase} bound to this activity
      */
@@ -374,6 +815,13 @@ public abstract class BaseCvCameraActivity extends AppCompatActivity implements
         return this.mOpenCvCameraView;
     }
 
+    /**
+     * @return Source of the frames handed to this activity
+     */
+    protected FrameSource getFrameSource() {
+        return this.mFrameSource;
+    }
+
     public interface CvMatTouchListener {
 
         /**
@@ -5,15 +5,15 @@ import android.os.Bundle;
 import android.util.Log;
 import android.view.MotionEvent;
 import de.jugl.nandmeasure.CalibrationProfile;
+import de.jugl.nandmeasure.detection.CircleDetector;
+import de.jugl.nandmeasure.detection.Detection;
 import de.jugl.nandmeasure.util.*;
-import de.jugl.nandmeasure.view.AndCameraView;
+import de.jugl.nandmeasure.camera.FrameScheduler;
+import de.jugl.nandmeasure.camera.FrameSource;
 import org.opencv.android.CameraBridgeViewBase;
 import org.opencv.core.*;
 import org.opencv.imgproc.Imgproc;
 
-import java.util.ArrayList;
-import java.util.List;
-
 public class CaoActivity extends BaseCvCameraActivity implements BaseCvCameraActivity.CvMatTouchListener {
 
     private static final String TAG = "CaoActivity";
@@ -63,6 +63,21 @@ public class CaoActivity extends BaseCvCameraActivity implements BaseCvCameraAct
      */
     private MatProcessor mMatProcessor;
 
+    /**
+     * Marker detector.
+     */
+    private CircleDetector mDetector;
+
+    /**
+     * Marker found in the current frame. Reused across frames.
+     */
+    private final Detection mDetection = new Detection();
+
+    /**
+     * Marker ellipse for drawing. Reused across frames.
+     */
+    private final RotatedRect mEllipse = new RotatedRect();
+
     /**
      * Current state of the activity.
      */
@@ -110,14 +125,22 @@ public class CaoActivity extends BaseCvCameraActivity implements BaseCvCameraAct
     public void onCameraViewStarted(int width, int height) {
         super.onCameraViewStarted(width, height);
 
-        this.mMatProcessor = new MatProcessor();
-        this.mMatProcessor.set(MatProcessor.PARAM_MIN_CONTOUR_AREA, 200);
+        // Samples are averaged, so we'd rather process every frame than keep latency low.
+        this.setFrameScheduler(new FrameScheduler.EveryFrame());
+
+        // The preview only shows the user where to aim. Detection works on the grayscale image anyway.
+        this.setDisplayMode(FrameSource.DisplayMode.REDUCED_COLOR);
+
+        // Marker and lighting barely change between consecutive frames of a measurement.
+        this.mMatProcessor = this.createMatProcessor(MatProcessor.ThresholdType.OTSU_TEMPORAL);
+        this.mMatProcessor.setMinContourArea(200);
+        this.mDetector = this.createCircleDetector(this.mMatProcessor, false);
 
         this.mUserSelectionHelper = new UserSelectionHelper();
 
-        // We can retrieve the focal length from the camera parameters.
+        // We can retrieve the focal length from the camera.
         // Provided in mm, needed in cm, therefore divide by 10.
-        this.mFocalLength = ((AndCameraView) this.getCameraView()).getCamera().getParameters().getFocalLength() / 10d;
+        this.mFocalLength = this.getFocalLength() / 10d;
     }
 
     @Override
@@ -126,6 +149,9 @@ public class CaoActivity extends BaseCvCameraActivity implements BaseCvCameraAct
 
         this.safelyDeallocate(this.mMatGray);
         this.safelyDeallocate(this.mMatRgba);
+
+        this.mDetector.release();
+        this.mMatProcessor.release();
     }
 
     /**
@@ -217,23 +243,19 @@ public class CaoActivity extends BaseCvCameraActivity implements BaseCvCameraAct
      */
     private void handleMeasure() {
         Mat contourArea = this.mMatGray.submat(this.mUserSelection);
-        List<MatOfPoint> contours = new ArrayList<>();
 
-        this.mMatProcessor.preprocess(contourArea);
-        this.mMatProcessor.findContoursForEllipseFit(contours, contourArea);
+        // When measuring, the marker is roughly as big as it was during calibration. Close-range markers are
+        // big enough to be found in a reduced image.
+        double expectedRadius = this.mRequest == REQUEST_MEASUREMENT ? this.mProfile.getPixelRadius() : -1d;
 
-        // Abort if no contour was found.
-        if (contours.size() == 0) {
+        // Abort if no marker was found.
+        if (!this.mDetector.detect(contourArea, expectedRadius, null, this.mDetection)) {
             this.mCurrentState = ActivityState.IDLE;
             return;
         }
 
-        MatOfPoint ellipseMat = contours.get(0);
-        MatOfPoint2f ellipseMat2f = new MatOfPoint2f(ellipseMat.toArray());
-        RotatedRect ellipse = Imgproc.fitEllipse(ellipseMat2f);
-
         // Circle radius is the same as half the ellipse's major axis.
-        double circleRadius = CvUtil.getDiameterFromEllipse(ellipse) / 2d;
+        double circleRadius = this.mDetection.getDiameter() / 2d;
         this.mMeasureSampleAccumulator.push(circleRadius);
 
         if (this.mMeasureSampleAccumulator.isFull()) {
@@ -243,6 +265,7 @@ public class CaoActivity extends BaseCvCameraActivity implements BaseCvCameraAct
 
         Point offset = new Point();
         Size size = new Size();
+        RotatedRect ellipse = this.mDetection.toRotatedRect(this.mEllipse);
 
         contourArea.locateROI(size, offset);
         CvUtil.adjustForOffset(offset, ellipse.center);
@@ -265,6 +288,12 @@ public class CaoActivity extends BaseCvCameraActivity implements BaseCvCameraAct
             case MEASURE: this.handleMeasure(); break;
         }
 
+        // Frames are throttled unless measuring. While measuring, only the selected area is needed at full resolution.
+        boolean idle = this.mCurrentState != ActivityState.MEASURE;
+
+        this.setIdle(idle);
+        this.setAcquisitionRoi(idle ? null : this.mUserSelection);
+
         return this.mMatRgba;
     }
 
@@ -310,7 +339,9 @@ public class CaoActivity extends BaseCvCameraActivity implements BaseCvCameraAct
             // Sample accumulator might contain samples from an earlier measurement.
             // Needs to be cleared.
             this.mMeasureSampleAccumulator.clear();
+            this.mDetector.reset();
             this.mCurrentState = ActivityState.MEASURE;
+            this.setIdle(false);
         }
     }
 
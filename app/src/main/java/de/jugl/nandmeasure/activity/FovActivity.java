@@ -5,14 +5,15 @@ import android.os.Bundle;
 import android.util.Log;
 import android.view.MotionEvent;
 
+import de.jugl.nandmeasure.detection.CircleDetector;
+import de.jugl.nandmeasure.detection.Detection;
 import de.jugl.nandmeasure.util.*;
+import de.jugl.nandmeasure.camera.FrameScheduler;
+import de.jugl.nandmeasure.camera.FrameSource;
 import org.opencv.android.CameraBridgeViewBase;
 import org.opencv.core.*;
 import org.opencv.imgproc.Imgproc;
 
-import java.util.ArrayList;
-import java.util.List;
-
 public class FovActivity extends BaseCvCameraActivity implements BaseCvCameraActivity.CvMatTouchListener {
 
     private static final String TAG = "FovActivity";
@@ -57,6 +58,21 @@ public class FovActivity extends BaseCvCameraActivity implements BaseCvCameraAct
      */
     private MatProcessor mMatProcessor;
 
+    /**
+     * Marker detector.
+     */
+    private CircleDetector mDetector;
+
+    /**
+     * Marker found in the current frame. Reused across frames.
+     */
+    private final Detection mDetection = new Detection();
+
+    /**
+     * Ellipse of the marker found in the current frame, in preview coordinates.
+     */
+    private final RotatedRect mEllipse = new RotatedRect();
+
     /**
      * Provided marker radius and distance to marker.
      */
@@ -109,8 +125,16 @@ public class FovActivity extends BaseCvCameraActivity implements BaseCvCameraAct
     public void onCameraViewStarted(int width, int height) {
         super.onCameraViewStarted(width, height);
 
-        this.mMatProcessor = new MatProcessor();
-        this.mMatProcessor.set(MatProcessor.PARAM_MIN_CONTOUR_AREA, 500);
+        // Samples are averaged, so we'd rather process every frame than keep latency low.
+        this.setFrameScheduler(new FrameScheduler.EveryFrame());
+
+        // The preview only shows the user where to aim. Detection works on the grayscale image anyway.
+        this.setDisplayMode(FrameSource.DisplayMode.REDUCED_COLOR);
+
+        // The marker sits still in the center area while sampling, so the threshold rarely changes.
+        this.mMatProcessor = this.createMatProcessor(MatProcessor.ThresholdType.OTSU_TEMPORAL);
+        this.mMatProcessor.setMinContourArea(500);
+        this.mDetector = this.createCircleDetector(this.mMatProcessor, true);
 
         // Marker center needs to be within display center.
         this.mMaxMarkerCenterOffset = Math.round(MAX_MARKER_CENTER_DEVIATION * Math.min(width, height));
@@ -133,6 +157,9 @@ public class FovActivity extends BaseCvCameraActivity implements BaseCvCameraAct
 
         this.safelyDeallocate(this.mMatRgba);
         this.safelyDeallocate(this.mMatGray);
+
+        this.mDetector.release();
+        this.mMatProcessor.release();
     }
 
     /**
@@ -192,58 +219,50 @@ public class FovActivity extends BaseCvCameraActivity implements BaseCvCameraAct
      * Searches for markers within the center area.
      */
     private void handleSample() {
-        // Preprocessing the grayscale image.
         Mat markerMat = this.mMatGray.submat(this.mMarkerArea);
-        List<MatOfPoint> contours = new ArrayList<>();
-
-        this.mMatProcessor.preprocess(markerMat);
-        this.mMatProcessor.findCircleContours(contours, markerMat);
-
-        // If our data series was interrupted, reset the activity.
-        if (contours.size() == 0) {
-            this.mCurrentState = ActivityState.IDLE;
-            return;
-        }
 
         Size size = new Size();
         Point offset = new Point();
 
         markerMat.locateROI(size, offset);
 
-        // Reassignable ellipse.
-        RotatedRect rect;
-
-        for (MatOfPoint mat : contours) {
-            rect = Imgproc.fitEllipse(CvUtil.toMatOfPoint2f(mat));
-            CvUtil.adjustForOffset(offset, rect.center);
+        // Search for the marker closest to the display center.
+        Point target = new Point(this.mPreviewCenter.x - offset.x, this.mPreviewCenter.y - offset.y);
+        boolean found = this.mDetector.detect(markerMat, -1d, target, this.mDetection);
 
-            // Check if the contour center is within the device center.
-            if (CvUtil.euclid(this.mPreviewCenter, rect.center) > this.mMaxMarkerCenterOffset) {
-                continue; // If not, keep searching.
-            }
+        markerMat.release();
 
-            double circleDiameter = CvUtil.getDiameterFromEllipse(rect);
-            this.mPixelRadiusSamples.push(circleDiameter / 2);
+        // If our data series was interrupted, reset the activity.
+        if (!found) {
+            this.mCurrentState = ActivityState.IDLE;
+            return;
+        }
 
-            // Finish activity if all samples were collected.
-            if (this.mPixelRadiusSamples.isFull()) {
-                this.setResultAndFinish();
-                return;
-            }
+        this.mDetection.offset(offset);
+        RotatedRect rect = this.mDetection.toRotatedRect(this.mEllipse);
 
-            // Draw the contour we found.
-            Imgproc.ellipse(this.mMatRgba, rect, CvUtil.RGB_RED, 3);
-            Imgproc.circle(this.mMatRgba, rect.center, 3, CvUtil.RGB_RED, Imgproc.FILLED);
+        // Check if the contour center is within the device center. If not, the marker was lost. Reset.
+        if (CvUtil.euclid(this.mPreviewCenter, rect.center) > this.mMaxMarkerCenterOffset) {
+            this.mCurrentState = ActivityState.IDLE;
+            return;
+        }
 
-            // Draw progress.
-            this.setProgress((float) this.mPixelRadiusSamples.getSampleCount() / this.mPixelRadiusSamples.getSampleSize());
-            this.renderProgressBar(this.mMatRgba);
+        double circleDiameter = CvUtil.getDiameterFromEllipse(rect);
+        this.mPixelRadiusSamples.push(circleDiameter / 2);
 
+        // Finish activity if all samples were collected.
+        if (this.mPixelRadiusSamples.isFull()) {
+            this.setResultAndFinish();
             return;
         }
 
-        // If we end up here, then we found no contour matching all our requirements. Reset.
-        this.mCurrentState = ActivityState.IDLE;
+        // Draw the contour we found.
+        Imgproc.ellipse(this.mMatRgba, rect, CvUtil.RGB_RED, 3);
+        Imgproc.circle(this.mMatRgba, rect.center, 3, CvUtil.RGB_RED, Imgproc.FILLED);
+
+        // Draw progress.
+        this.setProgress((float) this.mPixelRadiusSamples.getSampleCount() / this.mPixelRadiusSamples.getSampleSize());
+        this.renderProgressBar(this.mMatRgba);
     }
 
     @Override
@@ -256,6 +275,12 @@ public class FovActivity extends BaseCvCameraActivity implements BaseCvCameraAct
             case SAMPLE: this.handleSample(); break;
         }
 
+        // Frames are throttled unless sampling. While sampling, only the marker area is needed at full resolution.
+        boolean idle = this.mCurrentState != ActivityState.SAMPLE;
+
+        this.setIdle(idle);
+        this.setAcquisitionRoi(idle ? null : this.mMarkerArea);
+
         return this.mMatRgba;
     }
 
@@ -273,7 +298,9 @@ public class FovActivity extends BaseCvCameraActivity implements BaseCvCameraAct
     public void onTouchUp(MotionEvent evt, int x, int y) {
         if (this.mCurrentState == ActivityState.IDLE) {
             this.mPixelRadiusSamples.clear();
+            this.mDetector.reset();
             this.mCurrentState = ActivityState.SAMPLE;
+            this.setIdle(false);
         }
     }
 
@@ -10,14 +10,15 @@ import android.os.Bundle;
 import android.util.Log;
 import android.view.MotionEvent;
 
+import de.jugl.nandmeasure.detection.CircleDetector;
+import de.jugl.nandmeasure.detection.Detection;
 import de.jugl.nandmeasure.util.*;
+import de.jugl.nandmeasure.camera.FrameScheduler;
+import de.jugl.nandmeasure.camera.FrameSource;
 import org.opencv.android.CameraBridgeViewBase;
 import org.opencv.core.*;
 import org.opencv.imgproc.Imgproc;
 
-import java.util.ArrayList;
-import java.util.List;
-
 public class StereoscopyActivity extends BaseCvCameraActivity implements SensorEventListener, BaseCvCameraActivity.CvMatTouchListener {
 
     private static final String TAG = "StereoscopyActivity";
@@ -77,6 +78,21 @@ public class StereoscopyActivity extends BaseCvCameraActivity implements SensorE
      */
     private MatProcessor mMatProcessor;
 
+    /**
+     * Marker detector.
+     */
+    private CircleDetector mDetector;
+
+    /**
+     * Marker found in the current frame. Reused across frames.
+     */
+    private final Detection mDetection = new Detection();
+
+    /**
+     * Marker ellipse for drawing. Reused across frames.
+     */
+    private final RotatedRect mEllipse = new RotatedRect();
+
     /**
      * Current activity state.
      */
@@ -238,6 +254,8 @@ public class StereoscopyActivity extends BaseCvCameraActivity implements SensorE
             }
 
             this.mCurrentState = ActivityState.MEASURE;
+            this.mDetector.reset();
+            this.setIdle(false);
         }
     }
 
@@ -261,7 +279,16 @@ public class StereoscopyActivity extends BaseCvCameraActivity implements SensorE
     public void onCameraViewStarted(int width, int height) {
         super.onCameraViewStarted(width, height);
 
-        this.mMatProcessor = new MatProcessor();
+        // Marker positions are paired with the current device orientation, so frames need to be fresh.
+        this.setFrameScheduler(new FrameScheduler.LatestWins());
+
+        // The preview only shows the user where to aim. Detection works on the grayscale image anyway.
+        this.setDisplayMode(FrameSource.DisplayMode.REDUCED_COLOR);
+
+        // Lighting stays the same while the marker is tracked, so the threshold can be reused.
+        this.mMatProcessor = this.createMatProcessor(MatProcessor.ThresholdType.OTSU_TEMPORAL);
+        this.mDetector = this.createCircleDetector(this.mMatProcessor, true);
+
         this.mUserSelectionHelper = new UserSelectionHelper();
 
         this.mPreviewWidthHalf = width / 2;
@@ -275,6 +302,9 @@ public class StereoscopyActivity extends BaseCvCameraActivity implements SensorE
 
         this.safelyDeallocate(this.mMatRgba);
         this.safelyDeallocate(this.mMatGray);
+
+        this.mDetector.release();
+        this.mMatProcessor.release();
     }
 
     /**
@@ -375,22 +405,20 @@ public class StereoscopyActivity extends BaseCvCameraActivity implements SensorE
         Size size = new Size();
         Point offset = new Point();
 
-        List<MatOfPoint> contours = new ArrayList<>();
         Mat roi = this.mMatGray.submat(this.mUserSelection);
         roi.locateROI(size, offset);
 
-        this.mMatProcessor.preprocess(roi);
-        this.mMatProcessor.findCircleContours(contours, roi);
+        boolean found = this.mDetector.detect(roi, -1d, null, this.mDetection);
+        roi.release();
 
         // Reset if no marker was found.
-        if (contours.size() == 0) {
+        if (!found) {
             this.mCurrentState = ActivityState.IDLE;
             return;
         }
 
-        MatOfPoint contour = contours.get(0);
-        RotatedRect rect = Imgproc.fitEllipse(CvUtil.toMatOfPoint2f(contour));
-        CvUtil.adjustForOffset(offset, rect.center);
+        this.mDetection.offset(offset);
+        RotatedRect rect = this.mDetection.toRotatedRect(this.mEllipse);
 
         // First phase = right half. Second phase = left half.
         if (this.mIteration == 1) {
@@ -473,6 +501,12 @@ public class StereoscopyActivity extends BaseCvCameraActivity implements SensorE
             case MEASURE:   this.handleMeasure(); break;
         }
 
+        // Frames are throttled unless measuring. While measuring, only the selected area is needed at full resolution.
+        boolean idle = this.mCurrentState != ActivityState.MEASURE;
+
+        this.setIdle(idle);
+        this.setAcquisitionRoi(idle ? null : this.mUserSelection);
+
         return this.mMatRgba;
     }
 
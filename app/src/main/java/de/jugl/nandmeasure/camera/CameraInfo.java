@@ -0,0 +1,440 @@
+package de.jugl.nandmeasure.camera;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.hardware.Camera;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.ImageReader;
+import android.os.Build;
+import android.util.Log;
+import android.util.Range;
+import android.util.Size;
+
+import de.jugl.nandmeasure.AppConstants;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>The camera characteristics the app needs, captured once per device and camera: preview sizes, frame
+ * rate ranges, focal length and focus capabilities. Querying them from the camera service is a slow round
+ * trip, and the new camera API needs a whole series of them just to find the back camera.</p>
+ *
+ * <p>Characteristics are kept in memory and in the application preferences. A system update invalidates
+ * them. Callers read the cached copy and can have it revalidated in the background with
+ * {@link #revalidate(Context, String, Source)}, so a changed camera is picked up on the next start.</p>
+ */
+public class CameraInfo {
+
+    /**
+     * Debugging tag.
+     */
+    private static final String TAG = "CameraInfo";
+
+    /**
+     * Hardware level of cameras which aren't accessed through the new camera API.
+     */
+    public static final int HARDWARE_LEVEL_UNKNOWN = -1;
+
+    /**
+     * In-memory cache, keyed like the preferences.
+     */
+    private static final Map<String, CameraInfo> sCache = new HashMap<>();
+
+    /**
+     * Keys revalidated since the process started.
+     */
+    private static final Set<String> sRevalidated = new HashSet<>();
+
+    /**
+     * Camera ID as used by the camera API the characteristics were queried with.
+     */
+    private final String mCameraId;
+
+    /**
+     * Supported hardware level of the new camera API, or {@link #HARDWARE_LEVEL_UNKNOWN}.
+     */
+    private final int mHardwareLevel;
+
+    /**
+     * Focal length in millimeters.
+     */
+    private final float mFocalLength;
+
+    /**
+     * Minimum focus distance in diopters. 0 for fixed-focus lenses.
+     */
+    private final float mMinFocusDistance;
+
+    /**
+     * <code>true</code> if frame timestamps share their time base with the realtime clock,
+     * <code>false</code> otherwise.
+     */
+    private final boolean mRealtimeTimestamps;
+
+    /**
+     * Supported preview sizes as <code>{ width, height }</code>.
+     */
+    private final List<int[]> mPreviewSizes;
+
+    /**
+     * Supported frame rate ranges as <code>{ min, max }</code>, in the units of the camera API.
+     */
+    private final List<int[]> mFpsRanges;
+
+    /**
+     * Supported focus modes of the old camera API. Empty for the new camera API.
+     */
+    private final List<String> mFocusModes;
+
+    public CameraInfo(String cameraId, int hardwareLevel, float focalLength, float minFocusDistance, boolean realtimeTimestamps,
+                      List<int[]> previewSizes, List<int[]> fpsRanges, List<String> focusModes) {
+        this.mCameraId = cameraId;
+        this.mHardwareLevel = hardwareLevel;
+        this.mFocalLength = focalLength;
+        this.mMinFocusDistance = minFocusDistance;
+        this.mRealtimeTimestamps = realtimeTimestamps;
+        this.mPreviewSizes = Collections.unmodifiableList(previewSizes);
+        this.mFpsRanges = Collections.unmodifiableList(fpsRanges);
+        this.mFocusModes = Collections.unmodifiableList(focusModes);
+    }
+
+    /**
+     * Captures the characteristics of a camera of the old camera API.
+     *
+     * @param cameraId Camera ID
+     * @param params Camera parameters
+     * @return Camera characteristics
+     */
+    public static CameraInfo fromParameters(String cameraId, Camera.Parameters params) {
+        List<int[]> sizes = new ArrayList<>();
+        List<Camera.Size> previewSizes = params.getSupportedPreviewSizes();
+
+        if (previewSizes != null) {
+            for (Camera.Size size : previewSizes) {
+                sizes.add(new int[] { size.width, size.height });
+            }
+        }
+
+        List<int[]> fpsRanges = params.getSupportedPreviewFpsRange();
+        List<String> focusModes = params.getSupportedFocusModes();
+
+        return new CameraInfo(cameraId, HARDWARE_LEVEL_UNKNOWN, params.getFocalLength(), 0f, false, sizes,
+                fpsRanges != null ? fpsRanges : new ArrayList<int[]>(),
+                focusModes != null ? focusModes : new ArrayList<String>());
+    }
+
+    /**
+     * Captures the characteristics of a camera of the new camera API.
+     *
+     * @param cameraId Camera ID
+     * @param characteristics Camera characteristics
+     * @return Camera characteristics, or <code>null</code> if the camera has no preview support
+     */
+    public static CameraInfo fromCharacteristics(String cameraId, CameraCharacteristics characteristics) {
+        StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+
+        if (map == null) {
+            return null;
+        }
+
+        List<int[]> sizes = new ArrayList<>();
+
+        for (Size size : map.getOutputSizes(ImageReader.class)) {
+            sizes.add(new int[] { size.getWidth(), size.getHeight() });
+        }
+
+        List<int[]> fpsRanges = new ArrayList<>();
+        Range<Integer>[] ranges = characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+
+        if (ranges != null) {
+            for (Range<Integer> range : ranges) {
+                fpsRanges.add(new int[] { range.getLower(), range.getUpper() });
+            }
+        }
+
+        Integer level = characteristics.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+        float[] focalLengths = characteristics.get(CameraCharacteristics.LENS_INFO_AVAILABLE_FOCAL_LENGTHS);
+        Float minFocusDistance = characteristics.get(CameraCharacteristics.LENS_INFO_MINIMUM_FOCUS_DISTANCE);
+        Integer timestampSource = characteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+
+        return new CameraInfo(
+                cameraId,
+                level != null ? level : HARDWARE_LEVEL_UNKNOWN,
+                focalLengths != null && focalLengths.length != 0 ? focalLengths[0] : 0f,
+                minFocusDistance != null ? minFocusDistance : 0f,
+                timestampSource != null && timestampSource == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME,
+                sizes, fpsRanges, new ArrayList<String>()
+        );
+    }
+
+    /**
+     * Looks up cached characteristics, first in memory, then in the preferences.
+     *
+     * @param ctx Application context
+     * @param key Key the camera is cached under
+     * @return Cached characteristics, or <code>null</code> if there are none or if they are outdated
+     */
+    public static CameraInfo get(Context ctx, String key) {
+        synchronized (sCache) {
+            CameraInfo info = sCache.get(key);
+
+            if (info != null) {
+                return info;
+            }
+        }
+
+        SharedPreferences prefs = ctx.getSharedPreferences(AppConstants.PREFS_CAMERA_INFO, Context.MODE_PRIVATE);
+
+        if (!Build.FINGERPRINT.equals(prefs.getString(AppConstants.getFingerprintKeyForCameraInfo(key), null))) {
+            return null;
+        }
+
+        String data = prefs.getString(AppConstants.getDataKeyForCameraInfo(key), null);
+
+        if (data == null) {
+            return null;
+        }
+
+        try {
+            CameraInfo info = fromJson(new JSONObject(data));
+
+            synchronized (sCache) {
+                sCache.put(key, info);
+            }
+
+            return info;
+        } catch (JSONException e) {
+            Log.e(TAG, "Couldn't read cached camera info.", e);
+        }
+
+        return null;
+    }
+
+    /**
+     * Caches characteristics in memory and in the preferences.
+     *
+     * @param ctx Application context
+     * @param key Key to cache the camera under
+     * @param info Camera characteristics
+     */
+    public static void put(Context ctx, String key, CameraInfo info) {
+        synchronized (sCache) {
+            sCache.put(key, info);
+        }
+
+        try {
+            ctx.getSharedPreferences(AppConstants.PREFS_CAMERA_INFO, Context.MODE_PRIVATE).edit()
+                    .putString(AppConstants.getFingerprintKeyForCameraInfo(key), Build.FINGERPRINT)
+                    .putString(AppConstants.getDataKeyForCameraInfo(key), info.toJson().toString())
+                    .apply();
+        } catch (JSONException e) {
+            Log.e(TAG, "Couldn't store camera info.", e);
+        }
+    }
+
+    /**
+     * Queries the characteristics of a camera again on a background thread and updates the cache if they
+     * changed. The new characteristics take effect on the next camera start. Only the first call per key
+     * and process does anything, a camera doesn't change while the app is running.
+     *
+     * @param ctx Application context
+     * @param key Key the camera is cached under
+     * @param source Source of fresh characteristics
+     */
+    public static void revalidate(Context ctx, final String key, final Source source) {
+        synchronized (sRevalidated) {
+            if (!sRevalidated.add(key)) {
+                return;
+            }
+        }
+
+        final Context appContext = ctx.getApplicationContext();
+
+        new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                CameraInfo fresh;
+
+                try {
+                    fresh = source.query();
+                } catch (Exception e) {
+                    Log.e(TAG, "Couldn't revalidate camera info.", e);
+                    return;
+                }
+
+                CameraInfo cached = get(appContext, key);
+
+                if (fresh != null && (cached == null || !fresh.isSameAs(cached))) {
+                    Log.d(TAG, "Camera info for " + key + " changed");
+                    put(appContext, key, fresh);
+                }
+            }
+
+        }, "CameraInfoRevalidation").start();
+    }
+
+    /**
+     * @param other Other characteristics
+     * @return <code>true</code> if both describe the same camera the same way, <code>false</code> otherwise
+     */
+    public boolean isSameAs(CameraInfo other) {
+        try {
+            return this.toJson().toString().equals(other.toJson().toString());
+        } catch (JSONException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return Characteristics as JSON
+     * @throws JSONException If a value can't be represented in JSON
+     */
+    private JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+
+        json.put("cameraId", this.mCameraId);
+        json.put("hardwareLevel", this.mHardwareLevel);
+        json.put("focalLength", (double) this.mFocalLength);
+        json.put("minFocusDistance", (double) this.mMinFocusDistance);
+        json.put("realtimeTimestamps", this.mRealtimeTimestamps);
+        json.put("previewSizes", toJsonArray(this.mPreviewSizes));
+        json.put("fpsRanges", toJsonArray(this.mFpsRanges));
+        json.put("focusModes", new JSONArray(this.mFocusModes));
+
+        return json;
+    }
+
+    /**
+     * @param json Characteristics as JSON
+     * @return Characteristics
+     * @throws JSONException If the JSON is incomplete
+     */
+    private static CameraInfo fromJson(JSONObject json) throws JSONException {
+        JSONArray focusModesJson = json.getJSONArray("focusModes");
+        List<String> focusModes = new ArrayList<>(focusModesJson.length());
+
+        for (int i = 0; i < focusModesJson.length(); i++) {
+            focusModes.add(focusModesJson.getString(i));
+        }
+
+        return new CameraInfo(
+                json.getString("cameraId"),
+                json.getInt("hardwareLevel"),
+                (float) json.getDouble("focalLength"),
+                (float) json.getDouble("minFocusDistance"),
+                json.getBoolean("realtimeTimestamps"),
+                fromJsonArray(json.getJSONArray("previewSizes")),
+                fromJsonArray(json.getJSONArray("fpsRanges")),
+                focusModes
+        );
+    }
+
+    /**
+     * @param pairs Integer pairs
+     * @return Pairs as a flat JSON array
+     */
+    private static JSONArray toJsonArray(List<int[]> pairs) {
+        JSONArray array = new JSONArray();
+
+        for (int[] pair : pairs) {
+            array.put(pair[0]);
+            array.put(pair[1]);
+        }
+
+        return array;
+    }
+
+    /**
+     * @param array Flat JSON array of integer pairs
+     * @return Integer pairs
+     * @throws JSONException If the array contains something other than integers
+     */
+    private static List<int[]> fromJsonArray(JSONArray array) throws JSONException {
+        List<int[]> pairs = new ArrayList<>(array.length() / 2);
+
+        for (int i = 0; i + 1 < array.length(); i += 2) {
+            pairs.add(new int[] { array.getInt(i), array.getInt(i + 1) });
+        }
+
+        return pairs;
+    }
+
+    /**
+     * @return Camera ID as used by the camera API the characteristics were queried with
+     */
+    public String getCameraId() {
+        return this.mCameraId;
+    }
+
+    /**
+     * @return Supported hardware level of the new camera API, or {@link #HARDWARE_LEVEL_UNKNOWN}
+     */
+    public int getHardwareLevel() {
+        return this.mHardwareLevel;
+    }
+
+    /**
+     * @return Focal length in millimeters
+     */
+    public float getFocalLength() {
+        return this.mFocalLength;
+    }
+
+    /**
+     * @return Minimum focus distance in diopters. 0 for fixed-focus lenses.
+     */
+    public float getMinFocusDistance() {
+        return this.mMinFocusDistance;
+    }
+
+    /**
+     * @return <code>true</code> if frame timestamps share their time base with the realtime clock,
+     * <code>false</code> otherwise
+     */
+    public boolean hasRealtimeTimestamps() {
+        return this.mRealtimeTimestamps;
+    }
+
+    /**
+     * @return Supported preview sizes as <code>{ width, height }</code>
+     */
+    public List<int[]> getPreviewSizes() {
+        return this.mPreviewSizes;
+    }
+
+    /**
+     * @return Supported frame rate ranges as <code>{ min, max }</code>, in the units of the camera API
+     */
+    public List<int[]> getFpsRanges() {
+        return this.mFpsRanges;
+    }
+
+    /**
+     * @return Supported focus modes of the old camera API. Empty for the new camera API.
+     */
+    public List<String> getFocusModes() {
+        return this.mFocusModes;
+    }
+
+    public interface Source {
+
+        /**
+         * @return Fresh camera characteristics, or <code>null</code> if there are none
+         * @throws Exception If the characteristics couldn't be queried
+         */
+        CameraInfo query() throws Exception;
+
+    }
+
+}
@@ -0,0 +1,73 @@
+package de.jugl.nandmeasure.camera;
+
+import android.os.Debug;
+import org.opencv.android.CameraBridgeViewBase;
+import org.opencv.core.Mat;
+
+/**
+ * Listener which measures the CPU time another listener spends on each frame before passing the result
+ * on. Only the CPU time of the thread delivering frames is counted, so waiting for the camera or being
+ * preempted doesn't show up.
+ */
+public class CpuTimeMeter implements CameraBridgeViewBase.CvCameraViewListener2 {
+
+    /**
+     * Listener being measured.
+     */
+    private final CameraBridgeViewBase.CvCameraViewListener2 mListener;
+
+    /**
+     * CPU time the listener spent on frames in nanoseconds. Only written by the frame thread.
+     */
+    private volatile long mCpuTime;
+
+    /**
+     * Amount of frames the listener processed. Only written by the frame thread.
+     */
+    private volatile long mFrameCount;
+
+    /**
+     * Creates a new CPU time meter.
+     *
+     * @param listener Listener to measure
+     */
+    public CpuTimeMeter(CameraBridgeViewBase.CvCameraViewListener2 listener) {
+        this.mListener = listener;
+    }
+
+    @Override
+    public void onCameraViewStarted(int width, int height) {
+        this.mListener.onCameraViewStarted(width, height);
+    }
+
+    @Override
+    public void onCameraViewStopped() {
+        this.mListener.onCameraViewStopped();
+    }
+
+    @Override
+    public Mat onCameraFrame(CameraBridgeViewBase.CvCameraViewFrame inputFrame) {
+        long start = Debug.threadCpuTimeNanos();
+        Mat result = this.mListener.onCameraFrame(inputFrame);
+
+        this.mCpuTime += Debug.threadCpuTimeNanos() - start;
+        this.mFrameCount++;
+
+        return result;
+    }
+
+    /**
+     * @return CPU time the listener spent on frames so far in nanoseconds
+     */
+    public long getCpuTime() {
+        return this.mCpuTime;
+    }
+
+    /**
+     * @return Amount of frames the listener processed so far
+     */
+    public long getFrameCount() {
+        return this.mFrameCount;
+    }
+
+}
@@ -0,0 +1,138 @@
+package de.jugl.nandmeasure.camera;
+
+import org.opencv.android.CameraBridgeViewBase;
+import org.opencv.core.Mat;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Listener which records the grayscale image of every frame to a file before passing the frame on to
+ * another listener. Frames are recorded before the listener gets to modify them. The recording can be
+ * played back with {@link ReplayFrameSource}. Whole frames must be acquired while recording, see
+ * {@link FrameSource#setAcquisitionRoi(org.opencv.core.Rect)}.
+ */
+public class FrameRecorder implements CameraBridgeViewBase.CvCameraViewListener2 {
+
+    /**
+     * File to record to.
+     */
+    private final File mFile;
+
+    /**
+     * Listener receiving the frames after they have been recorded.
+     */
+    private final CameraBridgeViewBase.CvCameraViewListener2 mListener;
+
+    /**
+     * Source of the recorded frames.
+     */
+    private final FrameSource mSource;
+
+    /**
+     * Output stream. <code>null</code> if not recording.
+     */
+    private DataOutputStream mOut;
+
+    /**
+     * Reusable buffer for a single frame.
+     */
+    private byte[] mBuffer;
+
+    /**
+     * Error that stopped the recording, if any.
+     */
+    private volatile IOException mError;
+
+    /**
+     * Creates a new frame recorder.
+     *
+     * @param file File to record to. It is overwritten.
+     * @param listener Listener receiving the frames after they have been recorded
+     * @param source Source of the recorded frames
+     */
+    public FrameRecorder(File file, CameraBridgeViewBase.CvCameraViewListener2 listener, FrameSource source) {
+        this.mFile = file;
+        this.mListener = listener;
+        this.mSource = source;
+    }
+
+    @Override
+    public void onCameraViewStarted(int width, int height) {
+        try {
+            this.mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.mFile)));
+            this.mBuffer = new byte[width * height];
+
+            FrameRecording.writeHeader(this.mOut, new FrameRecording.Header(
+                    FrameRecording.FORMAT_GRAY, width, height, this.mSource.getFocalLength()
+            ));
+        } catch (IOException e) {
+            this.fail(e);
+        }
+
+        this.mListener.onCameraViewStarted(width, height);
+    }
+
+    @Override
+    public void onCameraViewStopped() {
+        this.close();
+        this.mListener.onCameraViewStopped();
+    }
+
+    @Override
+    public Mat onCameraFrame(CameraBridgeViewBase.CvCameraViewFrame inputFrame) {
+        if (this.mOut != null) {
+            Mat gray = inputFrame.gray();
+
+            try {
+                gray.get(0, 0, this.mBuffer);
+
+                FrameRecording.writeFrame(this.mOut, System.nanoTime(), this.mBuffer);
+            } catch (IOException e) {
+                this.fail(e);
+            }
+        }
+
+        return this.mListener.onCameraFrame(inputFrame);
+    }
+
+    /**
+     * Stops recording after an error.
+     *
+     * @param e Error that occurred
+     */
+    private void fail(IOException e) {
+        this.mError = e;
+        this.close();
+    }
+
+    /**
+     * Closes the output stream, if it is open.
+     */
+    private void close() {
+        if (this.mOut == null) {
+            return;
+        }
+
+        try {
+            this.mOut.close();
+        } catch (IOException e) {
+            if (this.mError == null) {
+                this.mError = e;
+            }
+        }
+
+        this.mOut = null;
+    }
+
+    /**
+     * @return Error that stopped the recording, or <code>null</code> if there was none
+     */
+    public IOException getError() {
+        return this.mError;
+    }
+
+}
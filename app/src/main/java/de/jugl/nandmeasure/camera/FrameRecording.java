@@ -0,0 +1,165 @@
+package de.jugl.nandmeasure.camera;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * <p>File format for recorded frame sequences, as written by {@link FrameRecorder} and read by
+ * {@link ReplayFrameSource} or {@link HeadlessReplay}. All values are stored big-endian.</p>
+ *
+ * <pre>
+ * header:  int magic, int version, int format, int width, int height, double focal length (mm)
+ * frame:   long timestamp (ns), byte[] frame data
+ * </pre>
+ *
+ * <p>Frame data is either a plain grayscale image (<code>width * height</code> bytes) or an NV21 image
+ * (<code>width * height * 3 / 2</code> bytes). Frames follow one another until the end of the file.</p>
+ */
+public class FrameRecording {
+
+    private FrameRecording() {}
+
+    /**
+     * Frames consist of a grayscale image only.
+     */
+    public static final int FORMAT_GRAY = 0;
+
+    /**
+     * Frames are NV21 images as delivered by the old camera API.
+     */
+    public static final int FORMAT_NV21 = 1;
+
+    /**
+     * Magic number at the start of every recording. Reads "NMFR".
+     */
+    private static final int MAGIC = 0x4E4D4652;
+
+    /**
+     * Current version of the file format.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * Writes the header of a recording.
+     *
+     * @param out Stream to write to
+     * @param header Header to write
+     * @throws IOException If the header couldn't be written
+     */
+    static void writeHeader(DataOutputStream out, Header header) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(header.mFormat);
+        out.writeInt(header.mWidth);
+        out.writeInt(header.mHeight);
+        out.writeDouble(header.mFocalLength);
+    }
+
+    /**
+     * Reads the header of a recording.
+     *
+     * @param in Stream to read from
+     * @return Recording header
+     * @throws IOException If the header couldn't be read or if the stream is not a recording
+     */
+    static Header readHeader(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a frame recording.");
+        }
+
+        int version = in.readInt();
+
+        if (version != VERSION) {
+            throw new IOException("Unsupported recording version: " + version);
+        }
+
+        int format = in.readInt();
+        int width = in.readInt();
+        int height = in.readInt();
+        double focalLength = in.readDouble();
+
+        if (format != FORMAT_GRAY && format != FORMAT_NV21) {
+            throw new IOException("Unknown frame format: " + format);
+        }
+
+        return new Header(format, width, height, focalLength);
+    }
+
+    /**
+     * Writes a single frame of a recording.
+     *
+     * @param out Stream to write to
+     * @param timestamp Timestamp of the frame in nanoseconds
+     * @param data Frame data
+     * @throws IOException If the frame couldn't be written
+     */
+    static void writeFrame(DataOutputStream out, long timestamp, byte[] data) throws IOException {
+        out.writeLong(timestamp);
+        out.write(data);
+    }
+
+    /**
+     * Reads the next frame of a recording.
+     *
+     * @param in Stream to read from, positioned after the header or the previous frame
+     * @param data Buffer to read the frame data into, see {@link Header#getFrameSize()}
+     * @return Timestamp of the frame in nanoseconds, or -1 if the end of the recording was reached
+     * @throws IOException If the frame couldn't be read
+     */
+    static long readFrame(DataInputStream in, byte[] data) throws IOException {
+        long timestamp;
+
+        try {
+            timestamp = in.readLong();
+        } catch (EOFException e) {
+            return -1; // End of recording.
+        }
+
+        in.readFully(data);
+
+        return timestamp;
+    }
+
+    public static class Header {
+
+        /**
+         * Frame format.
+         */
+        final int mFormat;
+
+        /**
+         * Frame dimensions.
+         */
+        final int mWidth, mHeight;
+
+        /**
+         * Focal length of the recording camera in millimeters.
+         */
+        final double mFocalLength;
+
+        public Header(int format, int width, int height, double focalLength) {
+            this.mFormat = format;
+            this.mWidth = width;
+            this.mHeight = height;
+            this.mFocalLength = focalLength;
+        }
+
+        /**
+         * @return Amount of rows of a frame matrix, including chroma rows for NV21
+         */
+        int getMatRows() {
+            return this.mFormat == FORMAT_NV21 ? this.mHeight + this.mHeight / 2 : this.mHeight;
+        }
+
+        /**
+         * @return Size of a single frame in bytes
+         */
+        int getFrameSize() {
+            return this.getMatRows() * this.mWidth;
+        }
+
+    }
+
+}
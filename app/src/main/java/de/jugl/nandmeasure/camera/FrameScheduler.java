@@ -0,0 +1,204 @@
+package de.jugl.nandmeasure.camera;
+
+/**
+ * <p>Policy deciding which acquired camera frames are handed to
+ * {@link org.opencv.android.CameraBridgeViewBase.CvCameraViewListener2#onCameraFrame} and which ones are
+ * dropped. The camera worker asks the scheduler about every frame it takes from the queue, before the
+ * frame is copied or converted, so dropping a frame costs next to nothing.</p>
+ *
+ * <p>Every scheduler keeps counters of processed, dropped and queued frames as well as the age of the
+ * frames at the time they are processed. Counters are only written by the camera worker thread and can
+ * be read from any thread.</p>
+ */
+public abstract class FrameScheduler {
+
+    /**
+     * Amount of frames handed to the listener.
+     */
+    private volatile long mProcessedFrames;
+
+    /**
+     * Amount of frames dropped by this policy.
+     */
+    private volatile long mDroppedFrames;
+
+    /**
+     * Amount of frames that were waiting behind the most recently scheduled frame.
+     */
+    private volatile int mQueuedFrames;
+
+    /**
+     * Age of the most recently processed frame in nanoseconds.
+     */
+    private volatile long mLastFrameAge;
+
+    /**
+     * Highest age of a processed frame in nanoseconds.
+     */
+    private volatile long mMaxFrameAge;
+
+    /**
+     * Sum of the ages of all processed frames in nanoseconds.
+     */
+    private volatile long mTotalFrameAge;
+
+    /**
+     * Decides whether a frame should be processed.
+     *
+     * @param frameIndex Running index of the frame since the camera was started
+     * @param backlog Amount of frames waiting behind this one
+     * @return <code>true</code> if the frame should be processed, <code>false</code> if it should be dropped
+     */
+    protected abstract boolean accept(long frameIndex, int backlog);
+
+    /**
+     * Decides whether a frame should be processed and updates the counters accordingly. Must only be called
+     * by the camera worker thread.
+     *
+     * @param frameIndex Running index of the frame since the camera was started
+     * @param backlog Amount of frames waiting behind this one
+     * @return <code>true</code> if the frame should be processed, <code>false</code> if it should be dropped
+     */
+    public final boolean schedule(long frameIndex, int backlog) {
+        this.mQueuedFrames = backlog;
+
+        if (!this.accept(frameIndex, backlog)) {
+            this.mDroppedFrames++;
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Records that a frame is about to be processed. Must only be called by the camera worker thread.
+     *
+     * @param age Time between the acquisition of the frame and now in nanoseconds
+     */
+    public final void onFrameProcessed(long age) {
+        this.mProcessedFrames++;
+        this.mLastFrameAge = age;
+        this.mTotalFrameAge += age;
+
+        if (age > this.mMaxFrameAge) {
+            this.mMaxFrameAge = age;
+        }
+    }
+
+    /**
+     * Resets all counters.
+     */
+    public void reset() {
+        this.mProcessedFrames = 0;
+        this.mDroppedFrames = 0;
+        this.mQueuedFrames = 0;
+        this.mLastFrameAge = 0;
+        this.mMaxFrameAge = 0;
+        this.mTotalFrameAge = 0;
+    }
+
+    /**
+     * @return Amount of frames handed to the listener
+     */
+    public long getProcessedFrameCount() {
+        return this.mProcessedFrames;
+    }
+
+    /**
+     * @return Amount of frames dropped by this policy
+     */
+    public long getDroppedFrameCount() {
+        return this.mDroppedFrames;
+    }
+
+    /**
+     * @return Amount of frames that were waiting behind the most recently scheduled frame
+     */
+    public int getQueuedFrameCount() {
+        return this.mQueuedFrames;
+    }
+
+    /**
+     * @return Age of the most recently processed frame in nanoseconds
+     */
+    public long getLastFrameAge() {
+        return this.mLastFrameAge;
+    }
+
+    /**
+     * @return Highest age of a processed frame in nanoseconds
+     */
+    public long getMaxFrameAge() {
+        return this.mMaxFrameAge;
+    }
+
+    /**
+     * @return Average age of processed frames in nanoseconds
+     */
+    public long getAverageFrameAge() {
+        long processed = this.mProcessedFrames;
+        return processed != 0 ? this.mTotalFrameAge / processed : 0;
+    }
+
+    /**
+     * Only processes the newest frame. Older frames that piled up while the listener was busy are dropped.
+     * This keeps latency low at the expense of the amount of samples.
+     */
+    public static class LatestWins extends FrameScheduler {
+
+        @Override
+        protected boolean accept(long frameIndex, int backlog) {
+            return backlog == 0;
+        }
+
+    }
+
+    /**
+     * Processes every frame in order. Frames only get lost if the backlog outgrows the preview buffers.
+     * This maximizes the amount of samples at the expense of latency.
+     */
+    public static class EveryFrame extends FrameScheduler {
+
+        @Override
+        protected boolean accept(long frameIndex, int backlog) {
+            return true;
+        }
+
+    }
+
+    /**
+     * Processes only every n-th frame, no matter how fast the listener is.
+     */
+    public static class Decimating extends FrameScheduler {
+
+        /**
+         * Only every n-th frame is processed.
+         */
+        private final int mInterval;
+
+        /**
+         * @param interval Only every n-th frame is processed
+         */
+        public Decimating(int interval) {
+            if (interval < 1) {
+                throw new IllegalArgumentException("Interval must be positive.");
+            }
+
+            this.mInterval = interval;
+        }
+
+        @Override
+        protected boolean accept(long frameIndex, int backlog) {
+            return frameIndex % this.mInterval == 0;
+        }
+
+        /**
+         * @return Only every n-th frame is processed
+         */
+        public int getInterval() {
+            return this.mInterval;
+        }
+
+    }
+
+}
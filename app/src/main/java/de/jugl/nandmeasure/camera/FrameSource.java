@@ -0,0 +1,96 @@
+package de.jugl.nandmeasure.camera;
+
+import org.opencv.android.CameraBridgeViewBase;
+import org.opencv.core.Rect;
+
+/**
+ * Anything that produces camera frames and hands them to a
+ * {@link CameraBridgeViewBase.CvCameraViewListener2}. The method names match the ones of
+ * {@link CameraBridgeViewBase} so that camera views can implement this interface without further ado.
+ */
+public interface FrameSource {
+
+    /**
+     * Sets the listener receiving the frames of this source.
+     *
+     * @param listener Frame listener
+     */
+    void setCvCameraViewListener(CameraBridgeViewBase.CvCameraViewListener2 listener);
+
+    /**
+     * Starts delivering frames to the listener.
+     */
+    void enableView();
+
+    /**
+     * Stops delivering frames to the listener.
+     */
+    void disableView();
+
+    /**
+     * Sets the policy deciding which frames are handed to the listener. Can be changed at any time and
+     * applies from the next frame on.
+     *
+     * @param scheduler Frame scheduling policy
+     */
+    void setFrameScheduler(FrameScheduler scheduler);
+
+    /**
+     * @return Policy deciding which frames are handed to the listener
+     */
+    FrameScheduler getFrameScheduler();
+
+    /**
+     * Sets the time the listener may spend on a single frame. Camera sources pick their preview size and
+     * frame rate so that the detection pipeline stays within this budget (see {@link PreviewProfile}).
+     * Takes effect the next time the source is started.
+     *
+     * @param millis Time budget per frame in milliseconds
+     */
+    void setFrameBudget(float millis);
+
+    /**
+     * Restricts full-resolution acquisition to a region of interest. Sources which have to copy frames may
+     * then copy only the grayscale pixels inside the region plus a reduced preview for display. Outside the
+     * region, the contents of {@link CameraBridgeViewBase.CvCameraViewFrame#gray()} are undefined and
+     * {@link CameraBridgeViewBase.CvCameraViewFrame#rgba()} may be a grayscale image of lower quality.
+     * Sources which don't copy frames anyway ignore the region. Applies from the next frame on.
+     *
+     * @param roi Region of interest in frame coordinates, or <code>null</code> to acquire whole frames
+     */
+    void setAcquisitionRoi(Rect roi);
+
+    /**
+     * Sets how {@link CameraBridgeViewBase.CvCameraViewFrame#rgba()} is produced. Overlays are drawn onto
+     * the result in every mode. Applies from the next frame on.
+     *
+     * @param mode Display mode
+     */
+    void setDisplayMode(DisplayMode mode);
+
+    /**
+     * @return Focal length of the camera in millimeters, or 0 if unknown
+     */
+    double getFocalLength();
+
+    enum DisplayMode {
+
+        /**
+         * Full resolution color conversion.
+         */
+        COLOR,
+
+        /**
+         * Color conversion at half resolution, scaled up for display. Sources which can't do this cheaply
+         * fall back to {@link #COLOR}.
+         */
+        REDUCED_COLOR,
+
+        /**
+         * No color conversion. The grayscale image is shown.
+         */
+        GRAY
+
+    }
+
+}
@@ -0,0 +1,142 @@
+package de.jugl.nandmeasure.camera;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import de.jugl.nandmeasure.detection.CircleDetector;
+import de.jugl.nandmeasure.detection.Detection;
+
+/**
+ * <p>Plays back a recorded frame sequence (see {@link FrameRecording}) straight into a {@link CircleDetector},
+ * as fast as the detector can handle it. No camera view, listener or activity is involved, only OpenCV core
+ * and imgproc, so this also runs on a desktop JVM with a desktop build of OpenCV loaded.</p>
+ *
+ * <p>Frames are searched the way the measurement activities search them: the selected area of the
+ * grayscale image is handed to the detector as a submatrix, and the detector keeps what it learned from
+ * one frame for the next.</p>
+ */
+public class HeadlessReplay {
+
+    /**
+     * Recording to play back.
+     */
+    private final File mFile;
+
+    /**
+     * @param file Recording to play back
+     */
+    public HeadlessReplay(File file) {
+        this.mFile = file;
+    }
+
+    /**
+     * Plays back the whole recording.
+     *
+     * @param detector Marker detector. Its state is reset before and after playback.
+     * @param roi Area of the frames to search for the marker, or <code>null</code> to search whole frames
+     * @return Frame count, detection count and processing time of the playback
+     * @throws IOException If the recording couldn't be read
+     */
+    public Result run(CircleDetector detector, Rect roi) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.mFile)));
+        Mat raw = null, gray = null;
+        Result result = new Result();
+
+        detector.reset();
+
+        try {
+            FrameRecording.Header header = FrameRecording.readHeader(in);
+            Rect area = roi != null ? roi : new Rect(0, 0, header.mWidth, header.mHeight);
+            Detection detection = new Detection();
+            byte[] data = new byte[header.getFrameSize()];
+
+            raw = new Mat(header.getMatRows(), header.mWidth, CvType.CV_8UC1);
+            gray = raw.submat(0, header.mHeight, 0, header.mWidth);
+
+            while (FrameRecording.readFrame(in, data) != -1) {
+                // Loading the frame stands in for the camera delivering it and isn't measured.
+                raw.put(0, 0, data);
+
+                long start = System.nanoTime();
+                Mat areaMat = gray.submat(area);
+
+                if (detector.detect(areaMat, -1d, null, detection)) {
+                    result.mDetectionCount++;
+                }
+
+                areaMat.release();
+
+                result.mProcessingTime += System.nanoTime() - start;
+                result.mFrameCount++;
+            }
+        } finally {
+            in.close();
+            detector.reset();
+
+            if (gray != null) {
+                gray.release();
+                raw.release();
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Outcome of a playback.
+     */
+    public static class Result {
+
+        /**
+         * Amount of frames played back.
+         */
+        private long mFrameCount;
+
+        /**
+         * Amount of frames the marker was found in.
+         */
+        private long mDetectionCount;
+
+        /**
+         * Time the detector spent on the frames, in nanoseconds.
+         */
+        private long mProcessingTime;
+
+        /**
+         * @return Amount of frames played back
+         */
+        public long getFrameCount() {
+            return this.mFrameCount;
+        }
+
+        /**
+         * @return Amount of frames the marker was found in
+         */
+        public long getDetectionCount() {
+            return this.mDetectionCount;
+        }
+
+        /**
+         * @return Time the detector spent on the frames, in nanoseconds
+         */
+        public long getProcessingTime() {
+            return this.mProcessingTime;
+        }
+
+        /**
+         * @return Frames per second the detector processed, not counting the time spent reading the recording
+         */
+        public double getFramesPerSecond() {
+            return this.mProcessingTime != 0 ? this.mFrameCount * 1e9 / this.mProcessingTime : 0d;
+        }
+
+    }
+
+}
@@ -0,0 +1,377 @@
+package de.jugl.nandmeasure.camera;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.Log;
+
+import de.jugl.nandmeasure.AppConstants;
+import de.jugl.nandmeasure.util.PipelineBenchmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>Preview size and frame rate range chosen for a camera so that the detection pipeline meets a given
+ * time budget per frame. The choice is made by benchmarking the pipeline on synthetic frames of the
+ * supported preview sizes, which takes a moment, so it runs in the background and is cached per camera in the
+ * application preferences. Until it is done, the camera runs at the largest size fitting the view. The cache is
+ * invalidated by system updates and changes of the budget or the view size, or on demand with
+ * {@link #invalidate(Context)}.</p>
+ */
+public class PreviewProfile {
+
+    private static final String TAG = "PreviewProfile";
+
+    /**
+     * Default time budget per frame in milliseconds. Enough for 30 frames per second.
+     */
+    public static final float DEFAULT_FRAME_BUDGET = 33f;
+
+    /**
+     * Prefix of all preference keys of preview profiles.
+     */
+    private static final String KEY_PREFIX = "preview:";
+
+    /**
+     * Cameras currently being benchmarked in the background.
+     */
+    private static final Set<String> sBenchmarksRunning = new HashSet<>();
+
+    /**
+     * Preview size.
+     */
+    private final int mWidth, mHeight;
+
+    /**
+     * Preview frame rate range in frames per second.
+     */
+    private final int mMinFps, mMaxFps;
+
+    /**
+     * Measured processing time per frame in nanoseconds.
+     */
+    private final long mFrameTime;
+
+    public PreviewProfile(int width, int height, int minFps, int maxFps, long frameTime) {
+        this.mWidth = width;
+        this.mHeight = height;
+        this.mMinFps = minFps;
+        this.mMaxFps = maxFps;
+        this.mFrameTime = frameTime;
+    }
+
+    /**
+     * Loads the cached profile of a camera. The profile is only used if it was chosen for the same budget and
+     * view size, and if the camera still supports its preview size and frame rate range.
+     *
+     * @param ctx Application context
+     * @param cameraId Camera ID
+     * @param sizes Supported preview sizes as <code>{ width, height }</code>
+     * @param fpsRanges Supported frame rate ranges as <code>{ min, max }</code> in frames per second
+     * @param maxWidth Maximum preview width to consider
+     * @param maxHeight Maximum preview height to consider
+     * @param budget Time budget per frame in milliseconds
+     * @return Cached profile, or <code>null</code> if there is none or if it is outdated
+     */
+    public static PreviewProfile load(Context ctx, String cameraId, List<int[]> sizes, List<int[]> fpsRanges,
+                                      int maxWidth, int maxHeight, float budget) {
+        SharedPreferences prefs = ctx.getSharedPreferences(AppConstants.PREFS_CAMERA_PROFILE, Context.MODE_PRIVATE);
+
+        if (!Build.FINGERPRINT.equals(prefs.getString(AppConstants.getFingerprintKeyForPreviewProfile(cameraId), null)) ||
+            prefs.getFloat(AppConstants.getBudgetKeyForPreviewProfile(cameraId), -1f) != budget ||
+            prefs.getInt(AppConstants.getMaxWidthKeyForPreviewProfile(cameraId), -1) != maxWidth ||
+            prefs.getInt(AppConstants.getMaxHeightKeyForPreviewProfile(cameraId), -1) != maxHeight) {
+
+            return null;
+        }
+
+        PreviewProfile profile = new PreviewProfile(
+                prefs.getInt(AppConstants.getWidthKeyForPreviewProfile(cameraId), 0),
+                prefs.getInt(AppConstants.getHeightKeyForPreviewProfile(cameraId), 0),
+                prefs.getInt(AppConstants.getMinFpsKeyForPreviewProfile(cameraId), 0),
+                prefs.getInt(AppConstants.getMaxFpsKeyForPreviewProfile(cameraId), 0),
+                prefs.getLong(AppConstants.getFrameTimeKeyForPreviewProfile(cameraId), 0)
+        );
+
+        return profile.isSupported(sizes, fpsRanges) ? profile : null;
+    }
+
+    /**
+     * @param sizes Supported preview sizes as <code>{ width, height }</code>
+     * @param fpsRanges Supported frame rate ranges as <code>{ min, max }</code> in frames per second
+     * @return <code>true</code> if the preview size and the frame rate range of this profile are among the
+     * supported ones, <code>false</code> otherwise. A profile without frame rate range leaves the range alone.
+     */
+    boolean isSupported(List<int[]> sizes, List<int[]> fpsRanges) {
+        boolean sizeSupported = false, fpsSupported = this.mMaxFps == 0;
+
+        for (int[] size : sizes) {
+            sizeSupported |= size[0] == this.mWidth && size[1] == this.mHeight;
+        }
+
+        for (int[] range : fpsRanges) {
+            fpsSupported |= range[0] == this.mMinFps && range[1] == this.mMaxFps;
+        }
+
+        return sizeSupported && fpsSupported;
+    }
+
+    /**
+     * Stores this profile as the cached profile of a camera.
+     *
+     * @param ctx Application context
+     * @param cameraId Camera ID
+     * @param maxWidth Maximum preview width this profile was chosen for
+     * @param maxHeight Maximum preview height this profile was chosen for
+     * @param budget Time budget per frame in milliseconds this profile was chosen for
+     */
+    public void save(Context ctx, String cameraId, int maxWidth, int maxHeight, float budget) {
+        ctx.getSharedPreferences(AppConstants.PREFS_CAMERA_PROFILE, Context.MODE_PRIVATE).edit()
+                .putString(AppConstants.getFingerprintKeyForPreviewProfile(cameraId), Build.FINGERPRINT)
+                .putFloat(AppConstants.getBudgetKeyForPreviewProfile(cameraId), budget)
+                .putInt(AppConstants.getMaxWidthKeyForPreviewProfile(cameraId), maxWidth)
+                .putInt(AppConstants.getMaxHeightKeyForPreviewProfile(cameraId), maxHeight)
+                .putInt(AppConstants.getWidthKeyForPreviewProfile(cameraId), this.mWidth)
+                .putInt(AppConstants.getHeightKeyForPreviewProfile(cameraId), this.mHeight)
+                .putInt(AppConstants.getMinFpsKeyForPreviewProfile(cameraId), this.mMinFps)
+                .putInt(AppConstants.getMaxFpsKeyForPreviewProfile(cameraId), this.mMaxFps)
+                .putLong(AppConstants.getFrameTimeKeyForPreviewProfile(cameraId), this.mFrameTime)
+                .apply();
+    }
+
+    /**
+     * Drops all cached preview profiles, so that the benchmark runs again on the next camera start. Other
+     * profiles in the same preference file are left alone.
+     *
+     * @param ctx Application context
+     */
+    public static void invalidate(Context ctx) {
+        SharedPreferences prefs = ctx.getSharedPreferences(AppConstants.PREFS_CAMERA_PROFILE, Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = prefs.edit();
+
+        for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+            if (entry.getKey().startsWith(KEY_PREFIX)) {
+                editor.remove(entry.getKey());
+            }
+        }
+
+        editor.apply();
+    }
+
+    /**
+     * Loads the cached profile of a camera. If there is none, the benchmark is started in the background and
+     * its result cached for the next camera start, while this one uses the largest size fitting the view.
+     * Never blocks on the benchmark, so it is safe to call while the UI thread waits for the camera.
+     *
+     * @param ctx Application context
+     * @param cameraId Camera ID
+     * @param sizes Supported preview sizes as <code>{ width, height }</code>
+     * @param fpsRanges Supported frame rate ranges as <code>{ min, max }</code> in frames per second
+     * @param maxWidth Maximum preview width to consider. Must be one of the supported sizes.
+     * @param maxHeight Maximum preview height to consider
+     * @param budget Time budget per frame in milliseconds
+     * @return Preview profile
+     */
+    public static PreviewProfile loadOrBenchmark(Context ctx, String cameraId, List<int[]> sizes, List<int[]> fpsRanges,
+                                                 int maxWidth, int maxHeight, float budget) {
+        PreviewProfile profile = load(ctx, cameraId, sizes, fpsRanges, maxWidth, maxHeight, budget);
+
+        if (profile == null) {
+            benchmarkInBackground(ctx.getApplicationContext(), cameraId, new ArrayList<>(sizes), new ArrayList<>(fpsRanges),
+                    maxWidth, maxHeight, budget);
+
+            // Nothing measured yet, so the frame rate can't be matched to the processing rate either.
+            int[] fpsRange = chooseFpsRange(fpsRanges, Double.MAX_VALUE);
+            profile = new PreviewProfile(maxWidth, maxHeight, fpsRange[0], fpsRange[1], 0);
+        }
+
+        Log.d(TAG, String.format("Preview profile: %dx%d @ %d-%d fps, %.1f ms/frame",
+                profile.mWidth, profile.mHeight, profile.mMinFps, profile.mMaxFps, profile.mFrameTime / 1e6));
+
+        return profile;
+    }
+
+    /**
+     * Runs the benchmark for a camera on a thread of its own and caches the result. Does nothing if the
+     * camera is already being benchmarked.
+     *
+     * @param ctx Application context
+     * @param cameraId Camera ID
+     * @param sizes Supported preview sizes as <code>{ width, height }</code>
+     * @param fpsRanges Supported frame rate ranges as <code>{ min, max }</code> in frames per second
+     * @param maxWidth Maximum preview width to consider
+     * @param maxHeight Maximum preview height to consider
+     * @param budget Time budget per frame in milliseconds
+     */
+    private static void benchmarkInBackground(final Context ctx, final String cameraId, final List<int[]> sizes,
+                                              final List<int[]> fpsRanges, final int maxWidth, final int maxHeight,
+                                              final float budget) {
+        synchronized (sBenchmarksRunning) {
+            if (!sBenchmarksRunning.add(cameraId)) {
+                return;
+            }
+        }
+
+        Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    benchmark(sizes, fpsRanges, maxWidth, maxHeight, budget).save(ctx, cameraId, maxWidth, maxHeight, budget);
+                } finally {
+                    synchronized (sBenchmarksRunning) {
+                        sBenchmarksRunning.remove(cameraId);
+                    }
+                }
+            }
+
+        }, "PreviewBenchmark");
+
+        // Frames of the running preview come first.
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Finds the largest preview size for which the detection pipeline stays within the time budget and
+     * the frame rate range that fits the resulting processing rate best. Processing time grows with the
+     * frame size, so a binary search over the sizes ordered by area is enough.
+     *
+     * @param sizes Supported preview sizes as <code>{ width, height }</code>
+     * @param fpsRanges Supported frame rate ranges as <code>{ min, max }</code> in frames per second
+     * @param maxWidth Maximum preview width to consider
+     * @param maxHeight Maximum preview height to consider
+     * @param budget Time budget per frame in milliseconds
+     * @return Preview profile
+     */
+    public static PreviewProfile benchmark(List<int[]> sizes, List<int[]> fpsRanges, int maxWidth, int maxHeight, float budget) {
+        List<int[]> candidates = new ArrayList<>();
+
+        for (int[] size : sizes) {
+            if (size[0] <= maxWidth && size[1] <= maxHeight) {
+                candidates.add(size);
+            }
+        }
+
+        // Fall back to everything if the view is smaller than the smallest preview size.
+        if (candidates.isEmpty()) {
+            candidates.addAll(sizes);
+        }
+
+        Collections.sort(candidates, new Comparator<int[]>() {
+
+            @Override
+            public int compare(int[] a, int[] b) {
+                return Integer.compare(a[0] * a[1], b[0] * b[1]);
+            }
+
+        });
+
+        long budgetNanos = (long) (budget * 1e6);
+        int lo = 0, hi = candidates.size() - 1, best = 0;
+        long bestTime = -1;
+
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int[] size = candidates.get(mid);
+            long time = PipelineBenchmark.measureFrameTime(size[0], size[1]);
+
+            Log.d(TAG, String.format("Benchmark %dx%d: %.1f ms/frame", size[0], size[1], time / 1e6));
+
+            if (time <= budgetNanos) {
+                best = mid;
+                bestTime = time;
+                lo = mid + 1;
+            } else {
+                // If nothing fits, we end up with the smallest size and its time.
+                if (mid == 0) {
+                    bestTime = time;
+                }
+
+                hi = mid - 1;
+            }
+        }
+
+        int[] size = candidates.get(best);
+        int[] fpsRange = chooseFpsRange(fpsRanges, bestTime > 0 ? 1e9 / bestTime : Double.MAX_VALUE);
+
+        return new PreviewProfile(size[0], size[1], fpsRange[0], fpsRange[1], bestTime);
+    }
+
+    /**
+     * Picks the frame rate range whose upper bound is closest to, but not below, the rate at which frames
+     * can be processed. Delivering frames faster than that only wastes power. Among equal upper bounds the
+     * one with the higher lower bound wins, which keeps the frame rate steady.
+     *
+     * @param fpsRanges Supported frame rate ranges as <code>{ min, max }</code> in frames per second
+     * @param processingFps Rate at which frames can be processed
+     * @return Chosen frame rate range
+     */
+    static int[] chooseFpsRange(List<int[]> fpsRanges, double processingFps) {
+        int[] best = null, fastest = null;
+
+        for (int[] range : fpsRanges) {
+            if (fastest == null || range[1] > fastest[1]) {
+                fastest = range;
+            }
+
+            if (range[1] < processingFps) {
+                continue;
+            }
+
+            if (best == null || range[1] < best[1] || (range[1] == best[1] && range[0] > best[0])) {
+                best = range;
+            }
+        }
+
+        if (best != null) {
+            return best;
+        } else if (fastest != null) {
+            return fastest;
+        }
+
+        return new int[] { 0, 0 };
+    }
+
+    /**
+     * @return Preview width
+     */
+    public int getWidth() {
+        return this.mWidth;
+    }
+
+    /**
+     * @return Preview height
+     */
+    public int getHeight() {
+        return this.mHeight;
+    }
+
+    /**
+     * @return Lower bound of the preview frame rate range in frames per second
+     */
+    public int getMinFps() {
+        return this.mMinFps;
+    }
+
+    /**
+     * @return Upper bound of the preview frame rate range in frames per second
+     */
+    public int getMaxFps() {
+        return this.mMaxFps;
+    }
+
+    /**
+     * @return Measured processing time per frame in nanoseconds
+     */
+    public long getFrameTime() {
+        return this.mFrameTime;
+    }
+
+}
@@ -0,0 +1,422 @@
+package de.jugl.nandmeasure.camera;
+
+import org.opencv.android.CameraBridgeViewBase;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * <p>Frame source playing back a recorded frame sequence (see {@link FrameRecording}) on a thread of its
+ * own. Frames are either delivered at the speed they were recorded at, or as fast as the listener can
+ * handle them.</p>
+ *
+ * <p>Frames are handed to the same listener interface the camera views use, so an activity can be driven by a
+ * recording instead of the camera (see {@link de.jugl.nandmeasure.activity.BaseCvCameraActivity#EXTRA_REPLAY_FILE}).
+ * Since that interface is part of the OpenCV Android bindings, playback through an activity still needs a
+ * device or an emulator, but it makes throughput measurements reproducible from one run to the next. To
+ * run the detection pipeline on a recording without either, see {@link HeadlessReplay}.</p>
+ */
+public class ReplayFrameSource implements FrameSource {
+
+    /**
+     * Recording to play back.
+     */
+    private final File mFile;
+
+    /**
+     * <code>true</code> if frames are delivered at the speed they were recorded at, <code>false</code> if they
+     * are delivered as fast as possible.
+     */
+    private final boolean mRealtime;
+
+    /**
+     * Listener receiving the frames.
+     */
+    private volatile CameraBridgeViewBase.CvCameraViewListener2 mListener;
+
+    /**
+     * Policy deciding which frames are handed to the listener.
+     */
+    private volatile FrameScheduler mFrameScheduler = new FrameScheduler.EveryFrame();
+
+    /**
+     * How frames are converted for display.
+     */
+    private volatile DisplayMode mDisplayMode = DisplayMode.COLOR;
+
+    /**
+     * Playback thread.
+     */
+    private Thread mThread;
+
+    /**
+     * <code>true</code> if the playback thread needs to be stopped, <code>false</code> otherwise.
+     */
+    private volatile boolean mStopThread;
+
+    /**
+     * Focal length stored in the recording, in millimeters.
+     */
+    private volatile double mFocalLength;
+
+    /**
+     * Amount of frames handed to the listener during the last playback.
+     */
+    private volatile long mDeliveredFrames;
+
+    /**
+     * Duration of the last playback in nanoseconds.
+     */
+    private volatile long mElapsedTime;
+
+    /**
+     * Time the listener spent processing frames during the last playback, in nanoseconds.
+     */
+    private volatile long mProcessingTime;
+
+    /**
+     * Error that stopped the last playback, if any.
+     */
+    private volatile IOException mError;
+
+    /**
+     * Creates a new replay source.
+     *
+     * @param file Recording to play back
+     * @param realtime <code>true</code> if frames should be delivered at the speed they were recorded at,
+     *                 <code>false</code> if they should be delivered as fast as possible
+     */
+    public ReplayFrameSource(File file, boolean realtime) {
+        this.mFile = file;
+        this.mRealtime = realtime;
+    }
+
+    @Override
+    public void setCvCameraViewListener(CameraBridgeViewBase.CvCameraViewListener2 listener) {
+        this.mListener = listener;
+    }
+
+    @Override
+    public synchronized void enableView() {
+        if (this.mThread != null) {
+            return;
+        }
+
+        this.mStopThread = false;
+
+        this.mThread = new Thread(new Player(), "ReplayFrameSource");
+        this.mThread.start();
+    }
+
+    @Override
+    public synchronized void disableView() {
+        if (this.mThread == null) {
+            return;
+        }
+
+        this.mStopThread = true;
+        this.mThread.interrupt();
+
+        try {
+            this.mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            this.mThread = null;
+        }
+    }
+
+    /**
+     * Waits for the playback to reach the end of the recording.
+     *
+     * @throws InterruptedException If the calling thread is interrupted while waiting
+     */
+    public void awaitCompletion() throws InterruptedException {
+        Thread thread;
+
+        synchronized (this) {
+            thread = this.mThread;
+        }
+
+        if (thread != null) {
+            thread.join();
+        }
+    }
+
+    @Override
+    public void setFrameScheduler(FrameScheduler scheduler) {
+        this.mFrameScheduler = scheduler;
+    }
+
+    @Override
+    public FrameScheduler getFrameScheduler() {
+        return this.mFrameScheduler;
+    }
+
+    @Override
+    public void setFrameBudget(float millis) {
+        // The recording dictates frame size and rate.
+    }
+
+    @Override
+    public void setAcquisitionRoi(Rect roi) {
+        // Frames are read into memory in one go, there's nothing to save here.
+    }
+
+    /**
+     * {@inheritDoc} {@link DisplayMode#REDUCED_COLOR} isn't supported and falls back to full color.
+     */
+    @Override
+    public void setDisplayMode(DisplayMode mode) {
+        this.mDisplayMode = mode;
+    }
+
+    @Override
+    public double getFocalLength() {
+        return this.mFocalLength;
+    }
+
+    /**
+     * @return Amount of frames handed to the listener during the last playback
+     */
+    public long getDeliveredFrameCount() {
+        return this.mDeliveredFrames;
+    }
+
+    /**
+     * @return Duration of the last playback in nanoseconds
+     */
+    public long getElapsedTime() {
+        return this.mElapsedTime;
+    }
+
+    /**
+     * @return Time the listener spent processing frames during the last playback, in nanoseconds
+     */
+    public long getProcessingTime() {
+        return this.mProcessingTime;
+    }
+
+    /**
+     * @return Frames per second the listener processed during the last playback, not counting the time
+     * spent reading the recording or waiting for the next frame to be due
+     */
+    public double getProcessingFramesPerSecond() {
+        long processingTime = this.mProcessingTime;
+        return processingTime != 0 ? this.mDeliveredFrames * 1e9 / processingTime : 0d;
+    }
+
+    /**
+     * @return Error that stopped the last playback, or <code>null</code> if there was none
+     */
+    public IOException getError() {
+        return this.mError;
+    }
+
+    private static class ReplayFrame implements CameraBridgeViewBase.CvCameraViewFrame {
+
+        /**
+         * Recording header.
+         */
+        private final FrameRecording.Header mHeader;
+
+        /**
+         * Raw frame data and RGBA matrix.
+         */
+        private final Mat mRaw, mRgba;
+
+        /**
+         * Grayscale part of {@link #mRaw}.
+         */
+        private final Mat mGray;
+
+        /**
+         * <code>true</code> if only the grayscale image is shown, <code>false</code> otherwise.
+         */
+        private boolean mGrayDisplay;
+
+        /**
+         * <code>true</code> if {@link #mRgba} already holds the current frame, <code>false</code> otherwise.
+         */
+        private boolean mRgbaValid;
+
+        ReplayFrame(FrameRecording.Header header) {
+            this.mHeader = header;
+            this.mRaw = new Mat(header.getMatRows(), header.mWidth, CvType.CV_8UC1);
+            this.mGray = this.mRaw.submat(0, header.mHeight, 0, header.mWidth);
+            this.mRgba = new Mat();
+        }
+
+        /**
+         * Loads new frame data.
+         *
+         * @param data Frame data
+         * @param mode Display mode for this frame
+         */
+        void put(byte[] data, DisplayMode mode) {
+            this.mRaw.put(0, 0, data);
+            this.mGrayDisplay = mode == DisplayMode.GRAY;
+            this.mRgbaValid = false;
+        }
+
+        @Override
+        public Mat gray() {
+            return this.mGray;
+        }
+
+        @Override
+        public Mat rgba() {
+            if (this.mRgbaValid) {
+                return this.mRgba;
+            }
+
+            this.mRgbaValid = true;
+
+            if (this.mHeader.mFormat == FrameRecording.FORMAT_NV21 && !this.mGrayDisplay) {
+                Imgproc.cvtColor(this.mRaw, this.mRgba, Imgproc.COLOR_YUV2RGBA_NV21, 4);
+            } else {
+                Imgproc.cvtColor(this.mGray, this.mRgba, Imgproc.COLOR_GRAY2RGBA, 4);
+            }
+
+            return this.mRgba;
+        }
+
+        void release() {
+            this.mGray.release();
+            this.mRaw.release();
+            this.mRgba.release();
+        }
+
+    }
+
+    private class Player implements Runnable {
+
+        @Override
+        public void run() {
+            mError = null;
+            mDeliveredFrames = 0;
+            mProcessingTime = 0;
+            mElapsedTime = 0;
+
+            CameraBridgeViewBase.CvCameraViewListener2 listener = mListener;
+            DataInputStream in = null;
+            ReplayFrame frame = null;
+
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+
+                FrameRecording.Header header = FrameRecording.readHeader(in);
+                mFocalLength = header.mFocalLength;
+
+                byte[] data = new byte[header.getFrameSize()];
+                frame = new ReplayFrame(header);
+
+                if (listener != null) {
+                    listener.onCameraViewStarted(header.mWidth, header.mHeight);
+                }
+
+                this.play(in, data, frame, listener);
+
+                if (listener != null) {
+                    listener.onCameraViewStopped();
+                }
+            } catch (IOException e) {
+                mError = e;
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        // Nothing left to do with the stream.
+                    }
+                }
+
+                if (frame != null) {
+                    frame.release();
+                }
+            }
+        }
+
+        /**
+         * Reads and delivers frames until the end of the recording is reached or playback is stopped.
+         *
+         * @param in Recording stream, positioned after the header
+         * @param data Buffer for a single frame
+         * @param frame Reusable frame
+         * @param listener Listener receiving the frames
+         * @throws IOException If the recording couldn't be read
+         */
+        private void play(DataInputStream in, byte[] data, ReplayFrame frame, CameraBridgeViewBase.CvCameraViewListener2 listener) throws IOException {
+            long startTime = System.nanoTime();
+            long firstTimestamp = -1, frameIndex = 0;
+
+            while (!mStopThread) {
+                long timestamp = FrameRecording.readFrame(in, data);
+
+                if (timestamp == -1) {
+                    break;
+                }
+
+                if (firstTimestamp == -1) {
+                    firstTimestamp = timestamp;
+                }
+
+                // Keep the same time offsets between frames as during the recording.
+                long dueTime = startTime + (timestamp - firstTimestamp);
+
+                FrameScheduler scheduler = mFrameScheduler;
+
+                if (!scheduler.schedule(frameIndex++, 0)) {
+                    continue;
+                }
+
+                if (mRealtime && !this.sleepUntil(dueTime)) {
+                    break;
+                }
+
+                frame.put(data, mDisplayMode);
+
+                long processingStart = System.nanoTime();
+                scheduler.onFrameProcessed(mRealtime ? processingStart - dueTime : 0);
+
+                if (listener != null) {
+                    listener.onCameraFrame(frame);
+                }
+
+                mProcessingTime += System.nanoTime() - processingStart;
+                mDeliveredFrames++;
+                mElapsedTime = System.nanoTime() - startTime;
+            }
+        }
+
+        /**
+         * Sleeps until a point in time is reached.
+         *
+         * @param time Point in time as in {@link System#nanoTime()}
+         * @return <code>true</code> if the point in time was reached, <code>false</code> if playback was stopped
+         * in the meantime
+         */
+        private boolean sleepUntil(long time) {
+            long remaining;
+
+            while ((remaining = time - System.nanoTime()) > 0) {
+                try {
+                    Thread.sleep(remaining / 1000000, (int) (remaining % 1000000));
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+
+            return !mStopThread;
+        }
+
+    }
+
+}
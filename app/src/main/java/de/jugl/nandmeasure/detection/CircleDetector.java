@@ -0,0 +1,34 @@
+package de.jugl.nandmeasure.detection;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+
+/**
+ * Finds the circular marker in a grayscale image. Implementations differ in speed and accuracy depending on
+ * the device and the scene, see {@link DetectorEngine} and {@link DetectorProfile}.
+ */
+public interface CircleDetector {
+
+    /**
+     * Searches a grayscale image for the marker.
+     *
+     * @param grayMat Grayscale image. May be modified.
+     * @param expectedRadius Expected marker radius in pixels, or a value of 0 or less if unknown
+     * @param target Point in image coordinates the marker is expected to be closest to, or <code>null</code>
+     *               if any marker will do
+     * @param result Detection to write the marker to, in image coordinates. Left alone if none was found.
+     * @return <code>true</code> if a marker was found, <code>false</code> otherwise
+     */
+    boolean detect(Mat grayMat, double expectedRadius, Point target, Detection result);
+
+    /**
+     * Forgets everything learned from earlier frames. Should be called whenever a new measurement starts.
+     */
+    void reset();
+
+    /**
+     * Releases the scratch matrices of this detector. It can still be used afterwards.
+     */
+    void release();
+
+}
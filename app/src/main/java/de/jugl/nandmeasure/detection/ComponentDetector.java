@@ -0,0 +1,115 @@
+package de.jugl.nandmeasure.detection;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.imgproc.Moments;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import de.jugl.nandmeasure.util.MatProcessor;
+
+/**
+ * <p>Finds the marker among the connected components of the binarized image. The components are filtered
+ * by {@link MatProcessor#findComponentContours(List, Mat, boolean)}, so only the outer contours of the
+ * candidates are traced. No ellipse is fitted: it is taken straight from the second order moments of the
+ * contour, i.e. it is the ellipse with the same area, center and orientation. Filled markers are what this
+ * detector is made for, since frayed edges shift the moments.</p>
+ *
+ * <p>Components touching the image border are cut off and skipped. Without a target, the largest remaining
+ * component wins.</p>
+ *
+ * <p>The confidence of a detection is how well the contour area agrees with the area of the ellipse.</p>
+ */
+public class ComponentDetector implements CircleDetector {
+
+    /**
+     * Processor which binarizes the image and finds the candidates.
+     */
+    private final MatProcessor mProcessor;
+
+    /**
+     * <code>true</code> if only components with a square bounding box are candidates, <code>false</code>
+     * otherwise.
+     */
+    private final boolean mCirclesOnly;
+
+    /**
+     * Contours of the candidates, reused across frames.
+     */
+    private final List<MatOfPoint> mContours;
+
+    /**
+     * @param processor Image processor which binarizes the image
+     * @param circlesOnly <code>true</code> to only consider components whose bounding boxes are approximately
+     *                    square, <code>false</code> otherwise
+     */
+    public ComponentDetector(MatProcessor processor, boolean circlesOnly) {
+        this.mProcessor = processor;
+        this.mCirclesOnly = circlesOnly;
+        this.mContours = new ArrayList<>();
+    }
+
+    @Override
+    public boolean detect(Mat grayMat, double expectedRadius, Point target, Detection result) {
+        this.mProcessor.preprocess(grayMat);
+        this.mProcessor.findComponentContours(this.mContours, grayMat, this.mCirclesOnly);
+
+        Moments best = null;
+        double bestDistance = Double.MAX_VALUE;
+
+        for (MatOfPoint contour : this.mContours) {
+            Moments moments = Imgproc.moments(contour);
+
+            if (moments.m00 <= 0) {
+                continue;
+            }
+
+            if (target == null) {
+                if (best == null || moments.m00 > best.m00) {
+                    best = moments;
+                }
+
+                continue;
+            }
+
+            double dx = moments.m10 / moments.m00 - target.x, dy = moments.m01 / moments.m00 - target.y;
+            double distance = dx * dx + dy * dy;
+
+            if (distance < bestDistance) {
+                best = moments;
+                bestDistance = distance;
+            }
+        }
+
+        MatProcessor.releaseContours(this.mContours);
+
+        if (best == null) {
+            return false;
+        }
+
+        // Covariance of the contour. A filled ellipse with semi-axis a has a variance of a^2 / 4 along it.
+        double a = best.mu20 / best.m00, b = best.mu11 / best.m00, c = best.mu02 / best.m00;
+        double mean = (a + c) / 2d, spread = Math.sqrt((a - c) * (a - c) / 4d + b * b);
+        double major = 4d * Math.sqrt(mean + spread), minor = 4d * Math.sqrt(Math.max(0d, mean - spread));
+        double angle = Math.toDegrees(.5d * Math.atan2(2d * b, a - c));
+
+        result.set(best.m10 / best.m00, best.m01 / best.m00, major, minor, angle,
+                Detection.getAreaAgreement(best.m00, major, minor));
+
+        return true;
+    }
+
+    @Override
+    public void reset() {
+        // Every frame is searched from scratch.
+    }
+
+    @Override
+    public void release() {
+        MatProcessor.releaseContours(this.mContours);
+    }
+
+}
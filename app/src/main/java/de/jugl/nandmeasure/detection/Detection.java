@@ -0,0 +1,153 @@
+package de.jugl.nandmeasure.detection;
+
+import org.opencv.core.Point;
+import org.opencv.core.RotatedRect;
+
+/**
+ * Marker found by a {@link CircleDetector}: an ellipse and how much the detector trusts it. Detectors write
+ * into an instance passed in by the caller, so the same instance can be reused frame after frame.
+ */
+public class Detection {
+
+    /**
+     * Ellipse center.
+     */
+    private double mCenterX, mCenterY;
+
+    /**
+     * Full lengths of the ellipse axes. The width is measured along {@link #mAngle}, same as in
+     * {@link RotatedRect}.
+     */
+    private double mWidth, mHeight;
+
+    /**
+     * Rotation of the ellipse in degrees.
+     */
+    private double mAngle;
+
+    /**
+     * Confidence between 0 and 1.
+     */
+    private double mConfidence;
+
+    /**
+     * @param ellipse Ellipse
+     * @param confidence Confidence between 0 and 1
+     */
+    public void set(RotatedRect ellipse, double confidence) {
+        this.set(ellipse.center.x, ellipse.center.y, ellipse.size.width, ellipse.size.height, ellipse.angle, confidence);
+    }
+
+    /**
+     * @param centerX Horizontal ellipse center
+     * @param centerY Vertical ellipse center
+     * @param width Full length of the ellipse axis along the angle
+     * @param height Full length of the other ellipse axis
+     * @param angle Rotation of the ellipse in degrees
+     * @param confidence Confidence between 0 and 1
+     */
+    public void set(double centerX, double centerY, double width, double height, double angle, double confidence) {
+        this.mCenterX = centerX;
+        this.mCenterY = centerY;
+        this.mWidth = width;
+        this.mHeight = height;
+        this.mAngle = angle;
+        this.mConfidence = confidence;
+    }
+
+    /**
+     * Translates the ellipse center. Can be used to convert coordinates from a submatrix into its parent
+     * matrix, like {@link de.jugl.nandmeasure.util.CvUtil#adjustForOffset(Point, Point)}.
+     *
+     * @param offset Offset point
+     */
+    public void offset(Point offset) {
+        this.mCenterX += offset.x;
+        this.mCenterY += offset.y;
+    }
+
+    /**
+     * Copies the ellipse into a rotated rectangle, e.g. for drawing it.
+     *
+     * @param dst Rotated rectangle to copy into
+     * @return <code>dst</code>
+     */
+    public RotatedRect toRotatedRect(RotatedRect dst) {
+        dst.center.x = this.mCenterX;
+        dst.center.y = this.mCenterY;
+        dst.size.width = this.mWidth;
+        dst.size.height = this.mHeight;
+        dst.angle = this.mAngle;
+
+        return dst;
+    }
+
+    /**
+     * @return Horizontal ellipse center
+     */
+    public double getCenterX() {
+        return this.mCenterX;
+    }
+
+    /**
+     * @return Vertical ellipse center
+     */
+    public double getCenterY() {
+        return this.mCenterY;
+    }
+
+    /**
+     * @return Full length of the ellipse axis along the angle
+     */
+    public double getWidth() {
+        return this.mWidth;
+    }
+
+    /**
+     * @return Full length of the other ellipse axis
+     */
+    public double getHeight() {
+        return this.mHeight;
+    }
+
+    /**
+     * @return Rotation of the ellipse in degrees
+     */
+    public double getAngle() {
+        return this.mAngle;
+    }
+
+    /**
+     * @return Length of the major axis, which is the marker diameter
+     */
+    public double getDiameter() {
+        return Math.max(this.mWidth, this.mHeight);
+    }
+
+    /**
+     * @return Confidence between 0 and 1. Each detector computes it in its own way, so only confidences of
+     * the same detector are comparable.
+     */
+    public double getConfidence() {
+        return this.mConfidence;
+    }
+
+    /**
+     * Compares an area to the area of an ellipse.
+     *
+     * @param area Area, e.g. of the contour or component an ellipse was fitted to
+     * @param width Full length of one ellipse axis
+     * @param height Full length of the other ellipse axis
+     * @return Ratio of the smaller to the larger of both areas, 1 if they are the same
+     */
+    public static double getAreaAgreement(double area, double width, double height) {
+        double ellipseArea = Math.PI * width * height / 4d;
+
+        if (area <= 0 || ellipseArea <= 0) {
+            return 0d;
+        }
+
+        return Math.min(area, ellipseArea) / Math.max(area, ellipseArea);
+    }
+
+}
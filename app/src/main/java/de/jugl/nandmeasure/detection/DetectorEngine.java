@@ -0,0 +1,45 @@
+package de.jugl.nandmeasure.detection;
+
+import de.jugl.nandmeasure.util.MatProcessor;
+
+/**
+ * Interchangeable marker detectors. Which one is fastest without losing accuracy depends on the device, see
+ * {@link DetectorProfile}.
+ */
+public enum DetectorEngine {
+
+    /**
+     * Contours of the binarized image with an ellipse fitted to them, searched coarse to fine. See
+     * {@link PyramidDetector}.
+     */
+    CONTOURS,
+
+    /**
+     * Hough circle transform of the blurred image. See {@link HoughDetector}.
+     */
+    HOUGH,
+
+    /**
+     * Connected components of the binarized image with an ellipse taken from their moments. See
+     * {@link ComponentDetector}.
+     */
+    COMPONENTS;
+
+    /**
+     * @param processor Image processor whose parameters are used for the detection
+     * @param circlesOnly <code>true</code> to only consider candidates whose bounding boxes are approximately
+     *                    square, <code>false</code> otherwise. The Hough transform only finds circles anyway.
+     * @return New detector of this engine
+     */
+    public CircleDetector create(MatProcessor processor, boolean circlesOnly) {
+        switch (this) {
+            case HOUGH:
+                return new HoughDetector(processor);
+            case COMPONENTS:
+                return new ComponentDetector(processor, circlesOnly);
+            default:
+                return new PyramidDetector(processor, circlesOnly);
+        }
+    }
+
+}
@@ -0,0 +1,286 @@
+package de.jugl.nandmeasure.detection;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.Log;
+
+import de.jugl.nandmeasure.AppConstants;
+import de.jugl.nandmeasure.util.MatProcessor;
+import de.jugl.nandmeasure.util.PipelineBenchmark;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+import java.util.List;
+
+/**
+ * Marker detector engine chosen for this device. Every engine is benchmarked on a series of noisy, unevenly
+ * lit synthetic frames with the temporal Otsu threshold the measurement activities use, and the marker it
+ * finds is compared to the one drawn into the frames. The fastest engine which finds the marker in every
+ * frame to within {@link #MAX_ERROR} is chosen. The benchmark runs in the background, and
+ * {@link DetectorEngine#CONTOURS} is used until it has finished. The choice is cached in the camera profile
+ * preferences next to the preview profiles and is invalidated by system updates.
+ */
+public class DetectorProfile {
+
+    private static final String TAG = "DetectorProfile";
+
+    /**
+     * Size of the synthetic frames the engines are benchmarked on.
+     */
+    private static final int BENCHMARK_WIDTH = 640, BENCHMARK_HEIGHT = 480;
+
+    /**
+     * Amount of synthetic frames the engines are benchmarked on.
+     */
+    private static final int BENCHMARK_FRAMES = 8;
+
+    /**
+     * Largest difference in pixels allowed between the radius and center an engine finds and the ones of the
+     * marker drawn into the frames. Contours trace the bright pixels just outside the marker, which alone
+     * makes them up to a pixel larger.
+     */
+    private static final double MAX_ERROR = 1.5d;
+
+    /**
+     * <code>true</code> while the engines are being benchmarked in the background.
+     */
+    private static boolean sBenchmarkRunning;
+
+    /**
+     * Chosen engine.
+     */
+    private final DetectorEngine mEngine;
+
+    /**
+     * Measured detection time per frame of the chosen engine in nanoseconds.
+     */
+    private final long mFrameTime;
+
+    public DetectorProfile(DetectorEngine engine, long frameTime) {
+        this.mEngine = engine;
+        this.mFrameTime = frameTime;
+    }
+
+    /**
+     * Loads the cached profile.
+     *
+     * @param ctx Application context
+     * @return Cached profile, or <code>null</code> if there is none or if it is outdated
+     */
+    public static DetectorProfile load(Context ctx) {
+        SharedPreferences prefs = ctx.getSharedPreferences(AppConstants.PREFS_CAMERA_PROFILE, Context.MODE_PRIVATE);
+        String engine = prefs.getString(AppConstants.KEY_DETECTOR_ENGINE, null);
+
+        if (!Build.FINGERPRINT.equals(prefs.getString(AppConstants.KEY_DETECTOR_FINGERPRINT, null)) || engine == null) {
+            return null;
+        }
+
+        try {
+            return new DetectorProfile(DetectorEngine.valueOf(engine), prefs.getLong(AppConstants.KEY_DETECTOR_FRAME_TIME, 0));
+        } catch (IllegalArgumentException e) {
+            // Engine of an older app version which no longer exists.
+            return null;
+        }
+    }
+
+    /**
+     * Stores this profile as the cached profile.
+     *
+     * @param ctx Application context
+     */
+    public void save(Context ctx) {
+        ctx.getSharedPreferences(AppConstants.PREFS_CAMERA_PROFILE, Context.MODE_PRIVATE).edit()
+                .putString(AppConstants.KEY_DETECTOR_FINGERPRINT, Build.FINGERPRINT)
+                .putString(AppConstants.KEY_DETECTOR_ENGINE, this.mEngine.name())
+                .putLong(AppConstants.KEY_DETECTOR_FRAME_TIME, this.mFrameTime)
+                .apply();
+    }
+
+    /**
+     * Drops the cached profile, so the engines are benchmarked again.
+     *
+     * @param ctx Application context
+     */
+    public static void invalidate(Context ctx) {
+        ctx.getSharedPreferences(AppConstants.PREFS_CAMERA_PROFILE, Context.MODE_PRIVATE).edit()
+                .remove(AppConstants.KEY_DETECTOR_FINGERPRINT)
+                .remove(AppConstants.KEY_DETECTOR_ENGINE)
+                .remove(AppConstants.KEY_DETECTOR_FRAME_TIME)
+                .apply();
+    }
+
+    /**
+     * Loads the cached profile. If there is none, the engines are benchmarked in the background and a
+     * profile with {@link DetectorEngine#CONTOURS} is returned until the result has been cached.
+     *
+     * @param ctx Application context
+     * @return Detector profile
+     */
+    public static DetectorProfile loadOrBenchmark(Context ctx) {
+        DetectorProfile profile = load(ctx);
+
+        if (profile == null) {
+            benchmarkInBackground(ctx.getApplicationContext());
+            profile = new DetectorProfile(DetectorEngine.CONTOURS, 0);
+        }
+
+        Log.d(TAG, String.format("Detector profile: %s, %.1f ms/frame", profile.mEngine, profile.mFrameTime / 1e6));
+
+        return profile;
+    }
+
+    /**
+     * Runs the benchmark on a background thread and caches its result, unless it is running already.
+     *
+     * @param ctx Application context
+     */
+    private static void benchmarkInBackground(final Context ctx) {
+        synchronized (DetectorProfile.class) {
+            if (sBenchmarkRunning) {
+                return;
+            }
+
+            sBenchmarkRunning = true;
+        }
+
+        Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    benchmark().save(ctx);
+                } finally {
+                    synchronized (DetectorProfile.class) {
+                        sBenchmarkRunning = false;
+                    }
+                }
+            }
+
+        }, "DetectorBenchmark");
+
+        // Frames of the running preview come first.
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Benchmarks every engine with default parameters and picks the fastest one which is accurate enough.
+     * If none is, {@link DetectorEngine#CONTOURS}, which is what the app always did, is kept.
+     *
+     * @return Detector profile
+     */
+    public static DetectorProfile benchmark() {
+        List<Mat> frames = PipelineBenchmark.createBenchmarkFrames(BENCHMARK_WIDTH, BENCHMARK_HEIGHT, BENCHMARK_FRAMES);
+        Rect markerArea = PipelineBenchmark.getMarkerArea(BENCHMARK_WIDTH, BENCHMARK_HEIGHT);
+        double radius = PipelineBenchmark.getMarkerRadius(markerArea);
+
+        // The marker is drawn in the frame center, detections are in marker area coordinates.
+        double centerX = BENCHMARK_WIDTH / 2d - markerArea.x, centerY = BENCHMARK_HEIGHT / 2d - markerArea.y;
+
+        DetectorEngine[] engines = DetectorEngine.values();
+        long[] times = new long[engines.length];
+        double[] errors = new double[engines.length];
+        double[] detections = new double[3 * BENCHMARK_FRAMES];
+
+        for (int i = 0; i < engines.length; i++) {
+            times[i] = measure(engines[i], frames, detections);
+            errors[i] = getMaxError(detections, radius, centerX, centerY);
+
+            Log.d(TAG, String.format("Benchmark %s: %.2f ms/frame, largest error %.2f px", engines[i], times[i] / 1e6, errors[i]));
+        }
+
+        for (Mat frame : frames) {
+            frame.release();
+        }
+
+        int best = selectEngine(times, errors, MAX_ERROR);
+
+        if (best < 0) {
+            return new DetectorProfile(DetectorEngine.CONTOURS, times[DetectorEngine.CONTOURS.ordinal()]);
+        }
+
+        return new DetectorProfile(engines[best], times[best]);
+    }
+
+    /**
+     * Measures an engine with the thresholding of the measurement activities, starting with a fresh
+     * threshold cache.
+     *
+     * @param engine Engine to measure
+     * @param frames Benchmark frames
+     * @param detections Array to write the markers found to, see
+     *                   {@link PipelineBenchmark#measureDetector(CircleDetector, List, int, int, double[])}
+     * @return Median time per frame in nanoseconds
+     */
+    private static long measure(DetectorEngine engine, List<Mat> frames, double[] detections) {
+        MatProcessor processor = new MatProcessor();
+        processor.setThresholdType(MatProcessor.ThresholdType.OTSU_TEMPORAL);
+
+        CircleDetector detector = engine.create(processor, false);
+        long time = PipelineBenchmark.measureDetector(detector, frames, BENCHMARK_WIDTH, BENCHMARK_HEIGHT, detections);
+
+        detector.release();
+        processor.release();
+
+        return time;
+    }
+
+    /**
+     * @param detections Diameter and center found in each frame, NaN if none was found
+     * @param radius Radius of the marker drawn into the frames
+     * @param centerX Horizontal center of the marker drawn into the frames
+     * @param centerY Vertical center of the marker drawn into the frames
+     * @return Largest difference in pixels between a radius or center found and the drawn one, or
+     * {@link Double#POSITIVE_INFINITY} if the marker was missed in a frame
+     */
+    static double getMaxError(double[] detections, double radius, double centerX, double centerY) {
+        double maxError = 0d;
+
+        for (int i = 0; i < detections.length; i += 3) {
+            if (Double.isNaN(detections[i])) {
+                return Double.POSITIVE_INFINITY;
+            }
+
+            double dx = detections[i + 1] - centerX, dy = detections[i + 2] - centerY;
+
+            maxError = Math.max(maxError, Math.abs(detections[i] / 2d - radius));
+            maxError = Math.max(maxError, Math.sqrt(dx * dx + dy * dy));
+        }
+
+        return maxError;
+    }
+
+    /**
+     * @param times Measured detection time per frame of every engine
+     * @param errors Largest error of every engine, see {@link #getMaxError(double[], double, double, double)}
+     * @param maxError Largest error allowed
+     * @return Index of the fastest engine whose error is within the allowed one, or -1 if there is none
+     */
+    static int selectEngine(long[] times, double[] errors, double maxError) {
+        int best = -1;
+
+        for (int i = 0; i < times.length; i++) {
+            if (errors[i] <= maxError && (best < 0 || times[i] < times[best])) {
+                best = i;
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * @return Chosen engine
+     */
+    public DetectorEngine getEngine() {
+        return this.mEngine;
+    }
+
+    /**
+     * @return Measured detection time per frame of the chosen engine in nanoseconds
+     */
+    public long getFrameTime() {
+        return this.mFrameTime;
+    }
+
+}
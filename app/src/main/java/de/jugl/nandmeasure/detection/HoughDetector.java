@@ -0,0 +1,207 @@
+package de.jugl.nandmeasure.detection;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import de.jugl.nandmeasure.util.MatProcessor;
+
+/**
+ * <p>Finds the marker with the Hough circle transform. The grayscale image is only blurred, not binarized, so
+ * this detector doesn't depend on a good threshold. It does assume the marker is seen head-on though: a
+ * tilted marker is an ellipse, and the transform only knows circles.</p>
+ *
+ * <p>The transform gets a lot faster with a narrow radius range, so the range is centered on the marker
+ * radius of the previous frame or the expected radius if there is one. Otherwise it spans anything from a
+ * tenth to half of the shorter image side.</p>
+ *
+ * <p>The confidence of a detection is the share of points around the circle which are darker just inside
+ * than just outside of it.</p>
+ */
+public class HoughDetector implements CircleDetector {
+
+    /**
+     * Allowed deviation of the marker radius from the radius of the previous frame, relative to the latter.
+     */
+    private static final double RADIUS_TOLERANCE = .25d;
+
+    /**
+     * Radius range searched without a previous or expected radius, relative to the shorter image side.
+     */
+    private static final double MIN_RADIUS_RATIO = .1d, MAX_RADIUS_RATIO = .5d;
+
+    /**
+     * Upper threshold of the Canny edge detector inside the transform.
+     */
+    private static final double CANNY_THRESHOLD = 100d;
+
+    /**
+     * Amount of votes a circle needs in the accumulator.
+     */
+    private static final double ACCUMULATOR_THRESHOLD = 30d;
+
+    /**
+     * Amount of points around the circle checked for the confidence.
+     */
+    private static final int EDGE_SAMPLES = 32;
+
+    /**
+     * Distances from the center the inner and outer pixel of a checked point lie at, relative to the radius.
+     */
+    private static final double INNER_RATIO = .85d, OUTER_RATIO = 1.15d;
+
+    /**
+     * Processor whose blur kernel length is used.
+     */
+    private final MatProcessor mProcessor;
+
+    /**
+     * Blurred image.
+     */
+    private final Mat mBlurMat;
+
+    /**
+     * Circles found by the transform, as <code>{ x, y, radius }</code> per column.
+     */
+    private final Mat mCirclesMat;
+
+    /**
+     * Scratch buffer for a single circle.
+     */
+    private final float[] mCircle;
+
+    /**
+     * Scratch buffer for a single pixel.
+     */
+    private final byte[] mPixel;
+
+    /**
+     * Marker radius found in the last frame, or -1.
+     */
+    private double mLastRadius = -1d;
+
+    /**
+     * @param processor Image processor whose blur kernel length is used
+     */
+    public HoughDetector(MatProcessor processor) {
+        this.mProcessor = processor;
+        this.mBlurMat = new Mat();
+        this.mCirclesMat = new Mat();
+        this.mCircle = new float[3];
+        this.mPixel = new byte[1];
+    }
+
+    @Override
+    public boolean detect(Mat grayMat, double expectedRadius, Point target, Detection result) {
+        double radius = this.mLastRadius > 0 ? this.mLastRadius : expectedRadius;
+        int shorterSide = Math.min(grayMat.cols(), grayMat.rows());
+        int minRadius, maxRadius;
+
+        if (radius > 0) {
+            minRadius = (int) Math.floor(radius * (1d - RADIUS_TOLERANCE));
+            maxRadius = (int) Math.ceil(radius * (1d + RADIUS_TOLERANCE));
+        } else {
+            minRadius = (int) (shorterSide * MIN_RADIUS_RATIO);
+            maxRadius = (int) (shorterSide * MAX_RADIUS_RATIO);
+        }
+
+        minRadius = Math.max(1, minRadius);
+        maxRadius = Math.max(minRadius, maxRadius);
+
+        // The Gaussian kernel needs an odd size. Without any blur, the transform drowns in noisy edges.
+        int kernelLength = Math.max(3, this.mProcessor.getParams().getBlurKernelLength() | 1);
+        Imgproc.GaussianBlur(grayMat, this.mBlurMat, new Size(kernelLength, kernelLength), 0);
+
+        // Circles closer than the smallest diameter would overlap, so they can't both be markers.
+        Imgproc.HoughCircles(this.mBlurMat, this.mCirclesMat, Imgproc.HOUGH_GRADIENT, 1d, 2d * minRadius,
+                CANNY_THRESHOLD, ACCUMULATOR_THRESHOLD, minRadius, maxRadius);
+
+        int best = -1;
+        double bestDistance = Double.MAX_VALUE;
+
+        // Circles are sorted by votes, so without a target the first one is the most likely.
+        for (int i = 0; i < this.mCirclesMat.cols(); i++) {
+            if (target == null) {
+                best = i;
+                break;
+            }
+
+            this.mCirclesMat.get(0, i, this.mCircle);
+            double dx = this.mCircle[0] - target.x, dy = this.mCircle[1] - target.y;
+            double distance = dx * dx + dy * dy;
+
+            if (distance < bestDistance) {
+                best = i;
+                bestDistance = distance;
+            }
+        }
+
+        if (best < 0) {
+            this.mLastRadius = -1d;
+            return false;
+        }
+
+        this.mCirclesMat.get(0, best, this.mCircle);
+        float x = this.mCircle[0], y = this.mCircle[1], r = this.mCircle[2];
+
+        result.set(x, y, 2d * r, 2d * r, 0d, this.getEdgeContrast(x, y, r));
+        this.mLastRadius = r;
+
+        return true;
+    }
+
+    /**
+     * @param x Horizontal circle center
+     * @param y Vertical circle center
+     * @param r Circle radius
+     * @return Share of the points around the circle which are darker inside than outside of it
+     */
+    private double getEdgeContrast(double x, double y, double r) {
+        int darkerInside = 0;
+
+        for (int i = 0; i < EDGE_SAMPLES; i++) {
+            double angle = 2d * Math.PI * i / EDGE_SAMPLES;
+            double cos = Math.cos(angle), sin = Math.sin(angle);
+
+            int inner = this.getPixel(x + cos * r * INNER_RATIO, y + sin * r * INNER_RATIO);
+            int outer = this.getPixel(x + cos * r * OUTER_RATIO, y + sin * r * OUTER_RATIO);
+
+            // Points outside of the image count against the circle.
+            if (inner >= 0 && outer >= 0 && inner < outer) {
+                darkerInside++;
+            }
+        }
+
+        return (double) darkerInside / EDGE_SAMPLES;
+    }
+
+    /**
+     * @param x Horizontal pixel position
+     * @param y Vertical pixel position
+     * @return Value of the blurred image at the nearest pixel, or -1 if it lies outside of the image
+     */
+    private int getPixel(double x, double y) {
+        int col = (int) Math.round(x), row = (int) Math.round(y);
+
+        if (col < 0 || row < 0 || col >= this.mBlurMat.cols() || row >= this.mBlurMat.rows()) {
+            return -1;
+        }
+
+        this.mBlurMat.get(row, col, this.mPixel);
+
+        return this.mPixel[0] & 0xFF;
+    }
+
+    @Override
+    public void reset() {
+        this.mLastRadius = -1d;
+    }
+
+    @Override
+    public void release() {
+        this.mBlurMat.release();
+        this.mCirclesMat.release();
+    }
+
+}
@@ -0,0 +1,422 @@
+package de.jugl.nandmeasure.detection;
+
+import org.opencv.core.*;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import de.jugl.nandmeasure.util.CvUtil;
+import de.jugl.nandmeasure.util.MatProcessor;
+import de.jugl.nandmeasure.util.OtsuThreshold;
+
+/**
+ * <p>Finds the marker ellipse in a grayscale image, coarse to fine. Big markers don't need the full
+ * resolution to be found, so the image is reduced with {@link Imgproc#pyrDown(Mat, Mat)} until the marker
+ * radius is just large enough for a reliable fit. Preprocessing and contour search run on that small image.</p>
+ *
+ * <p>The coarse ellipse is then refined at full resolution, but only inside a narrow band around its edge.
+ * The band is thresholded with a threshold computed from the band pixels alone. Everything inside the band
+ * is taken to be marker, everything outside background, so the contour search only traces the marker edge.</p>
+ *
+ * <p>The pyramid level is chosen from the marker radius of the previous frame or, until there is one, from
+ * the expected radius passed in by the caller. Without either, and whenever the coarse search comes up
+ * empty, the whole image is searched at full resolution like before.</p>
+ *
+ * <p>The confidence of a detection is how well the area enclosed by the fitted contour agrees with the area
+ * of the ellipse.</p>
+ */
+public class PyramidDetector implements CircleDetector {
+
+    /**
+     * Highest pyramid level used. Each level halves width and height.
+     */
+    public static final int MAX_LEVEL = 3;
+
+    /**
+     * Marker radius in pixels the chosen pyramid level must not go below.
+     */
+    private static final double MIN_COARSE_RADIUS = 16d;
+
+    /**
+     * Half the width of the refinement band, in pixels of the coarse image.
+     */
+    private static final int BAND_COARSE_PIXELS = 2;
+
+    /**
+     * Kernel size of the box filter smoothing the band before it is thresholded.
+     */
+    private static final Size BAND_BLUR_SIZE = new Size(3, 3);
+
+    /**
+     * Processor whose parameters drive the detection. Used as is for full resolution searches.
+     */
+    private final MatProcessor mProcessor;
+
+    /**
+     * Processor for the coarse image. Its parameters are derived from those of {@link #mProcessor}.
+     */
+    private final MatProcessor mCoarseProcessor;
+
+    /**
+     * <code>true</code> if only contours with a square bounding box are candidates, <code>false</code>
+     * otherwise.
+     */
+    private final boolean mCirclesOnly;
+
+    /**
+     * Pyramid images, one per level starting at level 1.
+     */
+    private final Mat[] mPyramid;
+
+    /**
+     * Scratch matrices for the refinement: smoothed and binarized band area, and the band mask.
+     */
+    private final Mat mBandMat, mBandMaskMat;
+
+    /**
+     * Threshold computed from the band pixels.
+     */
+    private final OtsuThreshold mBandThreshold;
+
+    /**
+     * Candidate contours. Reused across frames and released on the next search.
+     */
+    private final List<MatOfPoint> mContours;
+
+    /**
+     * Highest pyramid level this detector may use. 0 always searches at full resolution.
+     */
+    private int mMaxLevel = MAX_LEVEL;
+
+    /**
+     * Parameters the parameters of {@link #mCoarseProcessor} were derived from.
+     */
+    private MatProcessor.Params mCoarseSourceParams;
+
+    /**
+     * Pyramid level the parameters of {@link #mCoarseProcessor} were derived for, or -1.
+     */
+    private int mCoarseLevel = -1;
+
+    /**
+     * Marker radius found in the last frame, or -1.
+     */
+    private double mLastRadius = -1d;
+
+    /**
+     * Confidence of the ellipse last fitted by {@link #findCandidate(MatProcessor, Mat, Point)} or
+     * {@link #refine(Mat, RotatedRect, int)}.
+     */
+    private double mConfidence;
+
+    /**
+     * @param processor Image processor whose parameters are used for the detection
+     * @param circlesOnly <code>true</code> to only consider contours whose bounding boxes are approximately
+     *                    square, see {@link MatProcessor#findCircleContours(List, Mat)}
+     */
+    public PyramidDetector(MatProcessor processor, boolean circlesOnly) {
+        this.mProcessor = processor;
+        this.mCoarseProcessor = new MatProcessor();
+        this.mCirclesOnly = circlesOnly;
+        this.mPyramid = new Mat[MAX_LEVEL];
+        this.mBandMat = new Mat();
+        this.mBandMaskMat = new Mat();
+        this.mBandThreshold = new OtsuThreshold();
+        this.mContours = new ArrayList<>();
+
+        for (int i = 0; i < this.mPyramid.length; i++) {
+            this.mPyramid[i] = new Mat();
+        }
+    }
+
+    /**
+     * @param level Highest pyramid level to use, between 0 and {@link #MAX_LEVEL}. 0 turns the pyramid off.
+     */
+    public void setMaxLevel(int level) {
+        this.mMaxLevel = Math.max(0, Math.min(MAX_LEVEL, level));
+    }
+
+    @Override
+    public void reset() {
+        this.mLastRadius = -1d;
+    }
+
+    @Override
+    public boolean detect(Mat grayMat, double expectedRadius, Point target, Detection result) {
+        RotatedRect ellipse = this.findEllipse(grayMat, expectedRadius, target);
+
+        if (ellipse == null) {
+            return false;
+        }
+
+        result.set(ellipse, this.mConfidence);
+
+        return true;
+    }
+
+    /**
+     * Finds the marker ellipse in a grayscale image. The image is binarized in place if it has to be
+     * searched at full resolution, otherwise it is left untouched.
+     *
+     * @param grayMat Grayscale image
+     * @param expectedRadius Expected marker radius in pixels, or a value of 0 or less if unknown. Only used
+     *                       as long as no marker was found in the last frame.
+     * @param target Point in image coordinates the marker is expected to be closest to, or <code>null</code>
+     *               to take the first candidate
+     * @return Marker ellipse in image coordinates, or <code>null</code> if none was found
+     */
+    public RotatedRect findEllipse(Mat grayMat, double expectedRadius, Point target) {
+        double radius = this.mLastRadius > 0 ? this.mLastRadius : expectedRadius;
+        int level = this.getLevel(radius);
+        RotatedRect ellipse = null;
+
+        if (level > 0) {
+            ellipse = this.findCoarseEllipse(grayMat, level, target);
+
+            if (ellipse != null) {
+                ellipse = this.refine(grayMat, ellipse, level);
+            }
+        }
+
+        // Also covers markers which got a lot smaller than expected and vanished in the coarse image.
+        if (ellipse == null) {
+            this.mProcessor.preprocess(grayMat);
+            ellipse = this.findCandidate(this.mProcessor, grayMat, target);
+        }
+
+        this.mLastRadius = ellipse != null ? CvUtil.getDiameterFromEllipse(ellipse) / 2d : -1d;
+
+        return ellipse;
+    }
+
+    /**
+     * @param radius Marker radius in pixels at full resolution, or a value of 0 or less if unknown
+     * @return Highest pyramid level at which the marker radius stays above {@link #MIN_COARSE_RADIUS}
+     */
+    private int getLevel(double radius) {
+        int level = 0;
+
+        while (level < this.mMaxLevel && radius / (2 << level) >= MIN_COARSE_RADIUS) {
+            level++;
+        }
+
+        return level;
+    }
+
+    /**
+     * Reduces an image to the given pyramid level and searches it for the marker.
+     *
+     * @param grayMat Grayscale image at full resolution
+     * @param level Pyramid level
+     * @param target Point in full resolution coordinates the marker is expected to be closest to, or
+     *               <code>null</code>
+     * @return Coarse marker ellipse scaled to full resolution coordinates, or <code>null</code>
+     */
+    private RotatedRect findCoarseEllipse(Mat grayMat, int level, Point target) {
+        Mat coarseMat = grayMat;
+
+        for (int i = 0; i < level; i++) {
+            Imgproc.pyrDown(coarseMat, this.mPyramid[i]);
+            coarseMat = this.mPyramid[i];
+        }
+
+        this.updateCoarseParams(level);
+
+        int scale = 1 << level;
+        Point coarseTarget = target != null ? new Point(target.x / scale, target.y / scale) : null;
+
+        this.mCoarseProcessor.preprocess(coarseMat);
+        RotatedRect ellipse = this.findCandidate(this.mCoarseProcessor, coarseMat, coarseTarget);
+
+        if (ellipse == null) {
+            return null;
+        }
+
+        // A pyramid pixel sits on top of every second pixel of the level below.
+        ellipse.center.x *= scale;
+        ellipse.center.y *= scale;
+        ellipse.size.width *= scale;
+        ellipse.size.height *= scale;
+
+        return ellipse;
+    }
+
+    /**
+     * Derives the parameters of the coarse processor from the current parameters, unless that has already
+     * been done for them and the given level.
+     *
+     * @param level Pyramid level
+     */
+    private void updateCoarseParams(int level) {
+        MatProcessor.Params params = this.mProcessor.getParams();
+
+        if (params == this.mCoarseSourceParams && level == this.mCoarseLevel) {
+            return;
+        }
+
+        // Areas shrink by a factor of 4 per level. Blurring is left alone, pyrDown smooths on top of it anyway.
+        this.mCoarseProcessor.setParams(params.withMinContourArea(params.getMinContourArea() >> (2 * level)));
+        this.mCoarseSourceParams = params;
+        this.mCoarseLevel = level;
+    }
+
+    /**
+     * Searches a binarized image for contours and fits an ellipse to the best candidate.
+     *
+     * @param processor Image processor to search with
+     * @param binaryMat Binarized image
+     * @param target Point the marker is expected to be closest to, or <code>null</code> to take the first
+     *               candidate
+     * @return Fitted ellipse, or <code>null</code> if there was no candidate
+     */
+    private RotatedRect findCandidate(MatProcessor processor, Mat binaryMat, Point target) {
+        List<MatOfPoint> contours = this.mContours;
+
+        if (this.mCirclesOnly) {
+            processor.findCircleContours(contours, binaryMat);
+        } else {
+            processor.findContoursForEllipseFit(contours, binaryMat);
+        }
+
+        RotatedRect best = null;
+        MatOfPoint bestContour = null;
+        double bestDistance = Double.MAX_VALUE;
+
+        for (MatOfPoint contour : contours) {
+            // Circle contours aren't checked for the point count fitEllipse needs.
+            if (contour.total() < 5) {
+                continue;
+            }
+
+            RotatedRect ellipse = Imgproc.fitEllipse(processor.toFloatContour(contour));
+
+            if (target == null) {
+                best = ellipse;
+                bestContour = contour;
+                break;
+            }
+
+            double distance = CvUtil.euclid(target, ellipse.center);
+
+            if (distance < bestDistance) {
+                best = ellipse;
+                bestContour = contour;
+                bestDistance = distance;
+            }
+        }
+
+        if (best != null) {
+            this.mConfidence = Detection.getAreaAgreement(Imgproc.contourArea(bestContour), best.size.width, best.size.height);
+        }
+
+        return best;
+    }
+
+    /**
+     * Refines a coarse marker ellipse at full resolution within a band around its edge.
+     *
+     * @param grayMat Grayscale image at full resolution
+     * @param coarse Coarse marker ellipse in full resolution coordinates
+     * @param level Pyramid level the coarse ellipse was found at
+     * @return Refined ellipse, or the coarse ellipse if the refinement failed
+     */
+    private RotatedRect refine(Mat grayMat, RotatedRect coarse, int level) {
+        int band = BAND_COARSE_PIXELS << level;
+
+        // Both band edges, relative to the area around the band which is processed.
+        RotatedRect outer = new RotatedRect(coarse.center.clone(), new Size(coarse.size.width + 2 * band, coarse.size.height + 2 * band), coarse.angle);
+        RotatedRect inner = new RotatedRect(coarse.center.clone(), new Size(coarse.size.width - 2 * band, coarse.size.height - 2 * band), coarse.angle);
+
+        Rect bounds = outer.boundingRect();
+        Rect image = new Rect(0, 0, grayMat.cols(), grayMat.rows());
+
+        // The marker is cut off by the image border, leave it to the coarse result.
+        if (!image.contains(bounds.tl()) || !image.contains(new Point(bounds.x + bounds.width - 1, bounds.y + bounds.height - 1))) {
+            return coarse;
+        }
+
+        outer.center.x -= bounds.x;
+        outer.center.y -= bounds.y;
+        inner.center.x -= bounds.x;
+        inner.center.y -= bounds.y;
+
+        Mat areaMat = grayMat.submat(bounds);
+        Imgproc.blur(areaMat, this.mBandMat, BAND_BLUR_SIZE);
+        areaMat.release();
+
+        // Threshold from the band pixels only, which cover marker and background in about equal parts.
+        this.mBandMaskMat.create(this.mBandMat.size(), CvType.CV_8UC1);
+        this.mBandMaskMat.setTo(new Scalar(0));
+        Imgproc.ellipse(this.mBandMaskMat, outer, new Scalar(255), Imgproc.FILLED);
+
+        boolean hasInner = inner.size.width > 0 && inner.size.height > 0;
+
+        if (hasInner) {
+            Imgproc.ellipse(this.mBandMaskMat, inner, new Scalar(0), Imgproc.FILLED);
+        }
+
+        int threshold = this.mBandThreshold.computeThreshold(this.mBandMat, this.mBandMaskMat);
+
+        if (threshold < 0) {
+            return coarse;
+        }
+
+        Imgproc.threshold(this.mBandMat, this.mBandMat, threshold, this.mProcessor.getParams().getThreshMaxval(), Imgproc.THRESH_BINARY);
+
+        // Inside the band is marker, outside is background.
+        if (hasInner) {
+            Imgproc.ellipse(this.mBandMat, inner, new Scalar(0), Imgproc.FILLED);
+        }
+
+        this.mBandMaskMat.setTo(new Scalar(255));
+        Imgproc.ellipse(this.mBandMaskMat, outer, new Scalar(0), Imgproc.FILLED);
+        Core.max(this.mBandMat, this.mBandMaskMat, this.mBandMat);
+
+        // What's left are the marker edge and specks of noise within the band. The edge encloses the most area.
+        List<MatOfPoint> contours = this.mContours;
+        this.mProcessor.findContoursForEllipseFit(contours, this.mBandMat);
+
+        MatOfPoint edge = null;
+        double edgeArea = 0d;
+
+        for (MatOfPoint contour : contours) {
+            double area = Imgproc.contourArea(contour);
+
+            if (area > edgeArea) {
+                edge = contour;
+                edgeArea = area;
+            }
+        }
+
+        if (edge == null) {
+            return coarse;
+        }
+
+        RotatedRect ellipse = Imgproc.fitEllipse(this.mProcessor.toFloatContour(edge));
+        this.mConfidence = Detection.getAreaAgreement(edgeArea, ellipse.size.width, ellipse.size.height);
+        ellipse.center.x += bounds.x;
+        ellipse.center.y += bounds.y;
+
+        return ellipse;
+    }
+
+    /**
+     * Releases the contours and scratch matrices of this detector, including those of the coarse processor.
+     * The processor passed in on construction is left alone.
+     */
+    @Override
+    public void release() {
+        MatProcessor.releaseContours(this.mContours);
+
+        for (Mat mat : this.mPyramid) {
+            mat.release();
+        }
+
+        this.mBandMat.release();
+        this.mBandMaskMat.release();
+        this.mBandThreshold.release();
+        this.mCoarseProcessor.release();
+    }
+
+}
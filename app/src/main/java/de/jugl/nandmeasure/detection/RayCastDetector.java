@@ -0,0 +1,439 @@
+package de.jugl.nandmeasure.detection;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.RotatedRect;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Arrays;
+
+import de.jugl.nandmeasure.util.OtsuThreshold;
+
+/**
+ * <p>Tracks the marker from one frame to the next without binarizing the image. Rays are cast from the
+ * marker center of the previous frame, and the marker edge is taken to be where the gray values along a ray
+ * cross from dark to bright. The crossing is interpolated between samples, so the edge points are subpixel
+ * accurate. An ellipse is fitted to the edge points, which makes the work per frame depend on the amount of
+ * rays and the marker radius, not on the area searched.</p>
+ *
+ * <p>As long as there is no previous marker, and whenever too few rays find an edge or the edge points
+ * stray too far from the fitted ellipse, the frame is handed to another detector instead. That detector
+ * also provides the marker the rays start from.</p>
+ *
+ * <p>The gray value the edge lies at is the Otsu threshold of the samples of all rays. The rays cover a band
+ * around the previous edge, about half marker and half background, which is what {@link PyramidDetector}
+ * computes its threshold from when it refines a marker. Both place the edge alike, so the radius doesn't
+ * jump when a frame is handed to the other detector.</p>
+ *
+ * <p>The confidence of a detection is the share of rays which found an edge.</p>
+ */
+public class RayCastDetector implements CircleDetector {
+
+    /**
+     * Default amount of rays.
+     */
+    public static final int DEFAULT_RAY_COUNT = 64;
+
+    /**
+     * Least and most rays allowed.
+     */
+    public static final int MIN_RAY_COUNT = 32, MAX_RAY_COUNT = 128;
+
+    /**
+     * Distances from the center each ray starts and ends at, relative to the previous radius. The marker may
+     * move and change size that much between frames.
+     */
+    private static final double RAY_START = .5d, RAY_END = 1.5d;
+
+    /**
+     * Share of rays which must find an edge.
+     */
+    static final double MIN_EDGE_RATIO = .75d;
+
+    /**
+     * Least amount of edge points for {@link Imgproc#fitEllipse(MatOfPoint2f)} to work.
+     */
+    private static final int MIN_EDGE_COUNT = 5;
+
+    /**
+     * Least difference between the marker and background levels of a ray for it to have an edge.
+     */
+    private static final double MIN_EDGE_CONTRAST = 20d;
+
+    /**
+     * Largest root mean square distance in pixels of the edge points to the fitted ellipse.
+     */
+    static final double MAX_RESIDUAL = 1d;
+
+    /**
+     * Detector for frames the rays don't work for.
+     */
+    private final CircleDetector mFallback;
+
+    /**
+     * Amount of rays.
+     */
+    private final int mRayCount;
+
+    /**
+     * Ray directions.
+     */
+    private final double[] mRayCos, mRaySin;
+
+    /**
+     * Edge points found in the current frame as <code>{ x, y }</code> pairs.
+     */
+    private final float[] mEdgePoints;
+
+    /**
+     * Edge points the ellipse is fitted to.
+     */
+    private final MatOfPoint2f mEdgeMat;
+
+    /**
+     * Gray values of the area the rays pass through. Grows as needed.
+     */
+    private byte[] mPixels = new byte[0];
+
+    /**
+     * Gray values along every ray, one after the other with the same amount of space for each. Grows as
+     * needed.
+     */
+    private double[] mProfiles = new double[0];
+
+    /**
+     * Amount of gray values sampled along every ray.
+     */
+    private final int[] mSampleCounts;
+
+    /**
+     * Histogram of the gray values sampled along all rays.
+     */
+    private final float[] mHistogram = new float[256];
+
+    /**
+     * Marker center found in the last frame.
+     */
+    private double mLastCenterX, mLastCenterY;
+
+    /**
+     * Marker radius found in the last frame, or -1.
+     */
+    private double mLastRadius = -1d;
+
+    /**
+     * Amount of frames searched by rays and by the fallback detector since the last reset.
+     */
+    private long mRayFrames, mFallbackFrames;
+
+    /**
+     * @param fallback Detector for frames the rays don't work for. Released together with this detector.
+     * @param rayCount Amount of rays, clamped between {@link #MIN_RAY_COUNT} and {@link #MAX_RAY_COUNT}
+     */
+    public RayCastDetector(CircleDetector fallback, int rayCount) {
+        this.mFallback = fallback;
+        this.mRayCount = Math.max(MIN_RAY_COUNT, Math.min(MAX_RAY_COUNT, rayCount));
+        this.mRayCos = new double[this.mRayCount];
+        this.mRaySin = new double[this.mRayCount];
+        this.mEdgePoints = new float[2 * this.mRayCount];
+        this.mSampleCounts = new int[this.mRayCount];
+        this.mEdgeMat = new MatOfPoint2f();
+
+        for (int i = 0; i < this.mRayCount; i++) {
+            double angle = 2d * Math.PI * i / this.mRayCount;
+
+            this.mRayCos[i] = Math.cos(angle);
+            this.mRaySin[i] = Math.sin(angle);
+        }
+    }
+
+    @Override
+    public boolean detect(Mat grayMat, double expectedRadius, Point target, Detection result) {
+        if (this.mLastRadius > 0 && this.track(grayMat, result)) {
+            this.mRayFrames++;
+        } else if (this.mFallback.detect(grayMat, expectedRadius, target, result)) {
+            this.mFallbackFrames++;
+        } else {
+            this.mLastRadius = -1d;
+            return false;
+        }
+
+        this.mLastCenterX = result.getCenterX();
+        this.mLastCenterY = result.getCenterY();
+        this.mLastRadius = result.getDiameter() / 2d;
+
+        return true;
+    }
+
+    /**
+     * Casts the rays from the previous marker and fits an ellipse to the edges they find.
+     *
+     * @param grayMat Grayscale image
+     * @param result Detection to write the marker to
+     * @return <code>true</code> if the edge points fit an ellipse well enough, <code>false</code> otherwise
+     */
+    private boolean track(Mat grayMat, Detection result) {
+        double cx = this.mLastCenterX, cy = this.mLastCenterY, radius = this.mLastRadius;
+        double start = radius * RAY_START, end = radius * RAY_END;
+
+        // Bounding box of all rays, one pixel larger for the interpolation.
+        int left = Math.max(0, (int) Math.floor(cx - end) - 1);
+        int top = Math.max(0, (int) Math.floor(cy - end) - 1);
+        int right = Math.min(grayMat.cols(), (int) Math.ceil(cx + end) + 2);
+        int bottom = Math.min(grayMat.rows(), (int) Math.ceil(cy + end) + 2);
+        int width = right - left, height = bottom - top;
+
+        if (width < 2 || height < 2) {
+            return false;
+        }
+
+        // A single copy is a lot cheaper than fetching the samples of each ray one by one.
+        if (this.mPixels.length < width * height) {
+            this.mPixels = new byte[width * height];
+        }
+
+        Mat boundsMat = grayMat.submat(top, bottom, left, right);
+        boundsMat.get(0, 0, this.mPixels);
+        boundsMat.release();
+
+        int maxSamples = (int) Math.ceil(end - start) + 1;
+
+        if (this.mProfiles.length < this.mRayCount * maxSamples) {
+            this.mProfiles = new double[this.mRayCount * maxSamples];
+        }
+
+        // All rays are sampled before any edge is searched, the edge level depends on all of them.
+        Arrays.fill(this.mHistogram, 0f);
+
+        for (int i = 0; i < this.mRayCount; i++) {
+            this.mSampleCounts[i] = this.sampleRay(cx - left, cy - top, this.mRayCos[i], this.mRaySin[i], start,
+                    i * maxSamples, maxSamples, width, height);
+        }
+
+        int threshold = OtsuThreshold.findThreshold(this.mHistogram);
+
+        if (threshold < 0) {
+            return false;
+        }
+
+        // Binarizing keeps gray values above the threshold, so the edge lies half way to the next one.
+        double level = threshold + .5d;
+        int edgeCount = 0;
+
+        for (int i = 0; i < this.mRayCount; i++) {
+            double edge = findEdge(this.mProfiles, i * maxSamples, this.mSampleCounts[i], level, radius - start);
+
+            if (edge < 0) {
+                continue;
+            }
+
+            double cos = this.mRayCos[i], sin = this.mRaySin[i];
+
+            this.mEdgePoints[2 * edgeCount] = (float) (cx + cos * (start + edge));
+            this.mEdgePoints[2 * edgeCount + 1] = (float) (cy + sin * (start + edge));
+            edgeCount++;
+        }
+
+        if (!hasEnoughEdges(edgeCount, this.mRayCount)) {
+            return false;
+        }
+
+        // Only the first edgeCount points are copied, the rest of the buffer is stale.
+        this.mEdgeMat.create(edgeCount, 1, CvType.CV_32FC2);
+        this.mEdgeMat.put(0, 0, this.mEdgePoints);
+        RotatedRect ellipse = Imgproc.fitEllipse(this.mEdgeMat);
+
+        if (!(getResidual(this.mEdgePoints, edgeCount, ellipse) <= MAX_RESIDUAL)) {
+            return false;
+        }
+
+        result.set(ellipse, (double) edgeCount / this.mRayCount);
+
+        return true;
+    }
+
+    /**
+     * Samples the gray values along a ray into {@link #mProfiles} and adds them to {@link #mHistogram}.
+     *
+     * @param x Horizontal ray origin within the copied area
+     * @param y Vertical ray origin within the copied area
+     * @param cos Horizontal ray direction
+     * @param sin Vertical ray direction
+     * @param start Distance from the origin the first sample is taken at
+     * @param offset Index in {@link #mProfiles} of the first sample
+     * @param maxSamples Amount of samples, one pixel apart, unless the ray leaves the copied area first
+     * @param width Width of the copied area
+     * @param height Height of the copied area
+     * @return Amount of samples taken
+     */
+    private int sampleRay(double x, double y, double cos, double sin, double start, int offset, int maxSamples, int width, int height) {
+        int samples = 0;
+
+        while (samples < maxSamples) {
+            double sx = x + cos * (start + samples), sy = y + sin * (start + samples);
+
+            if (sx < 0 || sy < 0 || sx > width - 1 || sy > height - 1) {
+                break;
+            }
+
+            double value = this.interpolate(sx, sy, width, height);
+
+            this.mProfiles[offset + samples++] = value;
+            this.mHistogram[(int) (value + .5d)]++;
+        }
+
+        return samples;
+    }
+
+    /**
+     * Finds where the gray values along a ray cross an edge level from dark to bright.
+     *
+     * @param profile Gray values along rays, one pixel apart
+     * @param offset Index of the first gray value of the ray
+     * @param samples Amount of gray values of the ray
+     * @param level Gray value the edge lies at
+     * @param expected Position the edge is expected at, in pixels from the first gray value
+     * @return Position of the edge in pixels from the first gray value, interpolated between the gray values
+     * around it, or -1 if the ray has none
+     */
+    static double findEdge(double[] profile, int offset, int samples, double level, double expected) {
+        if (samples < 4) {
+            return -1d;
+        }
+
+        // The ray starts inside the marker and ends in the background, so both ends give the levels.
+        int quarter = Math.max(1, samples / 4);
+        double dark = 0d, bright = 0d;
+
+        for (int k = 0; k < quarter; k++) {
+            dark += profile[offset + k];
+            bright += profile[offset + samples - 1 - k];
+        }
+
+        dark /= quarter;
+        bright /= quarter;
+
+        if (bright - dark < MIN_EDGE_CONTRAST || !(dark < level && level < bright)) {
+            return -1d;
+        }
+
+        // Noise may cross the level more than once. The crossing closest to the expected position wins.
+        double edge = -1d, edgeDeviation = Double.MAX_VALUE;
+
+        for (int k = 0; k < samples - 1; k++) {
+            double current = profile[offset + k], next = profile[offset + k + 1];
+
+            if (current >= level || next < level) {
+                continue;
+            }
+
+            double crossing = k + (level - current) / (next - current);
+            double deviation = Math.abs(crossing - expected);
+
+            if (deviation < edgeDeviation) {
+                edge = crossing;
+                edgeDeviation = deviation;
+            }
+        }
+
+        return edge;
+    }
+
+    /**
+     * @param edgeCount Amount of rays which found an edge
+     * @param rayCount Amount of rays
+     * @return <code>true</code> if enough rays found an edge to fit an ellipse to, <code>false</code> if the
+     * frame has to be handed to the other detector
+     */
+    static boolean hasEnoughEdges(int edgeCount, int rayCount) {
+        return edgeCount >= MIN_EDGE_COUNT && edgeCount >= rayCount * MIN_EDGE_RATIO;
+    }
+
+    /**
+     * @param x Horizontal position within the copied area
+     * @param y Vertical position within the copied area
+     * @param width Width of the copied area
+     * @param height Height of the copied area
+     * @return Bilinearly interpolated gray value
+     */
+    private double interpolate(double x, double y, int width, int height) {
+        int x0 = Math.min((int) x, width - 2), y0 = Math.min((int) y, height - 2);
+        double fx = x - x0, fy = y - y0;
+        int i = y0 * width + x0;
+
+        double top = (this.mPixels[i] & 0xFF) * (1d - fx) + (this.mPixels[i + 1] & 0xFF) * fx;
+        double bottom = (this.mPixels[i + width] & 0xFF) * (1d - fx) + (this.mPixels[i + width + 1] & 0xFF) * fx;
+
+        return top * (1d - fy) + bottom * fy;
+    }
+
+    /**
+     * Approximates the distance of each edge point to the ellipse by scaling its distance from the center by
+     * how far it lies off the ellipse along that direction.
+     *
+     * @param points Edge points as <code>{ x, y }</code> pairs
+     * @param count Amount of edge points
+     * @param ellipse Ellipse fitted to the edge points
+     * @return Root mean square distance in pixels, or NaN if the ellipse is degenerate
+     */
+    static double getResidual(float[] points, int count, RotatedRect ellipse) {
+        double a = ellipse.size.width / 2d, b = ellipse.size.height / 2d;
+
+        if (!(a > 0 && b > 0)) {
+            return Double.NaN;
+        }
+
+        double angle = Math.toRadians(ellipse.angle);
+        double cos = Math.cos(angle), sin = Math.sin(angle);
+        double sum = 0d;
+
+        for (int i = 0; i < count; i++) {
+            double dx = points[2 * i] - ellipse.center.x, dy = points[2 * i + 1] - ellipse.center.y;
+            double u = (dx * cos + dy * sin) / a, v = (dy * cos - dx * sin) / b;
+            double rho = Math.sqrt(u * u + v * v);
+            double distance = rho > 0 ? Math.sqrt(dx * dx + dy * dy) * (1d - 1d / rho) : Math.min(a, b);
+
+            sum += distance * distance;
+        }
+
+        return Math.sqrt(sum / count);
+    }
+
+    /**
+     * @return Amount of rays
+     */
+    public int getRayCount() {
+        return this.mRayCount;
+    }
+
+    /**
+     * @return Amount of frames the marker was tracked by rays in since the last reset
+     */
+    public long getRayFrames() {
+        return this.mRayFrames;
+    }
+
+    /**
+     * @return Amount of frames handed to the fallback detector since the last reset
+     */
+    public long getFallbackFrames() {
+        return this.mFallbackFrames;
+    }
+
+    @Override
+    public void reset() {
+        this.mLastRadius = -1d;
+        this.mRayFrames = 0;
+        this.mFallbackFrames = 0;
+        this.mFallback.reset();
+    }
+
+    @Override
+    public void release() {
+        this.mEdgeMat.release();
+        this.mFallback.release();
+    }
+
+}
@@ -28,6 +28,19 @@ public class CvUtil {
         return new MatOfPoint2f(contour.toArray());
     }
 
+    /**
+     * Converts a point matrix into an existing point matrix with floating point numbers. Unlike
+     * {@link #toMatOfPoint2f(MatOfPoint)}, no intermediate point array is created.
+     *
+     * @param contour Point matrix
+     * @param dst Point matrix with floating point numbers to convert into
+     * @return <code>dst</code>
+     */
+    public static MatOfPoint2f toMatOfPoint2f(MatOfPoint contour, MatOfPoint2f dst) {
+        contour.convertTo(dst, CvType.CV_32F);
+        return dst;
+    }
+
     /**
      * Calculates the length of the major axis of an ellipse.
      *
@@ -3,157 +3,327 @@ package de.jugl.nandmeasure.util;
 import org.opencv.core.*;
 import org.opencv.imgproc.Imgproc;
 
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class MatProcessor {
 
     /**
-     * Parameter for the size of the blur kernel.
+     * Minimum amount of points in a contour for {@link Imgproc#fitEllipse(MatOfPoint2f)} to work.
      */
-    public static final String PARAM_BLUR_KERNEL_LENGTH = "blurKernel";
+    private static final int MIN_ELLIPSE_FIT_POINT_COUNT = 5;
 
     /**
-     * Parameter for the blur filter to be used.
+     * Amount of columns per component in the statistics of {@link Imgproc#connectedComponentsWithStats}.
      */
-    public static final String PARAM_BLUR_FILTER = "blurFilter";
+    private static final int COMPONENT_STATS_COLUMNS = 5;
 
     /**
-     * Parameter to adjust image brightness.
+     * Minimum amount of rows per tile. Smaller images aren't worth splitting up.
      */
-    public static final String PARAM_BRIGHTNESS = "brightness";
+    private static final int MIN_TILE_ROWS = 64;
 
     /**
-     * Parameter to adjust image contrast.
+     * Fixed point scales of the guided filter coefficients. Both fit into 16 bits unsigned: the slope is
+     * between 0 and 1, the offset between 0 and 255.
      */
-    public static final String PARAM_CONTRAST = "contrast";
+    private static final double GUIDED_SLOPE_SCALE = 65535d, GUIDED_OFFSET_SCALE = 256d;
 
     /**
-     * Parameter for the sigma value of the bilateral filter.
+     * Current parameters. Replaced as a whole whenever a parameter changes, so the processing thread
+     * always sees a consistent set of parameters without locking.
      */
-    public static final String PARAM_BILATERAL_SIGMA = "bilateralSigma";
+    private volatile Params mParams;
 
     /**
-     * Parameter for the maximum value after thresholding.
+     * Scratch matrices reused across frames: target of the blur filter and contour hierarchy.
+     * Reallocated by OpenCV only if the size of the processed area changes.
      */
-    public static final String PARAM_THRESH_MAXVAL = "threshMaxval";
+    private final Mat mBlurMat, mHierarchyMat;
 
     /**
-     * Parameter for the maximum deviation of the aspect ratio of a circle's bounding box from the ideal
-     * aspect ratio of 1.
+     * Per-pixel coefficients of the guided filter in fixed point, see {@link FilterType#GUIDED}.
      */
-    public static final String PARAM_CIRCLE_ASPECT_THRESHOLD = "circleAspect";
+    private final Mat mGuidedSlopeMat, mGuidedOffsetMat;
 
     /**
-     * Parameter for the minimum contour size.
+     * Scratch contour with floating point coordinates, see {@link #toFloatContour(MatOfPoint)}.
      */
-    public static final String PARAM_MIN_CONTOUR_AREA = "minContourArea";
+    private final MatOfPoint2f mFloatContour;
 
     /**
-     * Minimum amount of points in a contour for {@link Imgproc#fitEllipse(MatOfPoint2f)} to work.
+     * Brightness and contrast lookup table as a matrix.
      */
-    private static final int MIN_ELLIPSE_FIT_POINT_COUNT = 5;
+    private final Mat mLutMat;
+
+    /**
+     * Lookup table last copied into {@link #mLutMat}.
+     */
+    private byte[] mUploadedLut;
+
+    /**
+     * Gaussian blur kernel, applied horizontally and vertically.
+     */
+    private final Mat mGaussianKernelMat;
+
+    /**
+     * Length {@link #mGaussianKernelMat} was computed for, 0 if none was computed yet.
+     */
+    private int mGaussianKernelLength;
+
+    /**
+     * Otsu thresholding.
+     */
+    private final OtsuThreshold mThreshold;
+
+    /**
+     * Scratch matrices of the component path: inverted binary image, labels, component statistics,
+     * centroids and the mask of a single component.
+     */
+    private final Mat mComponentMat, mLabelMat, mStatsMat, mCentroidMat, mComponentMaskMat;
+
+    /**
+     * 3x3 cross the mask of a single component is dilated with, see {@link #extractComponentContour(int, Rect)}.
+     */
+    private final Mat mCrossKernel;
+
+    /**
+     * Component statistics copied out of {@link #mStatsMat}. Grown as needed.
+     */
+    private int[] mComponentStats;
+
+    /**
+     * Points of the contour being filtered, as interleaved x and y coordinates. Grown as needed.
+     */
+    private int[] mContourPoints;
+
+    /**
+     * Scratch contour list for extracting the contour of a single component.
+     */
+    private final List<MatOfPoint> mComponentContours;
+
+    /**
+     * Amount of threads preprocessing may be spread across. 1 keeps it on the calling thread.
+     */
+    private volatile int mParallelism = 1;
+
+    /**
+     * Pool the tiles are processed on, or <code>null</code>. Created on first use.
+     */
+    private ForkJoinPool mPool;
+
+    /**
+     * Horizontal tiles of the image being preprocessed. Only the first {@link #mTileCount} are in use.
+     */
+    private Tile[] mTiles;
+
+    /**
+     * Amount of tiles in use.
+     */
+    private int mTileCount;
+
+    /**
+     * Runs the tiles in use on {@link #mPool}.
+     */
+    private final TileRunner mTileRunner;
+
+    /**
+     * Step the tiles run next.
+     */
+    private Step mStep;
+
+    /**
+     * Parameters of the image being preprocessed.
+     */
+    private Params mStepParams;
+
+    /**
+     * Threshold the tiles binarize with, or -1 to set them to 0 entirely.
+     */
+    private int mStepThreshold;
+
+    /**
+     * Histogram merged from the histograms of all tiles.
+     */
+    private final float[] mHistogram;
+
+    /**
+     * Integral image of the image being preprocessed, for the adaptive threshold.
+     */
+    private final Mat mIntegralMat;
+
+    /**
+     * {@link #mIntegralMat} with its first and last row and column repeated {@link #mIntegralBorder} times,
+     * so windows reaching over the image border are looked up like any other and are cut off there.
+     */
+    private final Mat mPaddedIntegralMat;
 
     /**
-     * Mapping of parameters to their default values.
+     * Amount of rows and columns repeated on every side of {@link #mPaddedIntegralMat}.
      */
-    private static Map<String, Object> paramDefaults;
+    private int mIntegralBorder;
 
-    static {
-        paramDefaults = new HashMap<>();
-        setDefaults();
+    /**
+     * Amount of pixels in the adaptive threshold window around every pixel, cut off at the image border.
+     */
+    private final Mat mWindowAreaMat;
+
+    /**
+     * Amount of pixels in the box blur window around every pixel, cut off at the image border.
+     */
+    private final Mat mBlurAreaMat;
+
+    /**
+     * Image size and window radius {@link #mWindowAreaMat} was computed for, 0 if it wasn't yet.
+     */
+    private int mWindowAreaRows, mWindowAreaCols, mWindowAreaRadius;
+
+    /**
+     * Image size and window radius {@link #mBlurAreaMat} was computed for, 0 if it wasn't yet.
+     */
+    private int mBlurAreaRows, mBlurAreaCols, mBlurAreaRadius;
+
+    /**
+     * Radius of the adaptive threshold window of the image being preprocessed.
+     */
+    private int mAdaptiveRadius;
+
+    /**
+     * Radius of the box blur looked up in the integral image of the image being preprocessed, or -1 if the
+     * blur isn't looked up.
+     */
+    private int mIntegralBlurRadius;
+
+    /**
+     * Creates a new image processor instance and sets all parameters to their default values.
+     */
+    public MatProcessor() {
+        this.mParams = Params.DEFAULTS;
+        this.mBlurMat = new Mat();
+        this.mHierarchyMat = new Mat();
+        this.mGuidedSlopeMat = new Mat();
+        this.mGuidedOffsetMat = new Mat();
+        this.mFloatContour = new MatOfPoint2f();
+        this.mLutMat = new Mat();
+        this.mGaussianKernelMat = new Mat();
+        this.mThreshold = new OtsuThreshold();
+        this.mComponentMat = new Mat();
+        this.mLabelMat = new Mat();
+        this.mStatsMat = new Mat();
+        this.mCentroidMat = new Mat();
+        this.mComponentMaskMat = new Mat();
+        this.mCrossKernel = Imgproc.getStructuringElement(Imgproc.MORPH_CROSS, new Size(3, 3));
+        this.mComponentStats = new int[0];
+        this.mContourPoints = new int[0];
+        this.mComponentContours = new ArrayList<>();
+        this.mTiles = new Tile[0];
+        this.mTileRunner = new TileRunner();
+        this.mHistogram = new float[256];
+        this.mIntegralMat = new Mat();
+        this.mPaddedIntegralMat = new Mat();
+        this.mWindowAreaMat = new Mat();
+        this.mBlurAreaMat = new Mat();
     }
 
     /**
-     * Sets the default value of every parameter to be applied to every instance of this class.
+     * @return Current parameters
      */
-    private static void setDefaults() {
-        paramDefaults.put(PARAM_BILATERAL_SIGMA, 50f);
-        paramDefaults.put(PARAM_BLUR_KERNEL_LENGTH, 5);
-        paramDefaults.put(PARAM_BRIGHTNESS, 0f);
-        paramDefaults.put(PARAM_CONTRAST, 1f);
-        paramDefaults.put(PARAM_THRESH_MAXVAL, 255);
-        paramDefaults.put(PARAM_BLUR_FILTER, FilterType.GAUSSIAN);
-        paramDefaults.put(PARAM_CIRCLE_ASPECT_THRESHOLD, 0.1f);
-        paramDefaults.put(PARAM_MIN_CONTOUR_AREA, 50);
+    public Params getParams() {
+        return this.mParams;
     }
 
     /**
-     * @param key Image processing parameter
-     * @return Default value of the given parameter
+     * @param params New parameters
      */
-    public static Object getDefault(String key) {
-        return paramDefaults.get(key);
+    public void setParams(Params params) {
+        this.mParams = params;
     }
 
     /**
-     * Mapping of parameters to their set values.
+     * Spreads preprocessing of large images across several threads. The image is split into horizontal
+     * tiles, which are filtered and binarized in parallel. The result is bit-identical to the one on a single
+     * thread: filters read the rows next to a tile from the parent image, and every step processes a row the
+     * same way no matter which tile it belongs to.
+     *
+     * @param threads Amount of threads, 1 to preprocess on the calling thread only
      */
-    private Map<String, Object> mParams;
+    public void setParallelism(int threads) {
+        this.mParallelism = Math.max(1, threads);
+    }
 
     /**
-     * Size of the blur kernel.
+     * @param length New size of the blur kernel. 0 or less disables blurring.
      */
-    private Size mBlurKernelSize;
+    public synchronized void setBlurKernelLength(int length) {
+        this.mParams = this.mParams.withBlurKernelLength(length);
+    }
 
     /**
-     * Creates a new image processor instance and sets all parameters to their default values.
+     * @param filter New blur filter
      */
-    public MatProcessor() {
-        this.mParams = new HashMap<>(paramDefaults);
-        this.mBlurKernelSize = new Size();
+    public synchronized void setBlurFilter(FilterType filter) {
+        this.mParams = this.mParams.withBlurFilter(filter);
+    }
 
-        this.updateBlurKernelSize();
+    /**
+     * @param brightness New brightness adjustment
+     * @param contrast New contrast adjustment
+     */
+    public synchronized void setBrightnessContrast(float brightness, float contrast) {
+        this.mParams = this.mParams.withBrightnessContrast(brightness, contrast);
     }
 
     /**
-     * @param key Image processing parameter
-     * @return Current value of the given parameter
+     * @param sigma New sigma value of the bilateral filter. Also controls the edge preservation of the guided
+     *              filter.
      */
-    public Object get(String key) {
-        return this.mParams.get(key);
+    public synchronized void setBilateralSigma(float sigma) {
+        this.mParams = this.mParams.withBilateralSigma(sigma);
     }
 
     /**
-     * @param key Image processing parameter
-     * @param newVal New value of the given parameter
+     * @param type New way of choosing the threshold
      */
-    public void set(String key, Object newVal) {
-        Object oldVal = this.get(key);
-        this.mParams.put(key, newVal);
+    public synchronized void setThresholdType(ThresholdType type) {
+        this.mParams = this.mParams.withThresholdType(type);
+    }
 
-        // Check if the value changed.
-        if (!oldVal.equals(newVal)) {
-            this.notifyParamUpdate(key);
-        }
+    /**
+     * @param maxval New maximum value after thresholding
+     */
+    public synchronized void setThreshMaxval(int maxval) {
+        this.mParams = this.mParams.withThreshMaxval(maxval);
     }
 
     /**
-     * Updates fields associated with certain parameters, if needed.
-     *
-     * @param key Parameter that had its value changed
+     * @param window New side length of the adaptive threshold window relative to the shorter image side
+     * @param offset New amount a pixel may be darker than its window mean and still count as bright
      */
-    private void notifyParamUpdate(String key) {
-        switch (key) {
-            case PARAM_BLUR_KERNEL_LENGTH: {
-                this.updateBlurKernelSize();
-            } break;
-        }
+    public synchronized void setAdaptiveThreshold(float window, int offset) {
+        this.mParams = this.mParams.withAdaptiveThreshold(window, offset);
     }
 
     /**
-     * Adjusts the size of the blur kernel.
+     * @param extraction New way of extracting marker candidates
      */
-    private void updateBlurKernelSize() {
-        int kernelLen = (int) this.get(PARAM_BLUR_KERNEL_LENGTH);
+    public synchronized void setCandidateExtraction(CandidateExtraction extraction) {
+        this.mParams = this.mParams.withCandidateExtraction(extraction);
+    }
 
-        if (kernelLen <= 0) {
-            return;
-        }
+    /**
+     * @param threshold New maximum deviation of the aspect ratio of a circle's bounding box from 1
+     */
+    public synchronized void setCircleAspectThreshold(float threshold) {
+        this.mParams = this.mParams.withCircleAspectThreshold(threshold);
+    }
 
-        this.mBlurKernelSize.set(new double[] { kernelLen, kernelLen });
+    /**
+     * @param area New minimum contour area
+     */
+    public synchronized void setMinContourArea(int area) {
+        this.mParams = this.mParams.withMinContourArea(area);
     }
 
     /**
@@ -162,88 +332,347 @@ public class MatProcessor {
      * @param grayMat Grayscale image to process
      */
     public void preprocess(Mat grayMat) {
-        int rows = grayMat.rows(),
-                cols = grayMat.cols(),
-                type = grayMat.type();
+        Params params = this.mParams;
 
-        // Adjust brightness and contrast. -1 denotes that the output matrix has the same attributes
-        // as the input matrix.
-        grayMat.convertTo(grayMat, -1, (float) this.get(PARAM_CONTRAST), (float) this.get(PARAM_BRIGHTNESS));
+        this.splitIntoTiles(grayMat, params);
+        this.mStepParams = params;
 
-        int blurKernelLen = (int) this.get(PARAM_BLUR_KERNEL_LENGTH);
+        // Adjust brightness and contrast. This is a per-pixel mapping, so it's looked up in a table computed
+        // once per parameter change. Nothing to do with the default values.
+        if (params.mLut != null) {
+            this.uploadLut(params.mLut);
+            this.runTiles(Step.LUT);
+        }
 
-        if (blurKernelLen > 0) {
-            FilterType filter = (FilterType) this.get(PARAM_BLUR_FILTER);
+        Mat filteredMat = grayMat;
 
-            if (filter == FilterType.BILATERAL) {
-                // Bilateral filter does not work in-place. We need an extra matrix for that.
-                Mat blurMat = new Mat(rows, cols, type);
-                double blurBilateralSigma = (double) this.get(PARAM_BILATERAL_SIGMA);
+        // Filters read the rows next to their tile too, up to half the kernel length, so filtering only starts
+        // once all tiles have been adjusted. The result goes to a separate matrix, since neighboring tiles
+        // still need the unfiltered rows. The single-threaded path takes the same route.
+        if (params.mBlurKernelLength > 0 && !usesIntegralBlur(params)) {
+            if (params.mBlurFilter == FilterType.GAUSSIAN) {
+                this.computeGaussianKernel(params.mBlurKernelLength);
+            }
 
-                // sigmaColor and sigmaSpace stem from the OpenCV documentation. The bilateral filter
-                // takes a lot of time to finish and should work well enough with the default values.
-                Imgproc.bilateralFilter(grayMat, blurMat, blurKernelLen, blurBilateralSigma, blurBilateralSigma);
+            this.runTiles(Step.FILTER);
 
-                // Copy the blurred image into our grayscale image.
-                blurMat.copyTo(grayMat);
-                blurMat.release();
-            } else if (filter == FilterType.GAUSSIAN) {
-                Imgproc.GaussianBlur(grayMat, grayMat, this.mBlurKernelSize, 0);
-            } else if (filter == FilterType.BOX) {
-                Imgproc.blur(grayMat, grayMat, this.mBlurKernelSize);
+            // The guided filter averages its coefficients over the same window again, so the coefficients of
+            // the neighboring tiles have to be there first.
+            if (params.mBlurFilter == FilterType.GUIDED) {
+                this.runTiles(Step.GUIDED_OUTPUT);
+            }
+
+            filteredMat = this.mBlurMat;
+        }
+
+        if (params.mThresholdType == ThresholdType.ADAPTIVE) {
+            this.computeIntegral(filteredMat, params);
+            this.runTiles(Step.ADAPTIVE_THRESHOLD);
+            this.releaseTiles();
+            return;
+        }
+
+        // Otsu's method doesn't care about min-max normalization, so the image isn't normalized first.
+        boolean temporal = params.mThresholdType == ThresholdType.OTSU_TEMPORAL;
+
+        if (temporal && this.mThreshold.useCachedThreshold(filteredMat)) {
+            this.mStepThreshold = this.mThreshold.getCachedThreshold();
+        } else {
+            this.mStepThreshold = this.computeThreshold();
+
+            if (temporal) {
+                this.mThreshold.cacheThreshold(filteredMat, this.mStepThreshold);
             }
         }
 
-        int threshMax = (int) this.get(PARAM_THRESH_MAXVAL);
+        this.runTiles(Step.THRESHOLD);
+        this.releaseTiles();
+    }
 
-        Core.normalize(grayMat, grayMat, 0d, 255d, Core.NORM_MINMAX);
-        Imgproc.threshold(grayMat, grayMat, 0, threshMax, Imgproc.THRESH_OTSU);
+    /**
+     * @param params Parameters
+     * @return <code>true</code> if the box blur is looked up in the integral image of the adaptive threshold
+     * instead of being applied on its own, <code>false</code> otherwise
+     */
+    private static boolean usesIntegralBlur(Params params) {
+        return params.mThresholdType == ThresholdType.ADAPTIVE && params.mBlurFilter == FilterType.BOX &&
+               params.mBlurKernelLength > 0;
     }
 
     /**
-     * Finds contours in a binarized image. Only the points which approximate the contours are saved. The hierarchical
-     * relationships between the contours are discarded.
+     * Computes the integral image of the filtered image for the tiles to look up window sums in, and pads
+     * it for windows reaching over the image border. Also derives the radius of the adaptive threshold
+     * window from the image size.
      *
-     * @param contours List of contours
-     * @param grayMat Binarized image
+     * @param filteredMat Filtered image
+     * @param params Parameters
      */
-    public void findContours(List<MatOfPoint> contours, Mat grayMat) {
-        Mat hierarchyMat = new Mat();
-        Imgproc.findContours(grayMat, contours, hierarchyMat, Imgproc.RETR_LIST, Imgproc.CHAIN_APPROX_SIMPLE);
-        hierarchyMat.release();
+    private void computeIntegral(Mat filteredMat, Params params) {
+        int rows = filteredMat.rows(), cols = filteredMat.cols();
+        int window = Math.round(params.mAdaptiveWindow * Math.min(rows, cols));
+
+        this.mAdaptiveRadius = Math.max(1, window / 2);
+        this.mIntegralBlurRadius = usesIntegralBlur(params) ? params.mBlurKernelLength / 2 : -1;
+        this.mIntegralBorder = Math.max(this.mAdaptiveRadius, this.mIntegralBlurRadius);
+
+        Imgproc.integral(filteredMat, this.mIntegralMat, CvType.CV_32S);
+
+        // Repeating the first row and column clamps windows to the top and left border, repeating the last
+        // ones clamps them to the bottom and right border.
+        int border = this.mIntegralBorder;
+        Core.copyMakeBorder(this.mIntegralMat, this.mPaddedIntegralMat, border, border, border, border, Core.BORDER_REPLICATE);
+
+        // Window areas only change with the image size, so they are computed once for a whole measurement.
+        int radius = this.mAdaptiveRadius;
+
+        if (this.mWindowAreaRows != rows || this.mWindowAreaCols != cols || this.mWindowAreaRadius != radius) {
+            computeWindowAreas(this.mWindowAreaMat, rows, cols, radius);
+            this.mWindowAreaRows = rows;
+            this.mWindowAreaCols = cols;
+            this.mWindowAreaRadius = radius;
+        }
+
+        int blurRadius = this.mIntegralBlurRadius;
+
+        if (blurRadius >= 0 && (this.mBlurAreaRows != rows || this.mBlurAreaCols != cols || this.mBlurAreaRadius != blurRadius)) {
+            computeWindowAreas(this.mBlurAreaMat, rows, cols, blurRadius);
+            this.mBlurAreaRows = rows;
+            this.mBlurAreaCols = cols;
+            this.mBlurAreaRadius = blurRadius;
+        }
+    }
+
+    /**
+     * Computes the amount of pixels in the window around every pixel of an image, with the window cut off at
+     * the image border. That's the amount of rows times the amount of columns the window covers.
+     *
+     * @param areaMat Target matrix, of type {@link CvType#CV_32SC1}
+     * @param rows Amount of image rows
+     * @param cols Amount of image columns
+     * @param radius Window radius
+     */
+    private static void computeWindowAreas(Mat areaMat, int rows, int cols, int radius) {
+        Mat rowCounts = new Mat(rows, 1, CvType.CV_32SC1);
+        Mat colCounts = new Mat(1, cols, CvType.CV_32SC1);
+        Mat repeatedRowCounts = new Mat();
+
+        rowCounts.put(0, 0, countWindowPixels(rows, radius));
+        colCounts.put(0, 0, countWindowPixels(cols, radius));
+
+        Core.repeat(colCounts, rows, 1, areaMat);
+        Core.repeat(rowCounts, 1, cols, repeatedRowCounts);
+        Core.multiply(areaMat, repeatedRowCounts, areaMat);
+
+        rowCounts.release();
+        colCounts.release();
+        repeatedRowCounts.release();
+    }
+
+    /**
+     * @param length Amount of pixels along one axis
+     * @param radius Window radius
+     * @return Amount of pixels a window covers along that axis, for every position, cut off at both ends
+     */
+    private static int[] countWindowPixels(int length, int radius) {
+        int[] counts = new int[length];
+
+        for (int i = 0; i < length; i++) {
+            counts[i] = Math.min(length, i + radius + 1) - Math.max(0, i - radius);
+        }
+
+        return counts;
+    }
+
+    /**
+     * Computes the Otsu threshold of the filtered image from the merged histograms of all tiles. The counts
+     * add up exactly, so this is the same threshold as computed from the whole image at once.
+     *
+     * @return Threshold, or -1 if the image has no contrast
+     */
+    private int computeThreshold() {
+        this.runTiles(Step.HISTOGRAM);
 
-        int minContourArea = (int) this.get(PARAM_MIN_CONTOUR_AREA);
+        float[] histogram = this.mHistogram;
+        System.arraycopy(this.mTiles[0].mThreshold.getHistogram(), 0, histogram, 0, histogram.length);
 
-        for (Iterator<MatOfPoint> it = contours.iterator(); it.hasNext(); ) {
-            if (Imgproc.contourArea(it.next(), true) < minContourArea) {
-                it.remove();
+        for (int i = 1; i < this.mTileCount; i++) {
+            float[] tileHistogram = this.mTiles[i].mThreshold.getHistogram();
+
+            for (int j = 0; j < histogram.length; j++) {
+                histogram[j] += tileHistogram[j];
             }
         }
+
+        return OtsuThreshold.findThreshold(histogram);
     }
 
     /**
-     * Finds contours in a binarized image using {@link #findContours(List, Mat)}. Only keeps contours whose
-     * bounding boxes are approximately square. The maximum deviation can be set using {@link #PARAM_CIRCLE_ASPECT_THRESHOLD}.
+     * Splits an image into horizontal tiles, one per thread, unless it is too small to be worth it.
      *
-     * @param contours List of contours
-     * @param grayMat Binarized image
+     * @param grayMat Grayscale image
+     * @param params Parameters
      */
-    public void findCircleContours(List<MatOfPoint> contours, Mat grayMat) {
-        this.findContours(contours, grayMat);
+    private void splitIntoTiles(Mat grayMat, Params params) {
+        int rows = grayMat.rows();
+        int count = Math.max(1, Math.min(this.mParallelism, rows / MIN_TILE_ROWS));
+
+        if (this.mTiles.length < count) {
+            Tile[] tiles = new Tile[count];
+            System.arraycopy(this.mTiles, 0, tiles, 0, this.mTiles.length);
+
+            for (int i = this.mTiles.length; i < count; i++) {
+                tiles[i] = new Tile();
+            }
+
+            this.mTiles = tiles;
+        }
+
+        boolean blur = params.mBlurKernelLength > 0 && !usesIntegralBlur(params);
+        boolean guided = blur && params.mBlurFilter == FilterType.GUIDED;
+
+        if (blur) {
+            this.mBlurMat.create(grayMat.size(), grayMat.type());
+        }
+
+        if (guided) {
+            this.mGuidedSlopeMat.create(grayMat.size(), CvType.CV_16UC1);
+            this.mGuidedOffsetMat.create(grayMat.size(), CvType.CV_16UC1);
+        }
+
+        // A single tile is the whole image, no need for submatrices.
+        if (count == 1) {
+            this.mTiles[0].mGrayRows = grayMat;
+            this.mTiles[0].mRowStart = 0;
+            this.mTiles[0].mBlurRows = blur ? this.mBlurMat : null;
+            this.mTiles[0].mSlopeRows = guided ? this.mGuidedSlopeMat : null;
+            this.mTiles[0].mOffsetRows = guided ? this.mGuidedOffsetMat : null;
+        } else {
+            for (int i = 0; i < count; i++) {
+                int start = rows * i / count, end = rows * (i + 1) / count;
+
+                this.mTiles[i].mGrayRows = grayMat.rowRange(start, end);
+                this.mTiles[i].mRowStart = start;
+                this.mTiles[i].mBlurRows = blur ? this.mBlurMat.rowRange(start, end) : null;
+                this.mTiles[i].mSlopeRows = guided ? this.mGuidedSlopeMat.rowRange(start, end) : null;
+                this.mTiles[i].mOffsetRows = guided ? this.mGuidedOffsetMat.rowRange(start, end) : null;
+            }
+        }
+
+        this.mTileCount = count;
+    }
+
+    /**
+     * Runs a step on all tiles in use and waits for it to finish.
+     *
+     * @param step Step to run
+     */
+    private void runTiles(Step step) {
+        this.mStep = step;
+
+        if (this.mTileCount == 1) {
+            this.mTiles[0].run(step);
+            return;
+        }
+
+        int parallelism = this.mParallelism;
+
+        if (this.mPool == null || this.mPool.getParallelism() != parallelism) {
+            if (this.mPool != null) {
+                this.mPool.shutdown();
+            }
 
-        Rect boundingBox;
-        float aspect, aspectThreshold = (float) this.get(PARAM_CIRCLE_ASPECT_THRESHOLD);
+            this.mPool = new ForkJoinPool(parallelism);
+        }
+
+        this.mTileRunner.reinitialize();
+        this.mPool.invoke(this.mTileRunner);
+    }
 
-        for (Iterator<MatOfPoint> it = contours.iterator(); it.hasNext(); ) {
-            boundingBox = Imgproc.boundingRect(it.next());
-            aspect = (float) boundingBox.width / boundingBox.height;
+    /**
+     * Releases the submatrices of the tiles in use.
+     */
+    private void releaseTiles() {
+        for (int i = 0; i < this.mTileCount; i++) {
+            Tile tile = this.mTiles[i];
 
-            if (Math.abs(aspect - 1f) > aspectThreshold) {
-                it.remove();
+            if (this.mTileCount > 1) {
+                safelyRelease(tile.mGrayRows);
+                safelyRelease(tile.mBlurRows);
+                safelyRelease(tile.mSlopeRows);
+                safelyRelease(tile.mOffsetRows);
             }
+
+            tile.mGrayRows = null;
+            tile.mBlurRows = null;
+            tile.mSlopeRows = null;
+            tile.mOffsetRows = null;
+        }
+
+        this.mStepParams = null;
+    }
+
+    /**
+     * @param mat Matrix to release, or <code>null</code>
+     */
+    private static void safelyRelease(Mat mat) {
+        if (mat != null) {
+            mat.release();
+        }
+    }
+
+    /**
+     * Copies a brightness and contrast lookup table into {@link #mLutMat}, unless it's already there.
+     *
+     * @param lut Lookup table with 256 entries
+     */
+    private void uploadLut(byte[] lut) {
+        // Only upload the table again if the parameters changed.
+        if (this.mUploadedLut != lut) {
+            this.mLutMat.create(1, lut.length, CvType.CV_8UC1);
+            this.mLutMat.put(0, 0, lut);
+            this.mUploadedLut = lut;
+        }
+    }
+
+    /**
+     * Computes the Gaussian blur kernel into {@link #mGaussianKernelMat}, unless it's already there. Same
+     * kernel as {@link Imgproc#GaussianBlur(Mat, Mat, Size, double)} uses for 8-bit images.
+     *
+     * @param length Kernel length
+     */
+    private void computeGaussianKernel(int length) {
+        if (this.mGaussianKernelLength != length) {
+            Mat kernel = Imgproc.getGaussianKernel(length, 0, CvType.CV_32F);
+            kernel.copyTo(this.mGaussianKernelMat);
+            kernel.release();
+
+            this.mGaussianKernelLength = length;
         }
     }
 
+    /**
+     * Finds contours in a binarized image. Only the points which approximate the contours are saved. The hierarchical
+     * relationships between the contours are discarded. Contours left in the list from the last call are released
+     * first, so the same list can be passed in frame after frame.
+     *
+     * @param contours List of contours
+     * @param grayMat Binarized image
+     */
+    public void findContours(List<MatOfPoint> contours, Mat grayMat) {
+        this.findCandidates(contours, grayMat, Float.POSITIVE_INFINITY, 0);
+    }
+
+    /**
+     * Finds contours in a binarized image using {@link #findContours(List, Mat)}. Only keeps contours whose
+     * bounding boxes are approximately square. The maximum deviation can be set using {@link #setCircleAspectThreshold(float)}.
+     *
+     * @param contours List of contours
+     * @param grayMat Binarized image
+     */
+    public void findCircleContours(List<MatOfPoint> contours, Mat grayMat) {
+        this.findCandidates(contours, grayMat, this.mParams.mCircleAspectThreshold, 0);
+    }
+
     /**
      * Finds contours in a binarized image using {@link #findContours(List, Mat)}. Only keeps contours with
      * at least five points for {@link Imgproc#fitEllipse(MatOfPoint2f)}.
@@ -252,22 +681,986 @@ public class MatProcessor {
      * @param grayMat Binarized image
      */
     public void findContoursForEllipseFit(List<MatOfPoint> contours, Mat grayMat) {
-        this.findContours(contours, grayMat);
+        this.findCandidates(contours, grayMat, Float.POSITIVE_INFINITY, MIN_ELLIPSE_FIT_POINT_COUNT);
+    }
 
-        for (Iterator<MatOfPoint> it = contours.iterator(); it.hasNext(); ) {
-            if (it.next().total() < MIN_ELLIPSE_FIT_POINT_COUNT) {
-                it.remove();
-            }
+    /**
+     * Finds marker candidates in a binarized image and filters them in a single pass.
+     *
+     * @param contours List of contours
+     * @param grayMat Binarized image
+     * @param aspectThreshold Maximum deviation of the aspect ratio of a bounding box from 1
+     * @param minPoints Minimum amount of points in a contour
+     */
+    private void findCandidates(List<MatOfPoint> contours, Mat grayMat, float aspectThreshold, int minPoints) {
+        if (this.mParams.mCandidateExtraction == CandidateExtraction.COMPONENTS) {
+            // The component path checks area and aspect ratio before extracting any points.
+            this.findComponentContours(contours, grayMat, aspectThreshold);
+            this.filterContours(contours, Integer.MIN_VALUE, Float.POSITIVE_INFINITY, minPoints);
+        } else {
+            releaseContours(contours);
+
+            Imgproc.findContours(grayMat, contours, this.mHierarchyMat, Imgproc.RETR_LIST, Imgproc.CHAIN_APPROX_SIMPLE);
+            this.filterContours(contours, this.mParams.mMinContourArea, aspectThreshold, minPoints);
         }
     }
 
-    public enum FilterType {
+    /**
+     * Filters contours by oriented area, bounding box aspect ratio and point count in a single pass. The
+     * points of every contour are copied out in one native call, and area and bounding box are computed
+     * from them the same way {@link Imgproc#contourArea(Mat, boolean)} and {@link Imgproc#boundingRect(Mat)}
+     * do, instead of calling into OpenCV once per check. Contours which don't pass are released.
+     *
+     * @param contours List of contours
+     * @param minArea Minimum oriented area
+     * @param aspectThreshold Maximum deviation of the aspect ratio of a bounding box from 1
+     * @param minPoints Minimum amount of points
+     */
+    private void filterContours(List<MatOfPoint> contours, int minArea, float aspectThreshold, int minPoints) {
+        boolean checkArea = minArea != Integer.MIN_VALUE, checkAspect = aspectThreshold != Float.POSITIVE_INFINITY;
+        int kept = 0;
 
-        BILATERAL,
+        for (int i = 0; i < contours.size(); i++) {
+            MatOfPoint contour = contours.get(i);
+            int pointCount = (int) contour.total();
+            boolean keep = pointCount >= minPoints;
 
-        GAUSSIAN,
+            if (keep && (checkArea || checkAspect)) {
+                if (this.mContourPoints.length < 2 * pointCount) {
+                    this.mContourPoints = new int[2 * pointCount];
+                }
+
+                contour.get(0, 0, this.mContourPoints);
+
+                keep = (!checkArea || getOrientedArea(this.mContourPoints, pointCount) >= minArea) &&
+                       (!checkAspect || isSquare(this.mContourPoints, pointCount, aspectThreshold));
+            }
+
+            if (keep) {
+                contours.set(kept++, contour);
+            } else {
+                contour.release();
+            }
+        }
+
+        // Drop the tail in one go instead of shifting the list on every removal.
+        contours.subList(kept, contours.size()).clear();
+    }
+
+    /**
+     * @param points Interleaved x and y coordinates
+     * @param count Amount of points
+     * @return Oriented area of the polygon, as {@link Imgproc#contourArea(Mat, boolean)} computes it
+     */
+    static double getOrientedArea(int[] points, int count) {
+        if (count == 0) {
+            return 0d;
+        }
+
+        double area = 0;
+        int prevX = points[2 * (count - 1)], prevY = points[2 * (count - 1) + 1];
+
+        for (int i = 0; i < count; i++) {
+            int x = points[2 * i], y = points[2 * i + 1];
+
+            area += (double) prevX * y - (double) x * prevY;
+            prevX = x;
+            prevY = y;
+        }
+
+        return area * .5d;
+    }
+
+    /**
+     * @param points Interleaved x and y coordinates
+     * @param count Amount of points
+     * @param aspectThreshold Maximum deviation of the aspect ratio of the bounding box from 1
+     * @return <code>true</code> if the bounding box of the points is approximately square, <code>false</code>
+     * otherwise
+     */
+    static boolean isSquare(int[] points, int count, float aspectThreshold) {
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+
+        for (int i = 0; i < count; i++) {
+            int x = points[2 * i], y = points[2 * i + 1];
+
+            minX = Math.min(minX, x);
+            maxX = Math.max(maxX, x);
+            minY = Math.min(minY, y);
+            maxY = Math.max(maxY, y);
+        }
+
+        // Same as the dimensions of Imgproc.boundingRect(), which counts the outermost pixels in.
+        float aspect = (float) (maxX - minX + 1) / (maxY - minY + 1);
+
+        return Math.abs(aspect - 1f) <= aspectThreshold;
+    }
+
+    /**
+     * Finds marker candidates among the connected components of a binarized image, no matter which
+     * {@link CandidateExtraction} is set. Components are filtered just like with
+     * {@link CandidateExtraction#COMPONENTS}.
+     *
+     * @param contours List of contours
+     * @param grayMat Binarized image
+     * @param circlesOnly <code>true</code> to only keep components whose bounding boxes are approximately
+     *                    square, <code>false</code> otherwise
+     */
+    public void findComponentContours(List<MatOfPoint> contours, Mat grayMat, boolean circlesOnly) {
+        this.findComponentContours(contours, grayMat, circlesOnly ? this.mParams.mCircleAspectThreshold : Float.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Finds the contours of dark blobs in a binarized image based on connected components. Area, bounding
+     * box and centroid of every blob come out of a single native call, so blobs are filtered on a plain
+     * array, and points are only extracted for the blobs which pass. Blobs touching the image border are
+     * skipped, just like the contour path skips them because they aren't enclosed by a contour. The
+     * contours run through the same bright pixels around a blob as the contour path does, see
+     * {@link #extractComponentContour(int, Rect)}.
+     *
+     * @param contours List of contours
+     * @param grayMat Binarized image
+     * @param aspectThreshold Maximum deviation of the aspect ratio of a blob's bounding box from 1
+     */
+    private void findComponentContours(List<MatOfPoint> contours, Mat grayMat, float aspectThreshold) {
+        releaseContours(contours);
+
+        int rows = grayMat.rows(), cols = grayMat.cols(), minArea = this.mParams.mMinContourArea;
+
+        // The marker is dark, so it's black after thresholding. Components are made up of white pixels.
+        Core.bitwise_not(grayMat, this.mComponentMat);
+
+        int count = Imgproc.connectedComponentsWithStats(this.mComponentMat, this.mLabelMat, this.mStatsMat,
+                this.mCentroidMat, 8, CvType.CV_32S);
+
+        if (this.mComponentStats.length < count * COMPONENT_STATS_COLUMNS) {
+            this.mComponentStats = new int[count * COMPONENT_STATS_COLUMNS];
+        }
+
+        this.mStatsMat.get(0, 0, this.mComponentStats);
+
+        // Label 0 is the background.
+        for (int label = 1; label < count; label++) {
+            int offset = label * COMPONENT_STATS_COLUMNS;
+            int left = this.mComponentStats[offset + Imgproc.CC_STAT_LEFT];
+            int top = this.mComponentStats[offset + Imgproc.CC_STAT_TOP];
+            int width = this.mComponentStats[offset + Imgproc.CC_STAT_WIDTH];
+            int height = this.mComponentStats[offset + Imgproc.CC_STAT_HEIGHT];
+
+            if (this.mComponentStats[offset + Imgproc.CC_STAT_AREA] < minArea) {
+                continue;
+            }
+
+            if (left == 0 || top == 0 || left + width == cols || top + height == rows) {
+                continue;
+            }
+
+            if (Math.abs((float) width / height - 1f) > aspectThreshold) {
+                continue;
+            }
+
+            MatOfPoint contour = this.extractComponentContour(label, new Rect(left - 1, top - 1, width + 2, height + 2));
+
+            if (contour != null) {
+                contours.add(contour);
+            }
+        }
+    }
+
+    /**
+     * Extracts the outer contour of a single component. The contour path traces the bright pixels next to
+     * a dark blob, while the outer contour of the blob itself runs through its own outermost pixels, which
+     * would make the blob about one pixel smaller in radius. The blob is therefore grown by the bright
+     * pixels sharing an edge with it first, which are the ones the contour path traces.
+     *
+     * @param label Component label
+     * @param box Area of the label image containing the component and a one pixel margin
+     * @return Contour in coordinates of the label image, or <code>null</code> if none was found
+     */
+    private MatOfPoint extractComponentContour(int label, Rect box) {
+        Mat labels = this.mLabelMat.submat(box);
+
+        Core.compare(labels, new Scalar(label), this.mComponentMaskMat, Core.CMP_EQ);
+        labels.release();
+
+        // The one pixel margin leaves room for this.
+        Imgproc.dilate(this.mComponentMaskMat, this.mComponentMaskMat, this.mCrossKernel);
+
+        Imgproc.findContours(this.mComponentMaskMat, this.mComponentContours, this.mHierarchyMat,
+                Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE, new Point(box.x, box.y));
+
+        // An 8-connected component has exactly one outer contour.
+        MatOfPoint contour = this.mComponentContours.isEmpty() ? null : this.mComponentContours.remove(0);
+        releaseContours(this.mComponentContours);
+
+        return contour;
+    }
+
+    /**
+     * Converts a contour into one with floating point coordinates, as needed by
+     * {@link Imgproc#fitEllipse(MatOfPoint2f)}. The result is a scratch matrix owned by this processor and
+     * is only valid until the next call.
+     *
+     * @param contour Contour
+     * @return Contour with floating point coordinates
+     */
+    public MatOfPoint2f toFloatContour(MatOfPoint contour) {
+        return CvUtil.toMatOfPoint2f(contour, this.mFloatContour);
+    }
+
+    /**
+     * Releases all contours in a list and clears it.
+     *
+     * @param contours List of contours
+     */
+    public static void releaseContours(List<MatOfPoint> contours) {
+        for (MatOfPoint contour : contours) {
+            contour.release();
+        }
+
+        contours.clear();
+    }
+
+    /**
+     * Releases the scratch matrices of this processor. It can still be used afterwards, the matrices are
+     * allocated again as needed.
+     */
+    public void release() {
+        this.mBlurMat.release();
+        this.mHierarchyMat.release();
+        this.mGuidedSlopeMat.release();
+        this.mGuidedOffsetMat.release();
+        this.mIntegralMat.release();
+        this.mPaddedIntegralMat.release();
+        this.mWindowAreaMat.release();
+        this.mBlurAreaMat.release();
+        this.mWindowAreaRows = this.mWindowAreaCols = this.mWindowAreaRadius = 0;
+        this.mBlurAreaRows = this.mBlurAreaCols = this.mBlurAreaRadius = 0;
+        this.mFloatContour.release();
+        this.mLutMat.release();
+        this.mUploadedLut = null;
+        this.mGaussianKernelMat.release();
+        this.mGaussianKernelLength = 0;
+        this.mThreshold.release();
+        this.mComponentMat.release();
+        this.mLabelMat.release();
+        this.mStatsMat.release();
+        this.mCentroidMat.release();
+        this.mComponentMaskMat.release();
+
+        for (Tile tile : this.mTiles) {
+            tile.release();
+        }
+
+        if (this.mPool != null) {
+            this.mPool.shutdown();
+            this.mPool = null;
+        }
+    }
+
+    /**
+     * Preprocessing steps run on every tile. Each step has to be finished on all tiles before the next starts.
+     */
+    private enum Step {
+
+        LUT,
+
+        FILTER,
+
+        GUIDED_OUTPUT,
+
+        HISTOGRAM,
+
+        THRESHOLD,
+
+        ADAPTIVE_THRESHOLD
+
+    }
+
+    /**
+     * Horizontal stripe of the image being preprocessed.
+     */
+    private final class Tile extends RecursiveAction {
+
+        /**
+         * Rows of the image and of the blur target covered by this tile. <code>null</code> while no image
+         * is being preprocessed. The blur rows are also <code>null</code> if blurring is disabled.
+         */
+        private Mat mGrayRows, mBlurRows;
+
+        /**
+         * Rows of the guided filter coefficients covered by this tile. <code>null</code> unless the guided
+         * filter is used.
+         */
+        private Mat mSlopeRows, mOffsetRows;
+
+        /**
+         * Index of the first image row covered by this tile.
+         */
+        private int mRowStart;
+
+        /**
+         * Scratch matrices of the guided filter and the adaptive threshold, as large as this tile.
+         * <code>null</code> until first needed, see {@link #allocateScratch(int)}.
+         */
+        private Mat mMeanMat, mSquareMeanMat, mGrayFloatMat;
+
+        /**
+         * Buffers behind the scratch matrices, one column wider than them.
+         */
+        private final Mat mMeanBuffer = new Mat(), mSquareMeanBuffer = new Mat(), mGrayFloatBuffer = new Mat();
+
+        /**
+         * Histogram of the filtered rows of this tile.
+         */
+        private final OtsuThreshold mThreshold = new OtsuThreshold();
+
+        @Override
+        protected void compute() {
+            this.run(mStep);
+        }
+
+        /**
+         * @param step Step to run on this tile
+         */
+        private void run(Step step) {
+            Params params = mStepParams;
+            Mat filteredMat = this.mBlurRows != null ? this.mBlurRows : this.mGrayRows;
+
+            switch (step) {
+                case LUT:
+                    Core.LUT(this.mGrayRows, mLutMat, this.mGrayRows);
+                    break;
+                case FILTER:
+                    this.filter(params);
+                    break;
+                case GUIDED_OUTPUT:
+                    this.applyGuidedCoefficients(params);
+                    break;
+                case HISTOGRAM:
+                    this.mThreshold.computeThreshold(filteredMat);
+                    break;
+                case THRESHOLD:
+                    if (mStepThreshold < 0) {
+                        this.mGrayRows.setTo(new Scalar(0));
+                    } else {
+                        Imgproc.threshold(filteredMat, this.mGrayRows, mStepThreshold, params.mThreshMaxval, Imgproc.THRESH_BINARY);
+                    }
+                    break;
+                case ADAPTIVE_THRESHOLD:
+                    this.thresholdAdaptively(filteredMat, params);
+                    break;
+            }
+        }
+
+        /**
+         * Blurs the rows of this tile into {@link #mBlurRows}. Rows next to the tile are read from the parent
+         * image as border, exactly like when the whole image is blurred at once.
+         * <p>
+         * The Gaussian blur is applied as a separable filter. {@link Imgproc#GaussianBlur(Mat, Mat, Size, double)}
+         * switches to fixed point arithmetic for 8-bit images which aren't submatrices, so a whole image would
+         * be rounded differently than its tiles.
+         *
+         * @param params Parameters
+         */
+        private void filter(Params params) {
+            int blurKernelLen = params.mBlurKernelLength;
+            FilterType filter = params.mBlurFilter;
+
+            if (filter == FilterType.BILATERAL) {
+                // sigmaColor and sigmaSpace stem from the OpenCV documentation. The bilateral filter
+                // takes a lot of time to finish and should work well enough with the default values.
+                double blurBilateralSigma = params.mBilateralSigma;
+                Imgproc.bilateralFilter(this.mGrayRows, this.mBlurRows, blurKernelLen, blurBilateralSigma, blurBilateralSigma);
+            } else if (filter == FilterType.GAUSSIAN) {
+                Imgproc.sepFilter2D(this.mGrayRows, this.mBlurRows, -1, mGaussianKernelMat, mGaussianKernelMat);
+            } else if (filter == FilterType.BOX) {
+                Imgproc.blur(this.mGrayRows, this.mBlurRows, params.mBlurKernelSize);
+            } else if (filter == FilterType.GUIDED) {
+                this.computeGuidedCoefficients(params);
+            } else {
+                this.mGrayRows.copyTo(this.mBlurRows);
+            }
+        }
+
+        /**
+         * First pass of the guided filter: fits a linear mapping from the mean gray value to the output in the
+         * window around every pixel of this tile. Flat windows get a slope near 0 and are smoothed, windows
+         * with a variance well above epsilon keep a slope near 1 and with it their edges.
+         *
+         * @param params Parameters
+         */
+        private void computeGuidedCoefficients(Params params) {
+            double epsilon = (double) params.mBilateralSigma * params.mBilateralSigma;
+
+            this.allocateScratch(CvType.CV_32FC1);
+
+            // Box sums of 8-bit values are exact, no matter where the tile starts.
+            Imgproc.boxFilter(this.mGrayRows, this.mMeanMat, CvType.CV_32F, params.mBlurKernelSize);
+            Imgproc.sqrBoxFilter(this.mGrayRows, this.mSquareMeanMat, CvType.CV_32F, params.mBlurKernelSize);
+
+            // Variance = mean of squares - squared mean, goes to the square mean matrix.
+            Core.multiply(this.mMeanMat, this.mMeanMat, this.mGrayFloatMat);
+            Core.subtract(this.mSquareMeanMat, this.mGrayFloatMat, this.mSquareMeanMat);
+
+            // Slope = variance / (variance + epsilon).
+            Core.add(this.mSquareMeanMat, new Scalar(epsilon), this.mGrayFloatMat);
+            Core.divide(this.mSquareMeanMat, this.mGrayFloatMat, this.mSquareMeanMat);
+
+            // Offset = (1 - slope) * mean.
+            Core.multiply(this.mSquareMeanMat, this.mMeanMat, this.mGrayFloatMat);
+            Core.subtract(this.mMeanMat, this.mGrayFloatMat, this.mMeanMat);
+
+            // Fixed point keeps the box sums of the second pass exact as well.
+            this.mSquareMeanMat.convertTo(this.mSlopeRows, CvType.CV_16U, GUIDED_SLOPE_SCALE);
+            this.mMeanMat.convertTo(this.mOffsetRows, CvType.CV_16U, GUIDED_OFFSET_SCALE);
+        }
+
+        /**
+         * Second pass of the guided filter: averages the coefficients of all windows covering a pixel and
+         * applies them to its gray value.
+         *
+         * @param params Parameters
+         */
+        private void applyGuidedCoefficients(Params params) {
+            this.allocateScratch(CvType.CV_32FC1);
+
+            Imgproc.boxFilter(this.mSlopeRows, this.mMeanMat, CvType.CV_32F, params.mBlurKernelSize);
+            Imgproc.boxFilter(this.mOffsetRows, this.mSquareMeanMat, CvType.CV_32F, params.mBlurKernelSize);
+
+            this.mGrayRows.convertTo(this.mGrayFloatMat, CvType.CV_32F);
+
+            // Output = mean slope * gray value + mean offset.
+            Core.multiply(this.mMeanMat, this.mGrayFloatMat, this.mMeanMat, 1d / GUIDED_SLOPE_SCALE);
+            Core.scaleAdd(this.mSquareMeanMat, 1d / GUIDED_OFFSET_SCALE, this.mMeanMat, this.mMeanMat);
+
+            this.mMeanMat.convertTo(this.mBlurRows, CvType.CV_8U);
+        }
+
+        /**
+         * Allocates the scratch matrices for the size of this tile. OpenCV runs
+         * element-wise operations on continuous matrices as one long row, so where the vectorized part ends
+         * would depend on the tile size, and vectorized and scalar code don't round alike. The scratch
+         * matrices leave out the last column of their buffers, which makes them non-continuous, so every row
+         * is processed on its own and the same way in any tile.
+         *
+         * @param type Type of the scratch matrices
+         */
+        private void allocateScratch(int type) {
+            int rows = this.mGrayRows.rows(), cols = this.mGrayRows.cols();
+
+            if (this.mMeanMat != null && this.mMeanMat.rows() == rows && this.mMeanMat.cols() == cols &&
+                this.mMeanMat.type() == type) {
+                return;
+            }
+
+            this.releaseScratch();
+
+            this.mMeanBuffer.create(rows, cols + 1, type);
+            this.mSquareMeanBuffer.create(rows, cols + 1, type);
+            this.mGrayFloatBuffer.create(rows, cols + 1, type);
+
+            this.mMeanMat = this.mMeanBuffer.colRange(0, cols);
+            this.mSquareMeanMat = this.mSquareMeanBuffer.colRange(0, cols);
+            this.mGrayFloatMat = this.mGrayFloatBuffer.colRange(0, cols);
+        }
+
+        /**
+         * Releases the scratch matrices and their buffers.
+         */
+        private void releaseScratch() {
+            safelyRelease(this.mMeanMat);
+            safelyRelease(this.mSquareMeanMat);
+            safelyRelease(this.mGrayFloatMat);
+
+            this.mMeanMat = this.mSquareMeanMat = this.mGrayFloatMat = null;
+
+            this.mMeanBuffer.release();
+            this.mSquareMeanBuffer.release();
+            this.mGrayFloatBuffer.release();
+        }
+
+        /**
+         * Binarizes the rows of this tile by comparing every pixel to the mean of the window around it. Window
+         * sums are looked up in the integral image, windows reaching over the image border are cut off there.
+         * If the box blur is looked up as well, the blurred pixel is compared instead. All of it runs on whole
+         * rows in integer arithmetic, which is exact.
+         *
+         * @param filteredMat Filtered rows of this tile
+         * @param params Parameters
+         */
+        private void thresholdAdaptively(Mat filteredMat, Params params) {
+            int rowEnd = this.mRowStart + this.mGrayRows.rows();
+
+            this.allocateScratch(CvType.CV_32SC1);
+
+            Mat sums = this.mMeanMat, values = this.mSquareMeanMat, scratch = this.mGrayFloatMat;
+            Mat areas = mWindowAreaMat.rowRange(this.mRowStart, rowEnd);
+
+            this.sumWindows(mAdaptiveRadius, sums, scratch);
+
+            if (mIntegralBlurRadius < 0) {
+                filteredMat.convertTo(values, CvType.CV_32S);
+            } else {
+                Mat blurAreas = mBlurAreaMat.rowRange(this.mRowStart, rowEnd);
+
+                // Rounded to the nearest gray value, like the box blur.
+                this.sumWindows(mIntegralBlurRadius, values, scratch);
+                Core.divide(values, blurAreas, values);
+
+                blurAreas.release();
+            }
+
+            // value > sum / area - offset, without dividing. Even a window covering a whole large image keeps
+            // the product well within int.
+            Core.add(values, new Scalar(params.mAdaptiveOffset), values);
+            Core.multiply(values, areas, values);
+            Core.compare(values, sums, this.mGrayRows, Core.CMP_GT);
+
+            if (params.mThreshMaxval != 255) {
+                Core.bitwise_and(this.mGrayRows, new Scalar(params.mThreshMaxval), this.mGrayRows);
+            }
+
+            areas.release();
+        }
+
+        /**
+         * Looks up the sums of the windows around all pixels of this tile in the padded integral image.
+         *
+         * @param radius Window radius
+         * @param sums Target matrix, as large as this tile
+         * @param scratch Scratch matrix, as large as this tile
+         */
+        private void sumWindows(int radius, Mat sums, Mat scratch) {
+            int rows = this.mGrayRows.rows(), cols = this.mGrayRows.cols(), border = mIntegralBorder;
+            int top = this.mRowStart + border - radius, bottom = this.mRowStart + border + radius + 1;
+            int left = border - radius, right = border + radius + 1;
+
+            Mat topLeft = mPaddedIntegralMat.submat(top, top + rows, left, left + cols);
+            Mat topRight = mPaddedIntegralMat.submat(top, top + rows, right, right + cols);
+            Mat bottomLeft = mPaddedIntegralMat.submat(bottom, bottom + rows, left, left + cols);
+            Mat bottomRight = mPaddedIntegralMat.submat(bottom, bottom + rows, right, right + cols);
+
+            // Both differences are sums of pixel values themselves, so nothing saturates.
+            Core.subtract(bottomRight, bottomLeft, sums);
+            Core.subtract(topRight, topLeft, scratch);
+            Core.subtract(sums, scratch, sums);
+
+            topLeft.release();
+            topRight.release();
+            bottomLeft.release();
+            bottomRight.release();
+        }
+
+        /**
+         * Releases the scratch matrices of this tile.
+         */
+        private void release() {
+            this.mThreshold.release();
+            this.releaseScratch();
+        }
+
+    }
+
+    /**
+     * Runs the tiles in use in parallel and waits for all of them. The first tile is run by the runner itself.
+     */
+    private final class TileRunner extends RecursiveAction {
+
+        @Override
+        protected void compute() {
+            for (int i = 1; i < mTileCount; i++) {
+                mTiles[i].reinitialize();
+                mTiles[i].fork();
+            }
+
+            mTiles[0].run(mStep);
+
+            for (int i = 1; i < mTileCount; i++) {
+                mTiles[i].join();
+            }
+        }
+
+    }
+
+    /**
+     * Immutable set of image processing parameters. Changing a parameter yields a new instance. Fields are
+     * only ever written before an instance is handed out.
+     */
+    public static final class Params {
+
+        /**
+         * Default parameters applied to every new image processor.
+         */
+        public static final Params DEFAULTS = new Params();
+
+        /**
+         * Size of the blur kernel. 0 or less disables blurring.
+         */
+        private int mBlurKernelLength = 5;
+
+        /**
+         * Blur filter to be used.
+         */
+        private FilterType mBlurFilter = FilterType.GAUSSIAN;
+
+        /**
+         * Brightness and contrast adjustment.
+         */
+        private float mBrightness = 0f, mContrast = 1f;
+
+        /**
+         * Sigma value of the bilateral filter.
+         */
+        private float mBilateralSigma = 50f;
+
+        /**
+         * How the threshold is chosen.
+         */
+        private ThresholdType mThresholdType = ThresholdType.OTSU;
+
+        /**
+         * Maximum value after thresholding.
+         */
+        private int mThreshMaxval = 255;
+
+        /**
+         * Side length of the adaptive threshold window relative to the shorter image side. The window should
+         * be larger than the marker, otherwise the mean inside a big marker is just as dark as the marker.
+         */
+        private float mAdaptiveWindow = 1f;
+
+        /**
+         * Amount a pixel may be darker than the mean of its adaptive threshold window and still count as
+         * bright. Keeps noise in plain background from turning dark.
+         */
+        private int mAdaptiveOffset = 8;
+
+        /**
+         * How marker candidates are extracted from the binarized image.
+         */
+        private CandidateExtraction mCandidateExtraction = CandidateExtraction.CONTOURS;
+
+        /**
+         * Maximum deviation of the aspect ratio of a circle's bounding box from the ideal aspect ratio of 1.
+         */
+        private float mCircleAspectThreshold = 0.1f;
+
+        /**
+         * Minimum contour area.
+         */
+        private int mMinContourArea = 50;
+
+        /**
+         * Blur kernel size derived from {@link #mBlurKernelLength}. Must not be modified.
+         */
+        private Size mBlurKernelSize = new Size(5, 5);
+
+        /**
+         * Brightness and contrast lookup table derived from {@link #mBrightness} and {@link #mContrast}.
+         * <code>null</code> if they leave every gray level as it is. Must not be modified.
+         */
+        private byte[] mLut;
+
+        private Params() {}
+
+        /**
+         * Creates a copy of other parameters. Derived values are immutable and therefore shared.
+         *
+         * @param other Parameters to copy
+         */
+        private Params(Params other) {
+            this.mBlurKernelLength = other.mBlurKernelLength;
+            this.mBlurFilter = other.mBlurFilter;
+            this.mBrightness = other.mBrightness;
+            this.mContrast = other.mContrast;
+            this.mBilateralSigma = other.mBilateralSigma;
+            this.mThresholdType = other.mThresholdType;
+            this.mThreshMaxval = other.mThreshMaxval;
+            this.mAdaptiveWindow = other.mAdaptiveWindow;
+            this.mAdaptiveOffset = other.mAdaptiveOffset;
+            this.mCandidateExtraction = other.mCandidateExtraction;
+            this.mCircleAspectThreshold = other.mCircleAspectThreshold;
+            this.mMinContourArea = other.mMinContourArea;
+            this.mBlurKernelSize = other.mBlurKernelSize;
+            this.mLut = other.mLut;
+        }
+
+        /**
+         * Computes the mapping {@link Mat#convertTo(Mat, int, double, double)} applies for brightness and
+         * contrast, including its rounding and saturation.
+         *
+         * @param brightness Brightness adjustment
+         * @param contrast Contrast adjustment
+         * @return Lookup table, or <code>null</code> if the mapping is the identity
+         */
+        private static byte[] createLut(float brightness, float contrast) {
+            if (brightness == 0f && contrast == 1f) {
+                return null;
+            }
+
+            byte[] lut = new byte[256];
+
+            for (int i = 0; i < lut.length; i++) {
+                double value = Math.rint(i * (double) contrast + brightness);
+                lut[i] = (byte) Math.max(0d, Math.min(255d, value));
+            }
+
+            return lut;
+        }
+
+        /**
+         * @param length Size of the blur kernel
+         * @return Copy of these parameters with the given value
+         */
+        public Params withBlurKernelLength(int length) {
+            Params params = new Params(this);
+            params.mBlurKernelLength = length;
+            params.mBlurKernelSize = new Size(length, length);
+
+            return params;
+        }
+
+        /**
+         * @param filter Blur filter
+         * @return Copy of these parameters with the given value
+         */
+        public Params withBlurFilter(FilterType filter) {
+            Params params = new Params(this);
+            params.mBlurFilter = filter;
+
+            return params;
+        }
+
+        /**
+         * @param brightness Brightness adjustment
+         * @param contrast Contrast adjustment
+         * @return Copy of these parameters with the given values
+         */
+        public Params withBrightnessContrast(float brightness, float contrast) {
+            Params params = new Params(this);
+            params.mBrightness = brightness;
+            params.mContrast = contrast;
+            params.mLut = createLut(brightness, contrast);
+
+            return params;
+        }
+
+        /**
+         * @param sigma Sigma value of the bilateral filter
+         * @return Copy of these parameters with the given value
+         */
+        public Params withBilateralSigma(float sigma) {
+            Params params = new Params(this);
+            params.mBilateralSigma = sigma;
+
+            return params;
+        }
+
+        /**
+         * @param type How the threshold is chosen
+         * @return Copy of these parameters with the given value
+         */
+        public Params withThresholdType(ThresholdType type) {
+            Params params = new Params(this);
+            params.mThresholdType = type;
+
+            return params;
+        }
+
+        /**
+         * @param maxval Maximum value after thresholding
+         * @return Copy of these parameters with the given value
+         */
+        public Params withThreshMaxval(int maxval) {
+            Params params = new Params(this);
+            params.mThreshMaxval = maxval;
+
+            return params;
+        }
+
+        /**
+         * @param window Side length of the adaptive threshold window relative to the shorter image side
+         * @param offset Amount a pixel may be darker than its window mean and still count as bright
+         * @return Copy of these parameters with the given values
+         */
+        public Params withAdaptiveThreshold(float window, int offset) {
+            Params params = new Params(this);
+            params.mAdaptiveWindow = window;
+            params.mAdaptiveOffset = offset;
+
+            return params;
+        }
+
+        /**
+         * @param extraction How marker candidates are extracted
+         * @return Copy of these parameters with the given value
+         */
+        public Params withCandidateExtraction(CandidateExtraction extraction) {
+            Params params = new Params(this);
+            params.mCandidateExtraction = extraction;
+
+            return params;
+        }
+
+        /**
+         * @param threshold Maximum deviation of the aspect ratio of a circle's bounding box from 1
+         * @return Copy of these parameters with the given value
+         */
+        public Params withCircleAspectThreshold(float threshold) {
+            Params params = new Params(this);
+            params.mCircleAspectThreshold = threshold;
+
+            return params;
+        }
+
+        /**
+         * @param area Minimum contour area
+         * @return Copy of these parameters with the given value
+         */
+        public Params withMinContourArea(int area) {
+            Params params = new Params(this);
+            params.mMinContourArea = area;
+
+            return params;
+        }
+
+        /**
+         * @return Size of the blur kernel
+         */
+        public int getBlurKernelLength() {
+            return this.mBlurKernelLength;
+        }
+
+        /**
+         * @return Blur filter
+         */
+        public FilterType getBlurFilter() {
+            return this.mBlurFilter;
+        }
+
+        /**
+         * @return Brightness adjustment
+         */
+        public float getBrightness() {
+            return this.mBrightness;
+        }
+
+        /**
+         * @return Contrast adjustment
+         */
+        public float getContrast() {
+            return this.mContrast;
+        }
+
+        /**
+         * @return Sigma value of the bilateral filter
+         */
+        public float getBilateralSigma() {
+            return this.mBilateralSigma;
+        }
+
+        /**
+         * @return How the threshold is chosen
+         */
+        public ThresholdType getThresholdType() {
+            return this.mThresholdType;
+        }
+
+        /**
+         * @return Maximum value after thresholding
+         */
+        public int getThreshMaxval() {
+            return this.mThreshMaxval;
+        }
+
+        /**
+         * @return Side length of the adaptive threshold window relative to the shorter image side
+         */
+        public float getAdaptiveWindow() {
+            return this.mAdaptiveWindow;
+        }
+
+        /**
+         * @return Amount a pixel may be darker than its adaptive threshold window mean and still count as bright
+         */
+        public int getAdaptiveOffset() {
+            return this.mAdaptiveOffset;
+        }
+
+        /**
+         * @return How marker candidates are extracted
+         */
+        public CandidateExtraction getCandidateExtraction() {
+            return this.mCandidateExtraction;
+        }
+
+        /**
+         * @return Maximum deviation of the aspect ratio of a circle's bounding box from 1
+         */
+        public float getCircleAspectThreshold() {
+            return this.mCircleAspectThreshold;
+        }
+
+        /**
+         * @return Minimum contour area
+         */
+        public int getMinContourArea() {
+            return this.mMinContourArea;
+        }
+
+    }
+
+    public enum FilterType {
+
+        BILATERAL,
+
+        GAUSSIAN,
+
+        BOX,
+
+        /**
+         * Guided filter with the image as its own guide. Preserves edges like the bilateral filter, with the
+         * bilateral sigma as range parameter, but only needs a few box filters and runs in linear time no
+         * matter the kernel size.
+         */
+        GUIDED
+
+    }
+
+    public enum ThresholdType {
+
+        /**
+         * Otsu's method on every frame.
+         */
+        OTSU,
+
+        /**
+         * Otsu's method, but the threshold is kept across frames until the histogram drifts too far.
+         */
+        OTSU_TEMPORAL,
+
+        /**
+         * Every pixel is compared to the mean of a window around it, looked up in an integral image. Copes
+         * with uneven lighting, at the cost of one more pass over the image. A box blur is looked up in the
+         * same integral image instead of being applied separately.
+         */
+        ADAPTIVE
+
+    }
+
+    public enum CandidateExtraction {
+
+        /**
+         * All contours are extracted and then filtered one by one.
+         */
+        CONTOURS,
 
-        BOX
+        /**
+         * Connected components are filtered by their statistics first. Only the contours of the remaining
+         * components are extracted. Much faster on noisy images with lots of specks.
+         */
+        COMPONENTS
 
     }
 
@@ -0,0 +1,372 @@
+package de.jugl.nandmeasure.util;
+
+import android.util.Log;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * <p>Chooses thresholds for binarizing 8-bit grayscale images by Otsu's method, the same way
+ * {@link Imgproc#THRESH_OTSU} does it. The histogram is built once per image and searched in Java, which
+ * makes a few things possible that the OpenCV call doesn't offer. {@link MatProcessor} binarizes with the
+ * threshold.</p>
+ *
+ * <p>Stretching the histogram with a min-max normalization first doesn't change which gray levels end up
+ * on which side of the threshold, since Otsu's method is invariant to linear mappings of the gray levels.
+ * The normalization is therefore folded into the threshold search instead of rewriting the image: the
+ * only case in which it makes a difference is an image without contrast, which normalizes to black.</p>
+ *
+ * <p>During a measurement, the marker and the lighting barely change from one frame to the next. In
+ * temporal mode, the threshold is therefore kept across frames. Every frame only gets a histogram of a
+ * sparse pixel sample, which is compared to the sample taken when the threshold was last computed. The
+ * full histogram is only built again once the two drift apart.</p>
+ */
+public class OtsuThreshold {
+
+    /**
+     * Debugging tag.
+     */
+    private static final String TAG = "OtsuThreshold";
+
+    /**
+     * Amount of gray levels.
+     */
+    private static final int LEVELS = 256;
+
+    /**
+     * Class probabilities below this value, or above 1 minus this value, are treated as empty classes.
+     * Same as <code>FLT_EPSILON</code> in OpenCV.
+     */
+    private static final double EPSILON = Math.ulp(1f);
+
+    /**
+     * Only every n-th pixel in both dimensions is sampled to detect histogram drift.
+     */
+    private static final int SAMPLE_STEP = 4;
+
+    /**
+     * Share of sampled pixels which may have changed their gray level before the threshold is computed
+     * again, as the total variation distance between the sample histograms.
+     */
+    private static final double DRIFT_LIMIT = 0.05;
+
+    /**
+     * Maximum amount of frames a threshold is kept, no matter how little the histogram drifts.
+     */
+    private static final int MAX_CACHED_FRAMES = 30;
+
+    /**
+     * Threshold value denoting that there is no cached threshold.
+     */
+    private static final int NO_THRESHOLD = Integer.MIN_VALUE;
+
+    /**
+     * Image list passed to {@link Imgproc#calcHist}.
+     */
+    private final List<Mat> mImages;
+
+    /**
+     * Channel and bin count passed to {@link Imgproc#calcHist}.
+     */
+    private final MatOfInt mChannels, mHistSize;
+
+    /**
+     * Value range passed to {@link Imgproc#calcHist}.
+     */
+    private final MatOfFloat mRanges;
+
+    /**
+     * Empty mask and histogram output of {@link Imgproc#calcHist}.
+     */
+    private final Mat mMask, mHistMat;
+
+    /**
+     * Histogram of the last image.
+     */
+    private final float[] mHistogram;
+
+    /**
+     * Size of the pixel sample.
+     */
+    private final Size mSampleSize;
+
+    /**
+     * Sparse pixel sample of the current image and its histogram.
+     */
+    private final Mat mSampleMat, mSampleHistMat;
+
+    /**
+     * Histogram of the current pixel sample, and of the one taken when the cached threshold was computed.
+     * Both normalized to a sum of 1.
+     */
+    private final float[] mSampleHistogram, mReferenceHistogram;
+
+    /**
+     * Cached threshold, or {@link #NO_THRESHOLD}.
+     */
+    private int mCachedThreshold = NO_THRESHOLD;
+
+    /**
+     * Image size the cached threshold was computed for.
+     */
+    private int mCachedRows, mCachedCols;
+
+    /**
+     * Amount of frames the cached threshold has been used for.
+     */
+    private int mCachedFrames;
+
+    /**
+     * Frames in temporal mode which used the cached threshold, and frames which computed it again.
+     */
+    private long mHitCount, mRecomputeCount;
+
+    public OtsuThreshold() {
+        this.mImages = new ArrayList<>(1);
+        this.mChannels = new MatOfInt(0);
+        this.mHistSize = new MatOfInt(LEVELS);
+        this.mRanges = new MatOfFloat(0f, LEVELS);
+        this.mMask = new Mat();
+        this.mHistMat = new Mat();
+        this.mHistogram = new float[LEVELS];
+        this.mSampleSize = new Size();
+        this.mSampleMat = new Mat();
+        this.mSampleHistMat = new Mat();
+        this.mSampleHistogram = new float[LEVELS];
+        this.mReferenceHistogram = new float[LEVELS];
+    }
+
+    /**
+     * Checks whether the cached threshold may be used for an image, which is the case as long as the
+     * histogram of its pixel sample hasn't drifted too far. If it may not, the threshold of the image has to
+     * be passed to {@link #cacheThreshold(Mat, int)} before the next call.
+     *
+     * @param grayMat 8-bit grayscale image
+     * @return <code>true</code> if {@link #getCachedThreshold()} may be used for the image, <code>false</code>
+     * otherwise
+     */
+    public boolean useCachedThreshold(Mat grayMat) {
+        this.computeSampleHistogram(grayMat);
+
+        boolean valid = this.mCachedThreshold != NO_THRESHOLD && this.mCachedFrames < MAX_CACHED_FRAMES &&
+                        this.mCachedRows == grayMat.rows() && this.mCachedCols == grayMat.cols();
+
+        if (valid && getDrift(this.mSampleHistogram, this.mReferenceHistogram) <= DRIFT_LIMIT) {
+            this.mCachedFrames++;
+            this.mHitCount++;
+
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Caches the threshold of the image last passed to {@link #useCachedThreshold(Mat)}.
+     *
+     * @param grayMat 8-bit grayscale image
+     * @param threshold Threshold of the image, or -1 if it has no contrast
+     */
+    public void cacheThreshold(Mat grayMat, int threshold) {
+        this.mCachedThreshold = threshold;
+        this.mCachedRows = grayMat.rows();
+        this.mCachedCols = grayMat.cols();
+        this.mCachedFrames = 0;
+        this.mRecomputeCount++;
+
+        System.arraycopy(this.mSampleHistogram, 0, this.mReferenceHistogram, 0, LEVELS);
+    }
+
+    /**
+     * @return Cached threshold, or -1 if the image it was computed for had no contrast. Only meaningful
+     * after {@link #useCachedThreshold(Mat)} returned <code>true</code>.
+     */
+    public int getCachedThreshold() {
+        return this.mCachedThreshold;
+    }
+
+    /**
+     * Drops the cached threshold, so the next call to {@link #useCachedThreshold(Mat)} returns <code>false</code>.
+     */
+    public void invalidate() {
+        this.mCachedThreshold = NO_THRESHOLD;
+    }
+
+    /**
+     * Builds the histogram of an image and searches it for the threshold.
+     *
+     * @param grayMat 8-bit grayscale image
+     * @return Threshold, or -1 if the image has no contrast
+     */
+    public int computeThreshold(Mat grayMat) {
+        return this.computeThreshold(grayMat, this.mMask);
+    }
+
+    /**
+     * Builds the histogram of the masked pixels of an image and searches it for the threshold.
+     *
+     * @param grayMat 8-bit grayscale image
+     * @param mask 8-bit mask of the same size. Only pixels with a non-zero mask value are counted. An empty
+     *             matrix counts all pixels.
+     * @return Threshold, or -1 if the masked pixels have no contrast
+     */
+    public int computeThreshold(Mat grayMat, Mat mask) {
+        this.calcHist(grayMat, mask, this.mHistMat, this.mHistogram);
+        return findThreshold(this.mHistogram);
+    }
+
+    /**
+     * Builds the normalized histogram of a sparse pixel sample of an image.
+     *
+     * @param grayMat 8-bit grayscale image
+     */
+    private void computeSampleHistogram(Mat grayMat) {
+        this.mSampleSize.width = Math.max(1, grayMat.cols() / SAMPLE_STEP);
+        this.mSampleSize.height = Math.max(1, grayMat.rows() / SAMPLE_STEP);
+
+        // Nearest neighbor interpolation only reads the sampled pixels.
+        Imgproc.resize(grayMat, this.mSampleMat, this.mSampleSize, 0, 0, Imgproc.INTER_NEAREST);
+        this.calcHist(this.mSampleMat, this.mMask, this.mSampleHistMat, this.mSampleHistogram);
+
+        float total = (float) this.mSampleMat.total();
+
+        for (int i = 0; i < LEVELS; i++) {
+            this.mSampleHistogram[i] /= total;
+        }
+    }
+
+    /**
+     * @param image 8-bit grayscale image
+     * @param mask Mask, or an empty matrix
+     * @param histMat Histogram matrix
+     * @param histogram Array to copy the histogram into
+     */
+    private void calcHist(Mat image, Mat mask, Mat histMat, float[] histogram) {
+        this.mImages.clear();
+        this.mImages.add(image);
+
+        Imgproc.calcHist(this.mImages, this.mChannels, mask, histMat, this.mHistSize, this.mRanges);
+        histMat.get(0, 0, histogram);
+        this.mImages.clear();
+    }
+
+    /**
+     * @param a Normalized histogram
+     * @param b Normalized histogram
+     * @return Total variation distance between both histograms, from 0 (same) to 1 (disjoint)
+     */
+    static double getDrift(float[] a, float[] b) {
+        double sum = 0;
+
+        for (int i = 0; i < a.length; i++) {
+            sum += Math.abs(a[i] - b[i]);
+        }
+
+        return sum / 2d;
+    }
+
+    /**
+     * @return Amount of frames in temporal mode which used the cached threshold
+     */
+    public long getHitCount() {
+        return this.mHitCount;
+    }
+
+    /**
+     * @return Amount of frames in temporal mode which computed the threshold again
+     */
+    public long getRecomputeCount() {
+        return this.mRecomputeCount;
+    }
+
+    /**
+     * @return Histogram of the last image passed to {@link #computeThreshold(Mat, Mat)}. Must not be modified.
+     */
+    public float[] getHistogram() {
+        return this.mHistogram;
+    }
+
+    /**
+     * Searches a histogram for the threshold maximizing the between-class variance. Ties resolve to the
+     * lowest threshold, just like in OpenCV.
+     *
+     * @param histogram Histogram with one bin per gray level
+     * @return Threshold, or -1 if all pixels share the same gray level
+     */
+    public static int findThreshold(float[] histogram) {
+        double total = 0, mu = 0;
+        int min = -1, max = -1;
+
+        for (int i = 0; i < histogram.length; i++) {
+            if (histogram[i] > 0) {
+                if (min < 0) {
+                    min = i;
+                }
+
+                max = i;
+            }
+
+            total += histogram[i];
+            mu += i * (double) histogram[i];
+        }
+
+        if (min == max) {
+            return -1;
+        }
+
+        mu /= total;
+
+        double q1 = 0, mu1 = 0, maxSigma = 0;
+        int threshold = 0;
+
+        for (int i = 0; i < histogram.length; i++) {
+            double p = histogram[i] / total;
+
+            mu1 *= q1;
+            q1 += p;
+
+            double q2 = 1d - q1;
+
+            if (Math.min(q1, q2) < EPSILON || Math.max(q1, q2) > 1d - EPSILON) {
+                continue;
+            }
+
+            mu1 = (mu1 + i * p) / q1;
+
+            double mu2 = (mu - q1 * mu1) / q2;
+            double sigma = q1 * q2 * (mu1 - mu2) * (mu1 - mu2);
+
+            if (sigma > maxSigma) {
+                maxSigma = sigma;
+                threshold = i;
+            }
+        }
+
+        return threshold;
+    }
+
+    /**
+     * Releases the histogram and sample matrices and drops the cached threshold. The small argument
+     * matrices are kept, so this instance can still be used afterwards.
+     */
+    public void release() {
+        long frames = this.mHitCount + this.mRecomputeCount;
+
+        if (frames != 0) {
+            Log.d(TAG, String.format(Locale.ENGLISH, "Cached threshold used for %d of %d frames (%.1f %%), recomputed %d times",
+                    this.mHitCount, frames, 100d * this.mHitCount / frames, this.mRecomputeCount));
+        }
+
+        this.mHistMat.release();
+        this.mSampleMat.release();
+        this.mSampleHistMat.release();
+        this.invalidate();
+    }
+
+}
@@ -0,0 +1,316 @@
+package de.jugl.nandmeasure.util;
+
+import org.opencv.core.*;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import de.jugl.nandmeasure.detection.CircleDetector;
+import de.jugl.nandmeasure.detection.Detection;
+
+/**
+ * Runs the marker detection pipeline on synthetic camera frames and measures how long it takes. The
+ * synthetic frames show a black circle on a white, slightly noisy background in the middle of the frame,
+ * which is what the measurement activities look at most of the time.
+ */
+public class PipelineBenchmark {
+
+    private PipelineBenchmark() {}
+
+    /**
+     * Amount of unmeasured runs before measuring, so that lazy initialization doesn't skew the results.
+     */
+    private static final int WARMUP_RUNS = 2;
+
+    /**
+     * Amount of measured runs.
+     */
+    private static final int MEASURED_RUNS = 7;
+
+    /**
+     * Ratio of the marker area side length to the shorter frame side. Same as in the FOV calibration.
+     */
+    private static final float MARKER_AREA = .5f;
+
+    /**
+     * Ratio of the marker radius to the marker area side length.
+     */
+    private static final float MARKER_RADIUS = .3f;
+
+    /**
+     * Maximum deviation of the noise added to synthetic frames.
+     */
+    private static final double NOISE_AMPLITUDE = 8d;
+
+    /**
+     * Light falling onto the left border of the most unevenly lit benchmark frame, relative to the right
+     * border.
+     */
+    private static final float MIN_LIGHT = .6f;
+
+    /**
+     * Frame size the pipeline is warmed up with. Small enough to be quick, large enough for every stage to
+     * find a marker.
+     */
+    private static final int WARMUP_WIDTH = 320, WARMUP_HEIGHT = 240;
+
+    /**
+     * Creates a synthetic NV21 frame with a black circle in its center. Chroma is neutral gray.
+     *
+     * @param width Frame width
+     * @param height Frame height
+     * @return NV21 frame
+     */
+    public static Mat createSyntheticFrame(int width, int height) {
+        return createSyntheticFrame(width, height, 42, 1f);
+    }
+
+    /**
+     * Creates a synthetic NV21 frame like {@link #createSyntheticFrame(int, int)}, with noise of its own and
+     * lit from the right, so the brightness falls off linearly towards the left border.
+     *
+     * @param width Frame width
+     * @param height Frame height
+     * @param seed Seed of the noise
+     * @param minLight Light falling onto the left border relative to the right border, 1 for even lighting
+     * @return NV21 frame
+     */
+    public static Mat createSyntheticFrame(int width, int height, int seed, float minLight) {
+        Mat nv21 = new Mat(height + height / 2, width, CvType.CV_8UC1, new Scalar(128));
+        Mat gray = nv21.submat(0, height, 0, width);
+        Mat noise = new Mat(height, width, CvType.CV_8UC1);
+
+        Rect markerArea = getMarkerArea(width, height);
+        Point center = new Point(width / 2d, height / 2d);
+
+        gray.setTo(new Scalar(220));
+        Imgproc.circle(gray, center, getMarkerRadius(markerArea), new Scalar(30), Imgproc.FILLED);
+
+        // Fixed seed, so every run sees the same noise. The gray values are far enough from 0 and 255 that
+        // adding and subtracting the noise doesn't saturate.
+        Core.setRNGSeed(seed);
+        Core.randu(noise, 0d, 2 * NOISE_AMPLITUDE);
+        Core.add(gray, noise, gray);
+        Core.subtract(gray, new Scalar(NOISE_AMPLITUDE), gray);
+
+        if (minLight < 1f) {
+            Mat light = new Mat(height, width, CvType.CV_32FC1);
+            Mat lit = new Mat();
+            float[] row = new float[width];
+
+            for (int x = 0; x < width; x++) {
+                row[x] = minLight + (1f - minLight) * x / Math.max(1, width - 1);
+            }
+
+            for (int y = 0; y < height; y++) {
+                light.put(y, 0, row);
+            }
+
+            gray.convertTo(lit, CvType.CV_32F);
+            Core.multiply(lit, light, lit);
+            lit.convertTo(gray, CvType.CV_8U);
+
+            light.release();
+            lit.release();
+        }
+
+        noise.release();
+        gray.release();
+
+        return nv21;
+    }
+
+    /**
+     * Creates a series of synthetic frames with different noise, from evenly lit to lit from the right with
+     * the light falling off to {@link #MIN_LIGHT}. The marker stays in place, like during a measurement.
+     *
+     * @param width Frame width
+     * @param height Frame height
+     * @param count Amount of frames
+     * @return NV21 frames
+     */
+    public static List<Mat> createBenchmarkFrames(int width, int height, int count) {
+        List<Mat> frames = new ArrayList<>(count);
+
+        for (int i = 0; i < count; i++) {
+            float minLight = 1f - (1f - MIN_LIGHT) * i / Math.max(1, count - 1);
+            frames.add(createSyntheticFrame(width, height, 42 + i, minLight));
+        }
+
+        return frames;
+    }
+
+    /**
+     * @param width Frame width
+     * @param height Frame height
+     * @return Area in the frame center in which the synthetic marker is located
+     */
+    public static Rect getMarkerArea(int width, int height) {
+        int sideLength = Math.round(Math.min(width, height) * MARKER_AREA);
+        return new Rect((width - sideLength) / 2, (height - sideLength) / 2, sideLength, sideLength);
+    }
+
+    /**
+     * @param markerArea Area in which the synthetic marker is located
+     * @return Radius of the synthetic marker in pixels
+     */
+    public static int getMarkerRadius(Rect markerArea) {
+        return Math.round(markerArea.width * MARKER_RADIUS);
+    }
+
+    /**
+     * Runs the detection pipeline on a single frame the same way the measurement activities do: the frame
+     * is converted to RGBA for display, then the marker area is preprocessed, searched for contours and an
+     * ellipse is fit to the first contour.
+     *
+     * @param nv21 NV21 frame. Its grayscale part is modified.
+     * @param rgba RGBA output matrix
+     * @param processor Image processor
+     * @param markerArea Area to search for the marker in
+     * @param contours Reusable contour list
+     * @return Fitted ellipse, or <code>null</code> if none was found
+     */
+    public static RotatedRect runPipeline(Mat nv21, Mat rgba, MatProcessor processor, Rect markerArea, List<MatOfPoint> contours) {
+        Imgproc.cvtColor(nv21, rgba, Imgproc.COLOR_YUV2RGB_NV21, 4);
+
+        Mat roi = nv21.submat(markerArea);
+        RotatedRect ellipse = null;
+
+        processor.preprocess(roi);
+        processor.findContoursForEllipseFit(contours, roi);
+
+        if (contours.size() != 0) {
+            ellipse = Imgproc.fitEllipse(processor.toFloatContour(contours.get(0)));
+        }
+
+        MatProcessor.releaseContours(contours);
+        roi.release();
+
+        return ellipse;
+    }
+
+    /**
+     * Measures how long the detection pipeline takes for a single frame of the given size.
+     *
+     * @param width Frame width
+     * @param height Frame height
+     * @return Median time per frame in nanoseconds
+     */
+    public static long measureFrameTime(int width, int height) {
+        Mat template = createSyntheticFrame(width, height);
+        Mat frame = new Mat();
+        Mat rgba = new Mat();
+
+        MatProcessor processor = new MatProcessor();
+        Rect markerArea = getMarkerArea(width, height);
+        List<MatOfPoint> contours = new ArrayList<>();
+        long[] times = new long[MEASURED_RUNS];
+
+        for (int i = 0; i < WARMUP_RUNS + MEASURED_RUNS; i++) {
+            // Preprocessing works in place, so every run needs a fresh copy. Copying isn't measured.
+            template.copyTo(frame);
+
+            long start = System.nanoTime();
+            runPipeline(frame, rgba, processor, markerArea, contours);
+            long time = System.nanoTime() - start;
+
+            if (i >= WARMUP_RUNS) {
+                times[i - WARMUP_RUNS] = time;
+            }
+        }
+
+        template.release();
+        frame.release();
+        rgba.release();
+        processor.release();
+
+        return median(times);
+    }
+
+    /**
+     * Measures how long a marker detector takes for the marker areas of a series of frames, and records the
+     * marker it finds in each of them. Like in the measurement activities, the detector keeps what it
+     * learned from one frame for the next.
+     *
+     * @param detector Marker detector. Its state is reset before and after the measurement.
+     * @param frames NV21 frames, see {@link #createBenchmarkFrames(int, int, int)}
+     * @param width Frame width
+     * @param height Frame height
+     * @param detections Array to write the diameter and the center of the marker found in each frame to, as
+     *                   three values per frame in marker area coordinates. All three are NaN if no marker was
+     *                   found.
+     * @return Median time per frame in nanoseconds
+     */
+    public static long measureDetector(CircleDetector detector, List<Mat> frames, int width, int height, double[] detections) {
+        Rect markerArea = getMarkerArea(width, height);
+        Mat frame = new Mat();
+
+        Detection detection = new Detection();
+        int count = frames.size();
+        long[] times = new long[MEASURED_RUNS * count];
+
+        detector.reset();
+
+        for (int run = 0; run < WARMUP_RUNS + MEASURED_RUNS; run++) {
+            for (int i = 0; i < count; i++) {
+                Mat roi = frames.get(i).submat(markerArea);
+                roi.copyTo(frame);
+                roi.release();
+
+                long start = System.nanoTime();
+                boolean found = detector.detect(frame, -1d, null, detection);
+                long time = System.nanoTime() - start;
+
+                if (run >= WARMUP_RUNS) {
+                    times[(run - WARMUP_RUNS) * count + i] = time;
+                }
+
+                // Every run overwrites the last one, the detector has settled by the final run.
+                detections[3 * i] = found ? detection.getDiameter() : Double.NaN;
+                detections[3 * i + 1] = found ? detection.getCenterX() : Double.NaN;
+                detections[3 * i + 2] = found ? detection.getCenterY() : Double.NaN;
+            }
+        }
+
+        detector.reset();
+        frame.release();
+
+        return median(times);
+    }
+
+    /**
+     * Runs the detection pipeline a few times on a small synthetic frame, so that the first camera frame
+     * doesn't pay for lazy native initialization and the JIT compiling the pipeline.
+     */
+    public static void warmUp() {
+        Mat template = createSyntheticFrame(WARMUP_WIDTH, WARMUP_HEIGHT);
+        Mat frame = new Mat();
+        Mat rgba = new Mat();
+
+        MatProcessor processor = new MatProcessor();
+        Rect markerArea = getMarkerArea(WARMUP_WIDTH, WARMUP_HEIGHT);
+        List<MatOfPoint> contours = new ArrayList<>();
+
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            template.copyTo(frame);
+            runPipeline(frame, rgba, processor, markerArea, contours);
+        }
+
+        template.release();
+        frame.release();
+        rgba.release();
+        processor.release();
+    }
+
+    /**
+     * @param values Values. The array is sorted in place.
+     * @return Median of the values
+     */
+    public static long median(long[] values) {
+        Arrays.sort(values);
+        return values[values.length / 2];
+    }
+
+}
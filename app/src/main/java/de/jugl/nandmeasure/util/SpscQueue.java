@@ -0,0 +1,118 @@
+package de.jugl.nandmeasure.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free queue for exactly one producer thread and exactly one consumer thread. Neither side
+ * ever blocks. If the queue is full, {@link #offer(Object)} fails, and if it is empty, {@link #poll()}
+ * returns <code>null</code>.
+ *
+ * @param <T> Type of the queued items
+ */
+public class SpscQueue<T> {
+
+    /**
+     * Slots holding the queued items. The array length is a power of two.
+     */
+    private final AtomicReferenceArray<T> mSlots;
+
+    /**
+     * Bit mask to turn a running index into a slot index.
+     */
+    private final int mMask;
+
+    /**
+     * Maximum amount of queued items.
+     */
+    private final int mCapacity;
+
+    /**
+     * Running index of the next item to take. Only written by the consumer.
+     */
+    private final AtomicLong mHead;
+
+    /**
+     * Running index of the next free slot. Only written by the producer.
+     */
+    private final AtomicLong mTail;
+
+    /**
+     * Creates a new queue.
+     *
+     * @param capacity Maximum amount of queued items
+     */
+    public SpscQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive.");
+        }
+
+        int slotCount = Integer.highestOneBit(capacity);
+
+        if (slotCount < capacity) {
+            slotCount <<= 1;
+        }
+
+        this.mSlots = new AtomicReferenceArray<>(slotCount);
+        this.mMask = slotCount - 1;
+        this.mCapacity = capacity;
+        this.mHead = new AtomicLong();
+        this.mTail = new AtomicLong();
+    }
+
+    /**
+     * Appends an item to the queue. May only be called from the producer thread.
+     *
+     * @param item Item to append
+     * @return <code>true</code> if the item was queued, <code>false</code> if the queue is full
+     */
+    public boolean offer(T item) {
+        long tail = this.mTail.get();
+
+        if (tail - this.mHead.get() >= this.mCapacity) {
+            return false;
+        }
+
+        // The slot has to be visible before the consumer sees the new tail.
+        this.mSlots.lazySet((int) tail & this.mMask, item);
+        this.mTail.lazySet(tail + 1);
+
+        return true;
+    }
+
+    /**
+     * Takes the oldest item from the queue. May only be called from the consumer thread.
+     *
+     * @return Oldest item, or <code>null</code> if the queue is empty
+     */
+    public T poll() {
+        long head = this.mHead.get();
+
+        if (head == this.mTail.get()) {
+            return null;
+        }
+
+        int idx = (int) head & this.mMask;
+        T item = this.mSlots.get(idx);
+
+        this.mSlots.lazySet(idx, null);
+        this.mHead.lazySet(head + 1);
+
+        return item;
+    }
+
+    /**
+     * @return Amount of queued items. Only an estimate if called while the queue is in use.
+     */
+    public int size() {
+        return (int) (this.mTail.get() - this.mHead.get());
+    }
+
+    /**
+     * @return Maximum amount of queued items
+     */
+    public int getCapacity() {
+        return this.mCapacity;
+    }
+
+}
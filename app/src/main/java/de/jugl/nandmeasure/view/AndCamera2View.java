@@ -0,0 +1,647 @@
+package de.jugl.nandmeasure.view;
+
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CameraMetadata;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.SystemClock;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.util.Range;
+import android.view.ViewGroup;
+import de.jugl.nandmeasure.camera.CameraInfo;
+import de.jugl.nandmeasure.camera.FrameScheduler;
+import de.jugl.nandmeasure.camera.FrameSource;
+import de.jugl.nandmeasure.camera.PreviewProfile;
+import org.opencv.android.CameraBridgeViewBase;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+
+/**
+ * <p>Camera view built on top of the Camera2 API. Frames are read from an {@link ImageReader} in
+ * {@link ImageFormat#YUV_420_888} and the luminance plane is wrapped into a {@link Mat} without copying
+ * it first. This skips the per-frame copy {@link AndCameraView} has to make because the old camera API
+ * hands out frames as a Java byte array.</p>
+ *
+ * <p>Just like {@link AndCameraView}, this view only cares about the first back-facing camera and
+ * sets its focus to infinity if the lens allows it. The camera belongs to the {@link Camera2Session}, which
+ * keeps it running for a while after the view detaches.</p>
+ */
+public class AndCamera2View extends CameraBridgeViewBase implements FrameSource {
+
+    /**
+     * Debugging tag.
+     */
+    private static final String TAG = "AndCamera2View";
+
+    /**
+     * Maximum amount of images the image reader may hand out at once. One is being processed, the next one
+     * is held to tell whether the first is outdated, and the last one is being written to by the camera.
+     */
+    private static final int MAX_IMAGES = 3;
+
+    /**
+     * Key under which the characteristics of the back camera are cached.
+     */
+    private static final String CAMERA_INFO_KEY = "camera2";
+
+    /**
+     * Session owning the camera. Images are handed out and processed on its thread.
+     */
+    private final Camera2Session mSession = Camera2Session.getInstance();
+
+    /**
+     * Processes the images the session hands out.
+     */
+    private final ImageListener mImageListener = new ImageListener();
+
+    /**
+     * Reusable camera frame.
+     */
+    private AndCamera2Frame mCameraFrame;
+
+    /**
+     * Time budget per frame in milliseconds.
+     */
+    private float mFrameBudget = PreviewProfile.DEFAULT_FRAME_BUDGET;
+
+    /**
+     * Listener receiving the frames. The base class keeps its own copy private.
+     */
+    private volatile CvCameraViewListener2 mFrameListener;
+
+    /**
+     * Sink showing the frames returned by the listener.
+     */
+    private volatile DisplaySink mDisplaySink;
+
+    /**
+     * Focal length of the camera in millimeters.
+     */
+    private float mFocalLength;
+
+    /**
+     * Policy deciding which frames are handed to the listener.
+     */
+    private volatile FrameScheduler mFrameScheduler = new FrameScheduler.LatestWins();
+
+    /**
+     * How frames are converted for display.
+     */
+    private volatile DisplayMode mDisplayMode = DisplayMode.COLOR;
+
+    /**
+     * <code>true</code> if image timestamps share their time base with
+     * {@link SystemClock#elapsedRealtimeNanos()}, <code>false</code> otherwise.
+     */
+    private boolean mRealtimeTimestamps;
+
+    /**
+     * Running index of the next image.
+     */
+    private long mFrameIndex;
+
+    public AndCamera2View(Context context, int cameraId) {
+        super(context, cameraId);
+    }
+
+    public AndCamera2View(Context context, AttributeSet attrs) {
+        super(context, attrs);
+    }
+
+    /**
+     * Checks if the first back-facing camera of the device offers more than legacy support for the
+     * Camera2 API. Legacy devices only emulate Camera2 on top of the old camera API, so there's nothing to
+     * gain from using this view on them.
+     *
+     * @param context Application context
+     * @return <code>true</code> if this view should be used, <code>false</code> otherwise
+     */
+    public static boolean isSupported(Context context) {
+        CameraInfo info = getCameraInfo(context);
+
+        return info != null && info.getHardwareLevel() != CameraInfo.HARDWARE_LEVEL_UNKNOWN &&
+               info.getHardwareLevel() != CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY;
+    }
+
+    /**
+     * Looks up the characteristics of the first back-facing camera. Finding it takes a round trip to the
+     * camera service per camera, so the characteristics are cached. A cached copy is revalidated in the
+     * background.
+     *
+     * @param context Application context
+     * @return Camera characteristics, or <code>null</code> if there is no usable back-facing camera
+     */
+    private static CameraInfo getCameraInfo(Context context) {
+        final CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+
+        if (manager == null) {
+            return null;
+        }
+
+        CameraInfo.Source source = new CameraInfo.Source() {
+
+            @Override
+            public CameraInfo query() throws CameraAccessException {
+                String cameraId = findBackCamera(manager);
+                return cameraId != null ? CameraInfo.fromCharacteristics(cameraId, manager.getCameraCharacteristics(cameraId)) : null;
+            }
+
+        };
+
+        CameraInfo info = CameraInfo.get(context, CAMERA_INFO_KEY);
+
+        if (info != null) {
+            CameraInfo.revalidate(context, CAMERA_INFO_KEY, source);
+            return info;
+        }
+
+        try {
+            info = source.query();
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "Couldn't query camera characteristics.", e);
+            return null;
+        }
+
+        if (info != null) {
+            CameraInfo.put(context, CAMERA_INFO_KEY, info);
+        }
+
+        return info;
+    }
+
+    /**
+     * @param manager Camera manager system service
+     * @return ID of the first back-facing camera, or <code>null</code> if there is none
+     * @throws CameraAccessException If the camera characteristics can't be queried
+     */
+    private static String findBackCamera(CameraManager manager) throws CameraAccessException {
+        for (String id : manager.getCameraIdList()) {
+            Integer facing = manager.getCameraCharacteristics(id).get(CameraCharacteristics.LENS_FACING);
+
+            if (facing != null && facing == CameraCharacteristics.LENS_FACING_BACK) {
+                return id;
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public void setFrameBudget(float millis) {
+        this.mFrameBudget = millis;
+    }
+
+    @Override
+    public void setCvCameraViewListener(CvCameraViewListener2 listener) {
+        super.setCvCameraViewListener(listener);
+        this.mFrameListener = listener;
+    }
+
+    /**
+     * @return Average time in nanoseconds it took to draw a frame since the camera was started
+     */
+    public long getAverageDrawTime() {
+        DisplaySink sink = this.mDisplaySink;
+        return sink != null ? sink.getAverageDrawTime() : 0;
+    }
+
+    /**
+     * Hands the frame to the listener and draws the result with {@link #mDisplaySink}, skipping the bitmap
+     * conversion and scaling of the base class.
+     *
+     * @param frame Camera frame
+     */
+    @Override
+    protected void deliverAndDrawFrame(CvCameraViewFrame frame) {
+        CvCameraViewListener2 listener = this.mFrameListener;
+        Mat modified = listener != null ? listener.onCameraFrame(frame) : frame.rgba();
+        DisplaySink sink = this.mDisplaySink;
+
+        if (modified != null && sink != null) {
+            sink.draw(modified);
+        }
+    }
+
+    @Override
+    public double getFocalLength() {
+        return this.mFocalLength;
+    }
+
+    /**
+     * {@inheritDoc} {@link DisplayMode#REDUCED_COLOR} is converted at half resolution if the chroma planes
+     * are interleaved, planar chroma layouts fall back to full color.
+     */
+    @Override
+    public void setDisplayMode(DisplayMode mode) {
+        this.mDisplayMode = mode;
+    }
+
+    /**
+     * {@inheritDoc} The luminance plane is wrapped without copying, so the region is ignored.
+     */
+    @Override
+    public void setAcquisitionRoi(Rect roi) {
+        // Nothing to do.
+    }
+
+    /**
+     * {@inheritDoc} Since the image reader only ever hands out the latest image, there is never a backlog.
+     */
+    @Override
+    public void setFrameScheduler(FrameScheduler scheduler) {
+        this.mFrameScheduler = scheduler;
+    }
+
+    @Override
+    public FrameScheduler getFrameScheduler() {
+        return this.mFrameScheduler;
+    }
+
+    @Override
+    protected boolean connectCamera(final int width, final int height) {
+        Log.d(TAG, "Using Camera2 view initialization");
+
+        // Attach on the camera thread, which the images are handed out on.
+        return this.mSession.runOnCameraThread(new Callable<Boolean>() {
+
+            @Override
+            public Boolean call() {
+                return initializeCamera(width, height);
+            }
+
+        });
+    }
+
+    @Override
+    protected void disconnectCamera() {
+        // Detach on the camera thread, so no image is being processed when the frame goes away. The
+        // session keeps the camera running for the next view for a while.
+        this.mSession.runOnCameraThread(new Callable<Boolean>() {
+
+            @Override
+            public Boolean call() {
+                releaseCamera();
+                return true;
+            }
+
+        });
+    }
+
+    /**
+     * Detaches from the camera session and frees the frame and display sink. Must run on the camera thread.
+     */
+    private void releaseCamera() {
+        this.mSession.detach(this.mImageListener);
+
+        if (this.mCameraFrame != null) {
+            this.mCameraFrame.release();
+            this.mCameraFrame = null;
+        }
+
+        if (this.mDisplaySink != null) {
+            this.mDisplaySink.release();
+            this.mDisplaySink = null;
+        }
+    }
+
+    /**
+     * Looks up the camera characteristics, picks a preview size and attaches to the camera session. Must run
+     * on the camera thread.
+     *
+     * @param width Width of the view
+     * @param height Height of the view
+     * @return <code>true</code> if the preview is running or being started, <code>false</code> otherwise
+     */
+    private boolean initializeCamera(int width, int height) {
+        CameraInfo info = getCameraInfo(this.getContext());
+
+        if (info == null || info.getPreviewSizes().isEmpty()) {
+            Log.e(TAG, "No back-facing camera with preview support found.");
+            return false;
+        }
+
+        // The largest size fitting the view is an upper bound. The actual size is the largest one
+        // the detection pipeline can handle within the frame budget, once that has been measured.
+        Size maxSize = this.calculateCameraFrameSize(info.getPreviewSizes(), new AndCameraView.IntArraySizeAccessor(), width, height);
+        PreviewProfile profile = PreviewProfile.loadOrBenchmark(this.getContext(), info.getCameraId(),
+                info.getPreviewSizes(), info.getFpsRanges(), (int) maxSize.width, (int) maxSize.height, this.mFrameBudget);
+
+        Log.d(TAG, String.format("Preview size: %dx%d", profile.getWidth(), profile.getHeight()));
+
+        // Propagate preview size to CameraBridgeViewBase.
+        this.mFrameWidth = profile.getWidth();
+        this.mFrameHeight = profile.getHeight();
+        Range<Integer> fpsRange = profile.getMaxFps() > 0 ? new Range<>(profile.getMinFps(), profile.getMaxFps()) : null;
+
+        // Propagate scaling factor to CameraBridgeViewBase.
+        if (this.getLayoutParams().width == ViewGroup.LayoutParams.MATCH_PARENT &&
+            this.getLayoutParams().height == ViewGroup.LayoutParams.MATCH_PARENT) {
+
+            this.mScale = Math.min((float) height / this.mFrameHeight, (float) width / this.mFrameWidth);
+        } else {
+            this.mScale = 0;
+        }
+
+        // If there's a FPS meter associated with this view, let it know our dimensions.
+        if (this.mFpsMeter != null) {
+            this.mFpsMeter.setResolution(this.mFrameWidth, this.mFrameHeight);
+        }
+
+        this.mFocalLength = info.getFocalLength();
+        this.mRealtimeTimestamps = info.hasRealtimeTimestamps();
+        this.mFrameIndex = 0;
+
+        // Frames are drawn by our own sink, so the base class doesn't need its bitmap.
+        CanvasDisplaySink sink = new CanvasDisplaySink(this, this.mFrameWidth, this.mFrameHeight, this.mScale);
+        sink.setFpsMeter(this.mFpsMeter);
+        this.mDisplaySink = sink;
+
+        this.mCameraFrame = new AndCamera2Frame(this.mFrameWidth, this.mFrameHeight);
+
+        // Reuses the running preview and capture session if another view left them behind.
+        if (!this.mSession.attach(this.getContext(), info, this.mFrameWidth, this.mFrameHeight, fpsRange, MAX_IMAGES, this.mImageListener)) {
+            this.releaseCamera();
+            return false;
+        }
+
+        return true;
+    }
+
+    private class ImageListener implements Camera2Session.Consumer {
+
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            // Images are taken one by one, so the scheduler sees every image that piled up while the last
+            // one was being processed and decides itself which ones to drop.
+            Image image = reader.acquireNextImage();
+
+            while (image != null) {
+                // The reader can't tell how many images are queued, so look one ahead. The backlog is
+                // therefore either 0 or 1, which is all the schedulers need to know.
+                Image next = reader.acquireNextImage();
+                FrameScheduler scheduler = mFrameScheduler;
+
+                if (scheduler.schedule(mFrameIndex++, next != null ? 1 : 0)) {
+                    // Without a realtime time base we can't tell how old the image is.
+                    scheduler.onFrameProcessed(mRealtimeTimestamps ? SystemClock.elapsedRealtimeNanos() - image.getTimestamp() : 0);
+
+                    mCameraFrame.wrap(image, mDisplayMode);
+                    deliverAndDrawFrame(mCameraFrame);
+                    mCameraFrame.unwrap();
+                }
+
+                image.close();
+                image = next;
+            }
+        }
+
+    }
+
+    private static class AndCamera2Frame implements CvCameraViewFrame {
+
+        /**
+         * Dimensions of the frame.
+         */
+        private int mWidth, mHeight;
+
+        /**
+         * Image the frame currently points to.
+         */
+        private Image mImage;
+
+        /**
+         * Grayscale matrix pointing directly into the luminance plane of {@link #mImage}.
+         */
+        private Mat mGray;
+
+        /**
+         * RGBA matrix.
+         */
+        private Mat mRgba;
+
+        /**
+         * How {@link #rgba()} is produced for the current image.
+         */
+        private DisplayMode mDisplayMode;
+
+        /**
+         * Half resolution luminance, quarter resolution chroma and their RGBA conversion for
+         * {@link DisplayMode#REDUCED_COLOR}.
+         */
+        private Mat mReducedY, mReducedChroma, mReducedRgba;
+
+        /**
+         * <code>true</code> if {@link #mRgba} already holds the current image, <code>false</code> otherwise.
+         */
+        private boolean mRgbaValid;
+
+        /**
+         * Buffer for planar chroma layouts which can't be handed to OpenCV as they are.
+         */
+        private byte[] mI420Buffer;
+
+        /**
+         * Matrix wrapping {@link #mI420Buffer}.
+         */
+        private Mat mI420;
+
+        public AndCamera2Frame(int width, int height) {
+            super();
+
+            this.mWidth = width;
+            this.mHeight = height;
+            this.mRgba = new Mat();
+        }
+
+        /**
+         * Points this frame to a new image. The luminance plane is wrapped, not copied.
+         *
+         * @param image Image to wrap
+         * @param mode Display mode for this image
+         */
+        public void wrap(Image image, DisplayMode mode) {
+            this.mImage = image;
+            this.mDisplayMode = mode;
+            this.mRgbaValid = false;
+
+            Image.Plane yPlane = image.getPlanes()[0];
+            this.mGray = new Mat(this.mHeight, this.mWidth, CvType.CV_8UC1, yPlane.getBuffer(), yPlane.getRowStride());
+        }
+
+        /**
+         * Drops the reference to the current image. Must be called before the image is closed.
+         */
+        public void unwrap() {
+            if (this.mGray != null) {
+                // This only frees the matrix header. The pixel data is owned by the image.
+                this.mGray.release();
+                this.mGray = null;
+            }
+
+            this.mImage = null;
+        }
+
+        @Override
+        public Mat gray() {
+            return this.mGray;
+        }
+
+        @Override
+        public Mat rgba() {
+            // Listeners may ask more than once per frame, and the conversion is expensive.
+            if (this.mRgbaValid) {
+                return this.mRgba;
+            }
+
+            this.mRgbaValid = true;
+
+            Image.Plane[] planes = this.mImage.getPlanes();
+
+            if (this.mDisplayMode == DisplayMode.GRAY) {
+                Imgproc.cvtColor(this.mGray, this.mRgba, Imgproc.COLOR_GRAY2RGBA, 4);
+            } else if (planes[1].getPixelStride() != 2 || !this.convertInterleaved(planes)) {
+                // Planar chroma, or chroma planes which don't share memory. This is rare and we need to copy
+                // everything into one contiguous buffer.
+                this.convertPlanar(planes);
+            }
+
+            return this.mRgba;
+        }
+
+        /**
+         * Converts an image whose chroma planes interleave into one another to RGBA without copying.
+         *
+         * @param planes Image planes
+         * @return <code>true</code> if the image was converted, <code>false</code> if the chroma planes don't
+         * interleave
+         */
+        private boolean convertInterleaved(Image.Plane[] planes) {
+            ByteBuffer uBuffer = planes[1].getBuffer();
+            ByteBuffer vBuffer = planes[2].getBuffer();
+            int rowStride = planes[1].getRowStride();
+
+            if (planes[2].getRowStride() != rowStride) {
+                return false;
+            }
+
+            // Single pixel headers, only to learn where each plane starts. Released right away, they only
+            // wrap the buffers.
+            Mat uStart = new Mat(1, 1, CvType.CV_8UC1, uBuffer);
+            Mat vStart = new Mat(1, 1, CvType.CV_8UC1, vBuffer);
+            long distance = vStart.dataAddr() - uStart.dataAddr();
+
+            uStart.release();
+            vStart.release();
+
+            // Read as two-channel pixels, the plane which comes first reaches one byte past the end of its own
+            // buffer. That byte is the last one of the other plane, but only if the planes really interleave.
+            // Depending on which plane comes first, the layout is either NV12 or NV21.
+            int chromaSize = rowStride * (this.mHeight / 2 - 1) + this.mWidth;
+            ByteBuffer first;
+            int code;
+
+            if (distance == 1 && vBuffer.remaining() >= chromaSize - 1) {
+                first = uBuffer;
+                code = Imgproc.COLOR_YUV2RGBA_NV12;
+            } else if (distance == -1 && uBuffer.remaining() >= chromaSize - 1) {
+                first = vBuffer;
+                code = Imgproc.COLOR_YUV2RGBA_NV21;
+            } else {
+                return false;
+            }
+
+            Mat chroma = new Mat(this.mHeight / 2, this.mWidth / 2, CvType.CV_8UC2, first, rowStride);
+
+            if (this.mDisplayMode == DisplayMode.REDUCED_COLOR && this.mWidth % 4 == 0 && this.mHeight % 4 == 0) {
+                this.convertReduced(chroma, code);
+            } else {
+                Imgproc.cvtColorTwoPlane(this.mGray, chroma, this.mRgba, code);
+            }
+
+            chroma.release();
+
+            return true;
+        }
+
+        /**
+         * Converts the image at half resolution and scales the result up, like the old camera view does.
+         * Planar chroma layouts always get the full conversion, they need a copy anyway.
+         *
+         * @param chroma Interleaved chroma at half resolution
+         * @param code Conversion code for the chroma layout
+         */
+        private void convertReduced(Mat chroma, int code) {
+            if (this.mReducedY == null) {
+                this.mReducedY = new Mat(this.mHeight / 2, this.mWidth / 2, CvType.CV_8UC1);
+                this.mReducedChroma = new Mat(this.mHeight / 4, this.mWidth / 4, CvType.CV_8UC2);
+                this.mReducedRgba = new Mat();
+            }
+
+            // Chroma pairs are two channel pixels, so they are scaled as pairs.
+            Imgproc.resize(this.mGray, this.mReducedY, this.mReducedY.size(), 0, 0, Imgproc.INTER_NEAREST);
+            Imgproc.resize(chroma, this.mReducedChroma, this.mReducedChroma.size(), 0, 0, Imgproc.INTER_NEAREST);
+            Imgproc.cvtColorTwoPlane(this.mReducedY, this.mReducedChroma, this.mReducedRgba, code);
+            Imgproc.resize(this.mReducedRgba, this.mRgba, new Size(this.mWidth, this.mHeight), 0, 0, Imgproc.INTER_LINEAR);
+        }
+
+        /**
+         * Copies a planar YUV image into an I420 buffer and converts it to RGBA.
+         *
+         * @param planes Image planes
+         */
+        private void convertPlanar(Image.Plane[] planes) {
+            int ySize = this.mWidth * this.mHeight;
+            int chromaWidth = this.mWidth / 2, chromaHeight = this.mHeight / 2;
+
+            if (this.mI420Buffer == null) {
+                this.mI420Buffer = new byte[ySize + 2 * chromaWidth * chromaHeight];
+                this.mI420 = new Mat(this.mHeight + chromaHeight, this.mWidth, CvType.CV_8UC1);
+            }
+
+            int offset = 0;
+
+            for (int i = 0; i < 3; i++) {
+                ByteBuffer buffer = planes[i].getBuffer();
+                int rowStride = planes[i].getRowStride(), pixelStride = planes[i].getPixelStride();
+                int w = i == 0 ? this.mWidth : chromaWidth, h = i == 0 ? this.mHeight : chromaHeight;
+
+                for (int row = 0; row < h; row++) {
+                    for (int col = 0; col < w; col++) {
+                        this.mI420Buffer[offset++] = buffer.get(row * rowStride + col * pixelStride);
+                    }
+                }
+            }
+
+            this.mI420.put(0, 0, this.mI420Buffer);
+            Imgproc.cvtColor(this.mI420, this.mRgba, Imgproc.COLOR_YUV2RGBA_I420, 4);
+        }
+
+        public void release() {
+            this.unwrap();
+            this.mRgba.release();
+
+            if (this.mI420 != null) {
+                this.mI420.release();
+            }
+
+            if (this.mReducedY != null) {
+                this.mReducedY.release();
+                this.mReducedChroma.release();
+                this.mReducedRgba.release();
+            }
+        }
+
+    }
+
+}
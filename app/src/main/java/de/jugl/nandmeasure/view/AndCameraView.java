@@ -1,19 +1,25 @@
 package de.jugl.nandmeasure.view;
 
 import android.content.Context;
-import android.graphics.ImageFormat;
-import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.ViewGroup;
+import de.jugl.nandmeasure.camera.CameraInfo;
+import de.jugl.nandmeasure.camera.FrameScheduler;
+import de.jugl.nandmeasure.camera.FrameSource;
+import de.jugl.nandmeasure.camera.PreviewProfile;
 import org.opencv.android.JavaCameraView;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
+import org.opencv.core.Rect;
 import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * <p>This class is basically a reimplementation of {@link JavaCameraView} while
@@ -26,7 +32,7 @@ import java.util.List;
  * where's the pattern?). So to make this view work, I had to copy most of the code from
  * the base class.</p>
  */
-public class AndCameraView extends JavaCameraView implements Camera.PreviewCallback {
+public class AndCameraView extends JavaCameraView implements FrameSource {
 
     /**
      * Debugging tag.
@@ -34,50 +40,104 @@ public class AndCameraView extends JavaCameraView implements Camera.PreviewCallb
     private static final String TAG = "AndCameraView";
 
     /**
-     * ID of the OpenGL texture to be used with {@link SurfaceTexture}. No clue where this
-     * comes from but otherwise it wouldn't be magic.
+     * ID under which the preview profile and the characteristics of the back camera are cached. Distinct
+     * from the IDs of the new camera API, because the two APIs offer different preview sizes.
      */
-    private static final int MAGIC_TEXTURE_ID = 10;
+    private static final String CAMERA_PROFILE_ID = "camera1";
 
     /**
-     * Byte buffer for the camera to store image data in.
+     * Factor by which the display preview is reduced in both dimensions while acquiring a region of
+     * interest only.
      */
-    private byte[] mBuffer;
+    private static final int PREVIEW_DECIMATION = 4;
 
     /**
-     * Frame buffer for OpenCV.
+     * Pixels acquired around the region of interest on every side, so that filters reading a little beyond
+     * the region edge still see pixels of the current frame.
      */
-    private Mat[] mFrameBuffer;
+    private static final int ROI_MARGIN = 16;
 
     /**
-     * Camera frame buffer for OpenCV.
+     * Ring of callback buffers shared between the camera and the worker thread.
      */
-    private AndCameraFrame mCameraFrames[];
+    private PreviewBufferRing mBufferRing;
 
     /**
-     * <code>true</code> if a new camera frame is ready to be evaluated, <code>false</code> otherwise.
+     * Amount of callback buffers to allocate on the next camera start.
      */
-    private boolean mCameraFrameReady;
+    private int mBufferCount = PreviewBufferRing.DEFAULT_BUFFER_COUNT;
 
     /**
-     * {@link SurfaceTexture} for the camera to draw on.
+     * Policy deciding which frames are handed to the listener.
      */
-    private SurfaceTexture mSurfaceTexture;
+    private volatile FrameScheduler mFrameScheduler = new FrameScheduler.LatestWins();
+
+    /**
+     * Time budget per frame in milliseconds.
+     */
+    private float mFrameBudget = PreviewProfile.DEFAULT_FRAME_BUDGET;
+
+    /**
+     * Listener receiving the frames. The base class keeps its own copy private.
+     */
+    private volatile CvCameraViewListener2 mFrameListener;
+
+    /**
+     * Sink showing the frames returned by the listener.
+     */
+    private volatile DisplaySink mDisplaySink;
+
+    /**
+     * Focal length of the camera in millimeters.
+     */
+    private float mFocalLength;
+
+    /**
+     * How frames are converted for display.
+     */
+    private volatile DisplayMode mDisplayMode = DisplayMode.COLOR;
+
+    /**
+     * Region of interest to acquire at full resolution, or <code>null</code> to acquire whole frames.
+     */
+    private volatile Rect mAcquisitionRoi;
+
+    /**
+     * Frame buffer for OpenCV. Only the worker thread writes to it.
+     */
+    private Mat mFrameBuffer;
+
+    /**
+     * Camera frame for OpenCV.
+     */
+    private AndCameraFrame mCameraFrame;
 
     /**
      * <code>true</code> if the camera worker thread needs to be stopped, <code>false</code> otherwise.
      */
-    private boolean mStopThread;
+    private volatile boolean mStopThread;
 
     /**
      * Camera worker thread.
      */
-    private Thread mCameraThread;
+    private volatile Thread mCameraThread;
 
     /**
-     * Current index in the frame buffer. Flicks between 0 and 1.
+     * Session owning the camera.
      */
-    private int mChainIdx = 0;
+    private final CameraSession mSession = CameraSession.getInstance();
+
+    /**
+     * Wakes up the worker thread whenever the session published a frame.
+     */
+    private final CameraSession.Consumer mConsumer = new CameraSession.Consumer() {
+
+        @Override
+        public void onFrameAvailable() {
+            LockSupport.unpark(mCameraThread);
+        }
+
+    };
 
     public AndCameraView(Context context, int cameraId) {
         super(context, cameraId);
@@ -91,57 +151,208 @@ public class AndCameraView extends JavaCameraView implements Camera.PreviewCallb
      * @return {@link Camera} associated with this view
      */
     public Camera getCamera() {
-        return this.mCamera;
+        return this.mSession.getCamera();
+    }
+
+    /**
+     * Sets the amount of preview callback buffers. Takes effect the next time the camera is started.
+     *
+     * @param count Amount of buffers, at least 2
+     */
+    public void setPreviewBufferCount(int count) {
+        if (count < 2) {
+            throw new IllegalArgumentException("At least two buffers are needed.");
+        }
+
+        this.mBufferCount = count;
+    }
+
+    /**
+     * @return Amount of preview buffers currently not owned by the camera
+     */
+    public int getBuffersInFlight() {
+        PreviewBufferRing ring = this.mBufferRing;
+        return ring != null ? ring.getInFlightCount() : 0;
+    }
+
+    /**
+     * @return Amount of frames dropped since the camera was started because the worker thread couldn't keep up
+     */
+    public long getDroppedFrameCount() {
+        PreviewBufferRing ring = this.mBufferRing;
+        return ring != null ? ring.getDroppedFrameCount() : 0;
+    }
+
+    /**
+     * @return Time in nanoseconds the worker thread spent waiting for frames since the camera was started
+     */
+    public long getWorkerWaitTime() {
+        PreviewBufferRing ring = this.mBufferRing;
+        return ring != null ? ring.getWaitTime() : 0;
+    }
+
+    /**
+     * @return Average time in nanoseconds between a preview callback and the worker thread picking up its
+     * frame since the camera was started
+     */
+    public long getCallbackLatency() {
+        PreviewBufferRing ring = this.mBufferRing;
+        return ring != null ? ring.getAverageHandoffLatency() : 0;
     }
 
+    /**
+     * @return Maximum time in nanoseconds between a preview callback and the worker thread picking up its
+     * frame since the camera was started
+     */
+    public long getMaxCallbackLatency() {
+        PreviewBufferRing ring = this.mBufferRing;
+        return ring != null ? ring.getMaxHandoffLatency() : 0;
+    }
+
+    /**
+     * @return Amount of preview callbacks which ran on the main thread since the camera was started. Should
+     * always be 0.
+     */
+    public long getMainThreadCallbackCount() {
+        PreviewBufferRing ring = this.mBufferRing;
+        return ring != null ? ring.getMainThreadCallbackCount() : 0;
+    }
+
+    @Override
+    public void setFrameBudget(float millis) {
+        this.mFrameBudget = millis;
+    }
+
+    /**
+     * {@inheritDoc} Only the luminance inside the region is copied, plus every
+     * {@value #PREVIEW_DECIMATION}th luminance pixel in both directions for display. The region is grown by
+     * {@value #ROI_MARGIN} pixels on every side. Further out, the grayscale image holds stale pixels of
+     * earlier frames.
+     */
+    @Override
+    public void setAcquisitionRoi(Rect roi) {
+        Rect current = this.mAcquisitionRoi;
+
+        // Activities publish their region every frame. Keep the old instance if nothing changed, so the
+        // worker can reuse the clipped region.
+        if (roi == null || !roi.equals(current)) {
+            this.mAcquisitionRoi = roi != null ? roi.clone() : null;
+        }
+    }
+
+    @Override
+    public void setDisplayMode(DisplayMode mode) {
+        this.mDisplayMode = mode;
+    }
+
+    @Override
+    public void setCvCameraViewListener(CvCameraViewListener2 listener) {
+        super.setCvCameraViewListener(listener);
+        this.mFrameListener = listener;
+    }
+
+    /**
+     * @return Average time in nanoseconds it took to draw a frame since the camera was started
+     */
+    public long getAverageDrawTime() {
+        DisplaySink sink = this.mDisplaySink;
+        return sink != null ? sink.getAverageDrawTime() : 0;
+    }
+
+    /**
+     * Hands the frame to the listener and draws the result with {@link #mDisplaySink}, skipping the bitmap
+     * conversion and scaling of the base class.
+     *
+     * @param frame Camera frame
+     */
+    @Override
+    protected void deliverAndDrawFrame(CvCameraViewFrame frame) {
+        CvCameraViewListener2 listener = this.mFrameListener;
+        Mat modified = listener != null ? listener.onCameraFrame(frame) : frame.rgba();
+        DisplaySink sink = this.mDisplaySink;
+
+        if (modified != null && sink != null) {
+            sink.draw(modified);
+        }
+    }
+
+    @Override
+    public double getFocalLength() {
+        return this.mFocalLength;
+    }
+
+    @Override
+    public void setFrameScheduler(FrameScheduler scheduler) {
+        this.mFrameScheduler = scheduler;
+    }
+
+    @Override
+    public FrameScheduler getFrameScheduler() {
+        return this.mFrameScheduler;
+    }
+
+    /**
+     * Attaches to the camera session. Must run on the camera thread.
+     *
+     * @param width Width of the view
+     * @param height Height of the view
+     * @return <code>true</code> if frames are coming in, <code>false</code> otherwise
+     */
     @Override
     protected boolean initializeCamera(int width, int height) {
         Log.d(TAG, "Using custom camera view initialization");
 
         synchronized (this) {
             // We will ignore the camera index because we're only interested
-            // in the back camera.
+            // in the back camera. The camera itself belongs to the session,
+            // so the base class never gets to see it.
             this.mCamera = null;
 
-            try {
-                // Camera.open() opens the first back-facing camera.
-                this.mCamera = Camera.open();
-            } catch (Exception e) {
-                Log.e(TAG, "Couldn't open camera.", e);
+            Camera.Parameters params = this.mSession.open();
+
+            if (params == null) {
                 return false;
             }
 
             try {
-                // Get the best preview size available.
-                Camera.Parameters params = this.mCamera.getParameters();
-                List<Camera.Size> sizes = params.getSupportedPreviewSizes();
+                CameraInfo info = this.getCameraInfo(params);
 
-                if (sizes == null) {
+                if (info.getPreviewSizes().isEmpty()) {
                     Log.e(TAG, "Camera preview not supported.");
+                    this.mSession.detach(this.mConsumer);
                     return false;
                 }
 
-                Size frameSize = this.calculateCameraFrameSize(sizes, new JavaCameraSizeAccessor(), width, height);
-                Log.d(TAG, String.format("Preview size: %.0fx%.0f", frameSize.width, frameSize.height));
+                // The largest size fitting the view is an upper bound. The actual size is the largest one
+                // the detection pipeline can handle within the frame budget, once that has been measured.
+                Size maxSize = this.calculateCameraFrameSize(info.getPreviewSizes(), new IntArraySizeAccessor(), width, height);
+                PreviewProfile profile = PreviewProfile.loadOrBenchmark(this.getContext(), CAMERA_PROFILE_ID,
+                        info.getPreviewSizes(), toFpsRangeList(info.getFpsRanges()),
+                        (int) maxSize.width, (int) maxSize.height, this.mFrameBudget);
 
-                // OpenCV distinguishes between phones and emulators here. We know
-                // we're running on a phone so we can safely set NV21.
-                params.setPreviewFormat(ImageFormat.NV21);
-                params.setPreviewSize((int) frameSize.width, (int) frameSize.height);
-                params.setRecordingHint(true);
+                Log.d(TAG, String.format("Preview size: %dx%d", profile.getWidth(), profile.getHeight()));
 
-                // Set focus mode to infinity, if available.
-                List<String> focusModes = params.getSupportedFocusModes();
+                int[] fpsRange = findFpsRange(info.getFpsRanges(), profile);
 
-                if (focusModes != null && focusModes.contains(Camera.Parameters.FOCUS_MODE_INFINITY)) {
-                    params.setFocusMode(Camera.Parameters.FOCUS_MODE_INFINITY);
+                // Set focus mode to infinity, if available. The cached focus modes spare a parameter query.
+                String focusMode = info.getFocusModes().contains(Camera.Parameters.FOCUS_MODE_INFINITY) ?
+                        Camera.Parameters.FOCUS_MODE_INFINITY : null;
+
+                // Reuses the running preview and its buffers if another view left it behind.
+                this.mBufferRing = this.mSession.attach(profile.getWidth(), profile.getHeight(), fpsRange, focusMode,
+                        this.mBufferCount, this.mConsumer);
+
+                if (this.mBufferRing == null) {
+                    this.mSession.detach(this.mConsumer);
+                    return false;
                 }
 
-                this.mCamera.setParameters(params);
+                // Keep the focal length around so nobody has to query the parameters again.
+                this.mFocalLength = info.getFocalLength();
 
                 // Propagate preview size to CameraBridgeViewBase.
-                this.mFrameWidth = params.getPreviewSize().width;
-                this.mFrameHeight = params.getPreviewSize().height;
+                this.mFrameWidth = profile.getWidth();
+                this.mFrameHeight = profile.getHeight();
 
                 // Propagate scaling factor to CameraBridgeViewBase.
                 if (this.getLayoutParams().width == ViewGroup.LayoutParams.MATCH_PARENT &&
@@ -157,71 +368,152 @@ public class AndCameraView extends JavaCameraView implements Camera.PreviewCallb
                     this.mFpsMeter.setResolution(this.mFrameWidth, this.mFrameHeight);
                 }
 
-                // Buffer size = frame width * frame height * frame bit depth.
-                int size = this.mFrameWidth * this.mFrameHeight * ImageFormat.getBitsPerPixel(params.getPreviewFormat());
-                // Allocate new frame buffer.
-                this.mBuffer = new byte[size];
-
-                // Make the camera recognize our frame buffer.
-                this.mCamera.addCallbackBuffer(this.mBuffer);
-                this.mCamera.setPreviewCallbackWithBuffer(this);
-
                 // Frame data consists of grayscale and YUV data.
                 int matRows = this.mFrameHeight + (this.mFrameHeight / 2);
                 int matCols = this.mFrameWidth;
 
-                // Okay so the frame buffer in the super class is private but the camera
-                // frames are protected??? So I can't reuse JavaCameraView functions??????
-                this.mFrameBuffer = new Mat[2];
-                this.mFrameBuffer[0] = new Mat(matRows, matCols, CvType.CV_8UC1);
-                this.mFrameBuffer[1] = new Mat(matRows, matCols, CvType.CV_8UC1);
+                // The worker copies every frame out of the callback buffer before processing it, so a
+                // single matrix is enough no matter how many callback buffers there are.
+                this.mFrameBuffer = new Mat(matRows, matCols, CvType.CV_8UC1);
 
-                this.AllocateCache();
+                // Frames are drawn by our own sink, so the base class doesn't need its bitmap.
+                CanvasDisplaySink sink = new CanvasDisplaySink(this, this.mFrameWidth, this.mFrameHeight, this.mScale);
+                sink.setFpsMeter(this.mFpsMeter);
+                this.mDisplaySink = sink;
 
-                // Frames keep the mats they consist of as references.
-                this.mCameraFrames = new AndCameraFrame[2];
-                this.mCameraFrames[0] = new AndCameraFrame(this.mFrameBuffer[0], this.mFrameWidth, this.mFrameHeight);
-                this.mCameraFrames[1] = new AndCameraFrame(this.mFrameBuffer[1], this.mFrameWidth, this.mFrameHeight);
-
-                // Assign the drawing surface to the camera.
-                this.mSurfaceTexture = new SurfaceTexture(MAGIC_TEXTURE_ID);
-                this.mCamera.setPreviewTexture(this.mSurfaceTexture);
-
-                Log.d(TAG, "Start preview");
-                this.mCamera.startPreview();
+                // The frame keeps the matrix it consists of as a reference.
+                this.mCameraFrame = new AndCameraFrame(this.mFrameBuffer, this.mFrameWidth, this.mFrameHeight);
 
                 return true;
             } catch (Exception e) {
                 Log.e(TAG, "Couldn't set camera params.", e);
+                this.mSession.detach(this.mConsumer);
             }
         }
 
         return false;
     }
 
-    @Override
-    public void onPreviewFrame(byte[] frame, Camera arg1) {
-        synchronized (this) {
-            // Let the camera worker thread know that we have a new frame to process.
-            this.mFrameBuffer[this.mChainIdx].put(0, 0, frame);
-            this.mCameraFrameReady = true;
+    /**
+     * Looks up the cached characteristics of the back camera. Parsing them out of the camera parameters
+     * is only done on the first start, later starts revalidate the cached copy in the background. Must be
+     * called on the camera thread.
+     *
+     * @param params Parameters of the open camera
+     * @return Camera characteristics
+     */
+    private CameraInfo getCameraInfo(Camera.Parameters params) {
+        CameraInfo info = CameraInfo.get(this.getContext(), CAMERA_PROFILE_ID);
 
-            this.notify();
+        if (info == null) {
+            info = CameraInfo.fromParameters(CAMERA_PROFILE_ID, params);
+            CameraInfo.put(this.getContext(), CAMERA_PROFILE_ID, info);
+
+            return info;
         }
 
-        // Request next frame.
-        if (this.mCamera != null) {
-            this.mCamera.addCallbackBuffer(this.mBuffer);
+        final CameraSession session = this.mSession;
+
+        CameraInfo.revalidate(this.getContext(), CAMERA_PROFILE_ID, new CameraInfo.Source() {
+
+            @Override
+            public CameraInfo query() {
+                final CameraInfo[] fresh = new CameraInfo[1];
+
+                // The parameters belong to the camera thread. This runs once the current start is done.
+                session.runOnCameraThread(new Callable<Boolean>() {
+
+                    @Override
+                    public Boolean call() {
+                        Camera.Parameters params = session.getParameters();
+
+                        if (params != null) {
+                            fresh[0] = CameraInfo.fromParameters(CAMERA_PROFILE_ID, params);
+                        }
+
+                        return params != null;
+                    }
+
+                });
+
+                return fresh[0];
+            }
+
+        });
+
+        return info;
+    }
+
+    /**
+     * @param ranges Frame rate ranges as returned by {@link Camera.Parameters#getSupportedPreviewFpsRange()}
+     * @return Frame rate ranges as <code>{ min, max }</code> in frames per second
+     */
+    private static List<int[]> toFpsRangeList(List<int[]> ranges) {
+        List<int[]> list = new ArrayList<>();
+
+        if (ranges == null) {
+            return list;
+        }
+
+        for (int[] range : ranges) {
+            list.add(toFpsRange(range));
         }
+
+        return list;
+    }
+
+    /**
+     * @param range Frame rate range as returned by {@link Camera.Parameters#getSupportedPreviewFpsRange()}
+     * @return Frame rate range as <code>{ min, max }</code> in frames per second
+     */
+    private static int[] toFpsRange(int[] range) {
+        // The old camera API scales frame rates by 1000. Round towards the inside of the range.
+        return new int[] {
+                (range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX] + 999) / 1000,
+                range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX] / 1000
+        };
+    }
+
+    /**
+     * Finds the supported frame rate range a profile was made from. Only ranges exactly as reported by the
+     * camera can be set.
+     *
+     * @param ranges Frame rate ranges as returned by {@link Camera.Parameters#getSupportedPreviewFpsRange()}
+     * @param profile Preview profile
+     * @return Matching frame rate range, or <code>null</code> if there is none
+     */
+    private static int[] findFpsRange(List<int[]> ranges, PreviewProfile profile) {
+        if (ranges == null) {
+            return null;
+        }
+
+        for (int[] range : ranges) {
+            int[] fps = toFpsRange(range);
+
+            if (fps[0] == profile.getMinFps() && fps[1] == profile.getMaxFps()) {
+                return range;
+            }
+        }
+
+        return null;
     }
 
     @Override
-    protected boolean connectCamera(int width, int height) {
-        if (!this.initializeCamera(width, height)) {
+    protected boolean connectCamera(final int width, final int height) {
+        // Attach on the camera thread, which the camera delivers its callbacks to.
+        boolean initialized = this.mSession.runOnCameraThread(new Callable<Boolean>() {
+
+            @Override
+            public Boolean call() {
+                return initializeCamera(width, height);
+            }
+
+        });
+
+        if (!initialized) {
             return false;
         }
 
-        this.mCameraFrameReady = false;
         this.mStopThread = false;
 
         // Create and start camera worker thread.
@@ -237,12 +529,9 @@ public class AndCameraView extends JavaCameraView implements Camera.PreviewCallb
             // Stop the camera thread.
             this.mStopThread = true;
 
-            synchronized (this) {
-                this.notify();
-            }
-
             // Wait for worker thread to finish.
             if (this.mCameraThread != null) {
+                LockSupport.unpark(this.mCameraThread);
                 this.mCameraThread.join();
             }
         } catch (InterruptedException e) {
@@ -251,31 +540,75 @@ public class AndCameraView extends JavaCameraView implements Camera.PreviewCallb
             this.mCameraThread = null;
         }
 
-        this.releaseCamera();
-        this.mCameraFrameReady = false;
+        PreviewBufferRing ring = this.mBufferRing;
+
+        if (ring != null) {
+            Log.d(TAG, String.format("Callback latency: %.2f ms average, %.2f ms maximum, %d callbacks on main thread",
+                    ring.getAverageHandoffLatency() / 1e6, ring.getMaxHandoffLatency() / 1e6, ring.getMainThreadCallbackCount()));
+        }
+
+        // Detach on the camera thread, so no callback is in the middle of handing us a frame.
+        this.mSession.runOnCameraThread(new Callable<Boolean>() {
+
+            @Override
+            public Boolean call() {
+                releaseCamera();
+                return true;
+            }
+
+        });
     }
 
+    /**
+     * Detaches from the camera session, which keeps the camera running for the next view for a while.
+     */
     @Override
     protected void releaseCamera() {
-        // Call to super makes the camera preview stop. Also it may or
-        // may not have already allocated some resources which it can free here.
+        // The base class doesn't know the camera, but it may or may not have
+        // already allocated some resources which it can free here.
         super.releaseCamera();
 
         synchronized (this) {
+            this.mSession.detach(this.mConsumer);
+
             // Deallocate frame buffer.
             if (this.mFrameBuffer != null) {
-                this.mFrameBuffer[0].release();
-                this.mFrameBuffer[1].release();
+                this.mFrameBuffer.release();
             }
 
-            // Deallocate frames.
-            if (this.mCameraFrames != null) {
-                this.mCameraFrames[0].release();
-                this.mCameraFrames[1].release();
+            // Deallocate frame.
+            if (this.mCameraFrame != null) {
+                this.mCameraFrame.release();
             }
+
+            // Deallocate display sink.
+            if (this.mDisplaySink != null) {
+                this.mDisplaySink.release();
+                this.mDisplaySink = null;
+            }
+
+            // Callback buffers belong to the session.
+            this.mBufferRing = null;
         }
     }
 
+    /**
+     * Size accessor for sizes stored as <code>{ width, height }</code>, as in {@link CameraInfo}.
+     */
+    static class IntArraySizeAccessor implements ListItemAccessor {
+
+        @Override
+        public int getWidth(Object obj) {
+            return ((int[]) obj)[0];
+        }
+
+        @Override
+        public int getHeight(Object obj) {
+            return ((int[]) obj)[1];
+        }
+
+    }
+
     private static class AndCameraFrame implements CvCameraViewFrame {
 
         /**
@@ -288,17 +621,130 @@ public class AndCameraView extends JavaCameraView implements Camera.PreviewCallb
          */
         private Mat mYuv, mRgba;
 
+        /**
+         * Region acquired at full resolution, or <code>null</code> if the whole frame was acquired.
+         */
+        private Rect mRoi;
+
+        /**
+         * Last region passed to {@link #clip(Rect)} and its clipped counterpart.
+         */
+        private Rect mRequestedRoi, mClippedRoi;
+
+        /**
+         * Reduced grayscale preview for display while acquiring a region only, and its RGBA counterpart.
+         */
+        private Mat mPreview, mPreviewRgba;
+
+        /**
+         * Buffer for the preview, so it can be put into its matrix in one go.
+         */
+        private byte[] mPreviewBuffer;
+
+        /**
+         * How {@link #rgba()} is produced.
+         */
+        private DisplayMode mDisplayMode = DisplayMode.COLOR;
+
+        /**
+         * Grayscale part of {@link #mYuv}.
+         */
+        private Mat mGray;
+
+        /**
+         * Half resolution NV21 image for {@link DisplayMode#REDUCED_COLOR}, its luminance and chroma parts
+         * and its RGBA counterpart.
+         */
+        private Mat mReducedYuv, mReducedY, mReducedVu, mReducedRgba;
+
+        /**
+         * <code>true</code> if {@link #mRgba} already holds the current frame, <code>false</code> otherwise.
+         */
+        private boolean mRgbaValid;
+
         @Override
         public Mat rgba() {
-            // No distinction to be made here because we only use NV21.
-            Imgproc.cvtColor(mYuv, mRgba, Imgproc.COLOR_YUV2RGB_NV21, 4);
+            // Listeners may ask more than once per frame, and the conversion is expensive.
+            if (this.mRgbaValid) {
+                return this.mRgba;
+            }
+
+            if (this.mRoi != null) {
+                this.convertRoi();
+            } else if (this.mDisplayMode == DisplayMode.GRAY) {
+                Imgproc.cvtColor(this.mGray, this.mRgba, Imgproc.COLOR_GRAY2RGBA, 4);
+            } else if (this.mDisplayMode == DisplayMode.REDUCED_COLOR && this.mWidth % 4 == 0 && this.mHeight % 4 == 0) {
+                this.convertReduced();
+            } else {
+                // No distinction to be made here because we only use NV21.
+                Imgproc.cvtColor(mYuv, mRgba, Imgproc.COLOR_YUV2RGB_NV21, 4);
+            }
+
+            this.mRgbaValid = true;
 
             return this.mRgba;
         }
 
+        /**
+         * Scales up the reduced preview and pastes the region at full resolution on top.
+         */
+        private void convertRoi() {
+            Imgproc.cvtColor(this.mPreview, this.mPreviewRgba, Imgproc.COLOR_GRAY2RGBA, 4);
+            Imgproc.resize(this.mPreviewRgba, this.mRgba, new Size(this.mWidth, this.mHeight), 0, 0, Imgproc.INTER_NEAREST);
+
+            Mat gray = this.mYuv.submat(this.mRoi);
+            Mat rgba = this.mRgba.submat(this.mRoi);
+
+            Imgproc.cvtColor(gray, rgba, Imgproc.COLOR_GRAY2RGBA, 4);
+
+            gray.release();
+            rgba.release();
+        }
+
+        /**
+         * Shrinks the NV21 image to half its size, converts it and scales the result up again. Shrinking
+         * touches every luminance byte once, whereas the conversion at full size writes four bytes per pixel
+         * and does the arithmetic for each of them.
+         */
+        private void convertReduced() {
+            int width = this.mWidth / 2, height = this.mHeight / 2;
+
+            if (this.mReducedYuv == null) {
+                this.mReducedYuv = new Mat(height + height / 2, width, CvType.CV_8UC1);
+                this.mReducedY = this.mReducedYuv.submat(0, height, 0, width);
+                // Interleaved VU pairs, viewed as two channel pixels so they are scaled as pairs. The reshaped
+                // header shares the data, so the submatrix header can go right away.
+                Mat vuRows = this.mReducedYuv.submat(height, height + height / 2, 0, width);
+                this.mReducedVu = vuRows.reshape(2);
+                vuRows.release();
+                this.mReducedRgba = new Mat();
+            }
+
+            Mat vuRows = this.mYuv.submat(this.mHeight, this.mHeight + this.mHeight / 2, 0, this.mWidth);
+            Mat vu = vuRows.reshape(2);
+            vuRows.release();
+
+            // Target matrices already have the right size and type, so the results land in mReducedYuv.
+            Imgproc.resize(this.mGray, this.mReducedY, this.mReducedY.size(), 0, 0, Imgproc.INTER_NEAREST);
+            Imgproc.resize(vu, this.mReducedVu, this.mReducedVu.size(), 0, 0, Imgproc.INTER_NEAREST);
+            Imgproc.cvtColor(this.mReducedYuv, this.mReducedRgba, Imgproc.COLOR_YUV2RGBA_NV21, 4);
+            Imgproc.resize(this.mReducedRgba, this.mRgba, new Size(this.mWidth, this.mHeight), 0, 0, Imgproc.INTER_LINEAR);
+
+            vu.release();
+        }
+
         @Override
         public Mat gray() {
-            return this.mYuv.submat(0, mHeight, 0, mWidth);
+            return this.mGray;
+        }
+
+        /**
+         * Sets how {@link #rgba()} is produced from the next frame on.
+         *
+         * @param mode Display mode
+         */
+        void setDisplayMode(DisplayMode mode) {
+            this.mDisplayMode = mode;
         }
 
         public AndCameraFrame(Mat yuv, int width, int height) {
@@ -307,7 +753,80 @@ public class AndCameraView extends JavaCameraView implements Camera.PreviewCallb
             this.mWidth = width;
             this.mHeight = height;
             this.mYuv = yuv;
+            this.mGray = yuv.submat(0, height, 0, width);
             this.mRgba = new Mat();
+            this.mPreviewRgba = new Mat();
+        }
+
+        /**
+         * Grows a region of interest by {@link #ROI_MARGIN} and clips it to the frame. The result is cached,
+         * since the region rarely changes.
+         *
+         * @param roi Region of interest, or <code>null</code>
+         * @return Clipped region, or <code>null</code> if the whole frame needs to be acquired
+         */
+        Rect clip(Rect roi) {
+            if (roi == null) {
+                return null;
+            }
+
+            if (roi != this.mRequestedRoi) {
+                int x = Math.max(0, roi.x - ROI_MARGIN), y = Math.max(0, roi.y - ROI_MARGIN);
+                int width = Math.min(this.mWidth, roi.x + roi.width + ROI_MARGIN) - x;
+                int height = Math.min(this.mHeight, roi.y + roi.height + ROI_MARGIN) - y;
+
+                this.mRequestedRoi = roi;
+                this.mClippedRoi = width > 0 && height > 0 ? new Rect(x, y, width, height) : null;
+            }
+
+            return this.mClippedRoi;
+        }
+
+        /**
+         * Copies a whole frame out of a callback buffer.
+         *
+         * @param data NV21 callback buffer
+         */
+        void put(byte[] data) {
+            this.mYuv.put(0, 0, data);
+            this.mRoi = null;
+            this.mRgbaValid = false;
+        }
+
+        /**
+         * Copies the luminance inside a region and a reduced preview of the whole frame out of a callback
+         * buffer. Chroma is skipped entirely. The grayscale image outside the region is left alone, so it
+         * still holds whatever an earlier frame left there.
+         *
+         * @param data NV21 callback buffer
+         * @param roi Region to copy, within the frame
+         */
+        void putRoi(byte[] data, Rect roi) {
+            // Row by row straight into the frame matrix, which has the same layout as the buffer.
+            for (int row = roi.y; row < roi.y + roi.height; row++) {
+                this.mYuv.put(row, roi.x, data, row * this.mWidth + roi.x, roi.width);
+            }
+
+            int previewWidth = this.mWidth / PREVIEW_DECIMATION, previewHeight = this.mHeight / PREVIEW_DECIMATION;
+
+            if (this.mPreview == null) {
+                this.mPreview = new Mat(previewHeight, previewWidth, CvType.CV_8UC1);
+                this.mPreviewBuffer = new byte[previewWidth * previewHeight];
+            }
+
+            int i = 0;
+
+            for (int row = 0; row < previewHeight; row++) {
+                int offset = row * PREVIEW_DECIMATION * this.mWidth;
+
+                for (int col = 0; col < previewWidth; col++) {
+                    this.mPreviewBuffer[i++] = data[offset + col * PREVIEW_DECIMATION];
+                }
+            }
+
+            this.mPreview.put(0, 0, this.mPreviewBuffer);
+            this.mRoi = roi;
+            this.mRgbaValid = false;
         }
 
         public void release() {
@@ -315,6 +834,19 @@ public class AndCameraView extends JavaCameraView implements Camera.PreviewCallb
             // writing to the grayscale matrix. So if we deallocate it, we would be
             // in trouble.
             this.mRgba.release();
+            this.mPreviewRgba.release();
+            this.mGray.release();
+
+            if (this.mPreview != null) {
+                this.mPreview.release();
+            }
+
+            if (this.mReducedYuv != null) {
+                this.mReducedY.release();
+                this.mReducedVu.release();
+                this.mReducedRgba.release();
+                this.mReducedYuv.release();
+            }
         }
 
     }
@@ -325,34 +857,50 @@ public class AndCameraView extends JavaCameraView implements Camera.PreviewCallb
         public void run() {
             Log.d(TAG, "Starting camera worker");
 
-            do {
-                boolean hasFrame = false;
+            PreviewBufferRing ring = mBufferRing;
+            long frameIndex = 0;
 
-                synchronized (AndCameraView.this) {
-                    try {
-                        // Wait for a new frame to arrive.
-                        while (!mCameraFrameReady && !mStopThread) {
-                            AndCameraView.this.wait();
-                        }
-                    } catch (InterruptedException e) {
-                        Log.e(TAG, "Interruption in worker thread.", e);
-                    }
+            while (!mStopThread) {
+                PreviewBufferRing.Slot slot = ring.poll();
+
+                // Wait for a new frame to arrive. A wakeup may be spurious, so we just check again.
+                if (slot == null) {
+                    long waitStart = System.nanoTime();
+                    LockSupport.park(AndCameraView.this);
+                    ring.addWaitTime(System.nanoTime() - waitStart);
+
+                    continue;
+                }
+
+                // Ask the scheduler before touching the frame, so dropping it is as cheap as possible.
+                FrameScheduler scheduler = mFrameScheduler;
+                boolean process = scheduler.schedule(frameIndex++, ring.getQueuedCount());
 
-                    // If we have a new frame, prepare to let the main thread write to the next frame buffer.
-                    if (mCameraFrameReady) {
-                        mChainIdx = 1 - mChainIdx; // This switches between 0 and 1. Neat.
-                        mCameraFrameReady = false;
-                        hasFrame = true;
+                // Copy the frame and return the buffer to the camera before doing any heavy lifting,
+                // so the camera can keep writing while we process.
+                if (process) {
+                    Rect roi = mCameraFrame.clip(mAcquisitionRoi);
+
+                    if (roi == null) {
+                        mCameraFrame.put(slot.mData);
+                    } else {
+                        mCameraFrame.putRoi(slot.mData, roi);
                     }
                 }
 
+                long timestamp = slot.mTimestamp;
+
+                mSession.returnBuffer(slot.mData);
+
+                ring.recycle();
+
                 // Draw the frame.
-                if (!mStopThread && hasFrame) {
-                    if (!mFrameBuffer[1 - mChainIdx].empty()) {
-                        deliverAndDrawFrame(mCameraFrames[1 - mChainIdx]);
-                    }
+                if (process && !mStopThread) {
+                    scheduler.onFrameProcessed(System.nanoTime() - timestamp);
+                    mCameraFrame.setDisplayMode(mDisplayMode);
+                    deliverAndDrawFrame(mCameraFrame);
                 }
-            } while (!mStopThread);
+            }
 
             Log.d(TAG, "Ending camera worker");
         }
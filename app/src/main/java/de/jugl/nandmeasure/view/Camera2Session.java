@@ -0,0 +1,422 @@
+package de.jugl.nandmeasure.view;
+
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureRequest;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.util.Range;
+import android.view.Surface;
+import de.jugl.nandmeasure.camera.CameraInfo;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * <p>Process-wide owner of the back camera (Camera2 API), its capture session, the image reader the
+ * preview is written to and the thread camera callbacks and images are delivered on. This is the Camera2
+ * counterpart of {@link CameraSession}: camera views attach to the session as consumers instead of opening
+ * the camera themselves. When a view detaches, the camera keeps running for a short while, so the next
+ * activity attaching gets a warm camera and capture session instead of reopening them.</p>
+ *
+ * <p>Apart from {@link #getInstance()} and {@link #runOnCameraThread(Callable)}, all methods must be
+ * called on the camera thread.</p>
+ */
+public class Camera2Session implements ImageReader.OnImageAvailableListener {
+
+    /**
+     * Debugging tag.
+     */
+    private static final String TAG = "Camera2Session";
+
+    /**
+     * Time in milliseconds the camera stays open after the last consumer detached.
+     */
+    private static final long RELEASE_DELAY = 5000;
+
+    /**
+     * Singleton instance.
+     */
+    private static Camera2Session sInstance;
+
+    /**
+     * Thread receiving camera callbacks and images.
+     */
+    private final HandlerThread mThread;
+
+    /**
+     * Handler bound to {@link #mThread}.
+     */
+    private final Handler mHandler;
+
+    /**
+     * Closes the camera once the grace period after the last detach has passed.
+     */
+    private final Runnable mReleaseTask = new Runnable() {
+
+        @Override
+        public void run() {
+            release();
+        }
+
+    };
+
+    /**
+     * Characteristics of the camera being opened or open, or <code>null</code>.
+     */
+    private CameraInfo mInfo;
+
+    /**
+     * ID of the camera being opened, or <code>null</code>.
+     */
+    private String mOpeningId;
+
+    /**
+     * Opened camera device, or <code>null</code>.
+     */
+    private CameraDevice mCameraDevice;
+
+    /**
+     * Capture session delivering preview frames into {@link #mImageReader}, or <code>null</code>.
+     */
+    private CameraCaptureSession mCaptureSession;
+
+    /**
+     * Image reader the camera writes preview frames to, or <code>null</code>.
+     */
+    private ImageReader mImageReader;
+
+    /**
+     * Frame rate range requested from the auto exposure. <code>null</code> to leave it to the camera.
+     */
+    private Range<Integer> mFpsRange;
+
+    /**
+     * Maximum amount of images the image reader may hand out at once.
+     */
+    private int mMaxImages;
+
+    /**
+     * Consumer currently attached, or <code>null</code>.
+     */
+    private Consumer mConsumer;
+
+    private Camera2Session() {
+        this.mThread = new HandlerThread("Camera2Session", Process.THREAD_PRIORITY_DISPLAY);
+        this.mThread.start();
+        this.mHandler = new Handler(this.mThread.getLooper());
+    }
+
+    /**
+     * @return Process-wide camera session
+     */
+    public static synchronized Camera2Session getInstance() {
+        if (sInstance == null) {
+            sInstance = new Camera2Session();
+        }
+
+        return sInstance;
+    }
+
+    /**
+     * Runs a task on the camera thread and waits for it to finish.
+     *
+     * @param task Task to run
+     * @return Result of the task, or <code>false</code> if it failed
+     */
+    public boolean runOnCameraThread(Callable<Boolean> task) {
+        FutureTask<Boolean> future = new FutureTask<>(task);
+
+        if (Looper.myLooper() == this.mThread.getLooper() || !this.mHandler.post(future)) {
+            future.run();
+        }
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Interrupted while waiting for the camera thread.", e);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Camera thread task failed.", e);
+        }
+
+        return false;
+    }
+
+    /**
+     * Attaches a consumer to the preview. If the camera is still open and the preview runs with the same
+     * configuration, the consumer simply takes over its images. If only the configuration differs, the open
+     * camera gets a new capture session. Otherwise the camera is opened, and the capture session is created
+     * as soon as the camera reports that it has been opened.
+     *
+     * @param context Application context
+     * @param info Characteristics of the camera to open
+     * @param width Preview width
+     * @param height Preview height
+     * @param fpsRange Frame rate range, or <code>null</code> to leave it to the camera
+     * @param maxImages Maximum amount of images the consumer holds at once
+     * @param consumer Consumer to hand the images to
+     * @return <code>true</code> if the preview is running or being started, <code>false</code> otherwise
+     */
+    boolean attach(Context context, CameraInfo info, int width, int height, Range<Integer> fpsRange, int maxImages, Consumer consumer) {
+        this.mHandler.removeCallbacks(this.mReleaseTask);
+
+        boolean sameCamera = this.mInfo != null && this.mInfo.getCameraId().equals(info.getCameraId());
+
+        if (sameCamera && this.mImageReader != null && this.mImageReader.getWidth() == width &&
+            this.mImageReader.getHeight() == height && maxImages == this.mMaxImages &&
+            (fpsRange == null ? this.mFpsRange == null : fpsRange.equals(this.mFpsRange))) {
+
+            Log.d(TAG, "Reusing running preview");
+            this.mConsumer = consumer;
+
+            return true;
+        }
+
+        if (!sameCamera) {
+            this.closeCamera();
+        }
+
+        // The old capture session writes to the old image reader, so it has to go first.
+        this.closePreview();
+
+        this.mInfo = info;
+        this.mFpsRange = fpsRange;
+        this.mMaxImages = maxImages;
+        this.mImageReader = ImageReader.newInstance(width, height, ImageFormat.YUV_420_888, maxImages);
+        this.mImageReader.setOnImageAvailableListener(this, this.mHandler);
+        this.mConsumer = consumer;
+
+        if (this.mCameraDevice != null) {
+            Log.d(TAG, "Reusing open camera");
+            this.createPreviewSession();
+
+            return true;
+        }
+
+        // The capture session is created once the camera being opened reports in.
+        if (info.getCameraId().equals(this.mOpeningId)) {
+            return true;
+        }
+
+        CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+
+        try {
+            if (manager != null) {
+                manager.openCamera(info.getCameraId(), new CameraStateCallback(), this.mHandler);
+                this.mOpeningId = info.getCameraId();
+
+                return true;
+            }
+        } catch (CameraAccessException | SecurityException e) {
+            Log.e(TAG, "Couldn't open camera.", e);
+        }
+
+        this.mConsumer = null;
+        this.release();
+
+        return false;
+    }
+
+    /**
+     * Detaches a consumer. Since images are handed out on the camera thread, the consumer won't get any
+     * more of them once this returns. The camera is released after a grace period, unless another consumer
+     * attaches in the meantime.
+     *
+     * @param consumer Consumer to detach
+     */
+    void detach(Consumer consumer) {
+        if (this.mConsumer == consumer) {
+            this.mConsumer = null;
+        }
+
+        if (this.mConsumer == null) {
+            this.mHandler.removeCallbacks(this.mReleaseTask);
+            this.mHandler.postDelayed(this.mReleaseTask, RELEASE_DELAY);
+        }
+    }
+
+    @Override
+    public void onImageAvailable(ImageReader reader) {
+        Consumer consumer = this.mConsumer;
+
+        if (consumer != null) {
+            consumer.onImageAvailable(reader);
+            return;
+        }
+
+        // Nobody is interested in images during the grace period, but the reader must not run full.
+        Image image;
+
+        while ((image = reader.acquireNextImage()) != null) {
+            image.close();
+        }
+    }
+
+    /**
+     * Creates the capture session for the open camera and {@link #mImageReader} and starts the repeating
+     * preview request.
+     */
+    private void createPreviewSession() {
+        try {
+            final ImageReader reader = this.mImageReader;
+            final Surface surface = reader.getSurface();
+            final CaptureRequest.Builder builder = this.mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+            builder.addTarget(surface);
+
+            // Set focus to infinity, if the lens can focus at all. A minimum focus distance of 0 denotes
+            // a fixed-focus lens.
+            if (this.mInfo.getMinFocusDistance() > 0f) {
+                builder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_OFF);
+                builder.set(CaptureRequest.LENS_FOCUS_DISTANCE, 0f);
+            }
+
+            if (this.mFpsRange != null) {
+                builder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, this.mFpsRange);
+            }
+
+            this.mCameraDevice.createCaptureSession(Arrays.asList(surface), new CameraCaptureSession.StateCallback() {
+
+                @Override
+                public void onConfigured(CameraCaptureSession session) {
+                    // The camera might have been closed or reconfigured in the meantime.
+                    if (mCameraDevice == null || mImageReader != reader) {
+                        session.close();
+                        return;
+                    }
+
+                    mCaptureSession = session;
+
+                    try {
+                        Log.d(TAG, "Start preview");
+                        mCaptureSession.setRepeatingRequest(builder.build(), null, mHandler);
+                    } catch (CameraAccessException | IllegalStateException e) {
+                        Log.e(TAG, "Couldn't start preview.", e);
+                    }
+                }
+
+                @Override
+                public void onConfigureFailed(CameraCaptureSession session) {
+                    Log.e(TAG, "Couldn't configure capture session.");
+                }
+
+            }, this.mHandler);
+        } catch (CameraAccessException | IllegalStateException e) {
+            Log.e(TAG, "Couldn't create capture session.", e);
+        }
+    }
+
+    /**
+     * Closes the capture session and the image reader, if there are any.
+     */
+    private void closePreview() {
+        if (this.mCaptureSession != null) {
+            this.mCaptureSession.close();
+            this.mCaptureSession = null;
+        }
+
+        if (this.mImageReader != null) {
+            this.mImageReader.close();
+            this.mImageReader = null;
+        }
+    }
+
+    /**
+     * Closes the camera, if it is open. A camera still being opened is closed as soon as it reports in.
+     */
+    private void closeCamera() {
+        if (this.mCameraDevice != null) {
+            this.mCameraDevice.close();
+            this.mCameraDevice = null;
+        }
+
+        this.mInfo = null;
+    }
+
+    /**
+     * Stops the preview and closes the camera.
+     */
+    private void release() {
+        if (this.mConsumer != null) {
+            return;
+        }
+
+        Log.d(TAG, "Releasing camera");
+
+        this.closePreview();
+        this.closeCamera();
+    }
+
+    private class CameraStateCallback extends CameraDevice.StateCallback {
+
+        @Override
+        public void onOpened(CameraDevice camera) {
+            if (camera.getId().equals(mOpeningId)) {
+                mOpeningId = null;
+            }
+
+            // Released or switched to another camera while this one was being opened.
+            if (mInfo == null || !mInfo.getCameraId().equals(camera.getId()) || mCameraDevice != null) {
+                camera.close();
+                return;
+            }
+
+            mCameraDevice = camera;
+            createPreviewSession();
+        }
+
+        @Override
+        public void onDisconnected(CameraDevice camera) {
+            this.forget(camera);
+        }
+
+        @Override
+        public void onError(CameraDevice camera, int error) {
+            Log.e(TAG, "Camera error: " + error);
+            this.forget(camera);
+        }
+
+        /**
+         * Forgets the camera, so the next consumer attaching opens it again.
+         *
+         * @param camera Camera which is gone
+         */
+        private void forget(CameraDevice camera) {
+            camera.close();
+
+            if (camera.getId().equals(mOpeningId)) {
+                mOpeningId = null;
+            }
+
+            if (mCameraDevice == camera) {
+                mCameraDevice = null;
+                mCaptureSession = null;
+                mInfo = null;
+            }
+        }
+
+    }
+
+    public interface Consumer {
+
+        /**
+         * Called on the camera thread whenever the image reader has new images.
+         *
+         * @param reader Image reader holding the images
+         */
+        void onImageAvailable(ImageReader reader);
+
+    }
+
+}
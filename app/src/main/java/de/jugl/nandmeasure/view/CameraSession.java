@@ -0,0 +1,398 @@
+package de.jugl.nandmeasure.view;
+
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
+import android.hardware.Camera;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * <p>Process-wide owner of the back camera (old camera API), its preview callback buffers and the thread
+ * it delivers callbacks on. Camera views attach to the session as consumers instead of opening the camera
+ * themselves. When a view detaches, the camera keeps running for a short while, so the next activity
+ * attaching gets a warm camera with its buffers already in place instead of reopening it.</p>
+ *
+ * <p>Apart from {@link #getInstance()}, {@link #runOnCameraThread(Callable)} and
+ * {@link #returnBuffer(byte[])}, all methods must be called on the camera thread.</p>
+ */
+public class CameraSession implements Camera.PreviewCallback {
+
+    /**
+     * Debugging tag.
+     */
+    private static final String TAG = "CameraSession";
+
+    /**
+     * Time in milliseconds the camera stays open after the last consumer detached.
+     */
+    private static final long RELEASE_DELAY = 5000;
+
+    /**
+     * ID of the OpenGL texture to be used with {@link SurfaceTexture}. No clue where this
+     * comes from but otherwise it wouldn't be magic.
+     */
+    private static final int MAGIC_TEXTURE_ID = 10;
+
+    /**
+     * Singleton instance.
+     */
+    private static CameraSession sInstance;
+
+    /**
+     * Thread the camera is opened on. The camera delivers its callbacks to the looper of the thread it was
+     * opened on, so this keeps them off the main thread.
+     */
+    private final HandlerThread mThread;
+
+    /**
+     * Handler bound to {@link #mThread}.
+     */
+    private final Handler mHandler;
+
+    /**
+     * Closes the camera once the grace period after the last detach has passed.
+     */
+    private final Runnable mReleaseTask = new Runnable() {
+
+        @Override
+        public void run() {
+            release();
+        }
+
+    };
+
+    /**
+     * Open camera, or <code>null</code>.
+     */
+    private volatile Camera mCamera;
+
+    /**
+     * Camera parameters, queried once when the camera is opened.
+     */
+    private Camera.Parameters mParameters;
+
+    /**
+     * {@link SurfaceTexture} for the camera to draw on.
+     */
+    private SurfaceTexture mSurfaceTexture;
+
+    /**
+     * Ring of callback buffers of the running preview, or <code>null</code>.
+     */
+    private volatile PreviewBufferRing mBufferRing;
+
+    /**
+     * Consumer currently attached, or <code>null</code>.
+     */
+    private volatile Consumer mConsumer;
+
+    /**
+     * Configuration of the running preview: size, raw frame rate range and amount of buffers.
+     */
+    private int mPreviewWidth, mPreviewHeight, mMinFps, mMaxFps, mBufferCount;
+
+    private CameraSession() {
+        this.mThread = new HandlerThread("CameraSession", Process.THREAD_PRIORITY_DISPLAY);
+        this.mThread.start();
+        this.mHandler = new Handler(this.mThread.getLooper());
+    }
+
+    /**
+     * @return Process-wide camera session
+     */
+    public static synchronized CameraSession getInstance() {
+        if (sInstance == null) {
+            sInstance = new CameraSession();
+        }
+
+        return sInstance;
+    }
+
+    /**
+     * Runs a task on the camera thread and waits for it to finish.
+     *
+     * @param task Task to run
+     * @return Result of the task, or <code>false</code> if it failed
+     */
+    public boolean runOnCameraThread(Callable<Boolean> task) {
+        FutureTask<Boolean> future = new FutureTask<>(task);
+
+        if (Looper.myLooper() == this.mThread.getLooper() || !this.mHandler.post(future)) {
+            future.run();
+        }
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Interrupted while waiting for the camera thread.", e);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Camera thread task failed.", e);
+        }
+
+        return false;
+    }
+
+    /**
+     * Opens the camera unless it is still open from an earlier consumer.
+     *
+     * @return Camera parameters. Only meant to be read, changes have no effect. <code>null</code> if the
+     * camera couldn't be opened.
+     */
+    public Camera.Parameters open() {
+        this.mHandler.removeCallbacks(this.mReleaseTask);
+
+        if (this.mCamera != null) {
+            Log.d(TAG, "Reusing open camera");
+            return this.mParameters;
+        }
+
+        try {
+            // Camera.open() opens the first back-facing camera.
+            this.mCamera = Camera.open();
+            this.mParameters = this.mCamera.getParameters();
+        } catch (Exception e) {
+            Log.e(TAG, "Couldn't open camera.", e);
+            this.release();
+            return null;
+        }
+
+        // OpenCV distinguishes between phones and emulators here. We know
+        // we're running on a phone so we can safely set NV21.
+        this.mParameters.setPreviewFormat(ImageFormat.NV21);
+        this.mParameters.setRecordingHint(true);
+
+        return this.mParameters;
+    }
+
+    /**
+     * Attaches a consumer to the preview. If the preview already runs with the same configuration, the
+     * consumer simply takes over its buffers. Otherwise the preview is restarted.
+     *
+     * @param width Preview width
+     * @param height Preview height
+     * @param fpsRange Frame rate range as reported by {@link Camera.Parameters#getSupportedPreviewFpsRange()},
+     *                 or <code>null</code> to leave it to the camera
+     * @param focusMode Focus mode, or <code>null</code> to leave it to the camera. Only applied when the
+     *                  preview is (re)started.
+     * @param bufferCount Amount of callback buffers
+     * @param consumer Consumer to notify about new frames
+     * @return Ring of callback buffers the frames are published to, or <code>null</code> if the preview
+     * couldn't be started
+     */
+    PreviewBufferRing attach(int width, int height, int[] fpsRange, String focusMode, int bufferCount, Consumer consumer) {
+        int minFps = fpsRange != null ? fpsRange[Camera.Parameters.PREVIEW_FPS_MIN_INDEX] : 0;
+        int maxFps = fpsRange != null ? fpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX] : 0;
+
+        if (this.mCamera == null) {
+            return null;
+        }
+
+        if (this.mBufferRing != null && width == this.mPreviewWidth && height == this.mPreviewHeight &&
+            minFps == this.mMinFps && maxFps == this.mMaxFps && bufferCount == this.mBufferCount) {
+
+            Log.d(TAG, "Reusing running preview");
+            this.mConsumer = consumer;
+
+            return this.mBufferRing;
+        }
+
+        try {
+            this.stopPreview();
+
+            this.mParameters.setPreviewSize(width, height);
+
+            if (fpsRange != null) {
+                this.mParameters.setPreviewFpsRange(minFps, maxFps);
+            }
+
+            if (focusMode != null) {
+                this.mParameters.setFocusMode(focusMode);
+            }
+
+            this.mCamera.setParameters(this.mParameters);
+
+            // Buffer size = frame width * frame height * frame bit depth / 8 bits.
+            int size = width * height * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8;
+            PreviewBufferRing ring = new PreviewBufferRing(bufferCount, size);
+
+            // Make the camera recognize our frame buffers.
+            for (PreviewBufferRing.Slot slot : ring.getSlots()) {
+                this.mCamera.addCallbackBuffer(slot.mData);
+            }
+
+            this.mCamera.setPreviewCallbackWithBuffer(this);
+
+            // Assign the drawing surface to the camera.
+            if (this.mSurfaceTexture == null) {
+                this.mSurfaceTexture = new SurfaceTexture(MAGIC_TEXTURE_ID);
+            }
+
+            this.mCamera.setPreviewTexture(this.mSurfaceTexture);
+
+            this.mPreviewWidth = width;
+            this.mPreviewHeight = height;
+            this.mMinFps = minFps;
+            this.mMaxFps = maxFps;
+            this.mBufferCount = bufferCount;
+            this.mBufferRing = ring;
+            this.mConsumer = consumer;
+
+            Log.d(TAG, "Start preview");
+            this.mCamera.startPreview();
+
+            return ring;
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Couldn't set camera params.", e);
+            this.stopPreview();
+        }
+
+        return null;
+    }
+
+    /**
+     * Detaches a consumer. The consumer must have stopped taking buffers from the ring. Once no consumer is
+     * left, the camera is released after a grace period, unless another consumer attaches in the meantime.
+     *
+     * @param consumer Consumer to detach
+     */
+    public void detach(Consumer consumer) {
+        if (this.mConsumer == consumer) {
+            this.mConsumer = null;
+
+            // Hand frames the consumer didn't get to back to the camera. Nobody else takes from the ring now.
+            PreviewBufferRing ring = this.mBufferRing;
+
+            if (ring != null) {
+                PreviewBufferRing.Slot slot;
+
+                while ((slot = ring.poll()) != null) {
+                    this.returnBuffer(slot.mData);
+                    ring.recycle();
+                }
+            }
+        }
+
+        // Also covers consumers which opened the camera but never managed to attach.
+        if (this.mConsumer == null) {
+            this.mHandler.removeCallbacks(this.mReleaseTask);
+            this.mHandler.postDelayed(this.mReleaseTask, RELEASE_DELAY);
+        }
+    }
+
+    /**
+     * Gives a callback buffer back to the camera. May be called from any thread.
+     *
+     * @param data Callback buffer
+     */
+    public void returnBuffer(byte[] data) {
+        Camera camera = this.mCamera;
+
+        if (camera != null) {
+            camera.addCallbackBuffer(data);
+        }
+    }
+
+    /**
+     * @return Parameters of the open camera, or <code>null</code>. Only meant to be read, changes have no
+     * effect.
+     */
+    public Camera.Parameters getParameters() {
+        return this.mParameters;
+    }
+
+    /**
+     * @return Open camera, or <code>null</code>
+     */
+    public Camera getCamera() {
+        return this.mCamera;
+    }
+
+    @Override
+    public void onPreviewFrame(byte[] frame, Camera camera) {
+        PreviewBufferRing ring = this.mBufferRing;
+        PreviewBufferRing.Slot slot = ring != null ? ring.find(frame) : null;
+
+        if (slot == null) {
+            return;
+        }
+
+        Consumer consumer = this.mConsumer;
+
+        // Nobody is interested in frames during the grace period.
+        if (consumer == null) {
+            camera.addCallbackBuffer(frame);
+            return;
+        }
+
+        slot.mTimestamp = System.nanoTime();
+
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            ring.addMainThreadCallback();
+        }
+
+        if (ring.publish(slot)) {
+            // Let the consumer know that we have a new frame to process.
+            consumer.onFrameAvailable();
+        } else {
+            // The consumer is busy with a backlog. Drop this frame and give the buffer back right away.
+            camera.addCallbackBuffer(frame);
+        }
+    }
+
+    /**
+     * Stops the preview, if it is running.
+     */
+    private void stopPreview() {
+        if (this.mCamera != null && this.mBufferRing != null) {
+            this.mCamera.stopPreview();
+            this.mCamera.setPreviewCallbackWithBuffer(null);
+        }
+
+        // Callback buffers are left to the garbage collector.
+        this.mBufferRing = null;
+    }
+
+    /**
+     * Stops the preview and closes the camera.
+     */
+    private void release() {
+        if (this.mConsumer != null) {
+            return;
+        }
+
+        Log.d(TAG, "Releasing camera");
+
+        this.stopPreview();
+
+        if (this.mCamera != null) {
+            this.mCamera.release();
+            this.mCamera = null;
+        }
+
+        if (this.mSurfaceTexture != null) {
+            this.mSurfaceTexture.release();
+            this.mSurfaceTexture = null;
+        }
+
+        this.mParameters = null;
+    }
+
+    public interface Consumer {
+
+        /**
+         * Called on the camera thread whenever a frame has been published to the buffer ring.
+         */
+        void onFrameAvailable();
+
+    }
+
+}
@@ -0,0 +1,221 @@
+package de.jugl.nandmeasure.view;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+import android.util.Log;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+import org.opencv.android.FpsMeter;
+import org.opencv.android.Utils;
+import org.opencv.core.Mat;
+
+/**
+ * <p>Display sink drawing frames onto the canvas of a {@link SurfaceView}. In contrast to
+ * {@link org.opencv.android.CameraBridgeViewBase#deliverAndDrawFrame}, it allocates nothing per frame:
+ * the bitmap and the source and target rectangles are created once and reused.</p>
+ *
+ * <p>If frame and view have the same aspect ratio, the surface buffer is fixed to the frame size. The frame
+ * then covers the whole canvas and is copied without scaling, and the compositor scales the surface up in
+ * hardware. Note that changing the buffer size makes {@link org.opencv.android.CameraBridgeViewBase}
+ * restart the camera once.</p>
+ */
+public class CanvasDisplaySink implements DisplaySink {
+
+    /**
+     * Debugging tag.
+     */
+    private static final String TAG = "CanvasDisplaySink";
+
+    /**
+     * Maximum difference of aspect ratios which are still considered equal.
+     */
+    private static final float ASPECT_RATIO_DELTA = 0.0001f;
+
+    /**
+     * Surface holder to draw on.
+     */
+    private final SurfaceHolder mHolder;
+
+    /**
+     * Bitmap the frames are converted into.
+     */
+    private final Bitmap mBitmap;
+
+    /**
+     * Frame dimensions.
+     */
+    private final int mFrameWidth, mFrameHeight;
+
+    /**
+     * Factor the frame is scaled by if the surface buffer isn't fixed to the frame size. 0 to not scale.
+     */
+    private final float mScale;
+
+    /**
+     * Area of the bitmap to draw.
+     */
+    private final Rect mSrcRect;
+
+    /**
+     * Area of the canvas to draw to. Recomputed whenever the canvas size changes.
+     */
+    private final Rect mDstRect;
+
+    /**
+     * Canvas size {@link #mDstRect} was computed for.
+     */
+    private int mCanvasWidth, mCanvasHeight;
+
+    /**
+     * <code>true</code> if the frame covers the whole canvas, so there is no need to clear it first.
+     */
+    private boolean mCoversCanvas;
+
+    /**
+     * FPS meter to draw on top of the frame, if any.
+     */
+    private FpsMeter mFpsMeter;
+
+    /**
+     * Sum and maximum of the draw times in nanoseconds. Only written by the drawing thread.
+     */
+    private volatile long mDrawTime, mMaxDrawTime;
+
+    /**
+     * Amount of frames drawn. Only written by the drawing thread.
+     */
+    private volatile long mDrawCount;
+
+    /**
+     * Creates a new canvas display sink.
+     *
+     * @param view View to draw on
+     * @param frameWidth Frame width
+     * @param frameHeight Frame height
+     * @param scale Factor the frame is scaled by to fit the view, or 0 to not scale it
+     */
+    public CanvasDisplaySink(SurfaceView view, int frameWidth, int frameHeight, float scale) {
+        this.mHolder = view.getHolder();
+        this.mFrameWidth = frameWidth;
+        this.mFrameHeight = frameHeight;
+        this.mScale = scale;
+
+        this.mBitmap = Bitmap.createBitmap(frameWidth, frameHeight, Bitmap.Config.ARGB_8888);
+        this.mSrcRect = new Rect(0, 0, frameWidth, frameHeight);
+        this.mDstRect = new Rect();
+
+        float viewAspectRatio = (float) view.getWidth() / view.getHeight();
+        float frameAspectRatio = (float) frameWidth / frameHeight;
+
+        if (scale != 0 && Math.abs(viewAspectRatio - frameAspectRatio) < ASPECT_RATIO_DELTA) {
+            // Has to happen on the UI thread. Setting the same size again is a no-op.
+            view.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    mHolder.setFixedSize(mFrameWidth, mFrameHeight);
+                }
+
+            });
+        }
+    }
+
+    /**
+     * @param meter FPS meter to draw on top of every frame, or <code>null</code> for none
+     */
+    public void setFpsMeter(FpsMeter meter) {
+        this.mFpsMeter = meter;
+    }
+
+    @Override
+    public void draw(Mat frame) {
+        long start = System.nanoTime();
+
+        try {
+            Utils.matToBitmap(frame, this.mBitmap);
+        } catch (Exception e) {
+            Log.e(TAG, "Couldn't convert frame to bitmap.", e);
+            return;
+        }
+
+        Canvas canvas = this.mHolder.lockCanvas();
+
+        if (canvas == null) {
+            return;
+        }
+
+        if (canvas.getWidth() != this.mCanvasWidth || canvas.getHeight() != this.mCanvasHeight) {
+            this.updateDstRect(canvas.getWidth(), canvas.getHeight());
+        }
+
+        if (!this.mCoversCanvas) {
+            canvas.drawColor(0, PorterDuff.Mode.CLEAR);
+        }
+
+        canvas.drawBitmap(this.mBitmap, this.mSrcRect, this.mDstRect, null);
+
+        if (this.mFpsMeter != null) {
+            this.mFpsMeter.measure();
+            this.mFpsMeter.draw(canvas, 20, 30);
+        }
+
+        this.mHolder.unlockCanvasAndPost(canvas);
+
+        long time = System.nanoTime() - start;
+
+        this.mDrawTime += time;
+        this.mDrawCount++;
+
+        if (time > this.mMaxDrawTime) {
+            this.mMaxDrawTime = time;
+        }
+    }
+
+    /**
+     * Computes the area of the canvas to draw to. The frame is centered, just like
+     * {@link org.opencv.android.CameraBridgeViewBase} does it.
+     *
+     * @param canvasWidth Canvas width
+     * @param canvasHeight Canvas height
+     */
+    private void updateDstRect(int canvasWidth, int canvasHeight) {
+        this.mCanvasWidth = canvasWidth;
+        this.mCanvasHeight = canvasHeight;
+
+        if (canvasWidth == this.mFrameWidth && canvasHeight == this.mFrameHeight) {
+            // Buffer is fixed to the frame size, the compositor does the scaling.
+            this.mDstRect.set(0, 0, canvasWidth, canvasHeight);
+        } else {
+            float scale = this.mScale != 0 ? this.mScale : 1f;
+            int width = Math.round(this.mFrameWidth * scale), height = Math.round(this.mFrameHeight * scale);
+            int left = (canvasWidth - width) / 2, top = (canvasHeight - height) / 2;
+
+            this.mDstRect.set(left, top, left + width, top + height);
+        }
+
+        this.mCoversCanvas = this.mDstRect.left <= 0 && this.mDstRect.top <= 0 &&
+                             this.mDstRect.right >= canvasWidth && this.mDstRect.bottom >= canvasHeight;
+    }
+
+    @Override
+    public void release() {
+        Log.d(TAG, String.format("Draw time: %.2f ms average, %.2f ms maximum over %d frames",
+                this.getAverageDrawTime() / 1e6, this.mMaxDrawTime / 1e6, this.mDrawCount));
+
+        this.mBitmap.recycle();
+    }
+
+    @Override
+    public long getAverageDrawTime() {
+        long count = this.mDrawCount;
+        return count != 0 ? this.mDrawTime / count : 0;
+    }
+
+    @Override
+    public long getMaxDrawTime() {
+        return this.mMaxDrawTime;
+    }
+
+}
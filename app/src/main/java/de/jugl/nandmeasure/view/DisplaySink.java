@@ -0,0 +1,33 @@
+package de.jugl.nandmeasure.view;
+
+import org.opencv.core.Mat;
+
+/**
+ * Destination for processed camera frames. Camera views hand every frame their listener returned to a
+ * sink instead of going through {@link org.opencv.android.CameraBridgeViewBase}'s own drawing code.
+ */
+public interface DisplaySink {
+
+    /**
+     * Shows a frame.
+     *
+     * @param frame RGBA frame with the dimensions the sink was created for
+     */
+    void draw(Mat frame);
+
+    /**
+     * Frees all resources held by this sink. The sink must not be used afterwards.
+     */
+    void release();
+
+    /**
+     * @return Average time {@link #draw(Mat)} took in nanoseconds
+     */
+    long getAverageDrawTime();
+
+    /**
+     * @return Maximum time {@link #draw(Mat)} took in nanoseconds
+     */
+    long getMaxDrawTime();
+
+}
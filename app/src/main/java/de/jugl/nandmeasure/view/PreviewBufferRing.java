@@ -0,0 +1,242 @@
+package de.jugl.nandmeasure.view;
+
+import de.jugl.nandmeasure.util.SpscQueue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Ring of preview callback buffers shared between the camera callback (producer) and the camera worker
+ * thread (consumer). Every buffer is registered with the camera. Once the camera filled one, the callback
+ * publishes it and the worker picks it up, copies it and hands it back to the camera.</p>
+ *
+ * <p>At most <code>count - 1</code> buffers are queued at a time so that the camera always owns at least
+ * one buffer. If the worker falls behind, newly arriving frames are dropped and their buffers returned to
+ * the camera right away. The sensor never stalls because it ran out of buffers.</p>
+ */
+class PreviewBufferRing {
+
+    /**
+     * Default amount of callback buffers.
+     */
+    static final int DEFAULT_BUFFER_COUNT = 3;
+
+    /**
+     * Buffer slots.
+     */
+    private final Slot[] mSlots;
+
+    /**
+     * Filled buffers waiting for the worker.
+     */
+    private final SpscQueue<Slot> mReadyQueue;
+
+    /**
+     * Amount of buffers which are currently not owned by the camera.
+     */
+    private final AtomicInteger mInFlight;
+
+    /**
+     * Amount of frames dropped because the worker couldn't keep up. Only written by the producer.
+     */
+    private volatile long mDroppedFrames;
+
+    /**
+     * Time the worker spent waiting for new frames in nanoseconds. Only written by the consumer.
+     */
+    private volatile long mWaitTime;
+
+    /**
+     * Sum and maximum of the time between the callback publishing a buffer and the worker taking it, in
+     * nanoseconds. Only written by the consumer.
+     */
+    private volatile long mHandoffLatency, mMaxHandoffLatency;
+
+    /**
+     * Amount of buffers the worker has taken. Only written by the consumer.
+     */
+    private volatile long mHandoffCount;
+
+    /**
+     * Amount of callbacks which ran on the main thread. Only written by the producer.
+     */
+    private volatile long mMainThreadCallbacks;
+
+    /**
+     * Creates a new ring of callback buffers.
+     *
+     * @param count Amount of buffers, at least 2
+     * @param bufferSize Size of a single buffer in bytes
+     */
+    PreviewBufferRing(int count, int bufferSize) {
+        if (count < 2) {
+            throw new IllegalArgumentException("At least two buffers are needed.");
+        }
+
+        this.mSlots = new Slot[count];
+
+        for (int i = 0; i < count; i++) {
+            this.mSlots[i] = new Slot(new byte[bufferSize]);
+        }
+
+        this.mReadyQueue = new SpscQueue<>(count - 1);
+        this.mInFlight = new AtomicInteger();
+    }
+
+    /**
+     * @return All buffer slots, in order to register them with the camera
+     */
+    Slot[] getSlots() {
+        return this.mSlots;
+    }
+
+    /**
+     * Looks up the slot a buffer belongs to. The amount of buffers is tiny, so a linear search is
+     * cheaper than any map.
+     *
+     * @param buffer Buffer handed out by the camera
+     * @return Slot owning the buffer, or <code>null</code> if the buffer isn't part of this ring
+     */
+    Slot find(byte[] buffer) {
+        for (Slot slot : this.mSlots) {
+            if (slot.mData == buffer) {
+                return slot;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Hands a filled buffer to the worker. Must only be called by the producer.
+     *
+     * @param slot Filled slot
+     * @return <code>true</code> if the slot was queued, <code>false</code> if the frame has been dropped and
+     * the buffer has to be returned to the camera immediately
+     */
+    boolean publish(Slot slot) {
+        // Counted before the slot becomes visible, otherwise the consumer could recycle it first.
+        this.mInFlight.incrementAndGet();
+
+        if (!this.mReadyQueue.offer(slot)) {
+            this.mInFlight.decrementAndGet();
+            this.mDroppedFrames++;
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Takes the oldest filled buffer. Must only be called by the consumer.
+     *
+     * @return Oldest filled slot, or <code>null</code> if there is none
+     */
+    Slot poll() {
+        Slot slot = this.mReadyQueue.poll();
+
+        if (slot != null) {
+            long latency = System.nanoTime() - slot.mTimestamp;
+
+            this.mHandoffLatency += latency;
+            this.mHandoffCount++;
+
+            if (latency > this.mMaxHandoffLatency) {
+                this.mMaxHandoffLatency = latency;
+            }
+        }
+
+        return slot;
+    }
+
+    /**
+     * Marks a buffer taken with {@link #poll()} as given back to the camera.
+     */
+    void recycle() {
+        this.mInFlight.decrementAndGet();
+    }
+
+    /**
+     * Adds to the time the worker spent waiting. Must only be called by the consumer.
+     *
+     * @param nanos Waiting time in nanoseconds
+     */
+    void addWaitTime(long nanos) {
+        this.mWaitTime += nanos;
+    }
+
+    /**
+     * Counts a callback which ran on the main thread. Must only be called by the producer.
+     */
+    void addMainThreadCallback() {
+        this.mMainThreadCallbacks++;
+    }
+
+    /**
+     * @return Amount of queued frames
+     */
+    int getQueuedCount() {
+        return this.mReadyQueue.size();
+    }
+
+    /**
+     * @return Amount of buffers which are currently not owned by the camera
+     */
+    int getInFlightCount() {
+        return this.mInFlight.get();
+    }
+
+    /**
+     * @return Amount of frames dropped because the worker couldn't keep up
+     */
+    long getDroppedFrameCount() {
+        return this.mDroppedFrames;
+    }
+
+    /**
+     * @return Time the worker spent waiting for new frames in nanoseconds
+     */
+    long getWaitTime() {
+        return this.mWaitTime;
+    }
+
+    /**
+     * @return Average time between the callback publishing a buffer and the worker taking it, in nanoseconds
+     */
+    long getAverageHandoffLatency() {
+        long count = this.mHandoffCount;
+        return count != 0 ? this.mHandoffLatency / count : 0;
+    }
+
+    /**
+     * @return Maximum time between the callback publishing a buffer and the worker taking it, in nanoseconds
+     */
+    long getMaxHandoffLatency() {
+        return this.mMaxHandoffLatency;
+    }
+
+    /**
+     * @return Amount of callbacks which ran on the main thread
+     */
+    long getMainThreadCallbackCount() {
+        return this.mMainThreadCallbacks;
+    }
+
+    static class Slot {
+
+        /**
+         * Callback buffer.
+         */
+        final byte[] mData;
+
+        /**
+         * Time at which the camera handed the buffer back, as in {@link System#nanoTime()}.
+         */
+        volatile long mTimestamp;
+
+        Slot(byte[] data) {
+            this.mData = data;
+        }
+
+    }
+
+}
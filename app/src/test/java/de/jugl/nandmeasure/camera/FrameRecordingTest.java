@@ -0,0 +1,52 @@
+package de.jugl.nandmeasure.camera;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class FrameRecordingTest {
+
+    @Test
+    public void header_roundTrips() throws IOException {
+        FrameRecording.Header header = read(write(new FrameRecording.Header(FrameRecording.FORMAT_NV21, 640, 480, 4.2d)));
+
+        assertEquals(FrameRecording.FORMAT_NV21, header.mFormat);
+        assertEquals(640, header.mWidth);
+        assertEquals(480, header.mHeight);
+        assertEquals(4.2d, header.mFocalLength, 0d);
+    }
+
+    @Test
+    public void frameSize_includesChromaForNv21() {
+        assertEquals(640 * 480, new FrameRecording.Header(FrameRecording.FORMAT_GRAY, 640, 480, 0d).getFrameSize());
+        assertEquals(640 * 720, new FrameRecording.Header(FrameRecording.FORMAT_NV21, 640, 480, 0d).getFrameSize());
+    }
+
+    @Test(expected = IOException.class)
+    public void readHeader_rejectsOtherFiles() throws IOException {
+        read(new byte[] { 'R', 'I', 'F', 'F', 0, 0, 0, 1 });
+    }
+
+    @Test(expected = IOException.class)
+    public void readHeader_rejectsUnknownFormat() throws IOException {
+        read(write(new FrameRecording.Header(7, 640, 480, 0d)));
+    }
+
+    private static byte[] write(FrameRecording.Header header) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        FrameRecording.writeHeader(new DataOutputStream(bytes), header);
+
+        return bytes.toByteArray();
+    }
+
+    private static FrameRecording.Header read(byte[] bytes) throws IOException {
+        return FrameRecording.readHeader(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+}
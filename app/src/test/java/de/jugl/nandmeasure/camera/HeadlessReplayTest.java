@@ -0,0 +1,135 @@
+package de.jugl.nandmeasure.camera;
+
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+
+import de.jugl.nandmeasure.detection.CircleDetector;
+import de.jugl.nandmeasure.detection.DetectorEngine;
+import de.jugl.nandmeasure.util.MatProcessor;
+import de.jugl.nandmeasure.util.PipelineBenchmark;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the detection pipeline on recordings without a device. Needs a desktop build of OpenCV, see the test
+ * options in app/build.gradle, and is skipped without one. A recording of a real session can be passed in
+ * with <code>-PreplayFile=...</code>.
+ */
+public class HeadlessReplayTest {
+
+    private static final int WIDTH = 640, HEIGHT = 480;
+
+    private static final int FRAMES = 30;
+
+    /**
+     * Frame interval of the synthetic recording, 30 frames per second.
+     */
+    private static final long FRAME_INTERVAL = 33333333L;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void loadOpenCv() {
+        try {
+            System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        } catch (UnsatisfiedLinkError e) {
+            Assume.assumeNoException(e);
+        }
+    }
+
+    @Test
+    public void run_findsMarkerInEveryFrame() throws IOException {
+        File file = this.writeSyntheticRecording();
+        Rect markerArea = PipelineBenchmark.getMarkerArea(WIDTH, HEIGHT);
+
+        for (DetectorEngine engine : DetectorEngine.values()) {
+            HeadlessReplay.Result result = replay(file, engine, markerArea);
+
+            assertEquals(engine.name(), FRAMES, result.getFrameCount());
+            assertEquals(engine.name(), FRAMES, result.getDetectionCount());
+        }
+    }
+
+    @Test
+    public void run_reportsThroughputOfRecordedSession() throws IOException {
+        String path = System.getProperty("replayFile");
+        Assume.assumeTrue("No recording passed in", path != null);
+
+        for (DetectorEngine engine : DetectorEngine.values()) {
+            HeadlessReplay.Result result = replay(new File(path), engine, null);
+
+            assertTrue(result.getFrameCount() > 0);
+        }
+    }
+
+    /**
+     * Plays back a recording with a new detector and prints the throughput.
+     *
+     * @param file Recording
+     * @param engine Detector engine
+     * @param roi Area to search, or <code>null</code> for whole frames
+     * @return Playback result
+     * @throws IOException If the recording couldn't be read
+     */
+    private static HeadlessReplay.Result replay(File file, DetectorEngine engine, Rect roi) throws IOException {
+        MatProcessor processor = new MatProcessor();
+        processor.setThresholdType(MatProcessor.ThresholdType.OTSU_TEMPORAL);
+
+        CircleDetector detector = engine.create(processor, false);
+        HeadlessReplay.Result result = new HeadlessReplay(file).run(detector, roi);
+
+        detector.release();
+        processor.release();
+
+        System.out.println(String.format(Locale.ENGLISH, "%s: %d frames, marker found in %d, %.1f frames/s",
+                engine, result.getFrameCount(), result.getDetectionCount(), result.getFramesPerSecond()));
+
+        return result;
+    }
+
+    /**
+     * @return Recording of synthetic NV21 frames, see {@link PipelineBenchmark#createBenchmarkFrames(int, int, int)}
+     * @throws IOException If the recording couldn't be written
+     */
+    private File writeSyntheticRecording() throws IOException {
+        File file = this.mFolder.newFile("synthetic.nmfr");
+        List<Mat> frames = PipelineBenchmark.createBenchmarkFrames(WIDTH, HEIGHT, FRAMES);
+        FrameRecording.Header header = new FrameRecording.Header(FrameRecording.FORMAT_NV21, WIDTH, HEIGHT, 0d);
+        byte[] data = new byte[header.getFrameSize()];
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+
+        try {
+            FrameRecording.writeHeader(out, header);
+
+            for (int i = 0; i < frames.size(); i++) {
+                frames.get(i).get(0, 0, data);
+                FrameRecording.writeFrame(out, i * FRAME_INTERVAL, data);
+            }
+        } finally {
+            out.close();
+
+            for (Mat frame : frames) {
+                frame.release();
+            }
+        }
+
+        return file;
+    }
+
+}
@@ -0,0 +1,49 @@
+package de.jugl.nandmeasure.camera;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PreviewProfileTest {
+
+    private static final List<int[]> SIZES = Arrays.asList(new int[] { 640, 480 }, new int[] { 1280, 720 });
+
+    private static final List<int[]> FPS_RANGES = Arrays.asList(new int[] { 15, 15 }, new int[] { 15, 30 }, new int[] { 30, 30 });
+
+    @Test
+    public void isSupported_acceptsSupportedSizeAndRange() {
+        assertTrue(new PreviewProfile(1280, 720, 30, 30, 0).isSupported(SIZES, FPS_RANGES));
+    }
+
+    @Test
+    public void isSupported_rejectsSizeTheCameraLost() {
+        assertFalse(new PreviewProfile(1920, 1080, 30, 30, 0).isSupported(SIZES, FPS_RANGES));
+    }
+
+    @Test
+    public void isSupported_rejectsRangeTheCameraLost() {
+        assertFalse(new PreviewProfile(640, 480, 24, 24, 0).isSupported(SIZES, FPS_RANGES));
+    }
+
+    @Test
+    public void isSupported_ignoresMissingRange() {
+        assertTrue(new PreviewProfile(640, 480, 0, 0, 0).isSupported(SIZES, Collections.<int[]>emptyList()));
+    }
+
+    @Test
+    public void chooseFpsRange_prefersSteadyRangeJustAboveProcessingRate() {
+        assertArrayEquals(new int[] { 15, 15 }, PreviewProfile.chooseFpsRange(FPS_RANGES, 12d));
+        assertArrayEquals(new int[] { 30, 30 }, PreviewProfile.chooseFpsRange(FPS_RANGES, 20d));
+    }
+
+    @Test
+    public void chooseFpsRange_fallsBackToFastestRange() {
+        assertArrayEquals(new int[] { 15, 30 }, PreviewProfile.chooseFpsRange(FPS_RANGES, 60d));
+        assertArrayEquals(new int[] { 0, 0 }, PreviewProfile.chooseFpsRange(Collections.<int[]>emptyList(), 60d));
+    }
+
+}
@@ -0,0 +1,69 @@
+package de.jugl.nandmeasure.detection;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DetectorProfileTest {
+
+    private static final double NONE = Double.NaN;
+
+    private static final double RADIUS = 72d, CENTER_X = 120d, CENTER_Y = 120d;
+
+    private static final double MAX_ERROR = 1.5d;
+
+    @Test
+    public void getMaxError_takesLargestRadiusOrCenterError() {
+        // Radius off by 1 in the first frame, center off by 0.5 in the second.
+        double[] detections = { 146d, 120d, 120d, 144d, 120.3d, 119.6d };
+
+        assertEquals(1d, DetectorProfile.getMaxError(detections, RADIUS, CENTER_X, CENTER_Y), 1e-9);
+    }
+
+    @Test
+    public void getMaxError_isExactForExactDetections() {
+        double[] detections = { 144d, 120d, 120d, 144d, 120d, 120d };
+
+        assertEquals(0d, DetectorProfile.getMaxError(detections, RADIUS, CENTER_X, CENTER_Y), 0d);
+    }
+
+    @Test
+    public void getMaxError_isInfiniteIfAFrameWasMissed() {
+        double[] detections = { 144d, 120d, 120d, NONE, NONE, NONE };
+
+        assertEquals(Double.POSITIVE_INFINITY, DetectorProfile.getMaxError(detections, RADIUS, CENTER_X, CENTER_Y), 0d);
+    }
+
+    @Test
+    public void selectEngine_picksFastestWithinBound() {
+        long[] times = { 3000000L, 1000000L, 2000000L };
+        double[] errors = { .8d, .5d, 1.2d };
+
+        assertEquals(1, DetectorProfile.selectEngine(times, errors, MAX_ERROR));
+    }
+
+    @Test
+    public void selectEngine_skipsFasterEngineOutsideBound() {
+        long[] times = { 3000000L, 1000000L, 2000000L };
+        double[] errors = { .8d, 1.6d, Double.POSITIVE_INFINITY };
+
+        assertEquals(0, DetectorProfile.selectEngine(times, errors, MAX_ERROR));
+    }
+
+    @Test
+    public void selectEngine_acceptsErrorRightAtBound() {
+        long[] times = { 3000000L, 1000000L };
+        double[] errors = { .8d, MAX_ERROR };
+
+        assertEquals(1, DetectorProfile.selectEngine(times, errors, MAX_ERROR));
+    }
+
+    @Test
+    public void selectEngine_returnsNoneIfAllAreOutsideBound() {
+        long[] times = { 3000000L, 1000000L, 2000000L };
+        double[] errors = { 2d, Double.POSITIVE_INFINITY, 1.6d };
+
+        assertEquals(-1, DetectorProfile.selectEngine(times, errors, MAX_ERROR));
+    }
+
+}
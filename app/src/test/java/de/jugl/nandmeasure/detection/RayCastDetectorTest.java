@@ -0,0 +1,154 @@
+package de.jugl.nandmeasure.detection;
+
+import org.junit.Test;
+import org.opencv.core.Point;
+import org.opencv.core.RotatedRect;
+import org.opencv.core.Size;
+
+import static org.junit.Assert.*;
+
+public class RayCastDetectorTest {
+
+    private static final double DARK = 30d, BRIGHT = 220d, LEVEL = 125.5d;
+
+    @Test
+    public void findEdge_interpolatesBetweenSamples() {
+        double[] profile = { DARK, DARK, DARK, 60d, 180d, BRIGHT, BRIGHT, BRIGHT };
+
+        // 60 at 3, 180 at 4: the level is crossed 65.5 / 120 of the way.
+        assertEquals(3d + 65.5d / 120d, RayCastDetector.findEdge(profile, 0, profile.length, LEVEL, 3.5d), 1e-9);
+    }
+
+    @Test
+    public void findEdge_followsLevel() {
+        double[] profile = { DARK, DARK, DARK, 60d, 180d, BRIGHT, BRIGHT, BRIGHT };
+
+        // A lower level moves the edge towards the marker.
+        assertEquals(3d + 30d / 120d, RayCastDetector.findEdge(profile, 0, profile.length, 90d, 3.5d), 1e-9);
+    }
+
+    @Test
+    public void findEdge_readsRayAtOffset() {
+        double[] profile = { BRIGHT, BRIGHT, DARK, DARK, DARK, DARK, 125.5d, BRIGHT, BRIGHT, BRIGHT };
+
+        assertEquals(4d, RayCastDetector.findEdge(profile, 2, 8, LEVEL, 4d), 1e-9);
+    }
+
+    @Test
+    public void findEdge_takesCrossingClosestToExpected() {
+        // Noise crosses the level at 2 already, the marker edge is at 6.
+        double[] profile = { DARK, DARK, DARK, 140d, DARK, DARK, DARK, BRIGHT, BRIGHT, BRIGHT, BRIGHT, BRIGHT };
+
+        assertEquals(2d + 95.5d / 110d, RayCastDetector.findEdge(profile, 0, profile.length, LEVEL, 2d), 1e-9);
+        assertEquals(6d + 95.5d / 190d, RayCastDetector.findEdge(profile, 0, profile.length, LEVEL, 6d), 1e-9);
+    }
+
+    @Test
+    public void findEdge_ignoresBrightToDark() {
+        double[] profile = { BRIGHT, BRIGHT, BRIGHT, BRIGHT, DARK, DARK, DARK, DARK };
+
+        assertEquals(-1d, RayCastDetector.findEdge(profile, 0, profile.length, LEVEL, 4d), 0d);
+    }
+
+    @Test
+    public void findEdge_needsContrast() {
+        double[] profile = { 120d, 120d, 120d, 120d, 130d, 130d, 130d, 130d };
+
+        assertEquals(-1d, RayCastDetector.findEdge(profile, 0, profile.length, LEVEL, 4d), 0d);
+    }
+
+    @Test
+    public void findEdge_needsLevelBetweenEnds() {
+        // Plenty of contrast, but the whole ray is brighter than the level, e.g. in a brighter part of the image.
+        double[] profile = { 140d, 140d, 140d, 140d, BRIGHT, BRIGHT, BRIGHT, BRIGHT };
+
+        assertEquals(-1d, RayCastDetector.findEdge(profile, 0, profile.length, LEVEL, 4d), 0d);
+    }
+
+    @Test
+    public void findEdge_needsSamples() {
+        double[] profile = { DARK, BRIGHT, BRIGHT };
+
+        assertEquals(-1d, RayCastDetector.findEdge(profile, 0, profile.length, LEVEL, 1d), 0d);
+    }
+
+    @Test
+    public void getResidual_isZeroOnEllipse() {
+        RotatedRect ellipse = new RotatedRect(new Point(100d, 80d), new Size(120d, 60d), 30d);
+        float[] points = pointsOnEllipse(ellipse, 0d, 32);
+
+        assertEquals(0d, RayCastDetector.getResidual(points, 32, ellipse), 1e-4);
+    }
+
+    @Test
+    public void getResidual_measuresDistanceToCircle() {
+        RotatedRect circle = new RotatedRect(new Point(100d, 80d), new Size(100d, 100d), 0d);
+        float[] points = pointsOnEllipse(circle, 2d, 32);
+
+        assertEquals(2d, RayCastDetector.getResidual(points, 32, circle), 1e-4);
+    }
+
+    @Test
+    public void getResidual_exceedsBoundForJaggedEdge() {
+        RotatedRect circle = new RotatedRect(new Point(100d, 80d), new Size(100d, 100d), 0d);
+        float[] points = new float[64];
+
+        // Every other point 1.5 px outside, the others 1.5 px inside.
+        for (int i = 0; i < 32; i++) {
+            double angle = 2d * Math.PI * i / 32, radius = i % 2 == 0 ? 51.5d : 48.5d;
+
+            points[2 * i] = (float) (100d + radius * Math.cos(angle));
+            points[2 * i + 1] = (float) (80d + radius * Math.sin(angle));
+        }
+
+        assertTrue(RayCastDetector.getResidual(points, 32, circle) > RayCastDetector.MAX_RESIDUAL);
+    }
+
+    @Test
+    public void getResidual_isNaNForDegenerateEllipse() {
+        RotatedRect line = new RotatedRect(new Point(100d, 80d), new Size(100d, 0d), 0d);
+
+        assertTrue(Double.isNaN(RayCastDetector.getResidual(new float[] { 150f, 80f }, 1, line)));
+    }
+
+    @Test
+    public void hasEnoughEdges_needsShareOfRays() {
+        int rayCount = 64, needed = (int) Math.ceil(rayCount * RayCastDetector.MIN_EDGE_RATIO);
+
+        assertTrue(RayCastDetector.hasEnoughEdges(needed, rayCount));
+        assertFalse(RayCastDetector.hasEnoughEdges(needed - 1, rayCount));
+        assertTrue(RayCastDetector.hasEnoughEdges(rayCount, rayCount));
+    }
+
+    @Test
+    public void hasEnoughEdges_needsPointsForEllipseFit() {
+        // Even if every ray of an unreasonably small amount found an edge.
+        assertFalse(RayCastDetector.hasEnoughEdges(4, 4));
+        assertTrue(RayCastDetector.hasEnoughEdges(5, 5));
+    }
+
+    /**
+     * @param ellipse Ellipse
+     * @param distance Distance of the points outside the ellipse along the direction from its center
+     * @param count Amount of points
+     * @return Points as <code>{ x, y }</code> pairs, evenly spread over the ellipse parameter
+     */
+    private static float[] pointsOnEllipse(RotatedRect ellipse, double distance, int count) {
+        double a = ellipse.size.width / 2d, b = ellipse.size.height / 2d;
+        double angle = Math.toRadians(ellipse.angle);
+        float[] points = new float[2 * count];
+
+        for (int i = 0; i < count; i++) {
+            double t = 2d * Math.PI * i / count;
+            double u = a * Math.cos(t), v = b * Math.sin(t);
+            double x = u * Math.cos(angle) - v * Math.sin(angle), y = u * Math.sin(angle) + v * Math.cos(angle);
+            double scale = 1d + distance / Math.sqrt(x * x + y * y);
+
+            points[2 * i] = (float) (ellipse.center.x + x * scale);
+            points[2 * i + 1] = (float) (ellipse.center.y + y * scale);
+        }
+
+        return points;
+    }
+
+}
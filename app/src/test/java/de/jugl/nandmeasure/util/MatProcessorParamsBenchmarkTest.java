@@ -0,0 +1,123 @@
+package de.jugl.nandmeasure.util;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares reading the parameters of a frame from a {@link MatProcessor.Params} snapshot to the map lookups
+ * and unboxing casts MatProcessor did before. There is no JMH setup in the app module, so both paths are
+ * timed with {@link System#nanoTime()} after enough warmup rounds for the JIT to compile them.
+ */
+public class MatProcessorParamsBenchmarkTest {
+
+    private static final String BLUR_KERNEL_LENGTH = "blurKernel", BLUR_FILTER = "blurFilter",
+            BRIGHTNESS = "brightness", CONTRAST = "contrast", BILATERAL_SIGMA = "bilateralSigma",
+            THRESH_MAXVAL = "threshMaxval", CIRCLE_ASPECT_THRESHOLD = "circleAspect", MIN_CONTOUR_AREA = "minContourArea";
+
+    private static final int WARMUP_ROUNDS = 5, MEASURED_ROUNDS = 15;
+
+    /**
+     * Frames per round.
+     */
+    private static final int FRAMES = 200000;
+
+    /**
+     * Map in the layout of the old parameter map, with the same defaults.
+     */
+    private final Map<String, Object> mMap = new HashMap<>();
+
+    /**
+     * Snapshot, volatile like the field MatProcessor publishes it through.
+     */
+    private volatile MatProcessor.Params mParams = MatProcessor.Params.DEFAULTS;
+
+    @Test
+    public void snapshot_isFasterThanMapLookups() {
+        MatProcessor.Params defaults = MatProcessor.Params.DEFAULTS;
+
+        this.mMap.put(BLUR_KERNEL_LENGTH, defaults.getBlurKernelLength());
+        this.mMap.put(BLUR_FILTER, defaults.getBlurFilter());
+        this.mMap.put(BRIGHTNESS, defaults.getBrightness());
+        this.mMap.put(CONTRAST, defaults.getContrast());
+        this.mMap.put(BILATERAL_SIGMA, defaults.getBilateralSigma());
+        this.mMap.put(THRESH_MAXVAL, defaults.getThreshMaxval());
+        this.mMap.put(CIRCLE_ASPECT_THRESHOLD, defaults.getCircleAspectThreshold());
+        this.mMap.put(MIN_CONTOUR_AREA, defaults.getMinContourArea());
+
+        long[] mapTimes = new long[MEASURED_ROUNDS], snapshotTimes = new long[MEASURED_ROUNDS];
+        long sink = 0;
+
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+            long start = System.nanoTime();
+
+            for (int i = 0; i < FRAMES; i++) {
+                sink += this.readFromMap();
+            }
+
+            long mid = System.nanoTime();
+
+            for (int i = 0; i < FRAMES; i++) {
+                sink += this.readFromSnapshot();
+            }
+
+            long end = System.nanoTime();
+
+            if (round >= WARMUP_ROUNDS) {
+                mapTimes[round - WARMUP_ROUNDS] = mid - start;
+                snapshotTimes[round - WARMUP_ROUNDS] = end - mid;
+            }
+        }
+
+        double mapTime = (double) PipelineBenchmark.median(mapTimes) / FRAMES;
+        double snapshotTime = (double) PipelineBenchmark.median(snapshotTimes) / FRAMES;
+
+        System.out.println(String.format(Locale.ENGLISH, "Parameters per frame: map %.1f ns, snapshot %.1f ns (%d)",
+                mapTime, snapshotTime, sink & 1));
+
+        assertTrue(snapshotTime <= mapTime);
+    }
+
+    /**
+     * Reads the parameters of a single frame the way the map-based MatProcessor did: preprocessing, then
+     * the circle contour filter.
+     *
+     * @return Combination of the values, so the reads can't be optimized away
+     */
+    private long readFromMap() {
+        float contrast = (float) this.mMap.get(CONTRAST);
+        float brightness = (float) this.mMap.get(BRIGHTNESS);
+        int blurKernelLength = (int) this.mMap.get(BLUR_KERNEL_LENGTH);
+        MatProcessor.FilterType filter = (MatProcessor.FilterType) this.mMap.get(BLUR_FILTER);
+        float bilateralSigma = (float) this.mMap.get(BILATERAL_SIGMA);
+        int threshMaxval = (int) this.mMap.get(THRESH_MAXVAL);
+        float aspectThreshold = (float) this.mMap.get(CIRCLE_ASPECT_THRESHOLD);
+        int minContourArea = (int) this.mMap.get(MIN_CONTOUR_AREA);
+
+        return combine(contrast, brightness, blurKernelLength, filter, bilateralSigma, threshMaxval, aspectThreshold, minContourArea);
+    }
+
+    /**
+     * Reads the same parameters from the snapshot, which is fetched once per frame.
+     *
+     * @return Combination of the values, so the reads can't be optimized away
+     */
+    private long readFromSnapshot() {
+        MatProcessor.Params params = this.mParams;
+
+        return combine(params.getContrast(), params.getBrightness(), params.getBlurKernelLength(), params.getBlurFilter(),
+                params.getBilateralSigma(), params.getThreshMaxval(), params.getCircleAspectThreshold(), params.getMinContourArea());
+    }
+
+    private static long combine(float contrast, float brightness, int blurKernelLength, MatProcessor.FilterType filter,
+                                float bilateralSigma, int threshMaxval, float aspectThreshold, int minContourArea) {
+        return Float.floatToRawIntBits(contrast) + Float.floatToRawIntBits(brightness) + blurKernelLength +
+               filter.ordinal() + Float.floatToRawIntBits(bilateralSigma) + threshMaxval +
+               Float.floatToRawIntBits(aspectThreshold) + minContourArea;
+    }
+
+}
@@ -0,0 +1,56 @@
+package de.jugl.nandmeasure.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MatProcessorTest {
+
+    private static final int[] SQUARE = { 0, 0, 10, 0, 10, 10, 0, 10 };
+
+    private static final int[] SQUARE_REVERSED = { 0, 10, 10, 10, 10, 0, 0, 0 };
+
+    @Test
+    public void getOrientedArea_signFollowsOrientation() {
+        assertEquals(100d, MatProcessor.getOrientedArea(SQUARE, 4), 0d);
+        assertEquals(-100d, MatProcessor.getOrientedArea(SQUARE_REVERSED, 4), 0d);
+    }
+
+    @Test
+    public void getOrientedArea_onlyUsesCountPoints() {
+        // The point buffer is reused across contours, so it may hold stale points past the count.
+        int[] points = { 0, 0, 10, 0, 0, 10, 99, 99 };
+
+        assertEquals(50d, MatProcessor.getOrientedArea(points, 3), 0d);
+    }
+
+    @Test
+    public void getOrientedArea_degenerateContours() {
+        assertEquals(0d, MatProcessor.getOrientedArea(SQUARE, 0), 0d);
+        assertEquals(0d, MatProcessor.getOrientedArea(SQUARE, 1), 0d);
+        assertEquals(0d, MatProcessor.getOrientedArea(SQUARE, 2), 0d);
+    }
+
+    @Test
+    public void isSquare_countsOutermostPixelsIn() {
+        // 12 by 10 pixels, like Imgproc.boundingRect() measures it.
+        int[] points = { 0, 0, 11, 0, 11, 9, 0, 9 };
+
+        assertTrue(MatProcessor.isSquare(points, 4, .25f));
+        assertFalse(MatProcessor.isSquare(points, 4, .15f));
+    }
+
+    @Test
+    public void isSquare_acceptsSquareInEitherOrientation() {
+        assertTrue(MatProcessor.isSquare(SQUARE, 4, 0f));
+        assertTrue(MatProcessor.isSquare(SQUARE_REVERSED, 4, 0f));
+    }
+
+    @Test
+    public void isSquare_rejectsElongatedBox() {
+        int[] points = { 0, 0, 20, 0, 20, 10, 0, 10 };
+
+        assertFalse(MatProcessor.isSquare(points, 4, .2f));
+    }
+
+}
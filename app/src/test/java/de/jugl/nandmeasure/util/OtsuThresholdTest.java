@@ -0,0 +1,48 @@
+package de.jugl.nandmeasure.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class OtsuThresholdTest {
+
+    @Test
+    public void findThreshold_maximizesBetweenClassVariance() {
+        float[] histogram = new float[256];
+        histogram[0] = 1;
+        histogram[100] = 1;
+        histogram[200] = 2;
+
+        assertEquals(100, OtsuThreshold.findThreshold(histogram));
+    }
+
+    @Test
+    public void findThreshold_resolvesTiesToLowestThreshold() {
+        float[] histogram = new float[256];
+        histogram[10] = 50;
+        histogram[200] = 50;
+
+        assertEquals(10, OtsuThreshold.findThreshold(histogram));
+    }
+
+    @Test
+    public void findThreshold_needsTwoGrayLevels() {
+        float[] histogram = new float[256];
+
+        assertEquals(-1, OtsuThreshold.findThreshold(histogram));
+
+        histogram[128] = 1000;
+        assertEquals(-1, OtsuThreshold.findThreshold(histogram));
+    }
+
+    @Test
+    public void getDrift_rangesFromSameToDisjoint() {
+        float[] dark = { .5f, .5f, 0f, 0f }, bright = { 0f, 0f, .5f, .5f }, mixed = { .25f, .25f, .25f, .25f };
+
+        assertEquals(0d, OtsuThreshold.getDrift(dark, dark), 0d);
+        assertEquals(1d, OtsuThreshold.getDrift(dark, bright), 0d);
+        assertEquals(.5d, OtsuThreshold.getDrift(dark, mixed), 1e-6);
+        assertEquals(OtsuThreshold.getDrift(mixed, dark), OtsuThreshold.getDrift(dark, mixed), 0d);
+    }
+
+}